@@ -8,13 +8,16 @@
  *******************************************************************************/
 package org.spearce.egit.ui;
 
+import java.io.IOException;
 import java.net.Authenticator;
 import java.net.ProxySelector;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.core.net.proxy.IProxyService;
@@ -43,6 +46,7 @@
 import org.spearce.jgit.lib.RefsChangedEvent;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.RepositoryListener;
+import org.spearce.jgit.lib.RepositoryWatcher;
 import org.spearce.jgit.transport.SshSessionFactory;
 
 /**
@@ -304,9 +308,11 @@ static class RCS extends Job {
 			super("Repository Change Scanner");
 		}
 
-		// FIXME, need to be more intelligent about this to avoid too much work
 		private static final long REPO_SCAN_INTERVAL = 10000L;
 
+		/** Watchers of the repositories scanned last time. */
+		private final Map<Repository, RepositoryWatcher> watchers = new HashMap<Repository, RepositoryWatcher>();
+
 		@Override
 		protected IStatus run(IProgressMonitor monitor) {
 			try {
@@ -329,7 +335,7 @@ protected IStatus run(IProgressMonitor monitor) {
 							ISchedulingRule rule = p.getWorkspace().getRuleFactory().modifyRule(p);
 							getJobManager().beginRule(rule, monitor);
 							try {
-								r.scanForRepoChanges();
+								watcherFor(r).check();
 							} finally {
 								getJobManager().endRule(rule);
 							}
@@ -338,6 +344,7 @@ protected IStatus run(IProgressMonitor monitor) {
 					monitor.worked(1);
 				}
 				monitor.done();
+				closeWatchersExcept(scanned);
 				trace("Rescheduling " + getName() + " job");
 				schedule(REPO_SCAN_INTERVAL);
 			} catch (Exception e) {
@@ -351,6 +358,31 @@ protected IStatus run(IProgressMonitor monitor) {
 			}
 			return Status.OK_STATUS;
 		}
+
+		private RepositoryWatcher watcherFor(final Repository r)
+				throws IOException {
+			RepositoryWatcher w = watchers.get(r);
+			if (w == null) {
+				// Only changes made after this point are reported by
+				// the watcher, so look at everything once.
+				w = new RepositoryWatcher(r, false);
+				watchers.put(r, w);
+				r.scanForRepoChanges();
+			}
+			return w;
+		}
+
+		private void closeWatchersExcept(final Set<Repository> inUse) {
+			final Iterator<Map.Entry<Repository, RepositoryWatcher>> i;
+			i = watchers.entrySet().iterator();
+			while (i.hasNext()) {
+				final Map.Entry<Repository, RepositoryWatcher> e = i.next();
+				if (!inUse.contains(e.getKey())) {
+					e.getValue().close();
+					i.remove();
+				}
+			}
+		}
 	}
 
 	private void setupRepoChangeScanner() {
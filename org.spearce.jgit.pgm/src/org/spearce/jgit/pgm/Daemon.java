@@ -69,6 +69,21 @@ class Daemon extends TextBuiltin {
 	@Option(name = "--export-all", usage = "export without git-daemon-export-ok")
 	boolean exportAll;
 
+	@Option(name = "--max-connections", metaVar = "N", usage = "number of clients served at once")
+	int maxConnections = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_CONNECTIONS;
+
+	@Option(name = "--max-queued-connections", metaVar = "N", usage = "number of clients waiting to be served")
+	int maxQueued = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_QUEUED_CONNECTIONS;
+
+	@Option(name = "--service-limit", metaVar = "SERVICE=N", usage = "number of clients the service handles at once", multiValued = true)
+	final List<String> serviceLimit = new ArrayList<String>();
+
+	@Option(name = "--init-timeout", metaVar = "SECONDS", usage = "seconds a client has to send its request")
+	int initTimeout;
+
+	@Option(name = "--timeout", metaVar = "SECONDS", usage = "seconds a client may stay idle during a request")
+	int timeout;
+
 	@Argument(required = true, metaVar = "DIRECTORY", usage = "directories to export")
 	final List<File> directory = new ArrayList<File>();
 
@@ -85,6 +100,10 @@ protected void run() throws Exception {
 				host != null ? new InetSocketAddress(host, port)
 						: new InetSocketAddress(port));
 		d.setExportAll(exportAll);
+		d.setMaxConnections(maxConnections);
+		d.setMaxQueuedConnections(maxQueued);
+		d.setInitTimeout(initTimeout);
+		d.setTimeout(timeout);
 
 		for (final String n : enable)
 			service(d, n).setEnabled(true);
@@ -96,6 +115,19 @@ protected void run() throws Exception {
 		for (final String n : forbidOverride)
 			service(d, n).setOverridable(false);
 
+		for (final String n : serviceLimit) {
+			final int eq = n.indexOf('=');
+			if (eq < 0)
+				throw die("Expected SERVICE=N, not '" + n + "'");
+			final int max;
+			try {
+				max = Integer.parseInt(n.substring(eq + 1));
+			} catch (NumberFormatException e) {
+				throw die("Expected SERVICE=N, not '" + n + "'");
+			}
+			service(d, n.substring(0, eq)).setMaxConnections(max);
+		}
+
 		for (final File f : directory) {
 			out.println("Exporting " + f.getAbsolutePath());
 			d.exportDirectory(f);
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.pgm;
+
+import org.kohsuke.args4j.Option;
+import org.spearce.jgit.lib.GC;
+import org.spearce.jgit.lib.TextProgressMonitor;
+
+@Command(common = true, usage = "Repack the repository and prune unneeded objects")
+class Gc extends TextBuiltin {
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	private static final long MINUTE = 60 * 1000L;
+
+	@Option(name = "--prune", metaVar = "DAYS", usage = "prune unreachable loose objects older than this")
+	int pruneDays = (int) (GC.DEFAULT_EXPIRE_AGE_MILLIS / DAY);
+
+	@Option(name = "--pack-expire", metaVar = "MINUTES", usage = "delete packs replaced longer ago than this")
+	int packExpireMinutes = (int) (GC.DEFAULT_PACK_EXPIRE_AGE_MILLIS / MINUTE);
+
+	@Option(name = "--geometric", metaVar = "FACTOR", usage = "only merge the smallest packs into a geometric progression")
+	int geometric;
+
+	@Override
+	protected void run() throws Exception {
+		final GC gc = new GC(db);
+		gc.setProgressMonitor(new TextProgressMonitor());
+		gc.setExpireAgeMillis(pruneDays * DAY);
+		gc.setPackExpireAgeMillis(packExpireMinutes * MINUTE);
+		if (geometric > 0) {
+			gc.repackGeometric(geometric);
+			gc.writeMultiPackIndex();
+		} else
+			gc.gc();
+	}
+}
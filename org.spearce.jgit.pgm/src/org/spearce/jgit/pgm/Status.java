@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.pgm;
+
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.UntrackedCache;
+import org.spearce.jgit.lib.IndexStatus;
+
+@Command(common = true, usage = "Show the working tree status")
+class Status extends TextBuiltin {
+	@Override
+	protected void run() throws Exception {
+		DirCache.refresh(db);
+		final UntrackedCache uc = UntrackedCache.read(db);
+		final IndexStatus s = new IndexStatus(db);
+		s.setUntrackedCache(uc);
+		s.diff();
+		uc.write();
+		show("U ", s.getConflicting());
+		show("A ", s.getAdded());
+		show("M ", s.getChanged());
+		show("D ", s.getRemoved());
+		show(" M", s.getModified());
+		show(" D", s.getMissing());
+		show("??", s.getUntracked());
+	}
+
+	private void show(final String code, final Set<String> paths) {
+		for (final String p : paths) {
+			out.print(code);
+			out.print(' ');
+			out.print(p);
+			out.println();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+/**
+ * Compares {@link PackIndexV2Mapped} against the heap based
+ * {@link PackIndexV2}.
+ * <p>
+ * All v2 <code>.idx</code> files of the repository named in
+ * <code>kernel.ref</code> are opened with both implementations. For each the
+ * test prints the time to open the indexes, the heap they retain, and the
+ * average latency of finding objects that exist and objects that do not.
+ */
+public class PackIndexSpeedTest extends SpeedTestBase {
+	private static final int LOOKUPS = 1000000;
+
+	private File[] idxFiles;
+
+	private ObjectId[] present;
+
+	private ObjectId[] absent;
+
+	protected void setUp() throws Exception {
+		kernelrepo = readKernelRepo();
+		final File packDir = new File(new File(kernelrepo, "objects"), "pack");
+		idxFiles = packDir.listFiles(new FileFilter() {
+			public boolean accept(final File f) {
+				return f.getName().endsWith(".idx");
+			}
+		});
+		assertNotNull("no packs in " + packDir, idxFiles);
+
+		final Random rng = new Random(42);
+		final List<ObjectId> all = new ArrayList<ObjectId>();
+		for (final PackIndex idx : openHeap())
+			for (final PackIndex.MutableEntry e : idx)
+				all.add(e.toObjectId());
+		present = new ObjectId[4096];
+		for (int i = 0; i < present.length; i++)
+			present[i] = all.get(rng.nextInt(all.size()));
+		absent = new ObjectId[4096];
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < absent.length; i++) {
+			rng.nextBytes(raw);
+			absent[i] = ObjectId.fromRaw(raw);
+		}
+	}
+
+	public void testHeapIndex() throws Exception {
+		report("heap", new Opener() {
+			PackIndex[] open() throws IOException {
+				return openHeap();
+			}
+		});
+	}
+
+	public void testMappedIndex() throws Exception {
+		report("mapped", new Opener() {
+			PackIndex[] open() throws IOException {
+				final PackIndex[] r = new PackIndex[idxFiles.length];
+				for (int i = 0; i < r.length; i++)
+					r[i] = PackIndexV2Mapped.map(idxFiles[i]);
+				return r;
+			}
+		});
+	}
+
+	private void report(final String name, final Opener o) throws Exception {
+		o.open(); // warm up the JIT and the OS page cache
+
+		final long heapBefore = usedHeap();
+		final long openStart = System.nanoTime();
+		final PackIndex[] idx = o.open();
+		final long openTime = System.nanoTime() - openStart;
+		final long retained = usedHeap() - heapBefore;
+
+		lookup(idx, present);
+		final long hitNanos = lookup(idx, present);
+		final long missNanos = lookup(idx, absent);
+
+		System.out.println(name + ": indexes=" + idx.length + " open="
+				+ (openTime / 1000000) + "ms" + " heap=" + (retained / 1024)
+				+ "KiB" + " hit=" + hitNanos + "ns" + " miss=" + missNanos
+				+ "ns");
+	}
+
+	/** @return average nanoseconds to search every index for one name. */
+	private static long lookup(final PackIndex[] idx, final ObjectId[] ids) {
+		int found = 0;
+		final long start = System.nanoTime();
+		for (int n = 0; n < LOOKUPS; n++) {
+			final ObjectId id = ids[n % ids.length];
+			for (final PackIndex i : idx) {
+				if (i.findOffset(id) != -1) {
+					found++;
+					break;
+				}
+			}
+		}
+		final long time = System.nanoTime() - start;
+		assertTrue(found >= 0);
+		return time / LOOKUPS;
+	}
+
+	private PackIndex[] openHeap() throws IOException {
+		final PackIndex[] r = new PackIndex[idxFiles.length];
+		for (int i = 0; i < r.length; i++) {
+			final FileInputStream in = new FileInputStream(idxFiles[i]);
+			try {
+				assertEquals(8, in.skip(8));
+				r[i] = new PackIndexV2(in);
+			} finally {
+				in.close();
+			}
+		}
+		return r;
+	}
+
+	private static long usedHeap() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static abstract class Opener {
+		abstract PackIndex[] open() throws IOException;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(PackIndexSpeedTest.class);
+	}
+}
@@ -71,12 +71,7 @@ public abstract class SpeedTestBase extends TestCase {
 	 */
 	protected void prepare(String[] refcmd) throws Exception {
 		try {
-			BufferedReader bufferedReader = new BufferedReader(new FileReader("kernel.ref"));
-			try {
-				kernelrepo = bufferedReader.readLine();
-			} finally {
-				bufferedReader.close();
-			}
+			kernelrepo = readKernelRepo();
 			timeNativeGit(kernelrepo, refcmd);
 			nativeTime = timeNativeGit(kernelrepo, refcmd);
 		} catch (Exception e) {
@@ -85,6 +80,22 @@ protected void prepare(String[] refcmd) throws Exception {
 		}
 	}
 
+	/**
+	 * Read the location of the Linux kernel repo from <code>kernel.ref</code>.
+	 *
+	 * @return path of the repository's <code>.git</code> directory.
+	 * @throws IOException
+	 *             the file <code>kernel.ref</code> cannot be read.
+	 */
+	protected static String readKernelRepo() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new FileReader("kernel.ref"));
+		try {
+			return bufferedReader.readLine();
+		} finally {
+			bufferedReader.close();
+		}
+	}
+
 	private static long timeNativeGit(String kernelrepo, String[] refcmd) throws IOException,
 			InterruptedException, Exception {
 		long start = System.currentTimeMillis();
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+/**
+ * Multi-threaded throughput of {@link WindowCache} lookups.
+ * <p>
+ * Every reader thread copies small random ranges out of all packs of the
+ * repository named in <code>kernel.ref</code>, through its own
+ * {@link WindowCursor}, with a cache limit much smaller than the packs. Only
+ * API that predates the concurrent cache is used, so the same test can be run
+ * against older revisions to compare the numbers it prints.
+ */
+public class WindowCacheSpeedTest extends SpeedTestBase {
+	private static final int READS_PER_THREAD = 200000;
+
+	private WindowedFile[] packs;
+
+	protected void setUp() throws Exception {
+		kernelrepo = readKernelRepo();
+		final File packDir = new File(new File(kernelrepo, "objects"), "pack");
+		final File[] list = packDir.listFiles(new FileFilter() {
+			public boolean accept(final File f) {
+				return f.getName().endsWith(".pack");
+			}
+		});
+		assertNotNull("no packs in " + packDir, list);
+		WindowCache.reconfigure(32 * 1024 * 1024, 8192, false, 8192);
+
+		// Read from each pack once so its length is known.
+		//
+		final WindowCursor curs = new WindowCursor();
+		packs = new WindowedFile[list.length];
+		for (int i = 0; i < list.length; i++) {
+			packs[i] = new WindowedFile(list[i]);
+			packs[i].read(0, new byte[12], curs);
+		}
+		curs.release();
+	}
+
+	protected void tearDown() throws Exception {
+		for (final WindowedFile p : packs)
+			p.close();
+	}
+
+	public void testThroughput() throws Exception {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		run(1); // warm up the JIT and the OS page cache
+		for (int threads = 1; threads <= 2 * cpus; threads *= 2) {
+			final long time = run(threads);
+			final long reads = (long) threads * READS_PER_THREAD;
+			System.out.println("threads=" + threads + " time=" + time + "ms"
+					+ " reads/s=" + (reads * 1000 / Math.max(1, time)));
+		}
+	}
+
+	private long run(final int threadCount) throws Exception {
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final Random rng = new Random(i);
+			threads[i] = new Thread() {
+				public void run() {
+					final byte[] buf = new byte[64];
+					final WindowCursor curs = new WindowCursor();
+					try {
+						for (int n = 0; n < READS_PER_THREAD; n++) {
+							final WindowedFile p = packs[rng.nextInt(packs.length)];
+							final long pos = (long) (rng.nextDouble() * (p.length() - buf.length));
+							p.read(pos, buf, curs);
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					} finally {
+						curs.release();
+					}
+				}
+			};
+		}
+
+		final long start = System.currentTimeMillis();
+		for (final Thread t : threads)
+			t.start();
+		for (final Thread t : threads)
+			t.join();
+		final long time = System.currentTimeMillis() - start;
+		if (failure[0] != null)
+			throw new IOException("reader failed: " + failure[0]);
+		return time;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(WindowCacheSpeedTest.class);
+	}
+}
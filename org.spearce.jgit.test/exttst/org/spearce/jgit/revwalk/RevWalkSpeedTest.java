@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.SpeedTestBase;
+
+/**
+ * Time of {@link RevWalk} when it starts from very many commits.
+ * <p>
+ * Repositories with tens of thousands of references start their walks with as
+ * many commits in the pending queue. To simulate that the first commits of
+ * the history of <code>HEAD</code> in the repository named in
+ * <code>kernel.ref</code> are all marked as starting points of a single walk,
+ * which is then run to completion. Only API that predates the heap based
+ * {@link DateRevQueue} is used, so the same test can be run against older
+ * revisions to compare the numbers it prints.
+ */
+public class RevWalkSpeedTest extends SpeedTestBase {
+	private Repository db;
+
+	private List<RevCommit> history;
+
+	protected void setUp() throws Exception {
+		kernelrepo = readKernelRepo();
+		db = new Repository(new File(kernelrepo));
+
+		final RevWalk rw = new RevWalk(db);
+		rw.markStart(rw.parseCommit(db.resolve(Constants.HEAD)));
+		history = new ArrayList<RevCommit>();
+		for (final RevCommit c : rw)
+			history.add(c);
+	}
+
+	protected void tearDown() throws Exception {
+		db.close();
+	}
+
+	public void testManyStarts() throws Exception {
+		run(1000); // warm up the JIT and the caches
+		for (int tips = 1000; tips <= 64000; tips *= 4) {
+			if (tips > history.size())
+				break;
+			final long time = run(tips);
+			System.out.println("starts=" + tips + " time=" + time + "ms");
+		}
+	}
+
+	private long run(final int tips) throws Exception {
+		final long start = System.currentTimeMillis();
+		final RevWalk rw = new RevWalk(db);
+		for (int i = 0; i < tips; i++)
+			rw.markStart(rw.parseCommit(history.get(i)));
+		int n = 0;
+		while (rw.next() != null)
+			n++;
+		final long time = System.currentTimeMillis() - start;
+		assertEquals(history.size(), n);
+		return time;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(RevWalkSpeedTest.class);
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.treewalk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+/**
+ * Compares hashing a working tree on the walking thread against hashing it
+ * ahead of the walk on a pool.
+ * <p>
+ * A synthetic tree of {@link #DIRS} directories with {@link #FILES} files of
+ * up to {@link #MAX_SIZE} bytes each is written to the trash directory. The
+ * test prints the time to walk it and compute the id of every file, first
+ * inline and then with pools of increasing size. The first walk warms the
+ * OS page cache, so all of them measure hashing rather than disk IO.
+ */
+public class WorkingTreeHashSpeedTest extends RepositoryTestCase {
+	private static final int DIRS = 64;
+
+	private static final int FILES = 256;
+
+	private static final int MAX_SIZE = 32 * 1024;
+
+	private static final int READ_AHEAD = 64;
+
+	private File root;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		root = new File(trash, "tree");
+		final Random rng = new Random(42);
+		final byte[] buf = new byte[MAX_SIZE];
+		for (int d = 0; d < DIRS; d++) {
+			final File dir = new File(root, "d" + d);
+			assertTrue(dir.mkdirs());
+			for (int f = 0; f < FILES; f++) {
+				rng.nextBytes(buf);
+				final FileOutputStream out = new FileOutputStream(new File(
+						dir, "f" + f));
+				try {
+					out.write(buf, 0, 1 + rng.nextInt(MAX_SIZE));
+				} finally {
+					out.close();
+				}
+			}
+		}
+	}
+
+	public void testHashAhead() throws Exception {
+		final List<ObjectId> expect = walk(null, "warm-up");
+		walk(null, "inline");
+
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cpus; threads *= 2) {
+			final ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				assertEquals(expect, walk(pool, threads + " threads"));
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private List<ObjectId> walk(final ExecutorService pool, final String name)
+			throws IOException {
+		final long start = System.currentTimeMillis();
+		final FileTreeIterator fti = new FileTreeIterator(root);
+		fti.setHashPool(pool, READ_AHEAD);
+
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.setRecursive(true);
+		tw.addTree(fti);
+		final List<ObjectId> ids = new ArrayList<ObjectId>(DIRS * FILES);
+		while (tw.next())
+			ids.add(tw.getObjectId(0));
+		final long time = System.currentTimeMillis() - start;
+
+		assertEquals(DIRS * FILES, ids.size());
+		System.out.println(name + ": files=" + ids.size() + " time=" + time
+				+ "ms");
+		return ids;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(WorkingTreeHashSpeedTest.class);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.dircache;
+
+import java.io.File;
+
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.treewalk.FileTreeIterator;
+
+public class DirCacheRefreshTest extends RepositoryTestCase {
+	private static final long TIME = 1200000000000L;
+
+	private File idx;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		idx = new File(db.getDirectory(), "index");
+	}
+
+	public void testSmudge() {
+		final DirCacheEntry e = new DirCacheEntry("a");
+		e.setLastModified(TIME);
+		assertFalse(e.isSmudged());
+		e.smudgeRacilyClean();
+		assertTrue(e.isSmudged());
+		e.setLastModified(TIME);
+		assertFalse(e.isSmudged());
+	}
+
+	public void testTouchedFileIsRefreshed() throws Exception {
+		writeIndex(TIME, "a", "b");
+		writeTrashFile("a", "a", TIME + 5000);
+
+		assertTrue(DirCache.refresh(db));
+		final DirCache dc = DirCache.read(db);
+		assertEquals(TIME + 5000, dc.getEntry("a").getLastModified());
+		assertEquals(TIME, dc.getEntry("b").getLastModified());
+
+		// Nothing left to refresh, so the index is not written again.
+		final long written = idx.lastModified();
+		assertTrue(idx.setLastModified(written - 10000));
+		assertFalse(DirCache.refresh(db));
+		assertEquals(written - 10000, idx.lastModified());
+	}
+
+	public void testModifiedFileIsNotRefreshed() throws Exception {
+		writeIndex(TIME, "a");
+		writeTrashFile("a", "longer", TIME + 5000);
+
+		assertFalse(DirCache.refresh(db));
+		final DirCacheEntry e = DirCache.read(db).getEntry("a");
+		assertEquals(TIME, e.getLastModified());
+		assertEquals(1, e.getLength());
+	}
+
+	public void testRacilyCleanEntryIsRefreshed() throws Exception {
+		writeIndex(TIME, "a");
+		assertTrue(idx.setLastModified(TIME));
+		assertTrue(DirCache.read(db).isRacilyClean(
+				DirCache.read(db).getEntry("a")));
+
+		assertTrue(DirCache.refresh(db));
+		final DirCache dc = DirCache.read(db);
+		assertFalse(dc.isRacilyClean(dc.getEntry("a")));
+		assertEquals(TIME, dc.getEntry("a").getLastModified());
+	}
+
+	public void testRacilyModifiedEntryIsSmudged() throws Exception {
+		writeIndex(TIME, "a", "b");
+		assertTrue(idx.setLastModified(TIME));
+		writeTrashFile("a", "x", TIME);
+
+		final DirCache dc = DirCache.lock(db);
+		try {
+			assertTrue(dc.refresh(db, new FileTreeIterator(trash)));
+			assertTrue(dc.getEntry("a").isSmudged());
+			assertFalse(dc.getEntry("b").isSmudged());
+			dc.write();
+			assertTrue(dc.commit());
+		} finally {
+			dc.unlock();
+		}
+
+		final DirCache r = DirCache.read(db);
+		assertTrue(r.getEntry("a").isSmudged());
+		assertFalse(r.getEntry("b").isSmudged());
+		assertFalse(r.isRacilyClean(r.getEntry("b")));
+	}
+
+	public void testRecentFileIsNotRefreshed() throws Exception {
+		writeIndex(TIME, "a");
+		writeTrashFile("a", "a", System.currentTimeMillis());
+		assertFalse(DirCache.refresh(db));
+		assertEquals(TIME, DirCache.read(db).getEntry("a").getLastModified());
+	}
+
+	public void testLockedIndexIsSkipped() throws Exception {
+		writeIndex(TIME, "a");
+		writeTrashFile("a", "a", TIME + 5000);
+
+		final DirCache dc = DirCache.lock(db);
+		try {
+			assertFalse(DirCache.refresh(db));
+		} finally {
+			dc.unlock();
+		}
+		assertTrue(DirCache.refresh(db));
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.dircache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.spearce.jgit.lib.IndexStatus;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class UntrackedCacheTest extends RepositoryTestCase {
+	private static final long TIME = 1200000000000L;
+
+	private File cacheFile;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		cacheFile = new File(db.getDirectory(), "untracked-cache");
+		writeTrashFile("a", "a");
+		writeTrashFile("b", "b");
+		writeTrashFile("d/c", "c");
+		writeTrashFile("d/t", "t");
+		writeTrashFile("d/e/f", "f");
+		writeTrashFile("g/h", "h");
+		writeIndex(TIME, "a", "d/t", "g/h");
+		age();
+	}
+
+	public void testScan() throws Exception {
+		final UntrackedCache uc = UntrackedCache.read(db);
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertEquals(4, uc.getListedDirectoryCount());
+	}
+
+	public void testUnchangedDirectoryIsNotListed() throws Exception {
+		final UntrackedCache uc = UntrackedCache.read(db);
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertEquals(0, uc.getListedDirectoryCount());
+
+		// The cache trusts the modification time alone, so a file
+		// added behind its back is not seen.
+		writeTrashFile("d/x", "x");
+		age();
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertEquals(0, uc.getListedDirectoryCount());
+	}
+
+	public void testAdd() throws Exception {
+		final UntrackedCache uc = scanned();
+		writeTrashFile("d/x", "x");
+		assertUntracked(uc, "b", "d/c", "d/e/f", "d/x");
+		assertEquals(1, uc.getListedDirectoryCount());
+	}
+
+	public void testAddDirectory() throws Exception {
+		final UntrackedCache uc = scanned();
+		writeTrashFile("d/n/x", "x");
+		assertUntracked(uc, "b", "d/c", "d/e/f", "d/n/x");
+		assertEquals(2, uc.getListedDirectoryCount());
+	}
+
+	public void testRemove() throws Exception {
+		final UntrackedCache uc = scanned();
+		assertTrue(new File(trash, "d/c").delete());
+		assertUntracked(uc, "b", "d/e/f");
+		assertEquals(1, uc.getListedDirectoryCount());
+	}
+
+	public void testRemoveDirectory() throws Exception {
+		final UntrackedCache uc = scanned();
+		assertTrue(new File(trash, "d/e/f").delete());
+		assertTrue(new File(trash, "d/e").delete());
+		assertUntracked(uc, "b", "d/c");
+		assertEquals(1, uc.getListedDirectoryCount());
+	}
+
+	public void testRenameWithinDirectory() throws Exception {
+		final UntrackedCache uc = scanned();
+		assertTrue(new File(trash, "d/c").renameTo(new File(trash, "d/c2")));
+		assertUntracked(uc, "b", "d/c2", "d/e/f");
+		assertEquals(1, uc.getListedDirectoryCount());
+	}
+
+	public void testRenameAcrossDirectories() throws Exception {
+		final UntrackedCache uc = scanned();
+		assertTrue(new File(trash, "d/c").renameTo(new File(trash, "g/c")));
+		assertUntracked(uc, "b", "d/e/f", "g/c");
+		assertEquals(2, uc.getListedDirectoryCount());
+	}
+
+	public void testRenameDirectory() throws Exception {
+		final UntrackedCache uc = scanned();
+		assertTrue(new File(trash, "d/e").renameTo(new File(trash, "e")));
+		assertUntracked(uc, "b", "d/c", "e/f");
+		assertEquals(3, uc.getListedDirectoryCount());
+	}
+
+	public void testStageAndUnstage() throws Exception {
+		final UntrackedCache uc = scanned();
+		writeIndex(TIME, "a", "d/c", "d/t", "g/h");
+		assertUntracked(uc, "b", "d/e/f");
+		writeIndex(TIME, "a", "g/h");
+		assertUntracked(uc, "b", "d/c", "d/e/f", "d/t");
+		assertEquals(0, uc.getListedDirectoryCount());
+	}
+
+	public void testRecentDirectoryIsNotTrusted() throws Exception {
+		final UntrackedCache uc = scanned();
+		writeTrashFile("d/x", "x");
+		final long mtime = new File(trash, "d").lastModified();
+		assertUntracked(uc, "b", "d/c", "d/e/f", "d/x");
+
+		// Modified again in the same second; only listing it
+		// again can find the new file.
+		writeTrashFile("d/y", "y");
+		assertTrue(new File(trash, "d").setLastModified(mtime));
+		assertUntracked(uc, "b", "d/c", "d/e/f", "d/x", "d/y");
+		assertEquals(1, uc.getListedDirectoryCount());
+	}
+
+	public void testNestedRepository() throws Exception {
+		assertTrue(new File(trash, "d/e/.git").mkdir());
+		assertUntracked(UntrackedCache.read(db), "b", "d/c", "d/e");
+	}
+
+	public void testWriteAndRead() throws Exception {
+		final UntrackedCache uc = UntrackedCache.read(db);
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertTrue(uc.write());
+		assertTrue(cacheFile.isFile());
+
+		final UntrackedCache r = UntrackedCache.read(db);
+		assertUntracked(r, "b", "d/c", "d/e/f");
+		assertEquals(0, r.getListedDirectoryCount());
+
+		// Unchanged, so it is not written again.
+		assertTrue(cacheFile.setLastModified(TIME));
+		assertTrue(r.write());
+		assertEquals(TIME, cacheFile.lastModified());
+	}
+
+	public void testCorruptFileIsIgnored() throws Exception {
+		final UntrackedCache uc = UntrackedCache.read(db);
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		assertTrue(uc.write());
+
+		final byte[] buf = new byte[(int) cacheFile.length()];
+		Arrays.fill(buf, (byte) 'x');
+		final FileOutputStream out = new FileOutputStream(cacheFile);
+		try {
+			out.write(buf);
+		} finally {
+			out.close();
+		}
+
+		final UntrackedCache r = UntrackedCache.read(db);
+		assertUntracked(r, "b", "d/c", "d/e/f");
+		assertEquals(4, r.getListedDirectoryCount());
+		assertTrue(r.write());
+
+		final UntrackedCache n = UntrackedCache.read(db);
+		assertUntracked(n, "b", "d/c", "d/e/f");
+		assertEquals(0, n.getListedDirectoryCount());
+	}
+
+	public void testIndexStatus() throws Exception {
+		assertTrue(new File(trash, "a").delete());
+		writeTrashFile("d/x", "x");
+		writeTrashFile("n/m/o", "o");
+
+		final IndexStatus plain = new IndexStatus(db);
+		plain.diff();
+		final IndexStatus cached = new IndexStatus(db);
+		cached.setUntrackedCache(UntrackedCache.read(db));
+		cached.diff();
+
+		assertEquals(set("b", "d/c", "d/e/f", "d/x", "n/m/o"),
+				new HashSet<String>(cached.getUntracked()));
+		assertEquals(new TreeSet<String>(plain.getUntracked()),
+				new TreeSet<String>(cached.getUntracked()));
+		assertEquals(plain.getAdded(), cached.getAdded());
+		assertEquals(plain.getChanged(), cached.getChanged());
+		assertEquals(plain.getRemoved(), cached.getRemoved());
+		assertEquals(plain.getMissing(), cached.getMissing());
+		assertEquals(plain.getModified(), cached.getModified());
+	}
+
+	private UntrackedCache scanned() throws IOException {
+		final UntrackedCache uc = UntrackedCache.read(db);
+		assertUntracked(uc, "b", "d/c", "d/e/f");
+		return uc;
+	}
+
+	private void assertUntracked(final UntrackedCache uc,
+			final String... paths) throws IOException {
+		assertEquals(set(paths), uc.scan(DirCache.read(db)));
+	}
+
+	private static Set<String> set(final String... paths) {
+		return new HashSet<String>(Arrays.asList(paths));
+	}
+
+	/** Move every directory into the past, so the cache trusts it. */
+	private void age() {
+		age(trash);
+	}
+
+	private static void age(final File dir) {
+		for (final File f : dir.listFiles()) {
+			if (f.isDirectory() && !".git".equals(f.getName()))
+				age(f);
+		}
+		assertTrue(dir.setLastModified(TIME));
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.spearce.jgit.lib.RefUpdate.Result;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class BatchRefUpdateTest extends RepositoryTestCase {
+	private ObjectId A;
+
+	private ObjectId B;
+
+	private ObjectId MASTER;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		A = db.resolve("refs/heads/a");
+		B = db.resolve("refs/heads/b");
+		MASTER = db.resolve("refs/heads/master");
+	}
+
+	public void testSmallBatch() throws IOException {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.addCommand(update("refs/heads/a", MASTER, false));
+		batch.addCommand(update("refs/heads/new", B, false));
+		batch.addCommand(delete("refs/heads/c"));
+		batch.addCommand(delete("refs/heads/missing"));
+		execute(batch);
+
+		assertResults(batch, Result.FAST_FORWARD, Result.NEW, Result.FORCED,
+				Result.NEW);
+		assertEquals(MASTER, db.resolve("refs/heads/a"));
+		assertEquals(B, db.resolve("refs/heads/new"));
+		assertNull(db.resolve("refs/heads/c"));
+		assertTrue(new File(trash_git, "refs/heads/new").exists());
+		assertTrue(new File(trash_git, "logs/refs/heads/new").exists());
+	}
+
+	public void testLargeBatchRewritesPackedRefs() throws IOException {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		final int n = RefDirectoryBatchUpdate.PACKED_BATCH_SIZE;
+		for (int i = 0; i < n; i++)
+			batch.addCommand(update("refs/remotes/origin/b" + i, i % 2 == 0 ? A
+					: B, false));
+		batch.addCommand(update("refs/heads/a", B, true));
+		batch.addCommand(delete("refs/heads/d"));
+		execute(batch);
+
+		for (final RefUpdate u : batch.getCommands())
+			assertTrue(u.getName(), RefUpdate.isStorable(u.getResult()));
+		assertFalse(new File(trash_git, "refs/remotes/origin/b0").exists());
+		assertTrue(new File(trash_git, "logs/refs/remotes/origin/b0")
+				.exists());
+
+		final Repository other = new Repository(db.getDirectory());
+		assertEquals(n, other.getRefs("refs/remotes/origin/").size());
+		assertEquals(A, other.resolve("refs/remotes/origin/b0"));
+		assertEquals(B, other.resolve("refs/remotes/origin/b1"));
+		assertEquals(B, other.resolve("refs/heads/a"));
+		assertNull(other.resolve("refs/heads/d"));
+		other.close();
+	}
+
+	public void testAtomicAbortsAll() throws IOException {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.setAtomic(true);
+		batch.addCommand(update("refs/heads/new", A, false));
+		batch.addCommand(update("refs/heads/b", A, false));
+		batch.addCommand(delete("refs/heads/c"));
+		execute(batch);
+
+		assertResults(batch, Result.ABORTED, Result.REJECTED, Result.ABORTED);
+		assertNull(db.resolve("refs/heads/new"));
+		assertEquals(B, db.resolve("refs/heads/b"));
+		assertNotNull(db.resolve("refs/heads/c"));
+	}
+
+	public void testAtomicWriteFailureChangesNothing() throws IOException {
+		// The reflog of the second ref cannot be appended to, so that
+		// ref fails after the first one was already written.
+		//
+		final File log = new File(trash_git, "logs/refs/heads/new");
+		assertTrue(new File(log, "blocker").mkdirs());
+
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.setAtomic(true);
+		batch.addCommand(update("refs/heads/a", MASTER, false));
+		batch.addCommand(update("refs/heads/new", B, false));
+		batch.addCommand(delete("refs/heads/c"));
+		try {
+			execute(batch);
+			fail("stored a batch whose reflog cannot be written");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertResults(batch, Result.IO_FAILURE, Result.IO_FAILURE,
+				Result.IO_FAILURE);
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			assertEquals(A, other.resolve("refs/heads/a"));
+			assertNull(other.resolve("refs/heads/new"));
+			assertNotNull(other.resolve("refs/heads/c"));
+		} finally {
+			other.close();
+		}
+		assertFalse(new File(trash_git, "refs/heads/a.lock").exists());
+		assertFalse(new File(trash_git, "packed-refs.lock").exists());
+	}
+
+	public void testDeleteFailureAfterPackedCommit() throws IOException {
+		final File loose = writeTrashFile(".git/refs/heads/b", B.name() + "\n");
+		final RefDirectory refdb = (RefDirectory) db.getRefDatabase();
+		final RefUpdate stuck = new RefDirectoryUpdate(refdb, refdb
+				.readRef("refs/heads/b"), loose) {
+			@Override
+			void deleteLooseFile() throws IOException {
+				throw new IOException("File cannot be deleted: " + loose);
+			}
+		};
+		stuck.setNewObjectId(A);
+		stuck.setForceUpdate(true);
+
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.setAtomic(true);
+		batch.addCommand(update("refs/heads/a", MASTER, false));
+		batch.addCommand(stuck);
+		execute(batch);
+
+		assertResults(batch, Result.FAST_FORWARD, Result.IO_FAILURE);
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			assertEquals(MASTER, other.resolve("refs/heads/a"));
+			assertEquals(B, other.resolve("refs/heads/b"));
+		} finally {
+			other.close();
+		}
+		assertFalse(new File(trash_git, "refs/heads/b.lock").exists());
+		assertFalse(new File(trash_git, "packed-refs.lock").exists());
+	}
+
+	public void testLockFailureOnlyAffectsOneRef() throws IOException {
+		final File lck = new File(trash_git, "refs/heads/b.lock");
+		assertTrue(lck.createNewFile());
+
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.addCommand(update("refs/heads/new", A, false));
+		batch.addCommand(update("refs/heads/b", A, true));
+		execute(batch);
+
+		assertResults(batch, Result.NEW, Result.LOCK_FAILURE);
+		assertEquals(A, db.resolve("refs/heads/new"));
+		assertEquals(B, db.resolve("refs/heads/b"));
+		assertTrue(lck.exists());
+	}
+
+	public void testDeleteCurrentBranch() throws IOException {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.addCommand(delete("refs/heads/master"));
+		execute(batch);
+		assertResults(batch, Result.REJECTED_CURRENT_BRANCH);
+		assertEquals(MASTER, db.resolve("refs/heads/master"));
+	}
+
+	public void testRejectsSameRefTwice() throws IOException {
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		batch.addCommand(update("refs/heads/master", A, true));
+		try {
+			batch.addCommand(update(Constants.HEAD, B, true));
+			fail("accepted two updates of refs/heads/master");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private RefUpdate update(final String name, final ObjectId id,
+			final boolean force) throws IOException {
+		final RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(id);
+		u.setForceUpdate(force);
+		u.setRefLogMessage("batch", true);
+		return u;
+	}
+
+	private RefUpdate delete(final String name) throws IOException {
+		final RefUpdate u = db.updateRef(name);
+		u.setForceUpdate(true);
+		return u;
+	}
+
+	private void execute(final BatchRefUpdate batch) throws IOException {
+		batch.execute(new RevWalk(db));
+	}
+
+	private static void assertResults(final BatchRefUpdate batch,
+			final Result... expect) {
+		final List<RefUpdate> cmds = batch.getCommands();
+		assertEquals(expect.length, cmds.size());
+		for (int i = 0; i < expect.length; i++)
+			assertEquals(cmds.get(i).getName(), expect[i], cmds.get(i)
+					.getResult());
+	}
+}
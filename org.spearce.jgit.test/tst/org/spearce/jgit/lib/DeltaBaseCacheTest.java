@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+
+import org.spearce.jgit.util.JGitTestUtil;
+
+public class DeltaBaseCacheTest extends RepositoryTestCase {
+	private static final String PACK = "pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371";
+
+	private PackFile pack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File idx = JGitTestUtil.getTestResourceFile(PACK + ".idx");
+		final File packFile = JGitTestUtil.getTestResourceFile(PACK + ".pack");
+		pack = new PackFile(idx, packFile);
+	}
+
+	protected void tearDown() throws Exception {
+		pack.close();
+		super.tearDown();
+	}
+
+	public void testDeltaChainCached() throws Exception {
+		// A tree stored as a delta; its base is cached along with it.
+		final ObjectId id = ObjectId
+				.fromString("be9b45333b66013bde1c7314efc50fabd9b39c6d");
+		final WindowCursor curs = new WindowCursor();
+		final byte[] first = pack.get(curs, id).getCachedBytes();
+
+		final long hits = DeltaBaseCache.getHitCount();
+		final long misses = DeltaBaseCache.getMissCount();
+		assertSame(first, pack.get(curs, id).getCachedBytes());
+		assertEquals(hits + 1, DeltaBaseCache.getHitCount());
+		assertEquals(misses, DeltaBaseCache.getMissCount());
+	}
+
+	public void testEvictLeastRecentlyUsed() {
+		final long evictions = DeltaBaseCache.getEvictionCount();
+		final byte[] a = new byte[3000];
+		final byte[] b = new byte[3000];
+		final byte[] c = new byte[3000];
+
+		pack.saveCache(1, a, Constants.OBJ_BLOB);
+		pack.saveCache(2, b, Constants.OBJ_BLOB);
+		assertSame(a, pack.readCache(1).data);
+		pack.saveCache(3, c, Constants.OBJ_BLOB);
+
+		assertTrue(DeltaBaseCache.getEvictionCount() > evictions);
+		assertTrue(DeltaBaseCache.getOpenByteCount() <= 8192);
+		assertSame(a, pack.readCache(1).data);
+		assertNull(pack.readCache(2));
+		assertSame(c, pack.readCache(3).data);
+	}
+
+	public void testTooLarge() {
+		pack.saveCache(1, new byte[8193], Constants.OBJ_BLOB);
+		assertNull(pack.readCache(1));
+	}
+
+	public void testPurgeOnClose() {
+		final byte[] a = new byte[100];
+		pack.saveCache(1, a, Constants.OBJ_BLOB);
+		final DeltaBaseCache.Entry e = pack.readCache(1);
+		assertSame(a, e.data);
+		assertEquals(Constants.OBJ_BLOB, e.type);
+
+		final long open = DeltaBaseCache.getOpenByteCount();
+		pack.close();
+		assertNull(pack.readCache(1));
+		assertEquals(open - a.length, DeltaBaseCache.getOpenByteCount());
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeltaIndexTest extends TestCase {
+	private Rng rng;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		rng = new Rng(getName().hashCode());
+	}
+
+	public void testInsertOnly_EmptyBase() {
+		assertRoundTrip(new byte[0], rng.nextBytes(300));
+	}
+
+	public void testInsertOnly_SmallBase() {
+		assertRoundTrip(rng.nextBytes(DeltaIndex.BLKSZ - 1), rng.nextBytes(40));
+	}
+
+	public void testEmptyResult() {
+		assertRoundTrip(rng.nextBytes(100), new byte[0]);
+	}
+
+	public void testIdentical() {
+		final byte[] base = rng.nextBytes(5000);
+		final byte[] delta = assertRoundTrip(base, base);
+		assertTrue(delta.length < 20);
+	}
+
+	public void testLongCopy() {
+		final byte[] base = rng.nextBytes(3 * 0x10000 + 17);
+		final byte[] delta = assertRoundTrip(base, base);
+		assertTrue(delta.length < 40);
+	}
+
+	public void testEditsInMiddle() {
+		final byte[] base = rng.nextBytes(4096);
+		final byte[] res = new byte[base.length + 10];
+		System.arraycopy(base, 0, res, 0, 1000);
+		System.arraycopy(rng.nextBytes(30), 0, res, 1000, 30);
+		System.arraycopy(base, 1020, res, 1030, base.length - 1020);
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 100);
+	}
+
+	public void testPrependAndAppend() {
+		final byte[] base = rng.nextBytes(2000);
+		final byte[] res = new byte[base.length + 300];
+		System.arraycopy(rng.nextBytes(150), 0, res, 0, 150);
+		System.arraycopy(base, 0, res, 150, base.length);
+		System.arraycopy(rng.nextBytes(150), 0, res, 150 + base.length, 150);
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 350);
+	}
+
+	public void testRepetitiveBase() {
+		final byte[] base = new byte[8192];
+		final byte[] res = new byte[9000];
+		Arrays.fill(res, (byte) 'a');
+		Arrays.fill(base, (byte) 'a');
+		final byte[] delta = assertRoundTrip(base, res);
+		assertTrue(delta.length < 30);
+	}
+
+	public void testUnrelated() {
+		assertRoundTrip(rng.nextBytes(1024), rng.nextBytes(1024));
+	}
+
+	public void testLimit() {
+		final byte[] base = rng.nextBytes(1024);
+		final byte[] res = rng.nextBytes(1024);
+		final DeltaIndex idx = new DeltaIndex(base);
+		assertNull(idx.encode(res, 512));
+
+		final byte[] delta = idx.encode(base, 512);
+		assertNotNull(delta);
+		assertNull(idx.encode(base, delta.length - 1));
+		assertNotNull(idx.encode(base, delta.length));
+	}
+
+	/** TestRng repeats every 256 bytes, which matches too easily. */
+	private static class Rng extends Random {
+		Rng(final long seed) {
+			super(seed);
+		}
+
+		byte[] nextBytes(final int cnt) {
+			final byte[] r = new byte[cnt];
+			nextBytes(r);
+			return r;
+		}
+	}
+
+	private static byte[] assertRoundTrip(final byte[] base, final byte[] res) {
+		final byte[] delta = new DeltaIndex(base).encode(res, Integer.MAX_VALUE);
+		assertNotNull(delta);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(base, delta)));
+		return delta;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class EWAHBitmapTest extends TestCase {
+	public void testEmpty() throws IOException {
+		final EWAHBitmap b = new EWAHBitmap(0);
+		assertEquals(-1, b.nextSetBit(0));
+		assertEquals(0, b.cardinality());
+		assertEquals(0, roundTrip(b).size());
+	}
+
+	public void testSetGet() {
+		final EWAHBitmap b = new EWAHBitmap(200);
+		b.set(0);
+		b.set(63);
+		b.set(64);
+		b.set(199);
+		assertTrue(b.get(0));
+		assertFalse(b.get(1));
+		assertTrue(b.get(63));
+		assertTrue(b.get(64));
+		assertTrue(b.get(199));
+		assertEquals(4, b.cardinality());
+	}
+
+	public void testNextSetBit() {
+		final EWAHBitmap b = new EWAHBitmap(1000);
+		b.set(5);
+		b.set(700);
+		assertEquals(5, b.nextSetBit(0));
+		assertEquals(5, b.nextSetBit(5));
+		assertEquals(700, b.nextSetBit(6));
+		assertEquals(-1, b.nextSetBit(701));
+		assertEquals(-1, b.nextSetBit(1000));
+	}
+
+	public void testOrAndNotXor() {
+		final EWAHBitmap a = new EWAHBitmap(130);
+		final EWAHBitmap b = new EWAHBitmap(130);
+		a.set(1);
+		a.set(100);
+		b.set(100);
+		b.set(129);
+
+		final EWAHBitmap or = copy(a);
+		or.or(b);
+		assertBits(or, 1, 100, 129);
+
+		final EWAHBitmap andNot = copy(a);
+		andNot.andNot(b);
+		assertBits(andNot, 1);
+
+		final EWAHBitmap xor = copy(a);
+		xor.xor(b);
+		assertBits(xor, 1, 129);
+	}
+
+	public void testRunsCompress() throws IOException {
+		final EWAHBitmap b = new EWAHBitmap(64 * 1000);
+		for (int i = 64 * 100; i < 64 * 900; i++)
+			b.set(i);
+		b.set(64 * 950 + 3);
+
+		final byte[] enc = b.encode();
+		assertTrue(enc.length < 64);
+		assertEquals(enc.length, EWAHBitmap.encodedLength(enc, 0));
+		assertSame(b, roundTrip(b));
+	}
+
+	public void testRandom() throws IOException {
+		final Random rng = new Random(getName().hashCode());
+		final EWAHBitmap b = new EWAHBitmap(10000);
+		for (int i = 0; i < 500; i++)
+			b.set(rng.nextInt(10000));
+		assertSame(b, roundTrip(b));
+	}
+
+	public void testDecodeTooLarge() {
+		final EWAHBitmap b = new EWAHBitmap(1000);
+		b.set(999);
+		try {
+			EWAHBitmap.decode(b.encode(), 0, 100);
+			fail("decoded a bitmap larger than requested");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static EWAHBitmap roundTrip(final EWAHBitmap b)
+			throws IOException {
+		final byte[] enc = b.encode();
+		final byte[] buf = new byte[enc.length + 7];
+		System.arraycopy(enc, 0, buf, 7, enc.length);
+		return EWAHBitmap.decode(buf, 7, b.size());
+	}
+
+	private static EWAHBitmap copy(final EWAHBitmap b) {
+		final EWAHBitmap r = new EWAHBitmap(b.size());
+		r.or(b);
+		return r;
+	}
+
+	private static void assertBits(final EWAHBitmap b, final int... bits) {
+		assertEquals(bits.length, b.cardinality());
+		for (final int i : bits)
+			assertTrue(b.get(i));
+	}
+
+	private static void assertSame(final EWAHBitmap exp, final EWAHBitmap act) {
+		assertEquals(exp.size(), act.size());
+		assertEquals(exp.cardinality(), act.cardinality());
+		for (int i = exp.nextSetBit(0); i >= 0; i = exp.nextSetBit(i + 1))
+			assertTrue(act.get(i));
+	}
+}
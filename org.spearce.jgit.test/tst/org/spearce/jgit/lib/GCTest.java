@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevObject;
+
+public class GCTest extends RepositoryTestCase {
+	private static final long OLD = 30 * 24 * 60 * 60 * 1000L;
+
+	private GC gc;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		gc = new GC(db);
+		gc.setPackExpireAgeMillis(0);
+	}
+
+	public void testRepackKeepsReachableObjects() throws IOException {
+		final List<ObjectId> reachable = listReachable();
+		gc.gc();
+
+		final File[] packs = packFiles();
+		assertEquals(1, packs.length);
+		assertEquals(1, db.packs().length);
+		assertEquals(reachable.size(), db.packs()[0].getObjectCount());
+		for (final ObjectId id : reachable) {
+			assertTrue(db.hasObject(id));
+			assertNotNull(db.openObject(id));
+		}
+	}
+
+	public void testRepackTwiceWritesSamePack() throws IOException {
+		gc.gc();
+		final File first = packFiles()[0];
+		gc.gc();
+		final File[] packs = packFiles();
+		assertEquals(1, packs.length);
+		assertEquals(first, packs[0]);
+	}
+
+	public void testYoungPacksKept() throws IOException {
+		final int before = packFiles().length;
+		gc.setPackExpireAgeMillis(GC.DEFAULT_PACK_EXPIRE_AGE_MILLIS);
+		gc.gc();
+		assertEquals(before + 1, packFiles().length);
+	}
+
+	public void testReplacedPackStaysReadable() throws IOException {
+		gc.setPackExpireAgeMillis(GC.DEFAULT_PACK_EXPIRE_AGE_MILLIS);
+		final File[] old = packFiles();
+		for (final File f : old)
+			assertTrue(f.setLastModified(System.currentTimeMillis() - OLD));
+
+		final Repository reader = new Repository(db.getDirectory());
+		try {
+			final PackFile[] packs = reader.packs();
+			gc.gc();
+
+			// Written long ago, but replaced just now: the packs stay,
+			// and a reader which has to reopen them still can.
+			//
+			assertEquals(old.length + 1, packFiles().length);
+			final WindowCursor curs = new WindowCursor();
+			try {
+				for (final PackFile p : packs) {
+					p.close();
+					for (final PackIndex.MutableEntry e : p) {
+						final PackedObjectLoader ldr = p.get(curs, e
+								.toObjectId());
+						assertNotNull(ldr);
+						assertNotNull(ldr.getCachedBytes());
+					}
+				}
+			} finally {
+				curs.release();
+			}
+
+			// Once they were replaced long enough ago, they go.
+			//
+			for (final File f : old)
+				assertTrue(oldMarker(f).setLastModified(System
+						.currentTimeMillis()
+						- OLD));
+			gc.gc();
+			assertEquals(1, packFiles().length);
+			for (final File f : old)
+				assertFalse(oldMarker(f).exists());
+		} finally {
+			reader.close();
+		}
+	}
+
+	public void testKeepFileHonoured() throws IOException {
+		final PackFile p = db.packs()[0];
+		final String n = p.getPackFile().getName();
+		final File keep = new File(p.getPackFile().getParentFile(), n
+				.substring(0, n.length() - 5)
+				+ ".keep");
+		assertTrue(keep.createNewFile());
+		gc.gc();
+
+		assertTrue(p.getPackFile().isFile());
+		assertEquals(2, packFiles().length);
+	}
+
+	public void testPruneLooseObjects() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId oldGarbage = ow.writeBlob("old".getBytes());
+		final ObjectId youngGarbage = ow.writeBlob("young".getBytes());
+		ObjectId packedCopy = null;
+		for (final ObjectId id : listReachable()) {
+			if (db.openObject(id).getType() == Constants.OBJ_BLOB)
+				packedCopy = id;
+		}
+		final byte[] packed = db.openObject(packedCopy).getBytes();
+		final Repository scratch = createNewEmptyRepo();
+		assertEquals(packedCopy, new ObjectWriter(scratch).writeBlob(packed));
+		looseFile(packedCopy).getParentFile().mkdirs();
+		copyFile(new File(new File(scratch.getObjectsDirectory(), packedCopy
+				.name().substring(0, 2)), packedCopy.name().substring(2)),
+				looseFile(packedCopy));
+		age(packedCopy);
+		age(oldGarbage);
+		age(youngGarbage);
+		assertTrue(looseFile(youngGarbage).setLastModified(System
+				.currentTimeMillis()));
+
+		gc.gc();
+
+		assertFalse(looseFile(oldGarbage).exists());
+		assertFalse(db.hasObject(oldGarbage));
+		assertTrue(looseFile(youngGarbage).exists());
+		assertFalse(looseFile(packedCopy).exists());
+		assertTrue(db.hasObject(packedCopy));
+	}
+
+	public void testUnreachablePackedObjectUnpacked() throws IOException {
+		final ObjectId id = packUnreachableBlob();
+		final File pack = packFiles()[0];
+		final long time = System.currentTimeMillis() - 60 * 1000L;
+		assertTrue(pack.setLastModified(time));
+
+		gc.gc();
+
+		assertFalse(pack.exists());
+		assertTrue(looseFile(id).exists());
+		assertEquals(time / 1000, looseFile(id).lastModified() / 1000);
+		assertNotNull(db.openObject(id));
+	}
+
+	public void testExpiredPackedObjectDropped() throws IOException {
+		final ObjectId id = packUnreachableBlob();
+		final File pack = packFiles()[0];
+		assertTrue(pack.setLastModified(System.currentTimeMillis() - OLD));
+
+		gc.gc();
+
+		assertFalse(pack.exists());
+		assertFalse(looseFile(id).exists());
+		assertFalse(db.hasObject(id));
+	}
+
+	public void testLooseCommitRepacked() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final Commit c = new Commit(db);
+		c.setTreeId(ObjectId
+				.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4904"));
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("loose\n");
+		final ObjectId id = ow.writeCommit(c);
+		final RefUpdate u = db.updateRef("refs/heads/loose");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.update());
+		age(id);
+
+		gc.gc();
+
+		assertFalse(looseFile(id).exists());
+		assertTrue(db.hasObject(id));
+	}
+
+	public void testPackRefs() throws IOException {
+		final ObjectId id = db.resolve("refs/heads/master");
+		final RefUpdate u = db.updateRef("refs/heads/packme");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.update());
+		final File loose = new File(db.getDirectory(), "refs/heads/packme");
+		assertTrue(loose.isFile());
+
+		gc.packRefs();
+
+		assertFalse(loose.exists());
+		final Ref r = db.getAllRefs().get("refs/heads/packme");
+		assertNotNull(r);
+		assertEquals(Ref.Storage.PACKED, r.getStorage());
+		assertEquals(id, r.getObjectId());
+		assertEquals(id, db.resolve("refs/heads/packme"));
+
+		final Ref tag = db.getAllRefs().get("refs/tags/B");
+		assertNotNull(tag.getPeeledObjectId());
+	}
+
+	public void testReaderFindsNewPack() throws IOException {
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			final ObjectWriter ow = new ObjectWriter(db);
+			final ObjectId id = ow.writeBlob("in a loose file".getBytes());
+			final RefUpdate u = db.updateRef("refs/tags/blob");
+			u.setNewObjectId(id);
+			assertEquals(RefUpdate.Result.NEW, u.update());
+			assertTrue(other.hasObject(id));
+
+			gc.gc();
+
+			assertFalse(looseFile(id).exists());
+			assertTrue(other.hasObject(id));
+			assertNotNull(other.openObject(id));
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testRepackRewritesMultiPackIndex() throws IOException {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final File f = new File(packDir, MultiPackIndex.FILE_NAME);
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			new MultiPackIndexWriter(Arrays.asList(db.packs())).write(out);
+		} finally {
+			out.close();
+		}
+
+		gc.repack();
+
+		final String[] names = MultiPackIndex.open(f).getPackNames();
+		assertEquals(packFiles().length, names.length);
+		for (final String n : names)
+			assertTrue(new File(packDir, n).isFile());
+	}
+
+	public void testGeometricSplit() {
+		assertEquals(0, GC.geometricSplit(new long[] {}, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 7 }, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 10, 20, 40, 80 }, 2));
+		assertEquals(4, GC.geometricSplit(new long[] { 1, 1, 1, 1, 100 }, 2));
+		assertEquals(2, GC.geometricSplit(new long[] { 5, 8, 40 }, 2));
+		assertEquals(3, GC.geometricSplit(new long[] { 5, 8, 20 }, 2));
+		assertEquals(2, GC.geometricSplit(new long[] { 5, 8, 40 }, 3));
+		assertEquals(3, GC.geometricSplit(new long[] { 5, 8, 38 }, 3));
+	}
+
+	public void testGeometricKeepsAllObjects() throws IOException {
+		final List<ObjectId> all = listPacked();
+		final int before = db.packs().length;
+		final File pack = gc.repackGeometric(2);
+		assertNotNull(pack);
+		assertTrue(pack.isFile());
+		assertTrue(db.packs().length < before);
+		for (final ObjectId id : all) {
+			assertTrue(db.hasObject(id));
+			assertNotNull(db.openObject(id));
+		}
+
+		final long[] counts = new long[db.packs().length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = db.packs()[i].getObjectCount();
+		Arrays.sort(counts);
+		assertEquals(0, GC.geometricSplit(counts, 2));
+		assertNull(gc.repackGeometric(2));
+	}
+
+	public void testGeometricHonoursKeep() throws IOException {
+		final PackFile[] packs = db.packs();
+		for (final PackFile p : packs) {
+			final String n = p.getPackFile().getName();
+			assertTrue(new File(p.getPackFile().getParentFile(), n.substring(
+					0, n.length() - 5)
+					+ ".keep").createNewFile());
+		}
+		assertNull(gc.repackGeometric(2));
+		assertEquals(packs.length, packFiles().length);
+	}
+
+	public void testGeometricPacksLooseObjects() throws IOException {
+		final ObjectId id = new ObjectWriter(db).writeBlob("loose"
+				.getBytes());
+		assertTrue(looseFile(id).isFile());
+		assertNotNull(gc.repackGeometric(2));
+		assertFalse(looseFile(id).exists());
+		assertTrue(db.hasObject(id));
+		assertEquals(Constants.OBJ_BLOB, db.openObject(id).getType());
+	}
+
+	public void testGeometricLeavesYoungMergedPacks() throws IOException {
+		// Give the packs distinct ages, older than the pack written next.
+		//
+		final long now = System.currentTimeMillis();
+		final File[] old = packFiles();
+		for (int i = 0; i < old.length; i++)
+			assertTrue(old[i].setLastModified(now - (i + 2) * 10000L));
+		final Repository r = new Repository(db.getDirectory());
+		try {
+			final GC young = new GC(r);
+			final File pack = young.repackGeometric(2);
+			assertNotNull(pack);
+			assertEquals(old.length + 1, packFiles().length);
+
+			// The merged packs are redundant now; they are neither
+			// merged again nor deleted before they expire.
+			//
+			assertNull(young.repackGeometric(2));
+			assertEquals(old.length + 1, packFiles().length);
+
+			young.setPackExpireAgeMillis(1000);
+			assertNull(young.repackGeometric(2));
+			assertEquals(old.length + 1, packFiles().length);
+
+			for (final File f : old) {
+				final File m = oldMarker(f);
+				if (m.exists())
+					assertTrue(m.setLastModified(now - 10000));
+			}
+			assertNull(young.repackGeometric(2));
+			assertTrue(pack.isFile());
+			assertTrue(packFiles().length < old.length + 1);
+		} finally {
+			r.close();
+		}
+	}
+
+	private List<ObjectId> listReachable() throws IOException {
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final Ref r : db.getAllRefs().values())
+			ow.markStart(ow.parseAny(r.getObjectId()));
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			r.add(o.copy());
+		while ((o = ow.nextObject()) != null)
+			r.add(o.copy());
+		return r;
+	}
+
+	private List<ObjectId> listPacked() {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (final PackFile p : db.packs())
+			for (final PackIndex.MutableEntry e : p)
+				r.add(e.toObjectId());
+		return r;
+	}
+
+	/** Pack a blob into the only pack, then make it unreachable. */
+	private ObjectId packUnreachableBlob() throws IOException {
+		final ObjectId id = new ObjectWriter(db).writeBlob("soon unreachable"
+				.getBytes());
+		final RefUpdate u = db.updateRef("refs/tags/blob");
+		u.setNewObjectId(id);
+		assertEquals(RefUpdate.Result.NEW, u.update());
+		gc.gc();
+		assertEquals(1, packFiles().length);
+		assertFalse(looseFile(id).exists());
+
+		final RefUpdate d = db.updateRef("refs/tags/blob");
+		d.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, d.delete());
+		return id;
+	}
+
+	private File[] packFiles() {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final List<File> r = new ArrayList<File>();
+		for (final File f : packDir.listFiles()) {
+			if (f.getName().endsWith(".pack"))
+				r.add(f);
+		}
+		return r.toArray(new File[r.size()]);
+	}
+
+	private static File oldMarker(final File pack) {
+		final String n = pack.getName();
+		return new File(pack.getParentFile(), n.substring(0, n.length() - 5)
+				+ ".old");
+	}
+
+	private File looseFile(final ObjectId id) {
+		final String n = id.name();
+		return new File(new File(db.getObjectsDirectory(), n.substring(0, 2)),
+				n.substring(2));
+	}
+
+	private void age(final ObjectId id) {
+		assertTrue(looseFile(id).setLastModified(System.currentTimeMillis()
+				- OLD));
+	}
+}
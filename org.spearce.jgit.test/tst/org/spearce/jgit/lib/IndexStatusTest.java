@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheBuilder;
+import org.spearce.jgit.dircache.DirCacheEntry;
+
+public class IndexStatusTest extends RepositoryTestCase {
+	private static final long TIME = 1200000000000L;
+
+	public void testCleanTree() throws IOException {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("a", "a", TIME));
+		b.add(writeIndexEntry("d/b", "b", TIME));
+		b.add(writeIndexEntry("d/e/c", "c", TIME));
+		b.finish();
+
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+		final IndexStatus s = indexStatus(tree, dc);
+		assertFalse(s.diff());
+		assertTrue(s.isClean());
+	}
+
+	public void testAddedChangedRemoved() throws IOException {
+		final DirCache dc = DirCache.newInCore();
+		DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("changed", "old", TIME));
+		b.add(writeIndexEntry("removed", "removed", TIME));
+		b.add(writeIndexEntry("same", "same", TIME));
+		b.finish();
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+
+		new File(trash, "removed").delete();
+		b = dc.builder();
+		b.add(writeIndexEntry("added", "added", TIME));
+		b.add(writeIndexEntry("changed", "new", TIME));
+		b.add(writeIndexEntry("same", "same", TIME));
+		b.finish();
+
+		final IndexStatus s = indexStatus(tree, dc);
+		assertTrue(s.diff());
+		assertSet(s.getAdded(), "added");
+		assertSet(s.getChanged(), "changed");
+		assertSet(s.getRemoved(), "removed");
+		assertSet(s.getModified());
+		assertSet(s.getMissing());
+		assertSet(s.getUntracked());
+	}
+
+	public void testModifiedMissingUntracked() throws IOException {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("d/modified", "a", TIME));
+		b.add(writeIndexEntry("missing", "b", TIME));
+		b.finish();
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+
+		writeTrashFile("d/modified", "longer", TIME + 1000);
+		new File(trash, "missing").delete();
+		writeTrashFile("d/untracked", "c", TIME);
+		writeTrashFile("new/untracked", "d", TIME);
+
+		final IndexStatus s = indexStatus(tree, dc);
+		assertTrue(s.diff());
+		assertSet(s.getModified(), "d/modified");
+		assertSet(s.getMissing(), "missing");
+		assertSet(s.getUntracked(), "d/untracked", "new/untracked");
+		assertSet(s.getAdded());
+		assertSet(s.getChanged());
+		assertSet(s.getRemoved());
+	}
+
+	public void testMatchingStatDataIsTrusted() throws IOException {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("f", "abc", TIME));
+		b.finish();
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+
+		// Same size and time: the file is not read, so the change is missed.
+		writeTrashFile("f", "xyz", TIME);
+		IndexStatus s = indexStatus(tree, dc);
+		assertFalse(s.diff());
+
+		// A different time makes it look, and find the change.
+		writeTrashFile("f", "xyz", TIME + 1000);
+		s = indexStatus(tree, dc);
+		assertTrue(s.diff());
+		assertSet(s.getModified(), "f");
+	}
+
+	public void testTouchedFileIsNotModified() throws IOException {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("f", "abc", TIME));
+		b.finish();
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+
+		writeTrashFile("f", "abc", TIME + 5000);
+		assertFalse(indexStatus(tree, dc).diff());
+	}
+
+	public void testRacilyCleanEntryIsHashed() throws Exception {
+		final File idx = new File(db.getDirectory(), "index");
+		DirCache dc = DirCache.lock(db);
+		final DirCacheBuilder b = dc.builder();
+		b.add(writeIndexEntry("racy", "abc", TIME));
+		b.add(writeIndexEntry("same", "abc", TIME));
+		b.finish();
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+		dc.write();
+		assertTrue(dc.commit());
+
+		// Make the index as old as the entries it caches, as though
+		// both files were written in the same instant as the index.
+		assertTrue(idx.setLastModified(TIME));
+		writeTrashFile("racy", "xyz", TIME);
+		dc = DirCache.read(db);
+		assertTrue(dc.isRacilyClean(dc.getEntry("racy")));
+
+		final IndexStatus s = indexStatus(tree, dc);
+		assertTrue(s.diff());
+		assertSet(s.getModified(), "racy");
+	}
+
+	public void testConflicting() throws IOException {
+		final ObjectId id = new ObjectWriter(db).writeBlob(Constants
+				.encode("x"));
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		for (int stage = 1; stage <= 3; stage++) {
+			final DirCacheEntry e = new DirCacheEntry("c", stage);
+			e.setFileMode(FileMode.REGULAR_FILE);
+			e.setObjectId(id);
+			b.add(e);
+		}
+		b.add(writeIndexEntry("z", "z", TIME));
+		b.finish();
+		writeTrashFile("c", "<<<<<<<", TIME);
+
+		final IndexStatus s = indexStatus(null, dc);
+		assertTrue(s.diff());
+		assertSet(s.getConflicting(), "c");
+		assertSet(s.getAdded(), "z");
+		assertSet(s.getModified());
+		assertSet(s.getUntracked());
+		assertSet(s.getRemoved());
+	}
+
+	private static void assertSet(final Set<String> actual,
+			final String... expected) {
+		assertEquals(expected.length, actual.size());
+		for (final String p : expected)
+			assertTrue(p, actual.contains(p));
+	}
+}
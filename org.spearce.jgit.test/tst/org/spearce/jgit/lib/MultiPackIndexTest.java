@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MultiPackIndexTest extends RepositoryTestCase {
+	public void testListsEveryObjectOnce() throws IOException {
+		final PackFile[] packs = db.packs();
+		final MultiPackIndex midx = MultiPackIndex.open(write(Arrays
+				.asList(packs)));
+		assertEquals(packs.length, midx.getPackNames().length);
+
+		final Set<ObjectId> all = new HashSet<ObjectId>();
+		for (final PackFile p : packs)
+			for (final PackIndex.MutableEntry e : p)
+				all.add(e.toObjectId());
+		assertEquals(all.size(), midx.getObjectCount());
+
+		final MutableObjectId id = new MutableObjectId();
+		ObjectId prior = null;
+		for (int i = 0; i < midx.getObjectCount(); i++) {
+			midx.getObjectId(i, id);
+			final ObjectId cur = id.toObjectId();
+			assertTrue(all.contains(cur));
+			if (prior != null)
+				assertTrue(prior.compareTo(cur) < 0);
+			prior = cur;
+			assertEquals(i, midx.findPosition(cur));
+
+			final String name = midx.getPackNames()[midx.getPackId(i)];
+			final PackFile p = find(packs, name);
+			final PackedObjectLoader ldr = p.get(new WindowCursor(), cur);
+			assertEquals(ldr.objectOffset, midx.getOffset(i));
+		}
+		assertEquals(-1, midx.findPosition(ObjectId
+				.fromString("0000000000000000000000000000000000000001")));
+	}
+
+	public void testRepositoryUsesIndex() throws IOException {
+		final PackFile[] packs = db.packs();
+		write(Arrays.asList(packs[0], packs[1]));
+		db.scanForPacks();
+
+		for (final PackFile p : packs) {
+			for (final PackIndex.MutableEntry e : p) {
+				final ObjectId id = e.toObjectId();
+				assertTrue(db.hasObject(id));
+				final ObjectLoader ldr = db.openObject(id);
+				assertNotNull(ldr);
+				assertEquals(id, hash(ldr));
+			}
+		}
+		assertFalse(db.hasObject(ObjectId
+				.fromString("0000000000000000000000000000000000000001")));
+	}
+
+	public void testUnreadableFileIgnored() throws IOException {
+		final File f = new File(new File(db.getObjectsDirectory(), "pack"),
+				MultiPackIndex.FILE_NAME);
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(new byte[64]);
+		} finally {
+			out.close();
+		}
+		db.scanForPacks();
+		assertTrue(db.hasObject(ObjectId
+				.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4904")));
+	}
+
+	public void testIndexNamingDeletedPackIgnored() throws IOException {
+		final PackFile copy = copyFirstPack();
+		final ObjectId id = firstObject(copy);
+		final PackFile chosen = chosenPack(write(Arrays.asList(db.packs())),
+				id);
+
+		chosen.close();
+		delete(chosen);
+		db.scanForPacks();
+		assertTrue(db.hasObject(id));
+		final PackedObjectLoader ldr = (PackedObjectLoader) db.openObject(id);
+		assertNotNull(ldr);
+		assertEquals(id, hash(ldr));
+		assertFalse(chosen.getPackFile().equals(ldr.pack.getPackFile()));
+	}
+
+	public void testPackDeletedAfterScanFallsBack() throws IOException {
+		final PackFile copy = copyFirstPack();
+		final ObjectId id = firstObject(copy);
+		final File f = write(Arrays.asList(db.packs()));
+		db.scanForPacks();
+
+		final PackFile chosen = chosenPack(f, id);
+		chosen.close();
+		delete(chosen);
+		final ObjectLoader ldr = db.openObject(id);
+		assertNotNull(ldr);
+		assertEquals(id, hash(ldr));
+	}
+
+	public void testRejectsCorruptFile() throws IOException {
+		final byte[] raw = new byte[64];
+		System.arraycopy(MultiPackIndex.MAGIC, 0, raw, 0, 4);
+		raw[4] = 1;
+		raw[5] = 1;
+		raw[6] = 4;
+		try {
+			new MultiPackIndex(ByteBuffer.wrap(raw));
+			fail("accepted truncated multi-pack index");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private File write(final Collection<PackFile> packs) throws IOException {
+		final File f = new File(new File(db.getObjectsDirectory(), "pack"),
+				MultiPackIndex.FILE_NAME);
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			new MultiPackIndexWriter(packs).write(out);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private PackFile copyFirstPack() throws IOException {
+		final File src = db.packs()[0].getPackFile();
+		final File dir = src.getParentFile();
+		final String n = src.getName();
+		final String base = n.substring(0, n.length() - 5);
+		final String copy = "pack-0123456789012345678901234567890123456789";
+		copyFile(src, new File(dir, copy + ".pack"));
+		copyFile(new File(dir, base + ".idx"), new File(dir, copy + ".idx"));
+		db.scanForPacks();
+		for (final PackFile p : db.packs()) {
+			if (p.getPackFile().getName().equals(copy + ".pack"))
+				return p;
+		}
+		fail("copy of " + n + " not found");
+		return null;
+	}
+
+	private static ObjectId firstObject(final PackFile p) {
+		return p.iterator().next().toObjectId();
+	}
+
+	private PackFile chosenPack(final File midxFile, final ObjectId id)
+			throws IOException {
+		return chosenPack(MultiPackIndex.open(midxFile), id);
+	}
+
+	private PackFile chosenPack(final MultiPackIndex midx, final ObjectId id) {
+		final int pos = midx.findPosition(id);
+		assertTrue(pos >= 0);
+		return find(db.packs(), midx.getPackNames()[midx.getPackId(pos)]);
+	}
+
+	private static void delete(final PackFile p) {
+		final File pack = p.getPackFile();
+		final String n = pack.getName();
+		assertTrue(pack.delete());
+		final String idx = n.substring(0, n.length() - 5) + ".idx";
+		assertTrue(new File(pack.getParentFile(), idx).delete());
+	}
+
+	private static ObjectId hash(final ObjectLoader ldr) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encodedTypeString(ldr.getType()));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(ldr.getSize()));
+		md.update((byte) 0);
+		md.update(ldr.getCachedBytes());
+		return ObjectId.fromRaw(md.digest());
+	}
+
+	private static PackFile find(final PackFile[] packs, final String idxName) {
+		for (final PackFile p : packs) {
+			final String n = p.getPackFile().getName();
+			if (idxName.equals(n.substring(0, n.length() - 5) + ".idx"))
+				return p;
+		}
+		fail("no pack for " + idxName);
+		return null;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ObjectLoaderQueueTest extends RepositoryTestCase {
+	private static final ObjectId MISSING = ObjectId
+			.fromString("0000000000000000000000000000000000000001");
+
+	public void testPackOrder() throws IOException {
+		final List<ObjectId> ids = allPackedObjects();
+		final ObjectId loose = new ObjectWriter(db).writeBlob(Constants
+				.encode("loose blob"));
+		ids.add(0, MISSING);
+		ids.add(1, loose);
+
+		final WindowCursor curs = new WindowCursor();
+		final ObjectLoaderQueue<ObjectId> q = db.openObjects(curs, ids);
+		assertEquals(ids.size(), q.size());
+
+		final List<PackFile> packs = Arrays.asList(db.packs());
+		int lastPack = -1;
+		long lastOffset = -1;
+		int n = 0;
+		while (q.next()) {
+			final ObjectId id = q.getCurrent();
+			final ObjectLoader ldr = q.open();
+			if (n++ < ids.size() - 2) {
+				final PackedObjectLoader p = (PackedObjectLoader) ldr;
+				final int pack = packs.indexOf(p.pack);
+				assertTrue(lastPack <= pack);
+				if (pack == lastPack)
+					assertTrue(lastOffset < p.objectOffset);
+				lastPack = pack;
+				lastOffset = p.objectOffset;
+				assertEquals(db.openObject(curs, id).getType(), ldr.getType());
+				assertTrue(q.exists());
+			} else if (id.equals(MISSING)) {
+				assertNull(ldr);
+				assertFalse(q.exists());
+			} else {
+				assertEquals(loose, id);
+				assertTrue(ldr instanceof UnpackedObjectLoader);
+				assertTrue(q.exists());
+			}
+		}
+		assertEquals(ids.size(), n);
+		curs.release();
+	}
+
+	public void testAllPacks() throws IOException {
+		final List<ObjectId> ids = allPackedObjects();
+		ids.add(MISSING);
+
+		final WindowCursor curs = new WindowCursor();
+		final Map<ObjectId, Integer> expect = new HashMap<ObjectId, Integer>();
+		int total = 0;
+		for (final ObjectId id : ids) {
+			final int c = db.openObjectInAllPacks(id, curs).size();
+			expect.put(id, Integer.valueOf(c));
+			total += c;
+		}
+
+		final ObjectLoaderQueue<ObjectId> q = db.openObjectsInAllPacks(curs,
+				ids);
+		assertEquals(total, q.size());
+		while (q.next()) {
+			final ObjectId id = q.getCurrent();
+			assertTrue(q.open() instanceof PackedObjectLoader);
+			final int left = expect.get(id).intValue() - 1;
+			assertTrue(left >= 0);
+			expect.put(id, Integer.valueOf(left));
+		}
+		for (final Integer left : expect.values())
+			assertEquals(0, left.intValue());
+		curs.release();
+	}
+
+	private List<ObjectId> allPackedObjects() {
+		final Set<ObjectId> ids = new LinkedHashSet<ObjectId>();
+		for (final PackFile p : db.packs())
+			for (final PackIndex.MutableEntry e : p)
+				ids.add(e.toObjectId());
+		return new ArrayList<ObjectId>(ids);
+	}
+}
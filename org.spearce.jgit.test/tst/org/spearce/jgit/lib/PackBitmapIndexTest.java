@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.lib.PackIndex.MutableEntry;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.transport.IndexPack;
+
+public class PackBitmapIndexTest extends RepositoryTestCase {
+	private static final List<ObjectId> NONE = Collections.emptyList();
+
+	private File packFile;
+
+	private File idxFile;
+
+	private File bitmapFile;
+
+	private PackFile pack;
+
+	private List<ObjectId> tips;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		tips = new ArrayList<ObjectId>();
+		for (Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(tips, NONE, false, false);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		pw.writePack(os);
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-" + pw.computeName().name();
+		packFile = new File(packDir, name + ".pack");
+		idxFile = new File(packDir, name + ".idx");
+		bitmapFile = new File(packDir, name + ".bitmap");
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(os
+				.toByteArray()), new File(packDir, name));
+		ip.index(NullProgressMonitor.INSTANCE);
+
+		final FileOutputStream out = new FileOutputStream(bitmapFile);
+		try {
+			pw.writeBitmapIndex(out);
+		} finally {
+			out.close();
+		}
+		pack = new PackFile(idxFile, packFile);
+	}
+
+	protected void tearDown() throws Exception {
+		pack.close();
+		super.tearDown();
+	}
+
+	public void testTypes() throws IOException {
+		final PackBitmapIndex bi = pack.getBitmapIndex();
+		assertNotNull(bi);
+		assertEquals(pack.getObjectCount(), bi.getObjectCount());
+
+		final WindowCursor curs = new WindowCursor();
+		for (MutableEntry me : pack) {
+			final int pos = bi.findPosition(me.toObjectId());
+			assertEquals(me.toObjectId(), bi.getObject(pos));
+			assertEquals(pack.get(curs, me.toObjectId()).getType(), bi
+					.getType(pos));
+		}
+		curs.release();
+	}
+
+	public void testTipBitmapsMatchWalk() throws IOException {
+		final PackBitmapIndex bi = pack.getBitmapIndex();
+		final RevWalk rw = new RevWalk(db);
+		for (ObjectId tip : tips) {
+			final RevObject o = rw.parseAny(tip);
+			if (!(o instanceof RevCommit))
+				continue;
+			final RevCommit c = (RevCommit) o;
+			final EWAHBitmap b = bi.getBitmap(c);
+			assertNotNull(b);
+
+			final PackWriter pw = new PackWriter(db,
+					NullProgressMonitor.INSTANCE);
+			pw.setUseBitmaps(false);
+			pw.preparePack(Collections.singleton(c), NONE, false, false);
+			assertEquals(pw.getObjectsNumber(), b.cardinality());
+			for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1))
+				assertTrue(pw.willInclude(bi.getObject(i)));
+		}
+	}
+
+	public void testPreparePack() throws IOException {
+		db.openPack(packFile, idxFile);
+		assertExactObjects(tips, NONE);
+		assertExactObjects(ids("refs/heads/master"), ids("refs/heads/a"));
+		assertExactObjects(ids("refs/heads/pa", "refs/tags/B"),
+				ids("refs/heads/master"));
+		assertExactObjects(ids("refs/heads/a"), tips);
+	}
+
+	public void testThinPack() throws IOException {
+		db.openPack(packFile, idxFile);
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(ids("refs/heads/master"), ids("refs/heads/a"), true,
+				false);
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		pw.writePack(os);
+
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(os
+				.toByteArray()), new File(trash, "thin"));
+		ip.setFixThin(true);
+		ip.index(NullProgressMonitor.INSTANCE);
+	}
+
+	public void testOtherPackIgnored() throws IOException {
+		final RandomAccessFile f = new RandomAccessFile(bitmapFile, "rw");
+		try {
+			f.seek(12);
+			f.write(~f.read());
+		} finally {
+			f.close();
+		}
+		assertNull(new PackFile(idxFile, packFile).getBitmapIndex());
+	}
+
+	/**
+	 * Bitmaps give the exact difference of the two sets. The walk only
+	 * excludes what the uninteresting commits' trees share with the
+	 * interesting ones, so it may send more.
+	 */
+	private void assertExactObjects(final Collection<ObjectId> want,
+			final Collection<ObjectId> have) throws IOException {
+		final PackWriter wantAll = walk(want);
+		final PackWriter haveAll = walk(have);
+		final PackWriter walked = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		walked.setUseBitmaps(false);
+		walked.preparePack(want, have, false, false);
+
+		final PackWriter counted = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		counted.preparePack(want, have, false, false);
+
+		int n = 0;
+		for (MutableEntry me : pack) {
+			final ObjectId id = me.toObjectId();
+			final boolean exp = wantAll.willInclude(id)
+					&& !haveAll.willInclude(id);
+			assertEquals(exp, counted.willInclude(id));
+			if (exp) {
+				assertTrue(walked.willInclude(id));
+				n++;
+			}
+		}
+		assertEquals(n, counted.getObjectsNumber());
+	}
+
+	private PackWriter walk(final Collection<ObjectId> want)
+			throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setUseBitmaps(false);
+		pw.preparePack(want, NONE, false, false);
+		return pw;
+	}
+
+	private List<ObjectId> ids(final String... refs) throws IOException {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (String n : refs)
+			r.add(db.resolve(n));
+		return r;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.PackIndex.MutableEntry;
+import org.spearce.jgit.transport.PackedObjectInfo;
+import org.spearce.jgit.util.JGitTestUtil;
+
+public class PackIndexV2MappedTest extends RepositoryTestCase {
+	private static final String DENSE = "pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.idxV2";
+
+	public void testOpenMapsV2() throws IOException {
+		final File f = JGitTestUtil.getTestResourceFile(DENSE);
+		assertTrue(PackIndex.open(f) instanceof PackIndexV2Mapped);
+	}
+
+	public void testSameAsHeapIndex() throws Exception {
+		final File f = JGitTestUtil.getTestResourceFile(DENSE);
+		final PackIndex mapped = PackIndexV2Mapped.map(f);
+		final PackIndex heap = readHeap(f);
+		assertEquals(heap.getObjectCount(), mapped.getObjectCount());
+		assertEquals(heap.getOffset64Count(), mapped.getOffset64Count());
+		assertEquals(ObjectId.fromRaw(heap.packChecksum), ObjectId
+				.fromRaw(mapped.packChecksum));
+
+		final Iterator<MutableEntry> m = mapped.iterator();
+		int n = 0;
+		for (final MutableEntry h : heap) {
+			final MutableEntry e = m.next();
+			final ObjectId id = h.toObjectId();
+			assertEquals(id, e.toObjectId());
+			assertEquals(h.getOffset(), e.getOffset());
+			assertEquals(id, mapped.getObjectId(n++));
+			assertEquals(heap.findOffset(id), mapped.findOffset(id));
+			assertEquals(heap.findCRC32(id), mapped.findCRC32(id));
+		}
+		assertFalse(m.hasNext());
+
+		final ObjectId missing = ObjectId
+				.fromString("0000000000000000000000000000000000000001");
+		assertEquals(-1, mapped.findOffset(missing));
+		try {
+			mapped.findCRC32(missing);
+			fail("found CRC of missing object");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+	}
+
+	public void testOffset64() throws Exception {
+		final List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>();
+		list.add(entry("00000000000000000000000000000000000000aa", 12, 1));
+		list.add(entry("7f000000000000000000000000000000000000aa",
+				1L << 31, 2));
+		list.add(entry("7f000000000000000000000000000000000000bb", 99, 3));
+		list.add(entry("ff000000000000000000000000000000000000aa",
+				5L << 32, 4));
+		Collections.sort(list);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PackIndexWriter.createVersion(out, 2).write(list, new byte[20]);
+		final PackIndex idx = new PackIndexV2Mapped(ByteBuffer.wrap(out
+				.toByteArray()));
+
+		assertEquals(4, idx.getObjectCount());
+		assertEquals(2, idx.getOffset64Count());
+		for (final PackedObjectInfo e : list) {
+			assertEquals(e.getOffset(), idx.findOffset(e));
+			assertEquals(e.getCRC(), (int) idx.findCRC32(e));
+		}
+		int n = 0;
+		for (final MutableEntry e : idx) {
+			assertEquals(list.get(n), e.toObjectId());
+			assertEquals(list.get(n).getOffset(), e.getOffset());
+			n++;
+		}
+	}
+
+	public void testTruncatedIndex() throws Exception {
+		final File f = JGitTestUtil.getTestResourceFile(DENSE);
+		final byte[] raw = new byte[(int) f.length()];
+		final FileInputStream in = new FileInputStream(f);
+		try {
+			assertEquals(raw.length, in.read(raw));
+		} finally {
+			in.close();
+		}
+		try {
+			new PackIndexV2Mapped(ByteBuffer.wrap(raw, 0, raw.length - 7)
+					.slice());
+			fail("accepted truncated index");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testSharedBetweenPacks() throws Exception {
+		final File f = JGitTestUtil.getTestResourceFile(DENSE);
+		final PackIndex a = PackIndexCache.acquire(f);
+		final PackIndex b = PackIndexCache.acquire(f.getAbsoluteFile());
+		assertSame(a, b);
+		PackIndexCache.release(a);
+		PackIndexCache.release(b);
+
+		final PackIndex c = PackIndexCache.acquire(f);
+		assertNotSame(a, c);
+		PackIndexCache.release(c);
+	}
+
+	private static PackIndex readHeap(final File f) throws IOException {
+		final FileInputStream in = new FileInputStream(f);
+		try {
+			assertEquals(8, in.skip(8));
+			return new PackIndexV2(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static PackedObjectInfo entry(final String id, final long offset,
+			final int crc) {
+		final PackedObjectInfo e = new PackedObjectInfo(ObjectId
+				.fromString(id));
+		e.setOffset(offset);
+		e.setCRC(crc);
+		return e;
+	}
+}
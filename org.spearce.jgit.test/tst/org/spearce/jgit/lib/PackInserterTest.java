@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PackInserterTest extends RepositoryTestCase {
+	private ObjectInserter ins;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		ins = db.newPackInserter();
+	}
+
+	public void tearDown() throws Exception {
+		ins.release();
+		super.tearDown();
+	}
+
+	public void testObjectsAreVisibleAfterFlush() throws IOException {
+		final int packs = packFiles().size();
+		final ObjectId a = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("a\n"));
+		final ObjectId b = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("b\n"));
+		assertFalse(db.hasObject(a));
+		assertFalse(db.hasObject(b));
+
+		ins.flush();
+		assertEquals(packs + 1, packFiles().size());
+		assertFalse(looseFile(a).exists());
+		assertFalse(looseFile(b).exists());
+		assertBlob(db, a, "a\n");
+		assertBlob(db, b, "b\n");
+	}
+
+	public void testPackSurvivesReopen() throws IOException {
+		final ObjectId a = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("persisted\n"));
+		ins.flush();
+
+		final Repository r = new Repository(db.getDirectory());
+		try {
+			assertBlob(r, a, "persisted\n");
+		} finally {
+			r.close();
+		}
+	}
+
+	public void testDuplicatesAreWrittenOnce() throws IOException {
+		final ObjectId a = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("dup\n"));
+		assertEquals(a, ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("dup\n")));
+		final ObjectId b = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("other\n"));
+		ins.flush();
+		assertEquals(2, packOf(a).getObjectCount());
+		assertBlob(db, a, "dup\n");
+		assertBlob(db, b, "other\n");
+	}
+
+	public void testExistingObjectIsNotCopied() throws IOException {
+		final ObjectId a = new ObjectWriter(db).writeBlob(Constants
+				.encode("loose\n"));
+		final int packs = packFiles().size();
+		assertEquals(a, ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("loose\n")));
+		ins.flush();
+		assertEquals(packs, packFiles().size());
+	}
+
+	public void testEmptyFlushWritesNothing() throws IOException {
+		final int packs = packFiles().size();
+		ins.flush();
+		assertEquals(packs, packFiles().size());
+		assertEquals(0, tempFiles().size());
+	}
+
+	public void testReleaseDiscardsUnflushed() throws IOException {
+		final int packs = packFiles().size();
+		final ObjectId a = ins.insert(Constants.OBJ_BLOB, Constants
+				.encode("lost\n"));
+		ins.release();
+		assertFalse(db.hasObject(a));
+		assertEquals(packs, packFiles().size());
+		assertEquals(0, tempFiles().size());
+	}
+
+	public void testLargeObjectIsWrittenLoose() throws IOException {
+		final byte[] big = new byte[PackInserter.BUFFER_LIMIT + 1];
+		for (int i = 0; i < big.length; i++)
+			big[i] = (byte) ('a' + i % 26);
+		final ObjectId a = ins.insert(Constants.OBJ_BLOB, big.length,
+				new ByteArrayInputStream(big));
+		assertTrue(looseFile(a).exists());
+		assertEquals(a, new ObjectWriter(db).computeBlobSha1(big.length,
+				new ByteArrayInputStream(big)));
+		ins.flush();
+		assertTrue(db.hasObject(a));
+	}
+
+	public void testObjectWriterThroughInserter() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(ins);
+		final ObjectId blob = ow.writeBlob(Constants.encode("file\n"));
+		final Tree t = new Tree(db);
+		t.addFile("f").setId(blob);
+		final ObjectId tree = ow.writeTree(t);
+		assertFalse(db.hasObject(tree));
+
+		ins.flush();
+		assertEquals(Constants.OBJ_TREE, db.openObject(tree).getType());
+		assertBlob(db, blob, "file\n");
+	}
+
+	private static void assertBlob(final Repository r, final ObjectId id,
+			final String content) throws IOException {
+		final ObjectLoader ldr = r.openObject(id);
+		assertNotNull(ldr);
+		assertEquals(Constants.OBJ_BLOB, ldr.getType());
+		assertEquals(content, new String(ldr.getCachedBytes(), "UTF-8"));
+	}
+
+	private PackFile packOf(final ObjectId id) throws IOException {
+		for (final PackFile p : db.packs()) {
+			if (p.hasObject(id))
+				return p;
+		}
+		fail("no pack holds " + id.name());
+		return null;
+	}
+
+	private List<File> packFiles() {
+		return list(".pack");
+	}
+
+	private List<File> tempFiles() {
+		final List<File> r = new ArrayList<File>();
+		for (final File f : new File(db.getObjectsDirectory(), "pack")
+				.listFiles()) {
+			if (f.getName().startsWith("insert_"))
+				r.add(f);
+		}
+		return r;
+	}
+
+	private List<File> list(final String suffix) {
+		final List<File> r = new ArrayList<File>();
+		for (final File f : new File(db.getObjectsDirectory(), "pack")
+				.listFiles()) {
+			if (f.getName().endsWith(suffix))
+				r.add(f);
+		}
+		return r;
+	}
+
+	private File looseFile(final ObjectId id) {
+		final String n = id.name();
+		return new File(new File(db.getObjectsDirectory(), n.substring(0, 2)),
+				n.substring(2));
+	}
+}
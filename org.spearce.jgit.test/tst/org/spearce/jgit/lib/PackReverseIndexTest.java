@@ -73,6 +73,20 @@ public void testFindObjectWrongOffset() {
 		assertNull(reverseIdx.findObject(0));
 	}
 
+	/**
+	 * Test findPosition() and findObjectByPosition() for all index entries.
+	 */
+	public void testFindPosition() {
+		final boolean[] used = new boolean[(int) idx.getObjectCount()];
+		for (MutableEntry me : idx) {
+			final int pos = reverseIdx.findPosition(me.getOffset());
+			assertFalse(used[pos]);
+			used[pos] = true;
+			assertEquals(me.toObjectId(), reverseIdx.findObjectByPosition(pos));
+		}
+		assertEquals(-1, reverseIdx.findPosition(0));
+	}
+
 	/**
 	 * Test findNextOffset() for all index entries.
 	 *
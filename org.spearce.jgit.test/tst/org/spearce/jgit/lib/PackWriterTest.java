@@ -40,6 +40,7 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -50,6 +51,7 @@
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.PackIndex.MutableEntry;
@@ -98,6 +100,13 @@ public void testContructor() {
 		assertEquals(false, writer.isDeltaBaseAsOffset());
 		assertEquals(true, writer.isReuseDeltas());
 		assertEquals(true, writer.isReuseObjects());
+		assertEquals(PackWriter.DEFAULT_DELTA_SEARCH_WINDOW_SIZE, writer
+				.getDeltaSearchWindowSize());
+		assertEquals(PackWriter.DEFAULT_MAX_DELTA_DEPTH, writer
+				.getMaxDeltaDepth());
+		assertEquals(PackWriter.DEFAULT_THREADS, writer.getThreads());
+		assertEquals(PackWriter.DEFAULT_DELTA_SEARCH_MEMORY_LIMIT, writer
+				.getDeltaSearchMemoryLimit());
 		assertEquals(0, writer.getObjectsNumber());
 	}
 
@@ -108,10 +117,16 @@ public void testModifySettings() {
 		writer.setDeltaBaseAsOffset(true);
 		writer.setReuseDeltas(false);
 		writer.setReuseObjects(false);
+		writer.setDeltaSearchWindowSize(0);
+		writer.setThreads(3);
+		writer.setDeltaSearchMemoryLimit(1 << 20);
 
 		assertEquals(true, writer.isDeltaBaseAsOffset());
 		assertEquals(false, writer.isReuseDeltas());
 		assertEquals(false, writer.isReuseObjects());
+		assertEquals(0, writer.getDeltaSearchWindowSize());
+		assertEquals(3, writer.getThreads());
+		assertEquals(1 << 20, writer.getDeltaSearchMemoryLimit());
 	}
 
 	/**
@@ -258,6 +273,7 @@ public void testWritePack2DeltasCRC32Copy() throws IOException {
 	 */
 	public void testWritePack3() throws MissingObjectException, IOException {
 		writer.setReuseDeltas(false);
+		writer.setDeltaSearchWindowSize(0);
 		final ObjectId forcedOrder[] = new ObjectId[] {
 				ObjectId.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"),
 				ObjectId.fromString("c59759f143fb1fe21c197981df75a7ee00290799"),
@@ -354,10 +370,151 @@ public void testWritePack4SizeThinVsNoThin() throws Exception {
 		assertTrue(sizePack4 > sizePack4Thin);
 	}
 
+	/**
+	 * Compute new deltas instead of reusing any. The pack must be smaller than
+	 * the one written from whole objects, and still index correctly.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePack1DeltaSearch() throws Exception {
+		testWritePack1();
+		final long sizeNoDeltas = cos.getCount();
+		tearDown();
+		setUp();
+
+		writer.setReuseDeltas(false);
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		createVerifyOpenPack(interestings, EMPTY_LIST_OBJECT, false, false);
+
+		assertEquals(8, writer.getObjectsNumber());
+		assertEquals("34be9032ac282b11fa9babdc2b2a93ca996c9c2f", writer
+				.computeName().name());
+		assertTrue(cos.getCount() < sizeNoDeltas);
+		assertNotNull(findDelta());
+	}
+
+	/**
+	 * A depth limit of 1 still allows a delta, but never against a delta.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePackDeltasDepth() throws IOException {
+		writer.setReuseDeltas(false);
+		writer.setMaxDeltaDepth(1);
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		createVerifyOpenPack(interestings, EMPTY_LIST_OBJECT, false, false);
+
+		final WindowCursor curs = new WindowCursor();
+		for (MutableEntry me : pack) {
+			final PackedObjectLoader ldr = pack.get(curs, me.toObjectId());
+			final ObjectId base = ldr.getDeltaBase();
+			if (base != null)
+				assertNull(pack.get(curs, base).getDeltaBase());
+		}
+		curs.release();
+	}
+
+	/**
+	 * Search all objects of the repository with several threads and a window
+	 * small enough for the list to be split among them.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePackDeltaSearchThreads() throws IOException {
+		writer.setReuseDeltas(false);
+		writer.setThreads(4);
+		writer.setDeltaSearchWindowSize(2);
+		createVerifyOpenPack(allRefs(), EMPTY_LIST_OBJECT, false, false);
+
+		assertEquals(writer.getObjectsNumber(), pack.getObjectCount());
+		assertNotNull(findDelta());
+	}
+
+	/**
+	 * A tiny memory limit makes windows drop their bases, but the pack must
+	 * still be valid.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePackDeltaSearchMemoryLimit() throws IOException {
+		writer.setReuseDeltas(false);
+		writer.setThreads(2);
+		writer.setDeltaSearchWindowSize(2);
+		writer.setDeltaSearchMemoryLimit(1);
+		createVerifyOpenPack(allRefs(), EMPTY_LIST_OBJECT, false, false);
+
+		assertEquals(writer.getObjectsNumber(), pack.getObjectCount());
+	}
+
+	/**
+	 * Check that the written index records the CRC32 of each object's data,
+	 * for reused deltas and newly compressed objects alike.
+	 *
+	 * @throws IOException
+	 */
+	public void testWriteIndexCRC32() throws IOException {
+		writer.setIndexVersion(2);
+		createVerifyOpenPack(allRefs(), EMPTY_LIST_OBJECT, false, false);
+		final File idxFile = new File(trash, "tmp_writer.idx");
+		final FileOutputStream idxOut = new FileOutputStream(idxFile);
+		try {
+			writer.writeIndex(idxOut);
+		} finally {
+			idxOut.close();
+		}
+		final PackIndex idx = PackIndex.open(idxFile);
+		assertTrue(idx.hasCRC32Support());
+
+		final List<MutableEntry> entries = new ArrayList<MutableEntry>();
+		for (MutableEntry me : idx)
+			entries.add(me.cloneEntry());
+		Collections.sort(entries, new Comparator<MutableEntry>() {
+			public int compare(MutableEntry o1, MutableEntry o2) {
+				return Long.signum(o1.getOffset() - o2.getOffset());
+			}
+		});
+
+		final byte[] data = os.toByteArray();
+		for (int i = 0; i < entries.size(); i++) {
+			final int start = (int) entries.get(i).getOffset();
+			final int end = i + 1 < entries.size() ? (int) entries.get(i + 1)
+					.getOffset() : data.length - Constants.OBJECT_ID_LENGTH;
+			final CRC32 crc = new CRC32();
+			crc.update(data, start, end - start);
+			assertEquals(crc.getValue(), idx.findCRC32(entries.get(i)
+					.toObjectId()));
+		}
+	}
+
+	private Collection<ObjectId> allRefs() {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (Ref ref : db.getAllRefs().values())
+			r.add(ref.getObjectId());
+		return r;
+	}
+
+	private ObjectId findDelta() throws IOException {
+		final WindowCursor curs = new WindowCursor();
+		try {
+			for (MutableEntry me : pack) {
+				final PackedObjectLoader ldr = pack.get(curs, me.toObjectId());
+				if (ldr.getDeltaBase() != null)
+					return me.toObjectId();
+			}
+			return null;
+		} finally {
+			curs.release();
+		}
+	}
+
 	// TODO: testWritePackDeltasCycle()
-	// TODO: testWritePackDeltasDepth()
 
 	private void writeVerifyPack1() throws IOException {
+		writer.setDeltaSearchWindowSize(0);
 		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
 		interestings.add(ObjectId
 				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
@@ -381,6 +538,7 @@ private void writeVerifyPack1() throws IOException {
 
 	private void writeVerifyPack2(boolean deltaReuse) throws IOException {
 		writer.setReuseDeltas(deltaReuse);
+		writer.setDeltaSearchWindowSize(0);
 		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
 		interestings.add(ObjectId
 				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
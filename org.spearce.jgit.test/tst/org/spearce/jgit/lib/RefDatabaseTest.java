@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+public class RefDatabaseTest extends RepositoryTestCase {
+	private static final long OLD = 60 * 1000L;
+
+	private ObjectId A;
+
+	private ObjectId B;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		A = db.resolve("refs/heads/a");
+		B = db.resolve("refs/heads/b");
+	}
+
+	public void testGetRefsPrefix() throws IOException {
+		update("refs/heads/x-y", A);
+		update("refs/heads/x/z", A);
+		update("refs/heads/x0", B);
+		update("refs/changes/01/1/1", B);
+
+		final Map<String, Ref> x = db.getRefs("refs/heads/x");
+		assertEquals(Arrays.asList("refs/heads/x-y", "refs/heads/x/z",
+				"refs/heads/x0"), new ArrayList<String>(x.keySet()));
+		assertEquals(B, x.get("refs/heads/x0").getObjectId());
+
+		final Map<String, Ref> heads = db.getRefs(Constants.R_HEADS);
+		assertEquals(12, heads.size());
+		assertTrue(heads.containsKey("refs/heads/a"));
+		assertFalse(heads.containsKey("refs/changes/01/1/1"));
+		assertSorted(heads);
+
+		final Map<String, Ref> changes = db.getRefs("refs/changes/");
+		assertEquals(1, changes.size());
+		assertEquals(B, changes.get("refs/changes/01/1/1").getObjectId());
+
+		final Map<String, Ref> tags = db.getRefs(Constants.R_TAGS);
+		assertEquals(12, tags.size());
+		assertEquals(db.getTags().size(), tags.size());
+		assertNotNull(tags.get("refs/tags/B").getPeeledObjectId());
+
+		final Map<String, Ref> all = db.getRefs("");
+		assertEquals(heads.size() + changes.size() + tags.size(), all.size());
+		assertSorted(all);
+		assertFalse(all.containsKey(Constants.HEAD));
+		assertTrue(db.getAllRefs().containsKey(Constants.HEAD));
+	}
+
+	public void testLooseHidesPacked() throws IOException {
+		update("refs/heads/a", B);
+		assertEquals(B, db.getRefs(Constants.R_HEADS).get("refs/heads/a")
+				.getObjectId());
+		assertEquals(B, db.getAllRefs().get("refs/heads/a").getObjectId());
+	}
+
+	public void testUnchangedReturnsSameMap() throws IOException {
+		update("refs/heads/x", A);
+		age(new File(trash_git, "refs"));
+		age(new File(trash_git, "packed-refs"));
+		final Map<String, Ref> first = db.getAllRefs();
+		assertSame(first, db.getAllRefs());
+
+		update("refs/heads/x", B);
+		final Map<String, Ref> second = db.getAllRefs();
+		assertNotSame(first, second);
+		assertEquals(B, second.get("refs/heads/x").getObjectId());
+	}
+
+	public void testSeesChangesInAgedDirectories() throws IOException {
+		update("refs/heads/x/y", A);
+		update("refs/changes/01/1/1", A);
+		age(new File(trash_git, "refs"));
+		assertEquals(A, db.getAllRefs().get("refs/heads/x/y").getObjectId());
+
+		update("refs/changes/01/1/1", B);
+		update("refs/heads/x/z", B);
+		assertEquals(B, db.getRefs("refs/changes/01/").get(
+				"refs/changes/01/1/1").getObjectId());
+		final Map<String, Ref> all = db.getAllRefs();
+		assertEquals(A, all.get("refs/heads/x/y").getObjectId());
+		assertEquals(B, all.get("refs/heads/x/z").getObjectId());
+		assertEquals(B, all.get("refs/changes/01/1/1").getObjectId());
+
+		age(new File(trash_git, "refs"));
+		db.getAllRefs();
+		assertEquals(RefUpdate.Result.FORCED, delete("refs/heads/x/y"));
+		assertFalse(db.getAllRefs().containsKey("refs/heads/x/y"));
+		assertTrue(db.getAllRefs().containsKey("refs/heads/x/z"));
+	}
+
+	public void testDeletePackedRef() throws IOException {
+		assertEquals(RefUpdate.Result.FORCED, delete("refs/heads/c"));
+		assertFalse(db.getRefs(Constants.R_HEADS).containsKey("refs/heads/c"));
+		assertTrue(db.getRefs(Constants.R_HEADS).containsKey("refs/heads/d"));
+
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			assertNull(other.getAllRefs().get("refs/heads/c"));
+			assertEquals(8, other.getRefs(Constants.R_HEADS).size());
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testPackedRefsRewritten() throws IOException {
+		assertEquals(A, db.getRefs(Constants.R_HEADS).get("refs/heads/a")
+				.getObjectId());
+		final File packed = writeTrashFile(".git/packed-refs", A.name()
+				+ " refs/heads/b\n" + B.name() + " refs/heads/a\n");
+		packed.setLastModified(packed.lastModified() - OLD);
+
+		final Map<String, Ref> heads = db.getRefs(Constants.R_HEADS);
+		assertEquals(Arrays.asList("refs/heads/a", "refs/heads/b"),
+				new ArrayList<String>(heads.keySet()));
+		assertEquals(B, heads.get("refs/heads/a").getObjectId());
+		assertEquals(A, heads.get("refs/heads/b").getObjectId());
+	}
+
+	private void update(final String name, final ObjectId id)
+			throws IOException {
+		final RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(id);
+		u.setForceUpdate(true);
+		final RefUpdate.Result r = u.update();
+		assertTrue(r.toString(), r == RefUpdate.Result.NEW
+				|| r == RefUpdate.Result.FAST_FORWARD
+				|| r == RefUpdate.Result.FORCED);
+	}
+
+	private RefUpdate.Result delete(final String name) throws IOException {
+		final RefUpdate u = db.updateRef(name);
+		u.setForceUpdate(true);
+		return u.delete();
+	}
+
+	private static void age(final File f) {
+		if (f.isDirectory()) {
+			for (final File e : f.listFiles())
+				age(e);
+		}
+		f.setLastModified(f.lastModified() - OLD);
+	}
+
+	private static void assertSorted(final Map<String, Ref> refs) {
+		String last = null;
+		for (final String name : refs.keySet()) {
+			if (last != null)
+				assertTrue(last + " < " + name, last.compareTo(name) < 0);
+			last = name;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.lib.Reftable.LogCursor;
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefCursor;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class ReftableTest extends RepositoryTestCase {
+	private ObjectId A;
+
+	private ObjectId B;
+
+	private Repository rt;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		A = db.resolve("refs/heads/a");
+		B = db.resolve("refs/heads/b");
+	}
+
+	protected void tearDown() throws Exception {
+		if (rt != null)
+			rt.close();
+		super.tearDown();
+	}
+
+	public void testRoundTripManyBlocks() throws IOException {
+		final List<RefRecord> refs = new ArrayList<RefRecord>();
+		for (int i = 0; i < 2000; i++) {
+			final String name = String.format("refs/heads/%04d", i);
+			refs.add(new RefRecord(name, 1, Reftable.VALUE_ID, i % 2 == 0 ? A
+					: B, null, null));
+		}
+		refs.add(new RefRecord("refs/tags/t", 1, Reftable.VALUE_PEELED, B, A,
+				null));
+		refs.add(new RefRecord("refs/zz", 1, Reftable.VALUE_SYMREF, null,
+				null, "refs/heads/0001"));
+		final Reftable t = write(refs, new ArrayList<LogRecord>(), 256);
+
+		assertEquals(A, t.seekRef("refs/heads/0000").value);
+		assertEquals(B, t.seekRef("refs/heads/1999").value);
+		assertNull(t.seekRef("refs/heads/2000"));
+		assertNull(t.seekRef("refs/heads/000"));
+		assertNull(t.seekRef("refs/a"));
+		final RefRecord tag = t.seekRef("refs/tags/t");
+		assertEquals(B, tag.value);
+		assertEquals(A, tag.peeled);
+		assertEquals("refs/heads/0001", t.seekRef("refs/zz").target);
+
+		final RefCursor c = t.seekRefs("refs/heads/15");
+		for (int i = 1500; i < 1600; i++)
+			assertEquals(String.format("refs/heads/%04d", i), c.next().name);
+		assertNull(c.next());
+
+		final RefCursor all = t.seekRefs("");
+		for (final RefRecord r : refs)
+			assertEquals(r.name, all.next().name);
+		assertNull(all.next());
+	}
+
+	public void testLogs() throws IOException {
+		final PersonIdent who = new PersonIdent(jcommitter, 1250379778000L,
+				-120);
+		final List<LogRecord> logs = new ArrayList<LogRecord>();
+		for (int i = 0; i < 500; i++) {
+			logs.add(new LogRecord("refs/heads/a", 500 - i,
+					Reftable.LOG_UPDATE, A, B, who, "update " + (500 - i)));
+		}
+		logs.add(new LogRecord("refs/heads/b", 3, Reftable.LOG_DELETION, null,
+				null, null, null));
+		final List<RefRecord> refs = new ArrayList<RefRecord>();
+		refs.add(new RefRecord("refs/heads/a", 500, Reftable.VALUE_ID, B,
+				null, null));
+		final Reftable t = write(refs, logs, 512);
+		assertEquals(B, t.seekRef("refs/heads/a").value);
+
+		final LogCursor c = t.allLogs();
+		for (int i = 500; i > 0; i--) {
+			final LogRecord r = c.next();
+			assertEquals("refs/heads/a", r.name);
+			assertEquals(i, r.updateIndex);
+			assertEquals(A, r.oldId);
+			assertEquals(B, r.newId);
+			assertEquals("update " + i, r.message);
+			assertEquals(who.getEmailAddress(), r.who.getEmailAddress());
+			assertEquals(who.getWhen(), r.who.getWhen());
+			assertEquals(-120, r.who.getTimeZoneOffset());
+		}
+		assertTrue(c.next().isDeletion());
+		assertNull(c.next());
+
+		final Reftable logsOnly = write(new ArrayList<RefRecord>(), logs
+				.subList(0, 1), 512);
+		assertNull(logsOnly.seekRef("refs/heads/a"));
+		assertEquals("update 500", logsOnly.allLogs().next().message);
+	}
+
+	public void testRejectsUnsortedRecords() throws IOException {
+		final ReftableWriter w = new ReftableWriter(
+				new ByteArrayOutputStream(), 512, 1, 1);
+		w.writeRef(new RefRecord("refs/heads/b", 1, Reftable.VALUE_ID, A,
+				null, null));
+		try {
+			w.writeRef(new RefRecord("refs/heads/a", 1, Reftable.VALUE_ID, A,
+					null, null));
+			fail("accepted refs out of order");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testCompactionSegment() {
+		assertNull(ReftableDatabase.compactionSegment(new long[] { 100 }, 2));
+		assertNull(ReftableDatabase.compactionSegment(
+				new long[] { 800, 400, 200, 100 }, 2));
+		assertTrue(Arrays.equals(new int[] { 2, 4 }, ReftableDatabase
+				.compactionSegment(new long[] { 2000, 400, 100, 100 }, 2)));
+		assertTrue(Arrays.equals(new int[] { 0, 4 }, ReftableDatabase
+				.compactionSegment(new long[] { 100, 100, 100, 100 }, 2)));
+		assertTrue(Arrays.equals(new int[] { 1, 3 }, ReftableDatabase
+				.compactionSegment(new long[] { 1000, 50, 60, 10 }, 2)));
+	}
+
+	public void testUpdateAndDelete() throws IOException {
+		createReftableRepository();
+		assertNull(rt.resolve("refs/heads/master"));
+		assertEquals("refs/heads/master", rt.getFullBranch());
+
+		assertEquals(RefUpdate.Result.NEW, update("refs/heads/master", A));
+		assertEquals(A, rt.resolve("HEAD"));
+		assertEquals(A, rt.resolve("master"));
+		assertEquals(RefUpdate.Result.FAST_FORWARD, update("HEAD", B));
+		assertEquals(B, rt.resolve("refs/heads/master"));
+		assertEquals(RefUpdate.Result.NO_CHANGE, update("refs/heads/master",
+				B));
+
+		assertEquals(RefUpdate.Result.NEW, update("refs/tags/B", db
+				.resolve("refs/tags/B")));
+		final Ref tag = rt.getTags().get("B");
+		assertEquals(db.resolve("refs/tags/B"), tag.getObjectId());
+		assertEquals(db.resolve("refs/tags/B^{}"), tag.getPeeledObjectId());
+
+		assertEquals(RefUpdate.Result.NEW, update("refs/heads/side", A));
+		final RefUpdate u = rt.updateRef("refs/heads/side");
+		u.setExpectedOldObjectId(B);
+		u.setNewObjectId(B);
+		assertEquals(RefUpdate.Result.LOCK_FAILURE, u.update());
+
+		final RefUpdate d = rt.updateRef("refs/heads/side");
+		d.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, d.delete());
+		assertNull(rt.resolve("refs/heads/side"));
+		assertTrue(getLogs("refs/heads/side").isEmpty());
+
+		final Map<String, Ref> all = rt.getAllRefs();
+		assertEquals(Arrays.asList("HEAD", "refs/heads/master", "refs/tags/B"),
+				new ArrayList<String>(all.keySet()));
+		assertEquals("refs/heads/master", all.get("HEAD").getName());
+		assertSame(all, rt.getAllRefs());
+
+		final List<LogRecord> logs = getLogs("refs/heads/master");
+		assertEquals(2, logs.size());
+		assertEquals(A, logs.get(0).oldId);
+		assertEquals(B, logs.get(0).newId);
+		assertEquals("test: fast forward", logs.get(0).message);
+		assertEquals(ObjectId.zeroId(), logs.get(1).oldId);
+		assertEquals("test: created", logs.get(1).message);
+
+		final Repository other = new Repository(rt.getDirectory());
+		assertEquals(B, other.resolve("HEAD"));
+		assertNull(other.resolve("refs/heads/side"));
+		other.close();
+	}
+
+	public void testCompaction() throws IOException {
+		createReftableRepository();
+		for (int i = 0; i < 100; i++)
+			assertEquals(RefUpdate.Result.NEW, update("refs/heads/b" + i,
+					i % 2 == 0 ? A : B));
+		final ReftableStack s = reftables().stack();
+		assertTrue(s.tables.length < 10);
+		assertEquals(s.names.length, new File(rt.getDirectory(), "reftable")
+				.list().length - 1);
+
+		final RefUpdate d = rt.updateRef("refs/heads/b7");
+		d.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, d.delete());
+		assertEquals(99, rt.getRefs(Constants.R_HEADS).size());
+
+		rt.getRefDatabase().packRefs();
+		assertEquals(1, reftables().stack().tables.length);
+		assertNull(reftables().stack().exactRef("refs/heads/b7"));
+		assertEquals(99, rt.getRefs(Constants.R_HEADS).size());
+		assertEquals(B, rt.resolve("b99"));
+		assertEquals(A, rt.resolve("b98"));
+	}
+
+	public void testBatchIsOneTable() throws IOException {
+		createReftableRepository();
+		assertEquals(RefUpdate.Result.NEW, update("refs/heads/old", A));
+		final long before = reftables().stack().getMaxUpdateIndex();
+
+		final BatchRefUpdate batch = rt.newBatchUpdate();
+		for (int i = 0; i < 50; i++) {
+			final RefUpdate u = rt.updateRef("refs/heads/b" + i);
+			u.setNewObjectId(B);
+			batch.addCommand(u);
+		}
+		final RefUpdate d = rt.updateRef("refs/heads/old");
+		d.setForceUpdate(true);
+		batch.addCommand(d);
+		batch.execute(new RevWalk(rt));
+
+		for (final RefUpdate u : batch.getCommands())
+			assertTrue(u.getName(), RefUpdate.isStorable(u.getResult()));
+		assertEquals(before + 1, reftables().stack().getMaxUpdateIndex());
+		assertEquals(50, rt.getRefs(Constants.R_HEADS).size());
+		assertNull(rt.resolve("refs/heads/old"));
+		assertEquals(1, getLogs("refs/heads/b7").size());
+	}
+
+	public void testUnknownExtensionRejected() throws IOException {
+		createReftableRepository();
+		rt.close();
+		rt = null;
+
+		final File dir = new File(trash, "reftable/.git");
+		final RepositoryConfig cfg = new RepositoryConfig(null, new File(dir,
+				"config"));
+		cfg.load();
+		cfg.setString("extensions", null, "objectFormat", "sha256");
+		cfg.save();
+		try {
+			new Repository(dir);
+			fail("opened a repository with an unknown extension");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().indexOf("objectFormat") > 0);
+		}
+
+		cfg.unsetString("extensions", null, "objectFormat");
+		cfg.save();
+		rt = new Repository(dir);
+		assertTrue(rt.getRefDatabase() instanceof ReftableDatabase);
+	}
+
+	private void createReftableRepository() throws IOException {
+		final File dir = new File(trash, "reftable/.git");
+		final Repository r = new Repository(dir);
+		r.create(Repository.REF_FORMAT_REFTABLE);
+		r.close();
+
+		final File alt = new File(dir, "objects/info/alternates");
+		alt.getParentFile().mkdirs();
+		final FileOutputStream out = new FileOutputStream(alt);
+		try {
+			out.write(Constants.encode(new File(trash_git, "objects")
+					.getAbsolutePath() + "\n"));
+		} finally {
+			out.close();
+		}
+
+		rt = new Repository(dir);
+		assertTrue(rt.getRefDatabase() instanceof ReftableDatabase);
+	}
+
+	private ReftableDatabase reftables() {
+		return (ReftableDatabase) rt.getRefDatabase();
+	}
+
+	private List<LogRecord> getLogs(final String name) throws IOException {
+		return reftables().getLogs(name);
+	}
+
+	private RefUpdate.Result update(final String name, final ObjectId id)
+			throws IOException {
+		final RefUpdate u = rt.updateRef(name);
+		u.setNewObjectId(id);
+		u.setRefLogMessage("test", true);
+		return u.update();
+	}
+
+	private static Reftable write(final List<RefRecord> refs,
+			final List<LogRecord> logs, final int blockSize)
+			throws IOException {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		final ReftableWriter w = new ReftableWriter(buf, blockSize, 1, 500);
+		for (final RefRecord r : refs)
+			w.writeRef(r);
+		for (final LogRecord r : logs)
+			w.writeLog(r);
+		w.finish();
+		return new Reftable(buf.toByteArray());
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+public class RepositoryCacheTest extends RepositoryTestCase {
+	private RepositoryCache cache;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		cache = new RepositoryCache();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.clear();
+		super.tearDown();
+	}
+
+	public void testReuse() throws Exception {
+		final Repository a = cache.open(trash_git);
+		a.close();
+		final Repository b = cache.open(new File(trash, "../"
+				+ trash.getName() + "/.git"));
+		b.close();
+		assertSame(a, b);
+		assertNotSame(db, a);
+		assertEquals(1, cache.size());
+		assertEquals(1, a.getUseCount());
+	}
+
+	public void testMissing() throws Exception {
+		try {
+			cache.open(new File(trash, "missing.git"));
+			fail("opened a repository which does not exist");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+		assertEquals(0, cache.size());
+	}
+
+	public void testEvictLeastRecentlyUsed() throws Exception {
+		final File other = createNewEmptyRepo().getDirectory();
+		cache.setMaxRepositories(1);
+
+		final Repository a = cache.open(trash_git);
+		final Repository b = cache.open(other);
+		assertEquals("in use repository was evicted", 2, cache.size());
+
+		a.close();
+		b.close();
+		cache.evictIdle();
+		assertEquals(1, cache.size());
+		assertEquals(0, a.getUseCount());
+		assertEquals(1, b.getUseCount());
+		assertSame(b, cache.open(other));
+		b.close();
+	}
+
+	public void testEvictIdle() throws Exception {
+		final Repository a = cache.open(trash_git);
+		cache.setIdleTime(0);
+		cache.evictIdle();
+		assertEquals(1, cache.size());
+
+		a.close();
+		cache.evictIdle();
+		assertEquals(0, cache.size());
+		assertEquals(0, a.getUseCount());
+		assertEquals(0, a.packs().length);
+	}
+
+	public void testCloseTwice() throws Exception {
+		final Repository a = new Repository(trash_git);
+		a.close();
+		a.close();
+		assertEquals(0, a.getUseCount());
+
+		a.incrementOpen();
+		a.scanForPacks();
+		assertTrue(a.packs().length > 0);
+		a.close();
+		assertEquals(0, a.getUseCount());
+		assertEquals(0, a.packs().length);
+	}
+
+	public void testClearLeavesUsersOpen() throws Exception {
+		final Repository a = cache.open(trash_git);
+		final int packs = a.packs().length;
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(packs, a.packs().length);
+		a.close();
+		assertEquals(0, a.packs().length);
+	}
+
+	public void testReloadModifiedConfig() throws Exception {
+		final File file = new File(trash_git, "config");
+		final long old = System.currentTimeMillis() - 10000;
+		assertTrue(file.setLastModified(old));
+
+		final Repository a = cache.open(trash_git);
+		final RepositoryConfig cfg = a.getConfig();
+		assertTrue(cfg.getBoolean("daemon", "uploadpack", true));
+		a.close();
+
+		assertSame(a, cache.open(trash_git));
+		assertSame("unchanged config was read again", cfg, a.getConfig());
+		a.close();
+
+		final RepositoryConfig edit = new RepositoryConfig(null, file);
+		edit.load();
+		edit.setBoolean("daemon", null, "uploadpack", false);
+		edit.save();
+		assertTrue(file.setLastModified(old + 5000));
+
+		assertSame(a, cache.open(trash_git));
+		assertNotSame(cfg, a.getConfig());
+		assertFalse(a.getConfig().getBoolean("daemon", "uploadpack", true));
+		assertTrue("old config was changed", cfg.getBoolean("daemon",
+				"uploadpack", true));
+		a.close();
+	}
+
+	public void testRescanModifiedPackDirectory() throws Exception {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f";
+		final File pack = new File(packDir, name + ".pack");
+		final File moved = new File(trash, name + ".pack");
+		final long old = System.currentTimeMillis() - 10000;
+
+		final Repository a = cache.open(trash_git);
+		final int packs = a.packs().length;
+		assertTrue(packDir.setLastModified(old));
+		a.scanForPacks();
+		a.close();
+
+		assertTrue(pack.renameTo(moved));
+		assertTrue(packDir.setLastModified(old));
+		assertSame(a, cache.open(trash_git));
+		assertEquals("unchanged directory was scanned", packs,
+				a.packs().length);
+		a.close();
+
+		assertTrue(packDir.setLastModified(old + 5000));
+		assertSame(a, cache.open(trash_git));
+		assertEquals(packs - 1, a.packs().length);
+		a.close();
+
+		assertTrue(moved.renameTo(pack));
+		assertSame(a, cache.open(trash_git));
+		assertEquals(packs, a.packs().length);
+		a.close();
+	}
+}
@@ -52,6 +52,10 @@
 
 import junit.framework.TestCase;
 
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheBuilder;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.treewalk.FileTreeIterator;
 import org.spearce.jgit.util.JGitTestUtil;
 import org.spearce.jgit.util.SystemReader;
 
@@ -209,6 +213,67 @@ protected File writeTrashFile(final String name, final String data)
 		return tf;
 	}
 
+	protected File writeTrashFile(final String name, final String data,
+			final long time) throws IOException {
+		final File tf = writeTrashFile(name, data);
+		assertTrue(tf.setLastModified(time));
+		return tf;
+	}
+
+	/**
+	 * Write a file and create the index entry matching it.
+	 *
+	 * @param path
+	 *            path of the file in the working tree.
+	 * @param data
+	 *            content of the file.
+	 * @param time
+	 *            modification time of the file and of the entry.
+	 * @return the entry, with the stat data and blob of the file.
+	 * @throws IOException
+	 */
+	protected DirCacheEntry writeIndexEntry(final String path,
+			final String data, final long time) throws IOException {
+		final File f = writeTrashFile(path, data, time);
+		final DirCacheEntry e = new DirCacheEntry(path);
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setLength((int) f.length());
+		e.setLastModified(f.lastModified());
+		e.setObjectId(new ObjectWriter(db).writeBlob(f));
+		return e;
+	}
+
+	/**
+	 * Replace the index of {@link #db} by the given files.
+	 * <p>
+	 * Each file is written with its path as content.
+	 *
+	 * @param time
+	 *            modification time of the files and of their entries.
+	 * @param paths
+	 *            paths of the files in the working tree.
+	 * @throws IOException
+	 */
+	protected void writeIndex(final long time, final String... paths)
+			throws IOException {
+		final DirCache dc = DirCache.lock(db);
+		final DirCacheBuilder b = dc.builder();
+		for (final String p : paths)
+			b.add(writeIndexEntry(p, p, time));
+		assertTrue(b.commit());
+	}
+
+	/**
+	 * @param tree
+	 *            the tree to compare the index with; null for none.
+	 * @param dc
+	 *            the index.
+	 * @return a status of {@link #trash} against the index and tree.
+	 */
+	protected IndexStatus indexStatus(final ObjectId tree, final DirCache dc) {
+		return new IndexStatus(db, tree, dc, new FileTreeIterator(trash));
+	}
+
 	protected static void checkFile(File f, final String checkData)
 			throws IOException {
 		Reader r = new InputStreamReader(new FileInputStream(f), "ISO-8859-1");
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+
+public class RepositoryWatcherTest extends RepositoryTestCase {
+	private static final long OLD = 60 * 1000L;
+
+	private RepositoryWatcher watcher;
+
+	private int refsChanged;
+
+	private int indexChanged;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		db.getAllRefs(); // forget the events of reading the refs
+		db.addRepositoryChangedListener(new RepositoryListener() {
+			public void refsChanged(final RefsChangedEvent e) {
+				refsChanged++;
+			}
+
+			public void indexChanged(final IndexChangedEvent e) {
+				indexChanged++;
+			}
+		});
+		age(trash);
+	}
+
+	public void tearDown() throws Exception {
+		if (watcher != null)
+			watcher.close();
+		super.tearDown();
+	}
+
+	public void testNothingChanged() throws IOException {
+		watcher = new RepositoryWatcher(db, true);
+		assertFalse(watcher.check());
+		assertEquals(0, refsChanged);
+		assertEquals(0, indexChanged);
+	}
+
+	public void testRefCreatedElsewhere() throws IOException {
+		watcher = new RepositoryWatcher(db, false);
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			final RefUpdate u = other.updateRef("refs/heads/watched");
+			u.setNewObjectId(other.resolve("refs/heads/master"));
+			assertEquals(RefUpdate.Result.NEW, u.update());
+			age(new File(trash_git, "refs/heads/watched"));
+		} finally {
+			other.close();
+		}
+		assertEquals(0, refsChanged);
+
+		assertTrue(watcher.check());
+		assertEquals(1, refsChanged);
+		assertEquals(0, indexChanged);
+		assertNotNull(db.getAllRefs().get("refs/heads/watched"));
+
+		assertFalse(watcher.check());
+		assertEquals(1, refsChanged);
+	}
+
+	public void testHeadMovedElsewhere() throws IOException {
+		watcher = new RepositoryWatcher(db, false);
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			other.writeSymref(Constants.HEAD, "refs/heads/a");
+		} finally {
+			other.close();
+		}
+		assertTrue(watcher.check());
+		assertEquals(1, refsChanged);
+	}
+
+	public void testRefRewrittenInSameTick() throws IOException {
+		final File ref = new File(trash_git, "refs/heads/racy");
+		final RefUpdate create = db.updateRef("refs/heads/racy");
+		create.setNewObjectId(db.resolve("refs/heads/a"));
+		assertEquals(RefUpdate.Result.NEW, create.update());
+		final long mtime = ref.lastModified();
+		watcher = new RepositoryWatcher(db, false);
+		refsChanged = 0;
+
+		// Same size, and the same modification time as seen by the
+		// scan above; only the time of that scan tells it is racy.
+		//
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			final RefUpdate u = other.updateRef("refs/heads/racy");
+			u.setNewObjectId(other.resolve("refs/heads/b"));
+			assertEquals(RefUpdate.Result.FAST_FORWARD, u.update());
+		} finally {
+			other.close();
+		}
+		assertTrue(ref.setLastModified(mtime));
+
+		assertTrue(watcher.check());
+		assertEquals(1, refsChanged);
+		assertEquals(db.resolve("refs/heads/b"), db.getAllRefs().get(
+				"refs/heads/racy").getObjectId());
+	}
+
+	public void testSameSizeRewriteInSameTick() throws IOException {
+		final File f = writeTrashFile("a", "a");
+		final long mtime = f.lastModified();
+		watcher = new RepositoryWatcher(db, true);
+		watcher.resetDirtyPaths();
+		assertEquals(0, watcher.getDirtyPaths().size());
+
+		writeTrashFile("a", "b");
+		assertTrue(f.setLastModified(mtime));
+		assertTrue(watcher.check());
+		assertTrue(watcher.getDirtyPaths().contains("a"));
+
+		// Once a scan saw the file old enough, it is quiet again.
+		//
+		assertTrue(f.setLastModified(mtime - OLD));
+		watcher.check();
+		watcher.resetDirtyPaths();
+		assertFalse(watcher.check());
+		assertEquals(0, watcher.getDirtyPaths().size());
+	}
+
+	public void testIndexWrittenElsewhere() throws IOException {
+		watcher = new RepositoryWatcher(db, false);
+		writeIndex(System.currentTimeMillis() - OLD, "a");
+		assertTrue(watcher.check());
+		assertEquals(1, indexChanged);
+		assertEquals(0, refsChanged);
+	}
+
+	public void testDirtyPaths() throws IOException {
+		writeTrashFile("a", "a");
+		writeTrashFile("d/b", "b");
+		age(trash);
+		watcher = new RepositoryWatcher(db, true);
+		assertNull(watcher.getDirtyPaths());
+		watcher.resetDirtyPaths();
+		assertEquals(0, watcher.getDirtyPaths().size());
+
+		writeTrashFile("a", "longer");
+		writeTrashFile("d/c", "c");
+		assertTrue(new File(trash, "d/b").delete());
+		assertTrue(watcher.check());
+
+		final Set<String> dirty = watcher.getDirtyPaths();
+		assertEquals(3, dirty.size());
+		assertTrue(dirty.contains("a"));
+		assertTrue(dirty.contains("d/b"));
+		assertTrue(dirty.contains("d/c"));
+		assertEquals(0, refsChanged);
+		assertEquals(0, indexChanged);
+	}
+
+	public void testIndexChangeForgetsDirtyPaths() throws IOException {
+		watcher = new RepositoryWatcher(db, true);
+		watcher.resetDirtyPaths();
+		writeIndex(System.currentTimeMillis() - OLD, "a");
+		watcher.check();
+		assertNull(watcher.getDirtyPaths());
+	}
+
+	public void testWorkTreeNotWatched() throws IOException {
+		watcher = new RepositoryWatcher(db, false);
+		watcher.resetDirtyPaths();
+		writeTrashFile("a", "a");
+		assertFalse(watcher.check());
+		assertNull(watcher.getDirtyPaths());
+	}
+
+	public void testIncrementalStatus() throws IOException {
+		writeIndex(System.currentTimeMillis() - OLD, "a", "b", "d/c");
+		final DirCache dc = DirCache.read(db);
+		final ObjectId tree = dc.writeTree(new ObjectWriter(db));
+		writeTrashFile("b", "modified before");
+		writeTrashFile("u1", "untracked before");
+		age(trash);
+
+		watcher = new RepositoryWatcher(db, true);
+		watcher.resetDirtyPaths();
+		final IndexStatus base = indexStatus(tree, dc);
+		base.diff();
+		assertTrue(base.getModified().contains("b"));
+
+		writeTrashFile("a", "modified after");
+		writeTrashFile("b", "b");
+		writeTrashFile("d/u2", "untracked after");
+		assertTrue(new File(trash, "d/c").delete());
+		watcher.check();
+		assertEquals(4, watcher.getDirtyPaths().size());
+
+		final IndexStatus inc = indexStatus(tree, dc);
+		inc.diff(base, watcher.getDirtyPaths());
+		final IndexStatus full = indexStatus(tree, dc);
+		full.diff();
+
+		assertEquals(full.getModified(), inc.getModified());
+		assertEquals(full.getMissing(), inc.getMissing());
+		assertEquals(full.getUntracked(), inc.getUntracked());
+		assertTrue(inc.getModified().contains("a"));
+		assertFalse(inc.getModified().contains("b"));
+		assertTrue(inc.getMissing().contains("d/c"));
+		assertTrue(inc.getUntracked().contains("u1"));
+		assertTrue(inc.getUntracked().contains("d/u2"));
+	}
+
+	/** Move files into the past, where the watcher trusts their times. */
+	private static void age(final File f) {
+		if (f.isDirectory()) {
+			for (final File c : f.listFiles())
+				age(c);
+		} else
+			assertTrue(f.setLastModified(System.currentTimeMillis() - OLD));
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.spearce.jgit.util.JGitTestUtil;
+
+public class WindowCacheGetTest extends RepositoryTestCase {
+	private static final String[] PACKS = {
+			"pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f",
+			"pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371",
+			"pack-9fb5b411fe6dfa89cc2e6b89d2bd8e5de02b5745",
+			"pack-546ff360fe3488adb20860ce3436a2d6373d2796",
+			"pack-e6d07037cbcf13376308a0a995d1fa48f8f76aaa",
+			"pack-3280af9c07ee18a87705ef50b0cc4cd20266cf12" };
+
+	private List<PackFile> packs;
+
+	private List<TestObject> toLoad;
+
+	public void setUp() throws Exception {
+		super.setUp();
+
+		packs = new ArrayList<PackFile>();
+		toLoad = new ArrayList<TestObject>();
+		for (final String name : PACKS) {
+			final File idx = JGitTestUtil.getTestResourceFile(name + ".idx");
+			final File pack = JGitTestUtil.getTestResourceFile(name + ".pack");
+			final PackFile p = new PackFile(idx, pack);
+			packs.add(p);
+			for (final PackIndex.MutableEntry e : p)
+				toLoad.add(new TestObject(p, e.toObjectId()));
+		}
+		assertTrue(toLoad.size() > 0);
+	}
+
+	protected void tearDown() throws Exception {
+		for (final PackFile p : packs)
+			p.close();
+		super.tearDown();
+	}
+
+	public void testCache_Defaults() throws IOException {
+		WindowCache.reconfigure(10 * 1024 * 1024, 8192, packedGitMMAP, 8192);
+		doCacheTests(new Random(1), toLoad);
+	}
+
+	public void testCache_TooFewFiles() throws IOException {
+		WindowCache.reconfigure(16 * 1024, 4096, packedGitMMAP, 8192);
+		doCacheTests(new Random(2), toLoad);
+	}
+
+	public void testCache_ReconfigureWhileOpen() throws IOException {
+		doCacheTests(new Random(3), toLoad);
+		WindowCache.reconfigure(64 * 1024, 16384, !packedGitMMAP, 8192);
+		doCacheTests(new Random(4), toLoad);
+		configure();
+		doCacheTests(new Random(5), toLoad);
+	}
+
+	public void testCache_ReconfigureLimitKeepsWindows() throws IOException {
+		WindowCache.reconfigure(64 * 1024, 4096, packedGitMMAP, 8192);
+		final WindowedFile f = new WindowedFile(JGitTestUtil
+				.getTestResourceFile(PACKS[0] + ".pack"));
+		try {
+			final WindowCursor curs = new WindowCursor();
+			WindowCache.get(curs, f, 0);
+			final ByteWindow w = curs.window;
+			curs.release();
+
+			WindowCache.reconfigure(128 * 1024, 4096, packedGitMMAP, 8192);
+			WindowCache.get(curs, f, 0);
+			assertSame(w, curs.window);
+			curs.release();
+
+			WindowCache.reconfigure(128 * 1024, 8192, packedGitMMAP, 8192);
+			WindowCache.get(curs, f, 0);
+			assertNotSame(w, curs.window);
+			curs.release();
+		} finally {
+			f.close();
+		}
+		doCacheTests(new Random(7), toLoad);
+	}
+
+	public void testCache_ConcurrentReaders() throws Exception {
+		WindowCache.reconfigure(32 * 1024, 4096, packedGitMMAP, 8192);
+
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] readers = new Thread[8];
+		for (int i = 0; i < readers.length; i++) {
+			final Random rng = new Random(100 + i);
+			readers[i] = new Thread("reader-" + i) {
+				public void run() {
+					try {
+						for (int pass = 0; pass < 5; pass++)
+							doCacheTests(rng, toLoad);
+					} catch (Throwable e) {
+						synchronized (failure) {
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+		for (final Thread t : readers)
+			t.start();
+		for (final Thread t : readers)
+			t.join();
+		if (failure[0] instanceof Error)
+			throw (Error) failure[0];
+		if (failure[0] instanceof Exception)
+			throw (Exception) failure[0];
+
+		doCacheTests(new Random(6), toLoad);
+	}
+
+	public void testCache_ConcurrentOpen() throws Exception {
+		// Only one window fits. Both packs read their header while they
+		// are being opened, so the second reader evicts the first one's
+		// window while both are still inside onOpen().
+		//
+		WindowCache.reconfigure(4096, 4096, false, 8192);
+
+		final CyclicBarrier inOpen = new CyclicBarrier(2);
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] readers = new Thread[2];
+		for (int i = 0; i < readers.length; i++) {
+			final WindowedFile f = new WindowedFile(JGitTestUtil
+					.getTestResourceFile(PACKS[i] + ".pack")) {
+				@Override
+				protected void onOpen() throws IOException {
+					readHeader(this);
+					try {
+						inOpen.await(30, TimeUnit.SECONDS);
+					} catch (Exception e) {
+						final IOException err = new IOException(
+								"other opener did not arrive");
+						err.initCause(e);
+						throw err;
+					}
+				}
+			};
+			readers[i] = new Thread("opener-" + i) {
+				public void run() {
+					try {
+						readHeader(f);
+					} catch (Throwable e) {
+						synchronized (failure) {
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+					} finally {
+						f.close();
+					}
+				}
+			};
+			readers[i].setDaemon(true);
+		}
+		for (final Thread t : readers)
+			t.start();
+		for (final Thread t : readers) {
+			t.join(60 * 1000);
+			assertFalse("deadlocked: " + t.getName(), t.isAlive());
+		}
+		if (failure[0] instanceof Error)
+			throw (Error) failure[0];
+		if (failure[0] instanceof Exception)
+			throw (Exception) failure[0];
+	}
+
+	private static void readHeader(final WindowedFile f) throws IOException {
+		final WindowCursor curs = new WindowCursor();
+		try {
+			final byte[] sig = new byte[4];
+			f.readFully(0, sig, curs);
+			assertEquals("PACK", new String(sig, "ISO-8859-1"));
+		} finally {
+			curs.release();
+		}
+	}
+
+	private static void doCacheTests(final Random rng,
+			final List<TestObject> objects) throws IOException {
+		final List<TestObject> order = new ArrayList<TestObject>(objects);
+		Collections.shuffle(order, rng);
+
+		final WindowCursor curs = new WindowCursor();
+		try {
+			for (final TestObject o : order) {
+				final PackedObjectLoader ldr = o.pack.get(curs, o.id);
+				assertNotNull(ldr);
+				assertEquals(o.id, o.hash(ldr));
+			}
+		} finally {
+			curs.release();
+		}
+	}
+
+	private static class TestObject {
+		final PackFile pack;
+
+		final ObjectId id;
+
+		TestObject(final PackFile p, final ObjectId i) {
+			pack = p;
+			id = i;
+		}
+
+		ObjectId hash(final ObjectLoader ldr) throws IOException {
+			final byte[] data = ldr.getCachedBytes();
+			final MessageDigest md = Constants.newMessageDigest();
+			md.update(Constants.encodedTypeString(ldr.getType()));
+			md.update((byte) ' ');
+			md.update(Constants.encodeASCII(data.length));
+			md.update((byte) 0);
+			md.update(data);
+			return ObjectId.fromRaw(md.digest());
+		}
+	}
+}
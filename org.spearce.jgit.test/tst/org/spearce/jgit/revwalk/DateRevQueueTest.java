@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class DateRevQueueTest extends TestCase {
+	private int nextId;
+
+	public void testEmpty() {
+		final DateRevQueue q = new DateRevQueue();
+		assertNull(q.peek());
+		assertNull(q.next());
+		assertTrue(q.everbodyHasFlag(RevWalk.UNINTERESTING));
+		assertFalse(q.anybodyHasFlag(RevWalk.UNINTERESTING));
+	}
+
+	public void testSortsByTime() {
+		final DateRevQueue q = new DateRevQueue();
+		final RevCommit a = commit(1);
+		final RevCommit b = commit(3);
+		final RevCommit c = commit(2);
+		q.add(a);
+		q.add(b);
+		q.add(c);
+		assertSame(b, q.peek());
+		assertSame(b, q.next());
+		assertSame(c, q.next());
+		assertSame(a, q.next());
+		assertNull(q.next());
+	}
+
+	public void testTies() {
+		final DateRevQueue q = new DateRevQueue();
+		final RevCommit a = commit(5);
+		final RevCommit b = commit(5);
+		final RevCommit c = commit(5);
+		final RevCommit d = commit(5);
+		q.add(a);
+		q.add(b);
+		q.add(c);
+		q.add(d);
+		assertSame(a, q.next());
+		assertSame(d, q.next());
+		assertSame(c, q.next());
+		assertSame(b, q.next());
+		assertNull(q.next());
+	}
+
+	public void testMatchesSortedList() {
+		final Random rng = new Random(42);
+		final DateRevQueue q = new DateRevQueue();
+		final LinkedList<RevCommit> list = new LinkedList<RevCommit>();
+		for (int i = 0; i < 20000; i++) {
+			if (list.isEmpty() || rng.nextInt(3) > 0) {
+				final RevCommit c = commit(rng.nextInt(50));
+				q.add(c);
+				insertSorted(list, c);
+			} else
+				assertSame(list.removeFirst(), q.next());
+			assertSame(list.isEmpty() ? null : list.getFirst(), q.peek());
+		}
+		while (!list.isEmpty())
+			assertSame(list.removeFirst(), q.next());
+		assertNull(q.next());
+	}
+
+	public void testFlags() {
+		final DateRevQueue q = new DateRevQueue();
+		final RevCommit a = commit(1);
+		final RevCommit b = commit(2);
+		q.add(a);
+		q.add(b);
+		assertFalse(q.everbodyHasFlag(RevWalk.UNINTERESTING));
+		assertFalse(q.anybodyHasFlag(RevWalk.UNINTERESTING));
+
+		a.flags |= RevWalk.UNINTERESTING;
+		assertFalse(q.everbodyHasFlag(RevWalk.UNINTERESTING));
+		assertTrue(q.anybodyHasFlag(RevWalk.UNINTERESTING));
+
+		b.flags |= RevWalk.UNINTERESTING;
+		assertTrue(q.everbodyHasFlag(RevWalk.UNINTERESTING));
+
+		assertSame(b, q.next());
+		a.flags &= ~RevWalk.UNINTERESTING;
+		assertFalse(q.anybodyHasFlag(RevWalk.UNINTERESTING));
+	}
+
+	public void testClear() {
+		final DateRevQueue q = new DateRevQueue();
+		for (int i = 0; i < 100; i++)
+			q.add(commit(i));
+		q.clear();
+		assertNull(q.next());
+		q.add(commit(1));
+		assertNotNull(q.next());
+	}
+
+	/** The insertion rule of the sorted linked list the heap replaced. */
+	private static void insertSorted(final LinkedList<RevCommit> list,
+			final RevCommit c) {
+		if (list.isEmpty() || c.commitTime > list.getFirst().commitTime) {
+			list.addFirst(c);
+			return;
+		}
+		final ListIterator<RevCommit> i = list.listIterator(1);
+		while (i.hasNext()) {
+			if (i.next().commitTime <= c.commitTime) {
+				i.previous();
+				break;
+			}
+		}
+		i.add(c);
+	}
+
+	private RevCommit commit(final int time) {
+		final int n = nextId++;
+		final RevCommit c = new RevCommit(ObjectId.fromRaw(new int[] { n, 0,
+				0, 0, 0 }));
+		c.commitTime = time;
+		return c;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.CommitGraph;
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.revwalk.filter.CommitterRevFilter;
+
+public class RevWalkCommitGraphTest extends RevWalkTestCase {
+	public void testNoGraph() throws Exception {
+		assertNull(db.getCommitGraph());
+		final RevCommit a = parse(commit());
+		assertEquals(CommitGraph.GENERATION_UNKNOWN, a.generation);
+	}
+
+	public void testReadBack() throws Exception {
+		final ObjectId a = commit();
+		final ObjectId b = commit(a);
+		final ObjectId c = commit(a);
+		final ObjectId d = commit(a);
+		final ObjectId m = commit(b, c, d);
+		final ObjectId e = commit(m, b);
+		writeGraph(e);
+
+		final CommitGraph graph = db.getCommitGraph();
+		assertNotNull(graph);
+		assertEquals(6, graph.getCommitCount());
+		assertEquals(-1, graph.findPosition(emptyTree));
+
+		final MutableObjectId id = new MutableObjectId();
+		for (final ObjectId x : new ObjectId[] { a, b, c, d, m, e }) {
+			final RevCommit expect = parse(x);
+			final int pos = graph.findPosition(x);
+			assertTrue(pos >= 0);
+			graph.getObjectId(pos, id);
+			assertEquals(x, id.toObjectId());
+			graph.getTree(pos, id);
+			assertEquals(emptyTree, id.toObjectId());
+			assertEquals(expect.getCommitTime(), graph.getCommitTime(pos));
+			assertEquals(expect.getParentCount(), graph.getParentCount(pos));
+			for (int i = 0; i < expect.getParentCount(); i++) {
+				graph.getObjectId(graph.getParent(pos, i), id);
+				assertEquals(expect.getParent(i).name(), id.name());
+			}
+		}
+		assertEquals(1, graph.getGeneration(graph.findPosition(a)));
+		assertEquals(2, graph.getGeneration(graph.findPosition(d)));
+		assertEquals(3, graph.getGeneration(graph.findPosition(m)));
+		assertEquals(4, graph.getGeneration(graph.findPosition(e)));
+	}
+
+	public void testParseWithoutObject() throws Exception {
+		final ObjectId a = commit();
+		final ObjectId b = commit(a);
+		final ObjectId c = commit(b);
+		writeGraph(c);
+		assertTrue(db.toFile(b).delete());
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		final RevCommit rb = parse(b);
+		assertNull(rb.getRawBuffer());
+		assertEquals(emptyTree, rb.getTree());
+		assertEquals(1, rb.getParentCount());
+		assertCommit(a, rb.getParent(0));
+		assertEquals(2, rb.generation);
+		try {
+			rw.parseBody(rb);
+			fail("body of a deleted commit was parsed");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+
+		rw = new RevWalk(db);
+		try {
+			parse(b);
+			fail("deleted commit was parsed while retaining bodies");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+	}
+
+	public void testGraphReadOnFirstParse() throws Exception {
+		final ObjectId a = commit();
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		writeGraph(a);
+
+		final RevCommit ra = parse(a);
+		assertNull(ra.getRawBuffer());
+		assertEquals(1, ra.generation);
+	}
+
+	public void testParseBody() throws Exception {
+		final ObjectId a = commit();
+		writeGraph(a);
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		final RevCommit ra = parse(a);
+		assertNull(ra.getRawBuffer());
+		assertEquals(1, ra.generation);
+		rw.parseBody(ra);
+		assertNotNull(ra.getRawBuffer());
+		assertEquals(jcommitter.getName(), ra.getCommitterIdent().getName());
+
+		rw = new RevWalk(db);
+		final RevCommit ra2 = parse(a);
+		assertNotNull(ra2.getRawBuffer());
+		assertEquals(1, ra2.generation);
+	}
+
+	public void testFilterNeedingBody() throws Exception {
+		final ObjectId a = commit();
+		final ObjectId b = commit(a);
+		writeGraph(b);
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		rw.setRevFilter(CommitterRevFilter.create(jcommitter.getName()));
+		markStart(b);
+		assertCommit(b, rw.next());
+		assertCommit(a, rw.next());
+		assertNull(rw.next());
+	}
+
+	public void testUninterestingStopsAtGeneration() throws Exception {
+		ObjectId old = commit();
+		for (int i = 0; i < 10; i++)
+			old = commit(old);
+		final ObjectId a = commit(old);
+		final ObjectId b = commit(a);
+		writeGraph(b);
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		markStart(b);
+		markUninteresting(a);
+		assertCommit(b, rw.next());
+		assertNull(rw.next());
+
+		// The date heuristic would have walked several commits further.
+		final RevCommit ro = rw.lookupCommit(old);
+		assertTrue((ro.flags & RevWalk.PARSED) != 0);
+		assertEquals(0, ro.getParent(0).flags & RevWalk.PARSED);
+	}
+
+	public void testIsMergedInto() throws Exception {
+		final ObjectId r = commit();
+		final ObjectId base = commit(commit(r));
+		final ObjectId s1 = commit(r);
+		final ObjectId s2 = commit(s1);
+		final ObjectId tip = commit(commit(s2));
+		final ObjectId merge = commit(tip, base);
+		writeGraph(merge);
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		assertTrue(rw.isMergedInto(parse(base), parse(merge)));
+		assertTrue(rw.isMergedInto(parse(s1), parse(tip)));
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		assertFalse(rw.isMergedInto(parse(base), parse(tip)));
+		// s2 has the same generation as base, so s1 was never needed.
+		assertTrue((rw.lookupCommit(s2).flags & RevWalk.PARSED) != 0);
+		assertEquals(0, rw.lookupCommit(s1).flags & RevWalk.PARSED);
+
+		rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		assertFalse(rw.isMergedInto(parse(tip), parse(base)));
+		assertEquals(0, rw.lookupCommit(r).flags & RevWalk.PARSED);
+	}
+
+	private void writeGraph(final ObjectId... tips) throws Exception {
+		final CommitGraphWriter w = new CommitGraphWriter(db,
+				NullProgressMonitor.INSTANCE);
+		w.prepare(Arrays.asList(tips));
+		final File info = new File(db.getObjectsDirectory(), "info");
+		info.mkdirs();
+		final FileOutputStream out = new FileOutputStream(new File(info,
+				"commit-graph"));
+		try {
+			w.write(out);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class DaemonTest extends RepositoryTestCase {
+	private Daemon daemon;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		daemon = new Daemon(new InetSocketAddress("localhost", 0));
+		daemon.exportRepository("test.git", db);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		daemon.stop();
+		daemon.awaitTermination(5000);
+		super.tearDown();
+	}
+
+	public void testQueueFullClosesConnection() throws Exception {
+		daemon.setMaxConnections(1);
+		daemon.setMaxQueuedConnections(0);
+		daemon.start();
+
+		final Socket busy = connect();
+		try {
+			waitFor(1, daemon.getActiveConnections());
+
+			final Socket s = connect();
+			try {
+				assertEquals(-1, s.getInputStream().read());
+				assertEquals(1, daemon.getRejectedConnections());
+			} finally {
+				s.close();
+			}
+		} finally {
+			busy.close();
+		}
+	}
+
+	public void testServiceLimit() throws Exception {
+		final DaemonService svc = daemon.getService("upload-pack");
+		svc.setMaxConnections(1);
+		daemon.start();
+
+		final Socket first = connect();
+		try {
+			request(first, "git-upload-pack /test.git");
+			final String adv = new PacketLineIn(first.getInputStream())
+					.readString();
+			assertTrue(adv.length() > Constants.OBJECT_ID_LENGTH * 2);
+			assertEquals(1, svc.getActiveConnections());
+
+			final Socket second = connect();
+			try {
+				request(second, "git-upload-pack /test.git");
+				final InputStream in = second.getInputStream();
+				assertEquals("ERR git-upload-pack: too many connections,"
+						+ " try again later", new PacketLineIn(in)
+						.readString());
+				assertEquals(-1, in.read());
+				assertEquals(1, svc.getRejectedConnections());
+			} finally {
+				second.close();
+			}
+		} finally {
+			first.close();
+		}
+		waitFor(0, daemon.getActiveConnections());
+		assertEquals(0, svc.getActiveConnections());
+	}
+
+	public void testInitTimeout() throws Exception {
+		daemon.setInitTimeout(1);
+		daemon.start();
+
+		final Socket s = connect();
+		try {
+			assertEquals(-1, s.getInputStream().read());
+		} finally {
+			s.close();
+		}
+		waitFor(0, daemon.getActiveConnections());
+		assertEquals(0, daemon.getFailedConnections());
+	}
+
+	public void testBrokenRequestCounted() throws Exception {
+		daemon.start();
+
+		final Socket s = connect();
+		try {
+			final OutputStream out = s.getOutputStream();
+			out.write(Constants.encodeASCII("zzzz"));
+			out.flush();
+			assertEquals(-1, s.getInputStream().read());
+		} finally {
+			s.close();
+		}
+		waitFor(0, daemon.getActiveConnections());
+		assertEquals(1, daemon.getFailedConnections());
+	}
+
+	public void testStopServesAcceptedClients() throws Exception {
+		daemon.start();
+		final Socket s = connect();
+		try {
+			waitFor(1, daemon.getActiveConnections());
+			daemon.stop();
+			assertFalse(daemon.isRunning());
+			assertFalse(daemon.awaitTermination(100));
+
+			request(s, "git-upload-pack /test.git");
+			final PacketLineIn in = new PacketLineIn(s.getInputStream());
+			assertNotNull(in.readString());
+		} finally {
+			s.close();
+		}
+		assertTrue(daemon.awaitTermination(5000));
+	}
+
+	private Socket connect() throws IOException {
+		final Socket s = new Socket();
+		s.connect(daemon.getAddress());
+		s.setSoTimeout(10 * 1000);
+		return s;
+	}
+
+	private static void request(final Socket s, final String cmd)
+			throws IOException {
+		final OutputStream out = s.getOutputStream();
+		final PacketLineOut pckOut = new PacketLineOut(out);
+		pckOut.writeString(cmd + "\0host=localhost\0");
+		pckOut.flush();
+	}
+
+	private void waitFor(final int expect, int actual)
+			throws InterruptedException {
+		for (int i = 0; actual != expect && i < 500; i++) {
+			Thread.sleep(10);
+			actual = daemon.getActiveConnections();
+		}
+		assertEquals(expect, actual);
+	}
+}
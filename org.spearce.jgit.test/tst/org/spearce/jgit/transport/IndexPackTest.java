@@ -38,16 +38,25 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
+import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.PackIndex;
 import org.spearce.jgit.lib.RepositoryTestCase;
 import org.spearce.jgit.lib.TextProgressMonitor;
 import org.spearce.jgit.util.JGitTestUtil;
+import org.spearce.jgit.util.NB;
 
 /**
  * Test indexing of git packs. A pack is read from a stream, copied
@@ -56,6 +65,7 @@
  * for all of them unless the packs are very small).
  */
 public class IndexPackTest extends RepositoryTestCase {
+	private IndexPack lastIndex;
 
 	/**
 	 * Test indexing one of the test packs in the egit repo. It has deltas.
@@ -112,4 +122,182 @@ public void test2() throws  IOException {
 			is.close();
 		}
 	}
+
+	/**
+	 * Resolving deltas in parallel must produce the same index as a single
+	 * thread does.
+	 *
+	 * @throws IOException
+	 */
+	public void testThreadsProduceSameIndex() throws IOException {
+		final byte[] one = indexWithThreads(1);
+		final byte[] four = indexWithThreads(4);
+		assertTrue(Arrays.equals(one, four));
+
+		final File orig = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.idx");
+		assertTrue(Arrays.equals(readFully(orig), four));
+	}
+
+	private byte[] indexWithThreads(final int threads) throws IOException {
+		File packFile = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.pack");
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			final File base = new File(trash, "tmp_threads" + threads);
+			IndexPack pack = new IndexPack(db, is, base);
+			pack.setThreads(threads);
+			pack.setIndexVersion(2);
+			pack.setObjectChecking(true);
+			pack.index(new TextProgressMonitor());
+			return readFully(new File(trash, base.getName() + ".idx"));
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] readFully(final File f) throws IOException {
+		final byte[] buf = new byte[(int) f.length()];
+		final InputStream is = new FileInputStream(f);
+		try {
+			NB.readFully(is, buf, 0, buf.length);
+		} finally {
+			is.close();
+		}
+		return buf;
+	}
+
+	/**
+	 * Bases evicted from a small cache are inflated again, giving the same
+	 * index as a cache holding everything.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeltaBaseCacheLimit() throws IOException {
+		final byte[] pack = deltaPack(20, 3);
+		final byte[] all = indexWithCache(pack, 1024 * 1024, "all");
+		assertTrue(lastIndex.getDeltaBaseCacheHits() > 0);
+		assertEquals(0, lastIndex.getDeltaBaseCacheMisses());
+
+		final byte[] none = indexWithCache(pack, 0, "none");
+		assertEquals(0, lastIndex.getDeltaBaseCacheHits());
+		assertTrue(lastIndex.getDeltaBaseCacheMisses() > 0);
+		assertTrue(Arrays.equals(all, none));
+	}
+
+	/**
+	 * A chain far deeper than any call stack could recurse through.
+	 *
+	 * @throws IOException
+	 */
+	public void testDeepDeltaChain() throws IOException {
+		final int depth = 50000;
+		indexWithCache(deltaPack(1, depth), 0, "deep");
+		assertEquals(0, lastIndex.getDeltaBaseCacheMisses());
+
+		final PackFile file = new PackFile(new File(trash, "tmp_deep.idx"),
+				new File(trash, "tmp_deep.pack"));
+		int cnt = 0;
+		for (final PackIndex.MutableEntry e : file) {
+			assertNotNull(e.toObjectId());
+			cnt++;
+		}
+		assertEquals(depth + 1, cnt);
+
+		final byte[] last = new byte[16];
+		Arrays.fill(last, (byte) 'x');
+		NB.encodeInt32(last, 12, depth);
+		assertTrue(file.hasObject(new ObjectWriter(db).computeBlobSha1(
+				last.length, new ByteArrayInputStream(last))));
+	}
+
+	private byte[] indexWithCache(final byte[] pack, final long limit,
+			final String name) throws IOException {
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(pack),
+				new File(trash, "tmp_" + name));
+		ip.setIndexVersion(2);
+		ip.setDeltaBaseCacheLimit(limit);
+		ip.index(new TextProgressMonitor());
+		lastIndex = ip;
+		return readFully(new File(trash, "tmp_" + name + ".idx"));
+	}
+
+	/**
+	 * Create a pack with one 16 byte blob and chains of deltas on it.
+	 * <p>
+	 * Each delta keeps the first 12 bytes of its base and appends a counter
+	 * unique within the pack.
+	 *
+	 * @param chains
+	 *            number of chains based on the blob.
+	 * @param depth
+	 *            number of deltas in each chain.
+	 * @return the pack, including its trailing checksum.
+	 */
+	private static byte[] deltaPack(final int chains, final int depth) {
+		final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+		final byte[] hdr = new byte[12];
+		System.arraycopy(Constants.PACK_SIGNATURE, 0, hdr, 0, 4);
+		NB.encodeInt32(hdr, 4, 2);
+		NB.encodeInt32(hdr, 8, chains * depth + 1);
+		pack.write(hdr, 0, hdr.length);
+
+		final byte[] blob = new byte[16];
+		Arrays.fill(blob, (byte) 'x');
+		final long rootPos = pack.size();
+		writeObject(pack, Constants.OBJ_BLOB, blob);
+
+		final byte[] delta = new byte[] { 16, 16, (byte) 0x90, 12, 4, 0, 0,
+				0, 0 };
+		for (int c = 0; c < chains; c++) {
+			long basePos = rootPos;
+			for (int i = 1; i <= depth; i++) {
+				NB.encodeInt32(delta, 5, c * depth + i);
+				final long pos = pack.size();
+				writeObject(pack, Constants.OBJ_OFS_DELTA, delta);
+				writeOffset(pack, pos - basePos);
+				writeDeflated(pack, delta);
+				basePos = pos;
+			}
+		}
+
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(pack.toByteArray());
+		final byte[] sum = md.digest();
+		pack.write(sum, 0, sum.length);
+		return pack.toByteArray();
+	}
+
+	private static void writeObject(final ByteArrayOutputStream out,
+			final int type, final byte[] data) {
+		int sz = data.length;
+		int c = (type << 4) | (sz & 15);
+		sz >>>= 4;
+		while (sz > 0) {
+			out.write(c | 0x80);
+			c = sz & 0x7f;
+			sz >>>= 7;
+		}
+		out.write(c);
+		if (type != Constants.OBJ_OFS_DELTA)
+			writeDeflated(out, data);
+	}
+
+	private static void writeOffset(final ByteArrayOutputStream out, long ofs) {
+		final byte[] buf = new byte[10];
+		int n = buf.length - 1;
+		buf[n] = (byte) (ofs & 0x7f);
+		while ((ofs >>= 7) > 0)
+			buf[--n] = (byte) (0x80 | (--ofs & 0x7f));
+		out.write(buf, n, buf.length - n);
+	}
+
+	private static void writeDeflated(final ByteArrayOutputStream out,
+			final byte[] data) {
+		final Deflater def = new Deflater();
+		def.setInput(data);
+		def.finish();
+		final byte[] buf = new byte[64];
+		while (!def.finished())
+			out.write(buf, 0, def.deflate(buf));
+		def.end();
+	}
 }
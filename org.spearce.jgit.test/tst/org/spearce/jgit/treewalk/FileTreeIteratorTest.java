@@ -39,6 +39,13 @@
 
 import java.io.File;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
@@ -161,6 +168,91 @@ public void testComputeFileObjectId() throws Exception {
 		assertEquals(expect, top.getEntryObjectId());
 	}
 
+	public void testComputeFileObjectIdAhead() throws Exception {
+		for (int i = 0; i < 20; i++)
+			writeTrashFile("d/f" + i, "content " + i);
+
+		final List<ObjectId> expect = walkIds(new FileTreeIterator(trash));
+		assertEquals(paths.length + 20, expect.size());
+
+		final ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			final FileTreeIterator top = new FileTreeIterator(trash);
+			top.setHashPool(pool, 8);
+			assertEquals(expect, walkIds(top));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testHashAheadCancelled() throws Exception {
+		for (int i = 0; i < 20; i++)
+			writeTrashFile("d/f" + i, "content " + i);
+
+		final QueueExecutor pool = new QueueExecutor();
+		final FileTreeIterator d = new FileTreeIterator(new File(trash, "d"));
+		d.setHashPool(pool, 8);
+		d.getEntryObjectId();
+		assertEquals(7, pool.queued.size());
+
+		// Skipping an entry drops its hash, but not the ones after it.
+		d.next(2);
+		assertTrue(pool.queued.get(0).isCancelled());
+		assertFalse(pool.queued.get(1).isCancelled());
+
+		d.stopWalk();
+		for (final Future<?> f : pool.queued)
+			assertTrue(f.isCancelled());
+	}
+
+	private List<ObjectId> walkIds(final FileTreeIterator top)
+			throws Exception {
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.setRecursive(true);
+		tw.addTree(top);
+		final List<ObjectId> ids = new ArrayList<ObjectId>();
+		while (tw.next())
+			ids.add(tw.getObjectId(0));
+		return ids;
+	}
+
+	/** Runs the first task on the caller, and queues all later ones. */
+	private static class QueueExecutor extends AbstractExecutorService {
+		final List<Future<?>> queued = new ArrayList<Future<?>>();
+
+		private boolean ranFirst;
+
+		public void execute(final Runnable r) {
+			if (ranFirst)
+				queued.add((Future<?>) r);
+			else {
+				ranFirst = true;
+				r.run();
+			}
+		}
+
+		public void shutdown() {
+			// Nothing to stop.
+		}
+
+		public List<Runnable> shutdownNow() {
+			return new ArrayList<Runnable>();
+		}
+
+		public boolean isShutdown() {
+			return false;
+		}
+
+		public boolean isTerminated() {
+			return false;
+		}
+
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+			return false;
+		}
+	}
+
 	private static String nameOf(final AbstractTreeIterator i) {
 		return RawParseUtils.decode(Constants.CHARSET, i.path, 0, i.pathLen);
 	}
@@ -53,10 +53,14 @@
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.UnmergedPathException;
 import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.LockFile;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.treewalk.FileTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.WorkingTreeIterator;
 import org.spearce.jgit.util.MutableInteger;
 import org.spearce.jgit.util.NB;
 import org.spearce.jgit.util.TemporaryBuffer;
@@ -237,6 +241,9 @@ public static DirCache lock(final Repository db)
 	/** Modification time of the file at the last read/write we did. */
 	private long lastModified;
 
+	/** Start of the last {@link #refresh(Repository, WorkingTreeIterator)}. */
+	private long refreshTime;
+
 	/** Individual file index entries, sorted by path name. */
 	private DirCacheEntry[] sortedEntries;
 
@@ -334,9 +341,31 @@ else if (liveFile.lastModified() != lastModified) {
 		}
 	}
 
+	/**
+	 * Can the stat data of an entry be trusted?
+	 * <p>
+	 * An entry whose cached modification time is not older than the index
+	 * file itself may have been modified again after it was cached, within
+	 * the resolution of the file system timestamps. Such an entry is racily
+	 * clean and its content must be compared to be sure it is unmodified.
+	 * Entries smudged by {@link #write()} are always racily clean.
+	 *
+	 * @param e
+	 *            an entry of this index.
+	 * @return true if the entry's content must be checked.
+	 */
+	public boolean isRacilyClean(final DirCacheEntry e) {
+		if (lastModified <= 0)
+			return false;
+		final int smudge_s = (int) (lastModified / 1000);
+		final int smudge_ns = ((int) (lastModified % 1000)) * 1000000;
+		return e.mightBeRacilyClean(smudge_s, smudge_ns);
+	}
+
 	/** Empty this index, removing all entries. */
 	public void clear() {
 		lastModified = 0;
+		refreshTime = 0;
 		sortedEntries = NO_ENTRIES;
 		entryCnt = 0;
 		tree = null;
@@ -410,6 +439,103 @@ private static boolean is_DIRC(final byte[] hdr) {
 		return true;
 	}
 
+	/**
+	 * Update the stat data of unmodified entries, like
+	 * <code>git update-index --refresh</code>.
+	 * <p>
+	 * The index is locked and read. Entries whose file was touched, or which
+	 * are racily clean, are hashed; if the content still matches, their
+	 * cached size and modification time are updated so later status checks
+	 * can trust them again. The index is written only if an entry changed.
+	 *
+	 * @param db
+	 *            repository whose index and working directory are refreshed.
+	 * @return true if the index was written; false if nothing changed, or if
+	 *         the index is locked by someone else.
+	 * @throws IOException
+	 *             the index could not be read or written.
+	 */
+	public static boolean refresh(final Repository db) throws IOException {
+		final DirCache dc = new DirCache(new File(db.getDirectory(), "index"));
+		if (!dc.lock())
+			return false;
+		try {
+			dc.read();
+			if (!dc.refresh(db, new FileTreeIterator(db.getWorkDir())))
+				return false;
+			dc.write();
+			return dc.commit();
+		} finally {
+			dc.unlock();
+		}
+	}
+
+	/**
+	 * Update the stat data of unmodified entries in memory.
+	 * <p>
+	 * Every merged entry with a file in the working tree is compared as by
+	 * {@link WorkingTreeIterator#isModified(DirCacheEntry, boolean)}. An
+	 * unmodified entry whose stat data differ, or which was racily clean,
+	 * gets the file's size and modification time. A racily clean entry whose
+	 * file turned out to be modified is smudged, as its stat data match a
+	 * file they do not describe.
+	 * <p>
+	 * Files modified in the same second as the refresh started are smudged
+	 * again by the next {@link #write()}, as they could still change without
+	 * their modification time changing.
+	 *
+	 * @param db
+	 *            repository the entries belong to.
+	 * @param wt
+	 *            iterator over the working tree of the repository.
+	 * @return true if an entry was updated and the index should be written.
+	 * @throws IOException
+	 *             the working tree could not be read.
+	 */
+	public boolean refresh(final Repository db, final WorkingTreeIterator wt)
+			throws IOException {
+		final long start = System.currentTimeMillis();
+		final long smudgeTime = start - start % 1000;
+
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.setRecursive(true);
+		tw.addTree(new DirCacheIterator(this));
+		tw.addTree(wt);
+
+		boolean changed = false;
+		while (tw.next()) {
+			final DirCacheIterator i = tw.getTree(0, DirCacheIterator.class);
+			final WorkingTreeIterator w = tw.getTree(1,
+					WorkingTreeIterator.class);
+			if (i == null || w == null)
+				continue;
+			final DirCacheEntry e = i.getDirCacheEntry();
+			if (e.getStage() != DirCacheEntry.STAGE_0 || e.isAssumeValid()
+					|| FileMode.GITLINK.equals(e.getRawMode()))
+				continue;
+
+			final boolean racy = isRacilyClean(e);
+			if (w.isModified(e, racy)) {
+				if (racy && !e.isSmudged())
+					e.smudgeRacilyClean();
+				continue;
+			}
+
+			final long mtime = w.getEntryLastModified();
+			if (mtime >= smudgeTime)
+				continue; // write() would smudge it right away
+			if (racy || e.getLastModified() != mtime) {
+				e.setLastModified(mtime);
+				e.setLength((int) w.getEntryLength());
+				changed = true;
+			}
+		}
+		if (changed)
+			refreshTime = smudgeTime;
+		return changed;
+	}
+
 	/**
 	 * Try to establish an update lock on the cache file.
 	 *
@@ -477,14 +603,15 @@ private void writeTo(final OutputStream os) throws IOException {
 
 		// Write the individual file entries.
 		//
-		if (lastModified <= 0) {
+		final long smudgeTime = Math.max(lastModified, refreshTime);
+		if (smudgeTime <= 0) {
 			// Write a new index, as no entries require smudging.
 			//
 			for (int i = 0; i < entryCnt; i++)
 				sortedEntries[i].write(dos);
 		} else {
-			final int smudge_s = (int) (lastModified / 1000);
-			final int smudge_ns = ((int) (lastModified % 1000)) * 1000000;
+			final int smudge_s = (int) (smudgeTime / 1000);
+			final int smudge_ns = ((int) (smudgeTime % 1000)) * 1000000;
 			for (int i = 0; i < entryCnt; i++) {
 				final DirCacheEntry e = sortedEntries[i];
 				if (e.mightBeRacilyClean(smudge_s, smudge_ns))
@@ -526,6 +653,7 @@ public boolean commit() {
 		if (!tmp.commit())
 			return false;
 		lastModified = tmp.getCommitLastModified();
+		refreshTime = 0;
 		return true;
 	}
 
@@ -258,8 +258,12 @@ final boolean mightBeRacilyClean(final int smudge_s, final int smudge_ns) {
 	 * This avoids the "racy git" problem by making this index entry no longer
 	 * match the file in the working directory. Later git will be forced to
 	 * compare the file content to ensure the file matches the working tree.
+	 * <p>
+	 * {@link DirCache#write()} smudges racily clean entries itself. Callers
+	 * only need this for an entry they know cannot be trusted, such as one
+	 * whose file was found modified despite matching stat data.
 	 */
-	final void smudgeRacilyClean() {
+	public void smudgeRacilyClean() {
 		// We don't use the same approach as C Git to smudge the entry,
 		// as we cannot compare the working tree file to our SHA-1 and
 		// thus cannot use the "size to 0" trick without accidentally
@@ -276,6 +280,21 @@ final void smudgeRacilyClean() {
 		Arrays.fill(info, base, base + 8, (byte) 127);
 	}
 
+	/**
+	 * Has this entry been smudged by {@link #smudgeRacilyClean()}?
+	 *
+	 * @return true if the cached modification time is the smudge marker, so
+	 *         the file content must be compared to trust this entry.
+	 */
+	public boolean isSmudged() {
+		final int base = infoOffset + P_MTIME;
+		for (int i = base; i < base + 8; i++) {
+			if (info[i] != 127)
+				return false;
+		}
+		return true;
+	}
+
 	final byte[] idBuffer() {
 		return info;
 	}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.dircache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.LockFile;
+import org.spearce.jgit.lib.Repository;
+
+/**
+ * Remembers the listing of every working tree directory, to find untracked
+ * files without listing directories which did not change.
+ * <p>
+ * For each directory the cache records its modification time and the names
+ * of the files and directories in it. A directory's modification time changes
+ * whenever an entry is added to, removed from or renamed within it, so as
+ * long as the time is the same the recorded names are still valid and the
+ * directory does not need to be listed again. Checking a directory then costs
+ * a single stat, and untracked files in it are not looked at at all.
+ * <p>
+ * All names are recorded, not only untracked ones, so that staging or
+ * unstaging a file, which does not touch its directory, is still seen: the
+ * untracked files are found by comparing the names against the index on every
+ * {@link #scan(DirCache)}.
+ * <p>
+ * The cache is kept in <code>.git/untracked-cache</code>, next to the index
+ * rather than in it, as the format is private to this library.
+ */
+public class UntrackedCache {
+	private static final byte[] SIG = { 'U', 'N', 'T', 'C' };
+
+	private static final int VERSION = 1;
+
+	/** Listing of one directory. */
+	private static class Dir {
+		/** Modification time the names were listed at; 0 if not trusted. */
+		final long modified;
+
+		/** Names of the entries, except <code>.git</code>, sorted. */
+		final String[] names;
+
+		/** True for each name which is a directory. */
+		final boolean[] isDir;
+
+		/** True if the directory contains a <code>.git</code> directory. */
+		final boolean repository;
+
+		Dir(final long modified, final String[] names, final boolean[] isDir,
+				final boolean repository) {
+			this.modified = modified;
+			this.names = names;
+			this.isDir = isDir;
+			this.repository = repository;
+		}
+	}
+
+	private final File cacheFile;
+
+	private final File workDir;
+
+	/** Listings by repository relative directory path; "" is the root. */
+	private Map<String, Dir> dirs = new HashMap<String, Dir>();
+
+	/** True if {@link #dirs} differs from what is stored in the file. */
+	private boolean modified;
+
+	private int listed;
+
+	/**
+	 * Read the untracked cache of a repository.
+	 * <p>
+	 * A missing or unreadable cache file is not an error; the cache then
+	 * starts out empty.
+	 *
+	 * @param db
+	 *            the repository.
+	 * @return the cache.
+	 */
+	public static UntrackedCache read(final Repository db) {
+		final UntrackedCache c = new UntrackedCache(new File(db
+				.getDirectory(), "untracked-cache"), db.getWorkDir());
+		c.read();
+		return c;
+	}
+
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param file
+	 *            where the cache is stored.
+	 * @param root
+	 *            the working directory the cache describes.
+	 */
+	public UntrackedCache(final File file, final File root) {
+		cacheFile = file;
+		workDir = root;
+	}
+
+	/**
+	 * Find the untracked files of the working directory.
+	 * <p>
+	 * Directories whose modification time matches the cache are not listed.
+	 * Directories modified in the second the scan started are listed, but
+	 * their listing is not trusted by the next scan, as they may still change
+	 * without their modification time changing.
+	 *
+	 * @param index
+	 *            the index deciding which files are tracked.
+	 * @return repository relative paths of the files which are not in the
+	 *         index, sorted. A nested repository is reported as one path.
+	 */
+	public Set<String> scan(final DirCache index) {
+		final Set<String> tracked = new HashSet<String>();
+		for (int i = 0; i < index.getEntryCount(); i++)
+			tracked.add(index.getEntry(i).getPathString());
+
+		final long start = System.currentTimeMillis();
+		final Map<String, Dir> next = new HashMap<String, Dir>();
+		final Set<String> untracked = new TreeSet<String>();
+		listed = 0;
+		scan("", workDir, start - start % 1000, tracked, next, untracked);
+		if (next.size() != dirs.size())
+			modified = true;
+		dirs = next;
+		return untracked;
+	}
+
+	/**
+	 * @return number of directories the last {@link #scan(DirCache)} had to
+	 *         list, because the cache did not describe them.
+	 */
+	public int getListedDirectoryCount() {
+		return listed;
+	}
+
+	private boolean scan(final String path, final File dir,
+			final long racyTime, final Set<String> tracked,
+			final Map<String, Dir> next, final Set<String> untracked) {
+		final long mtime = dir.lastModified();
+		Dir d = dirs.get(path);
+		if (d == null || d.modified == 0 || d.modified != mtime) {
+			d = list(dir, mtime < racyTime ? mtime : 0);
+			modified = true;
+			listed++;
+		}
+		next.put(path, d);
+		if (d.repository && path.length() > 0)
+			return true;
+
+		for (int i = 0; i < d.names.length; i++) {
+			final String p = path.length() == 0 ? d.names[i] : path + "/"
+					+ d.names[i];
+			if (d.isDir[i]) {
+				final boolean repo = scan(p, new File(dir, d.names[i]),
+						racyTime, tracked, next, untracked);
+				if (repo && !tracked.contains(p))
+					untracked.add(p);
+			} else if (!tracked.contains(p))
+				untracked.add(p);
+		}
+		return false;
+	}
+
+	private static Dir list(final File dir, final long mtime) {
+		final File[] all = dir.listFiles();
+		if (all == null)
+			return new Dir(mtime, new String[0], new boolean[0], false);
+
+		final String[] names = new String[all.length];
+		int cnt = 0;
+		boolean repository = false;
+		for (final File f : all) {
+			final String n = f.getName();
+			if (".git".equals(n))
+				repository |= f.isDirectory();
+			else
+				names[cnt++] = n;
+		}
+		Arrays.sort(names, 0, cnt);
+
+		final String[] r = new String[cnt];
+		final boolean[] isDir = new boolean[cnt];
+		for (int i = 0; i < cnt; i++) {
+			r[i] = names[i];
+			isDir[i] = new File(dir, names[i]).isDirectory();
+		}
+		return new Dir(mtime, r, isDir, repository);
+	}
+
+	/** Forget the cache, e.g. because the file could not be read. */
+	public void clear() {
+		modified = !dirs.isEmpty();
+		dirs = new HashMap<String, Dir>();
+	}
+
+	private void read() {
+		try {
+			final FileInputStream in = new FileInputStream(cacheFile);
+			try {
+				readFrom(in);
+				modified = false;
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException notFound) {
+			clear();
+		} catch (IOException err) {
+			// It is only a cache. Start over, and replace the file
+			// on the next write.
+			//
+			clear();
+			modified = true;
+		}
+	}
+
+	private void readFrom(final FileInputStream fd) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		final DataInputStream in = new DataInputStream(new DigestInputStream(
+				new BufferedInputStream(fd), md));
+		final byte[] hdr = new byte[SIG.length];
+		in.readFully(hdr);
+		if (!Arrays.equals(hdr, SIG) || in.readInt() != VERSION)
+			throw new IOException("Not an untracked cache: " + cacheFile);
+
+		final int cnt = in.readInt();
+		final Map<String, Dir> r = new HashMap<String, Dir>(cnt * 4 / 3 + 1);
+		for (int i = 0; i < cnt; i++) {
+			final String path = in.readUTF();
+			final long mtime = in.readLong();
+			final boolean repository = in.readBoolean();
+			final int n = in.readInt();
+			final String[] names = new String[n];
+			final boolean[] isDir = new boolean[n];
+			for (int k = 0; k < n; k++) {
+				isDir[k] = in.readBoolean();
+				names[k] = in.readUTF();
+			}
+			r.put(path, new Dir(mtime, names, isDir, repository));
+		}
+
+		final byte[] expect = md.digest();
+		final byte[] actual = new byte[expect.length];
+		in.readFully(actual);
+		if (!Arrays.equals(expect, actual))
+			throw new IOException("Untracked cache checksum mismatch: "
+					+ cacheFile);
+		dirs = r;
+	}
+
+	/**
+	 * Store the cache, if the last scan changed it.
+	 *
+	 * @return true if the file is up to date; false if it is locked by
+	 *         someone else and was not written.
+	 * @throws IOException
+	 *             the file could not be written.
+	 */
+	public boolean write() throws IOException {
+		if (!modified)
+			return true;
+		final LockFile lck = new LockFile(cacheFile);
+		if (!lck.lock())
+			return false;
+		try {
+			final OutputStream os = lck.getOutputStream();
+			try {
+				writeTo(os);
+			} finally {
+				os.close();
+			}
+			if (!lck.commit())
+				return false;
+			modified = false;
+			return true;
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	private void writeTo(final OutputStream os) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		final BufferedOutputStream bos = new BufferedOutputStream(os);
+		final DataOutputStream out = new DataOutputStream(
+				new DigestOutputStream(bos, md));
+		out.write(SIG);
+		out.writeInt(VERSION);
+		out.writeInt(dirs.size());
+		for (final Map.Entry<String, Dir> e : dirs.entrySet()) {
+			final Dir d = e.getValue();
+			out.writeUTF(e.getKey());
+			out.writeLong(d.modified);
+			out.writeBoolean(d.repository);
+			out.writeInt(d.names.length);
+			for (int k = 0; k < d.names.length; k++) {
+				out.writeBoolean(d.isDir[k]);
+				out.writeUTF(d.names[k]);
+			}
+		}
+		out.flush();
+		bos.write(md.digest());
+		bos.flush();
+	}
+}
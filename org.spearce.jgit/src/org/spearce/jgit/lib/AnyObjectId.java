@@ -226,6 +226,28 @@ int compareTo(final int[] bs, final int p) {
 		return NB.compareUInt32(w5, bs[p + 4]);
 	}
 
+	int compareTo(final ByteBuffer bb, final int p) {
+		int cmp;
+
+		cmp = NB.compareUInt32(w1, bb.getInt(p));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(w2, bb.getInt(p + 4));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(w3, bb.getInt(p + 8));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(w4, bb.getInt(p + 12));
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(w5, bb.getInt(p + 16));
+	}
+
 	/**
 	 * Tests if this ObjectId starts with the given abbreviation.
 	 *
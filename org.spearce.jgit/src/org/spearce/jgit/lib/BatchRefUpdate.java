@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.lib.RefUpdate.Result;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Updates many refs of a repository at once.
+ * <p>
+ * All refs are locked before any of them is examined, the merge tests share
+ * one {@link RevWalk}, and the new values are written in as few passes over
+ * the ref storage as it allows. Listeners are notified once, after the
+ * whole batch was stored.
+ * <p>
+ * Each command is a {@link RefUpdate} configured as usual, but not executed
+ * by the caller. A command without a new object id (or with
+ * {@link ObjectId#zeroId()}) deletes its ref. The outcome of each command is
+ * available from {@link RefUpdate#getResult()} after {@link #execute(RevWalk)}.
+ */
+public abstract class BatchRefUpdate {
+	private final RefDatabase refdb;
+
+	private final List<RefUpdate> commands = new ArrayList<RefUpdate>();
+
+	private final Set<String> names = new HashSet<String>();
+
+	private boolean atomic;
+
+	BatchRefUpdate(final RefDatabase refdb) {
+		this.refdb = refdb;
+	}
+
+	/** @return the repository the refs are stored in. */
+	public Repository getRepository() {
+		return refdb.getRepository();
+	}
+
+	/**
+	 * @return true if no command is stored unless all of them can be.
+	 */
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	/**
+	 * Request all-or-nothing semantics.
+	 * <p>
+	 * If any command of an atomic batch fails, no ref is changed. The commands
+	 * which could have succeeded report {@link Result#ABORTED}.
+	 *
+	 * @param a
+	 *            true to store either all commands or none.
+	 */
+	public void setAtomic(final boolean a) {
+		atomic = a;
+	}
+
+	/**
+	 * Add a command to the batch.
+	 *
+	 * @param u
+	 *            the command, created by {@link Repository#updateRef(String)}
+	 *            of the same repository and not yet executed.
+	 * @return this batch.
+	 * @throws IllegalArgumentException
+	 *             the command belongs to another repository, or the batch
+	 *             already modifies the same ref.
+	 */
+	public BatchRefUpdate addCommand(final RefUpdate u) {
+		if (u.getRepository() != getRepository())
+			throw new IllegalArgumentException("Ref " + u.getName()
+					+ " belongs to another repository");
+		if (!names.add(u.getRef().getName()))
+			throw new IllegalArgumentException("Ref " + u.getRef().getName()
+					+ " is updated twice");
+		commands.add(u);
+		return this;
+	}
+
+	/** @return the commands of this batch, in the order they were added. */
+	public List<RefUpdate> getCommands() {
+		return Collections.unmodifiableList(commands);
+	}
+
+	/**
+	 * Execute all commands.
+	 *
+	 * @param walk
+	 *            a RevWalk the merge tests can borrow. It will be reset for
+	 *            each test, but objects it already parsed are reused.
+	 * @throws IOException
+	 *             an unexpected IO error occurred while writing changes. The
+	 *             commands which were about to be stored report
+	 *             {@link Result#IO_FAILURE}.
+	 */
+	public void execute(final RevWalk walk) throws IOException {
+		final List<RefUpdate> todo = new ArrayList<RefUpdate>(commands.size());
+		final Ref head = refdb.readRef(Constants.HEAD);
+		for (final RefUpdate u : commands) {
+			final String name = u.getName();
+			if (isDelete(u) && head != null && name.startsWith(Constants.R_HEADS)
+					&& name.equals(head.getName()))
+				u.setResult(Result.REJECTED_CURRENT_BRANCH);
+			else
+				todo.add(u);
+		}
+		if (todo.isEmpty())
+			return;
+		if (atomic && todo.size() < commands.size()) {
+			abort(todo);
+			return;
+		}
+
+		final List<RefUpdate> ok = new ArrayList<RefUpdate>(todo.size());
+		lock(todo);
+		try {
+			for (final RefUpdate u : todo) {
+				if (u.getResult() == Result.LOCK_FAILURE)
+					continue;
+				Result status;
+				try {
+					status = u.check(walk);
+				} catch (IOException err) {
+					// Only this command is affected; the objects of the
+					// others may well be readable.
+					//
+					status = Result.IO_FAILURE;
+				}
+				u.setResult(status);
+				if (RefUpdate.isStorable(status))
+					ok.add(u);
+			}
+			if (atomic && ok.size() < todo.size()) {
+				abort(ok);
+				return;
+			}
+			store(ok);
+		} catch (IOException err) {
+			for (final RefUpdate u : ok)
+				u.setResult(Result.IO_FAILURE);
+			throw err;
+		} finally {
+			unlock();
+		}
+		getRepository().fireRefsMaybeChanged();
+	}
+
+	private static void abort(final List<RefUpdate> updates) {
+		for (final RefUpdate u : updates) {
+			final Result r = u.getResult();
+			if (r == Result.NOT_ATTEMPTED || RefUpdate.isStorable(r))
+				u.setResult(Result.ABORTED);
+		}
+	}
+
+	/**
+	 * @param u
+	 *            a command of the batch.
+	 * @return true if the command deletes its ref.
+	 */
+	static boolean isDelete(final RefUpdate u) {
+		final ObjectId id = u.getNewObjectId();
+		return id == null || ObjectId.zeroId().equals(id);
+	}
+
+	/**
+	 * Lock the refs of the commands.
+	 * <p>
+	 * Commands whose ref cannot be locked must be set to
+	 * {@link Result#LOCK_FAILURE}.
+	 *
+	 * @param updates
+	 *            the commands to lock.
+	 * @throws IOException
+	 *             a lock could not be created.
+	 */
+	abstract void lock(List<RefUpdate> updates) throws IOException;
+
+	/**
+	 * Write the commands which passed their merge test.
+	 * <p>
+	 * Every command holds the status to store it with. Commands whose status
+	 * is {@link Result#NO_CHANGE} and which do not delete their ref need not
+	 * be written.
+	 *
+	 * @param updates
+	 *            the commands to store.
+	 * @throws IOException
+	 *             the new values could not be written.
+	 */
+	abstract void store(List<RefUpdate> updates) throws IOException;
+
+	/** Release all locks taken by {@link #lock(List)}. */
+	abstract void unlock();
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevTree;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * Computes the set of objects reachable from some starting points as a bitmap.
+ * <p>
+ * Commits that have a bitmap stored in the {@link PackBitmapIndex} are not
+ * walked at all; their bitmap is merged into the result instead. Only commits
+ * newer than any bitmapped commit are parsed, and of their trees only those
+ * not already known to be reachable are read.
+ * <p>
+ * Objects outside of the bitmapped pack, such as recently created loose
+ * objects, have no bit position. They are reported separately, together with
+ * the hash of the path they were found at.
+ */
+final class BitmapWalker {
+	/** A reachable object that is not in the bitmapped pack. */
+	static final class Extra extends ObjectId {
+		final int type;
+
+		final int pathHash;
+
+		Extra(final AnyObjectId id, final int type, final int pathHash) {
+			super(id);
+			this.type = type;
+			this.pathHash = pathHash;
+		}
+	}
+
+	private final Repository db;
+
+	private final PackBitmapIndex index;
+
+	private final RevWalk walk;
+
+	private final WindowCursor curs = new WindowCursor();
+
+	private final MutableObjectId idBuffer = new MutableObjectId();
+
+	private final CanonicalTreeParser treeParser = new CanonicalTreeParser();
+
+	private EWAHBitmap result;
+
+	private ObjectIdSubclassMap<Extra> extrasSeen;
+
+	private List<Extra> extras;
+
+	/**
+	 * Create a walker for one bitmap index.
+	 *
+	 * @param db
+	 *            repository to read commits and trees from.
+	 * @param index
+	 *            the bitmaps to use, and the bit positions of the result.
+	 */
+	BitmapWalker(final Repository db, final PackBitmapIndex index) {
+		this.db = db;
+		this.index = index;
+		this.walk = new RevWalk(db);
+		this.walk.setRetainBody(false);
+	}
+
+	/**
+	 * Find all objects reachable from a set of objects.
+	 *
+	 * @param starts
+	 *            objects to start from. Annotated tags are included and peeled.
+	 * @param ignoreMissing
+	 *            true to skip starting points that do not exist, rather than
+	 *            throwing {@link MissingObjectException}.
+	 * @param outside
+	 *            receives the reachable objects that are not in the pack, in
+	 *            the order found. If null, every reachable object must be in
+	 *            the pack.
+	 * @return bitmap of the reachable objects in the pack.
+	 * @throws MissingObjectException
+	 *             a starting point or a reachable object does not exist.
+	 * @throws IOException
+	 *             an object could not be read, or <code>outside</code> is null
+	 *             and a reachable object is not in the pack.
+	 */
+	EWAHBitmap findReachable(final Collection<? extends AnyObjectId> starts,
+			final boolean ignoreMissing, final List<Extra> outside)
+			throws IOException {
+		result = new EWAHBitmap(index.getObjectCount());
+		extrasSeen = new ObjectIdSubclassMap<Extra>();
+		extras = outside;
+		try {
+			final List<RevCommit> commits = new ArrayList<RevCommit>();
+			final List<RevTree> trees = new ArrayList<RevTree>();
+			for (final AnyObjectId id : starts) {
+				RevObject o;
+				try {
+					o = walk.parseAny(id);
+				} catch (MissingObjectException notFound) {
+					if (ignoreMissing)
+						continue;
+					throw notFound;
+				}
+				while (o instanceof RevTag) {
+					mark(o, Constants.OBJ_TAG, null);
+					o = ((RevTag) o).getObject();
+					walk.parse(o);
+				}
+				if (o instanceof RevCommit)
+					commits.add((RevCommit) o);
+				else if (o instanceof RevTree)
+					trees.add((RevTree) o);
+				else
+					mark(o, o.getType(), null);
+			}
+
+			while (!commits.isEmpty()) {
+				final RevCommit c = commits.remove(commits.size() - 1);
+				if (isMarked(c))
+					continue;
+				final EWAHBitmap b = index.getBitmap(c);
+				if (b != null) {
+					result.or(b);
+					continue;
+				}
+
+				walk.parse(c);
+				mark(c, Constants.OBJ_COMMIT, null);
+				for (final RevCommit p : c.getParents()) {
+					if (!isMarked(p))
+						commits.add(p);
+				}
+				trees.add(c.getTree());
+			}
+
+			for (final RevTree t : trees)
+				markTree(t);
+			return result;
+		} finally {
+			result = null;
+			extrasSeen = null;
+			extras = null;
+			curs.release();
+		}
+	}
+
+	private void markTree(final RevTree tree) throws IOException {
+		if (!mark(tree, Constants.OBJ_TREE, null))
+			return;
+
+		CanonicalTreeParser p = treeParser.resetRoot(db, tree, curs);
+		while (!p.eof()) {
+			final FileMode mode = p.getEntryFileMode();
+			switch (mode.getObjectType()) {
+			case Constants.OBJ_BLOB:
+				p.getEntryObjectId(idBuffer);
+				mark(idBuffer, Constants.OBJ_BLOB, p);
+				break;
+			case Constants.OBJ_TREE:
+				p.getEntryObjectId(idBuffer);
+				if (mark(idBuffer, Constants.OBJ_TREE, p)) {
+					final CanonicalTreeParser sub;
+					sub = p.createSubtreeIterator(db, idBuffer, curs);
+					if (!sub.eof()) {
+						p = sub;
+						continue;
+					}
+				}
+				break;
+			default:
+				if (FileMode.GITLINK.equals(mode))
+					break;
+				p.getEntryObjectId(idBuffer);
+				throw new CorruptObjectException("Invalid mode " + mode
+						+ " for " + idBuffer.name() + " "
+						+ p.getEntryPathString() + " in " + tree + ".");
+			}
+			p = p.next();
+		}
+	}
+
+	private boolean isMarked(final AnyObjectId id) {
+		final int pos = index.findPosition(id);
+		if (pos >= 0)
+			return result.get(pos);
+		return extrasSeen.get(id) != null;
+	}
+
+	/**
+	 * Add an object to the result.
+	 *
+	 * @param id
+	 *            the object.
+	 * @param type
+	 *            type of the object.
+	 * @param p
+	 *            parser positioned on the object's tree entry; null if the
+	 *            object was not found in a tree.
+	 * @return true if the object was added; false if it was already present.
+	 * @throws IOException
+	 *             the object is not in the pack and no list was given to
+	 *             report such objects.
+	 */
+	private boolean mark(final AnyObjectId id, final int type,
+			final CanonicalTreeParser p) throws IOException {
+		final int pos = index.findPosition(id);
+		if (pos >= 0) {
+			if (result.get(pos))
+				return false;
+			result.set(pos);
+			return true;
+		}
+
+		if (extrasSeen.get(id) != null)
+			return false;
+		if (extras == null)
+			throw new IOException("Object " + id.name() + " is not in the pack");
+		final String path = p != null ? p.getEntryPathString() : null;
+		final Extra e = new Extra(id, type, PackWriter.pathHash(path));
+		extrasSeen.add(e);
+		extras.add(e);
+		return true;
+	}
+}
@@ -121,4 +121,13 @@ void ensureLoaded(final byte[] array) {
 			}
 		}
 	}
+
+	void abandon() {
+		synchronized (this) {
+			if (loaded)
+				return;
+			loaded = true;
+		}
+		WindowCache.markLoaded(this);
+	}
 }
\ No newline at end of file
@@ -56,13 +56,10 @@
  *            type of object reference used to manage the window data.
  */
 abstract class ByteWindow<T> extends SoftReference<T> {
-	boolean sizeActive = true;
-
 	ByteWindow<?> chainNext;
 
-	ByteWindow<?> lruPrev;
-
-	ByteWindow<?> lruNext;
+	/** Value of the cache's access clock when last used; for eviction. */
+	long lastAccessed;
 
 	final WindowedFile provider;
 
@@ -219,4 +216,14 @@ abstract void inflateVerify(T ref, int pos, Inflater inf)
 			throws DataFormatException;
 
 	abstract void ensureLoaded(T ref);
+
+	/**
+	 * Release any resources held because the window was never loaded.
+	 * <p>
+	 * Invoked by the cache when a freshly allocated window is discarded before
+	 * being handed out, because another thread cached the same window first.
+	 */
+	void abandon() {
+		// Do nothing by default.
+	}
 }
\ No newline at end of file
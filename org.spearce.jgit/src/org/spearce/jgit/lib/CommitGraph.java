@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Parents, trees and commit times of the commits in a repository.
+ * <p>
+ * The commit-graph file stores, for every commit it names, the commit's tree,
+ * the positions of its parents within the same file, its commit time and its
+ * generation number. A commit walk can obtain everything it needs to move from
+ * a commit to its parents with a binary search, instead of inflating and
+ * parsing the commit object.
+ * <p>
+ * The generation number of a commit without parents is 1; every other commit
+ * has a generation one larger than the largest generation of its parents. A
+ * commit can therefore only reach commits with a smaller generation than its
+ * own, allowing walks to stop as soon as no remaining commit can reach the
+ * commits they still look for.
+ * <p>
+ * The file is stored as <code>objects/info/commit-graph</code>, in the format
+ * written by C git.
+ *
+ * @see CommitGraphWriter
+ */
+public class CommitGraph {
+	/** Magic number at the start of a commit-graph file. */
+	static final byte[] MAGIC = { 'C', 'G', 'P', 'H' };
+
+	/** Chunk holding the 256 entry fan-out table. */
+	static final int CHUNK_OID_FANOUT = 0x4f494446;
+
+	/** Chunk holding the sorted commit names. */
+	static final int CHUNK_OID_LOOKUP = 0x4f49444c;
+
+	/** Chunk holding tree, parents, generation and time of every commit. */
+	static final int CHUNK_COMMIT_DATA = 0x43444154;
+
+	/** Chunk holding the additional parents of octopus merges. */
+	static final int CHUNK_EXTRA_EDGES = 0x45444745;
+
+	/** Width of a record in {@link #CHUNK_COMMIT_DATA}. */
+	static final int COMMIT_DATA_WIDTH = Constants.OBJECT_ID_LENGTH + 16;
+
+	/** Parent value used when the commit has no (second) parent. */
+	static final int PARENT_NONE = 0x70000000;
+
+	/** Bit marking an extra edge reference, or the last extra edge. */
+	static final int EDGE_LAST = 0x80000000;
+
+	/** Largest generation number the file format can hold. */
+	static final int GENERATION_MAX = 0x3fffffff;
+
+	/** Generation of a commit not known to the graph. */
+	public static final int GENERATION_UNKNOWN = 0;
+
+	/**
+	 * Open an existing commit-graph file for reading.
+	 *
+	 * @param graphFile
+	 *            the file to read.
+	 * @return access implementation for the file.
+	 * @throws IOException
+	 *             the file could not be read or is in an unknown format.
+	 */
+	public static CommitGraph open(final File graphFile) throws IOException {
+		final FileInputStream fd = new FileInputStream(graphFile);
+		try {
+			final long len = graphFile.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Commit graph too large");
+			final byte[] buf = new byte[(int) len];
+			NB.readFully(fd, buf, 0, buf.length);
+			return new CommitGraph(buf);
+		} catch (IOException ioe) {
+			final String path = graphFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable commit graph: " + path);
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+	}
+
+	private final byte[] buf;
+
+	private final int[] fanout;
+
+	private final int commitCount;
+
+	private final int oidLookup;
+
+	private final int commitData;
+
+	/** Offset of the extra edge list in {@link #buf}; -1 if none. */
+	private final int extraEdges;
+
+	private final int extraEdgesEnd;
+
+	CommitGraph(final byte[] buf) throws IOException {
+		this.buf = buf;
+
+		if (buf.length < 8 + Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Truncated commit graph");
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buf[i] != MAGIC[i])
+				throw new IOException("Not a commit graph");
+		final int version = buf[4] & 0xff;
+		if (version != 1)
+			throw new IOException("Unsupported commit graph version "
+					+ version);
+		final int hashVersion = buf[5] & 0xff;
+		if (hashVersion != 1)
+			throw new IOException("Unsupported commit graph hash version "
+					+ hashVersion);
+		final int chunkCount = buf[6] & 0xff;
+		if (buf[7] != 0)
+			throw new IOException("Split commit graphs are not supported");
+
+		final int end = buf.length - Constants.OBJECT_ID_LENGTH;
+		if (end < 8 + 12 * (chunkCount + 1))
+			throw new IOException("Truncated commit graph");
+		int fanoutPtr = -1;
+		int lookupPtr = -1;
+		int dataPtr = -1;
+		int edgePtr = -1;
+		int edgeEnd = -1;
+		for (int i = 0; i < chunkCount; i++) {
+			final int ptr = 8 + 12 * i;
+			final int id = NB.decodeInt32(buf, ptr);
+			final long start = NB.decodeUInt64(buf, ptr + 4);
+			final long next = NB.decodeUInt64(buf, ptr + 12 + 4);
+			if (start > next || next > end)
+				throw new IOException("Corrupt commit graph chunk table");
+			switch (id) {
+			case CHUNK_OID_FANOUT:
+				if (next - start != 256 * 4)
+					throw new IOException("Corrupt commit graph fan-out");
+				fanoutPtr = (int) start;
+				break;
+			case CHUNK_OID_LOOKUP:
+				lookupPtr = (int) start;
+				break;
+			case CHUNK_COMMIT_DATA:
+				dataPtr = (int) start;
+				break;
+			case CHUNK_EXTRA_EDGES:
+				edgePtr = (int) start;
+				edgeEnd = (int) next;
+				break;
+			default:
+				// Chunks we do not understand are optional.
+				break;
+			}
+		}
+		if (fanoutPtr < 0 || lookupPtr < 0 || dataPtr < 0)
+			throw new IOException("Commit graph lacks a required chunk");
+
+		fanout = new int[256];
+		for (int k = 0; k < 256; k++) {
+			fanout[k] = NB.decodeInt32(buf, fanoutPtr + 4 * k);
+			if (fanout[k] < 0 || (k > 0 && fanout[k] < fanout[k - 1]))
+				throw new IOException("Corrupt commit graph fan-out");
+		}
+		commitCount = fanout[255];
+		if (end < lookupPtr + (long) commitCount * Constants.OBJECT_ID_LENGTH
+				|| end < dataPtr + (long) commitCount * COMMIT_DATA_WIDTH)
+			throw new IOException("Truncated commit graph");
+		oidLookup = lookupPtr;
+		commitData = dataPtr;
+		extraEdges = edgePtr;
+		extraEdgesEnd = edgeEnd;
+	}
+
+	/** @return number of commits stored in the graph. */
+	public int getCommitCount() {
+		return commitCount;
+	}
+
+	/**
+	 * Find the position of a commit.
+	 *
+	 * @param id
+	 *            the commit to look for.
+	 * @return position of the commit; -1 if the graph does not have it.
+	 */
+	public int findPosition(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne > 0 ? fanout[levelOne - 1] : 0;
+		int high = fanout[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(buf, oidLookup + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Obtain the name of a commit.
+	 *
+	 * @param position
+	 *            position of the commit.
+	 * @param dst
+	 *            buffer to receive the commit's name.
+	 */
+	public void getObjectId(final int position, final MutableObjectId dst) {
+		dst.fromRaw(buf, oidLookup + position * Constants.OBJECT_ID_LENGTH);
+	}
+
+	/**
+	 * Obtain the root tree of a commit.
+	 *
+	 * @param position
+	 *            position of the commit.
+	 * @param dst
+	 *            buffer to receive the name of the commit's tree.
+	 */
+	public void getTree(final int position, final MutableObjectId dst) {
+		dst.fromRaw(buf, commitData + position * COMMIT_DATA_WIDTH);
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit.
+	 * @return number of parents of the commit.
+	 */
+	public int getParentCount(final int position) {
+		final int ptr = commitData + position * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH;
+		if (NB.decodeInt32(buf, ptr) == PARENT_NONE)
+			return 0;
+		final int p2 = NB.decodeInt32(buf, ptr + 4);
+		if (p2 == PARENT_NONE)
+			return 1;
+		if ((p2 & EDGE_LAST) == 0)
+			return 2;
+		int e = extraEdges + 4 * (p2 & ~EDGE_LAST);
+		int n = 2;
+		while (e < extraEdgesEnd && (NB.decodeInt32(buf, e) & EDGE_LAST) == 0) {
+			e += 4;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit.
+	 * @param nth
+	 *            parent index, in the range 0 through
+	 *            {@link #getParentCount(int)}-1.
+	 * @return position of the commit's nth parent.
+	 * @throws IOException
+	 *             the graph names a parent it does not contain.
+	 */
+	public int getParent(final int position, final int nth)
+			throws IOException {
+		final int ptr = commitData + position * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH;
+		final int p;
+		if (nth == 0)
+			p = NB.decodeInt32(buf, ptr);
+		else {
+			final int p2 = NB.decodeInt32(buf, ptr + 4);
+			if ((p2 & EDGE_LAST) == 0 && nth == 1)
+				p = p2;
+			else {
+				final int e = extraEdges + 4 * ((p2 & ~EDGE_LAST) + nth - 1);
+				if (extraEdges < 0 || e >= extraEdgesEnd)
+					throw new IOException("Corrupt commit graph edge list");
+				p = NB.decodeInt32(buf, e) & ~EDGE_LAST;
+			}
+		}
+		if (p < 0 || commitCount <= p)
+			throw new IOException("Corrupt commit graph parent " + p);
+		return p;
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit.
+	 * @return time from the commit's "committer " line, in seconds since the
+	 *         epoch.
+	 */
+	public long getCommitTime(final int position) {
+		final int ptr = commitData + position * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH + 8;
+		return ((NB.decodeUInt32(buf, ptr) & 3) << 32)
+				| NB.decodeUInt32(buf, ptr + 4);
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit.
+	 * @return generation number of the commit; {@link #GENERATION_UNKNOWN}
+	 *         if the writer did not compute one.
+	 */
+	public int getGeneration(final int position) {
+		final int ptr = commitData + position * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH + 8;
+		return NB.decodeInt32(buf, ptr) >>> 2;
+	}
+}
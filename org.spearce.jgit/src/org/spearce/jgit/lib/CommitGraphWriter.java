@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates commit-graph files.
+ * <p>
+ * The writer first collects every commit reachable from a set of tips with
+ * {@link #prepare(Collection)}, computing generation numbers as it goes, and
+ * then stores them with {@link #write(OutputStream)}. The result is usually
+ * installed as <code>objects/info/commit-graph</code>, where
+ * {@link Repository#getCommitGraph()} will find it.
+ *
+ * @see CommitGraph
+ */
+public class CommitGraphWriter {
+	/** Title of the progress monitor task while collecting commits. */
+	public static final String COUNTING_COMMITS_PROGRESS = "Counting commits";
+
+	private final Repository db;
+
+	private final ProgressMonitor monitor;
+
+	private final ObjectIdSubclassMap<Entry> entries;
+
+	private Entry[] sorted;
+
+	private int extraEdgeCount;
+
+	private final byte[] tmp = new byte[12];
+
+	/**
+	 * Create a writer for a repository.
+	 *
+	 * @param repo
+	 *            repository the commits are read from.
+	 * @param monitor
+	 *            progress of collecting the commits; may be
+	 *            {@link NullProgressMonitor#INSTANCE}.
+	 */
+	public CommitGraphWriter(final Repository repo,
+			final ProgressMonitor monitor) {
+		db = repo;
+		this.monitor = monitor;
+		entries = new ObjectIdSubclassMap<Entry>();
+	}
+
+	/**
+	 * Collect the commits reachable from a set of tips.
+	 * <p>
+	 * Annotated tags are peeled to the object they refer to; tips which are
+	 * not commits are ignored.
+	 *
+	 * @param tips
+	 *            objects to start from, usually the values of all references.
+	 * @throws MissingObjectException
+	 *             a tip or one of the commits it reaches does not exist.
+	 * @throws IOException
+	 *             an object could not be read.
+	 */
+	public void prepare(final Collection<? extends ObjectId> tips)
+			throws MissingObjectException, IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag)
+				o = rw.parseAny(((RevTag) o).getObject());
+			if (o instanceof RevCommit)
+				rw.markStart((RevCommit) o);
+		}
+
+		final List<Entry> list = new ArrayList<Entry>();
+		monitor.beginTask(COUNTING_COMMITS_PROGRESS, ProgressMonitor.UNKNOWN);
+		for (final RevCommit c : rw) {
+			// Parents come before their children in this order, so
+			// their generation numbers are already known.
+			//
+			int gen = 0;
+			for (final RevCommit p : c.getParents())
+				gen = Math.max(gen, entries.get(p).generation);
+			final Entry e = new Entry(c, Math.min(gen + 1,
+					CommitGraph.GENERATION_MAX));
+			entries.add(e);
+			list.add(e);
+			if (c.getParentCount() > 2)
+				extraEdgeCount += c.getParentCount() - 1;
+			monitor.update(1);
+		}
+		monitor.endTask();
+
+		sorted = list.toArray(new Entry[list.size()]);
+		Arrays.sort(sorted);
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i].position = i;
+	}
+
+	/** @return number of commits collected by {@link #prepare(Collection)}. */
+	public int getCommitCount() {
+		return sorted != null ? sorted.length : 0;
+	}
+
+	/**
+	 * Write the commit-graph file.
+	 * <p>
+	 * After writing the stream is flushed but remains open.
+	 *
+	 * @param dst
+	 *            the stream to write to. If the stream is not buffered it
+	 *            will be automatically wrapped in a buffered stream.
+	 * @throws IOException
+	 *             an error occurred while writing to the output stream.
+	 * @throws IllegalStateException
+	 *             {@link #prepare(Collection)} was not called first.
+	 */
+	public void write(final OutputStream dst) throws IOException {
+		if (sorted == null)
+			throw new IllegalStateException("Commits were not prepared");
+		final DigestOutputStream out = new DigestOutputStream(
+				dst instanceof BufferedOutputStream ? dst
+						: new BufferedOutputStream(dst), Constants
+						.newMessageDigest());
+		final int n = sorted.length;
+		final int chunkCount = extraEdgeCount > 0 ? 4 : 3;
+
+		out.write(CommitGraph.MAGIC);
+		tmp[0] = 1; // version
+		tmp[1] = 1; // SHA-1
+		tmp[2] = (byte) chunkCount;
+		tmp[3] = 0; // no base graphs
+		out.write(tmp, 0, 4);
+
+		long ptr = 8 + 12 * (chunkCount + 1);
+		ptr = writeChunkHeader(out, CommitGraph.CHUNK_OID_FANOUT, ptr, 256 * 4);
+		ptr = writeChunkHeader(out, CommitGraph.CHUNK_OID_LOOKUP, ptr,
+				(long) n * Constants.OBJECT_ID_LENGTH);
+		ptr = writeChunkHeader(out, CommitGraph.CHUNK_COMMIT_DATA, ptr,
+				(long) n * CommitGraph.COMMIT_DATA_WIDTH);
+		if (extraEdgeCount > 0)
+			ptr = writeChunkHeader(out, CommitGraph.CHUNK_EXTRA_EDGES, ptr,
+					4L * extraEdgeCount);
+		writeChunkHeader(out, 0, ptr, 0);
+
+		final int[] fanout = new int[256];
+		for (final Entry e : sorted)
+			fanout[e.getFirstByte()]++;
+		for (int k = 1; k < 256; k++)
+			fanout[k] += fanout[k - 1];
+		for (int k = 0; k < 256; k++) {
+			NB.encodeInt32(tmp, 0, fanout[k]);
+			out.write(tmp, 0, 4);
+		}
+
+		for (final Entry e : sorted)
+			e.copyRawTo(out);
+
+		int edge = 0;
+		for (final Entry e : sorted) {
+			final RevCommit c = e.commit;
+			final RevCommit[] parents = c.getParents();
+			c.getTree().copyRawTo(out);
+			NB.encodeInt32(tmp, 0, parents.length > 0 ? position(parents[0])
+					: CommitGraph.PARENT_NONE);
+			if (parents.length == 2)
+				NB.encodeInt32(tmp, 4, position(parents[1]));
+			else if (parents.length > 2) {
+				NB.encodeInt32(tmp, 4, CommitGraph.EDGE_LAST | edge);
+				edge += parents.length - 1;
+			} else
+				NB.encodeInt32(tmp, 4, CommitGraph.PARENT_NONE);
+			final long when = c.getCommitTime() & 0xffffffffL;
+			NB.encodeInt32(tmp, 8, e.generation << 2 | (int) (when >>> 32));
+			out.write(tmp, 0, 12);
+			NB.encodeInt32(tmp, 0, (int) when);
+			out.write(tmp, 0, 4);
+		}
+
+		for (final Entry e : sorted) {
+			final RevCommit[] parents = e.commit.getParents();
+			if (parents.length <= 2)
+				continue;
+			for (int i = 1; i < parents.length; i++) {
+				int p = position(parents[i]);
+				if (i == parents.length - 1)
+					p |= CommitGraph.EDGE_LAST;
+				NB.encodeInt32(tmp, 0, p);
+				out.write(tmp, 0, 4);
+			}
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private long writeChunkHeader(final OutputStream out, final int id,
+			final long ptr, final long len) throws IOException {
+		NB.encodeInt32(tmp, 0, id);
+		NB.encodeInt64(tmp, 4, ptr);
+		out.write(tmp, 0, 12);
+		return ptr + len;
+	}
+
+	private int position(final RevCommit c) {
+		return entries.get(c).position;
+	}
+
+	private static final class Entry extends ObjectId {
+		final RevCommit commit;
+
+		final int generation;
+
+		int position;
+
+		Entry(final RevCommit c, final int generation) {
+			super(c);
+			this.commit = c;
+			this.generation = generation;
+		}
+	}
+}
@@ -40,6 +40,8 @@
 
 import java.util.zip.Deflater;
 
+import org.spearce.jgit.transport.IndexPack;
+
 /**
  * This class keeps git repository core parameters.
  */
@@ -51,9 +53,34 @@ public class CoreConfig {
 
 	private final int packIndexVersion;
 
+	private final int packWindow;
+
+	private final int packDepth;
+
+	private final int packWindowMemory;
+
+	private final int packThreads;
+
+	private final boolean packUseBitmaps;
+
+	private final boolean commitGraph;
+
+	private final boolean multiPackIndex;
+
+	private final int deltaBaseCacheLimit;
+
 	CoreConfig(final RepositoryConfig rc) {
 		compression = rc.getInt("core", "compression", DEFAULT_COMPRESSION);
 		packIndexVersion = rc.getInt("pack", "indexversion", DEFAULT_INDEXVERSION);
+		packWindow = rc.getInt("pack", "window", PackWriter.DEFAULT_DELTA_SEARCH_WINDOW_SIZE);
+		packDepth = rc.getInt("pack", "depth", PackWriter.DEFAULT_MAX_DELTA_DEPTH);
+		packWindowMemory = rc.getInt("pack", "windowmemory", 0);
+		packThreads = rc.getInt("pack", "threads", PackWriter.DEFAULT_THREADS);
+		packUseBitmaps = rc.getBoolean("pack", "usebitmaps", PackWriter.DEFAULT_USE_BITMAPS);
+		commitGraph = rc.getBoolean("core", "commitgraph", true);
+		multiPackIndex = rc.getBoolean("core", "multipackindex", true);
+		deltaBaseCacheLimit = rc.getInt("core", "deltabasecachelimit",
+				IndexPack.DEFAULT_DELTA_BASE_CACHE_LIMIT);
 	}
 
 	/**
@@ -71,4 +98,71 @@ public int getCompression() {
 	public int getPackIndexVersion() {
 		return packIndexVersion;
 	}
+
+	/**
+	 * @return number of objects searched for a delta base; 0 disables the
+	 *         search for new deltas.
+	 * @see PackWriter
+	 */
+	public int getPackWindow() {
+		return packWindow;
+	}
+
+	/**
+	 * @return maximum length of a delta chain written to a pack.
+	 * @see PackWriter
+	 */
+	public int getPackDepth() {
+		return packDepth;
+	}
+
+	/**
+	 * @return bytes all delta search windows may hold together; 0 for no
+	 *         limit.
+	 * @see PackWriter
+	 */
+	public int getPackWindowMemory() {
+		return packWindowMemory;
+	}
+
+	/**
+	 * @return number of threads searching for deltas; 0 for one per
+	 *         processor.
+	 * @see PackWriter
+	 */
+	public int getPackThreads() {
+		return packThreads;
+	}
+
+	/**
+	 * @return true if reachability bitmaps should be used to count objects.
+	 * @see PackWriter
+	 */
+	public boolean isPackUseBitmaps() {
+		return packUseBitmaps;
+	}
+
+	/**
+	 * @return true if commit walks may read the commit-graph file.
+	 * @see Repository#getCommitGraph()
+	 */
+	public boolean isCommitGraph() {
+		return commitGraph;
+	}
+
+	/**
+	 * @return true if object lookups may use the multi-pack index file.
+	 * @see MultiPackIndex
+	 */
+	public boolean isMultiPackIndex() {
+		return multiPackIndex;
+	}
+
+	/**
+	 * @return bytes of delta bases kept in memory while indexing a pack.
+	 * @see IndexPack
+	 */
+	public int getDeltaBaseCacheLimit() {
+		return deltaBaseCacheLimit;
+	}
 }
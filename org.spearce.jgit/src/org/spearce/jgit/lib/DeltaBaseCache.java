@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2008, Shawn O. Pearce <spearce@spearce.org>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches inflated objects read from packs, so delta chains need not be
+ * inflated again from their base each time they are read.
+ * <p>
+ * Entries are keyed by the (pack, offset) pair and held through strong
+ * references, bounded by the total size of the cached objects. Like
+ * {@link WindowCache} the cache is a hash table of independently locked
+ * buckets, and eviction is an approximate LRU: the evicting thread samples
+ * a small run of buckets starting at a pseudo-random position and discards
+ * the least recently accessed object it saw.
+ */
+public class DeltaBaseCache {
+	private static final int MB = 1024 * 1024;
+
+	/** Number of hash chains; entries are chained, so this is not a limit. */
+	private static final int TABLE_SIZE = 1024;
+
+	/** Number of cached objects to consider when choosing a victim. */
+	private static final int EVICT_SAMPLE = 16;
+
+	/** Stride added to the eviction hand; spreads samples over the table. */
+	private static final int EVICT_STRIDE = 0x9e3779b9;
+
+	private static volatile int maxByteCount;
+
+	private static final Bucket[] table;
+
+	private static final AtomicLong openByteCount;
+
+	private static final AtomicLong clock;
+
+	private static final AtomicInteger evictHand;
+
+	private static final AtomicLong hits;
+
+	private static final AtomicLong misses;
+
+	private static final AtomicLong evictions;
+
+	static {
+		maxByteCount = 10 * MB;
+		table = new Bucket[TABLE_SIZE];
+		for (int i = 0; i < TABLE_SIZE; i++)
+			table[i] = new Bucket();
+		openByteCount = new AtomicLong();
+		clock = new AtomicLong();
+		evictHand = new AtomicInteger();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/** @return number of lookups which found the object in the cache. */
+	public static long getHitCount() {
+		return hits.get();
+	}
+
+	/** @return number of lookups which did not find the object. */
+	public static long getMissCount() {
+		return misses.get();
+	}
+
+	/** @return number of objects discarded to stay within the limit. */
+	public static long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** @return total bytes of the objects currently cached. */
+	public static long getOpenByteCount() {
+		return openByteCount.get();
+	}
+
+	static void reconfigure(final int dbLimit) {
+		maxByteCount = dbLimit;
+		releaseMemory();
+	}
+
+	private static Bucket bucket(final WindowedFile pack, final long position) {
+		final int h = (pack.hash + (int) (position ^ (position >>> 32)))
+				* EVICT_STRIDE;
+		return table[(h >>> 1) % TABLE_SIZE];
+	}
+
+	static Entry get(final WindowedFile pack, final long position) {
+		final Bucket b = bucket(pack, position);
+		synchronized (b) {
+			for (Entry e = b.head; e != null; e = e.chainNext) {
+				if (e.provider == pack && e.position == position) {
+					e.lastAccessed = clock.incrementAndGet();
+					hits.incrementAndGet();
+					return e;
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	static void store(final WindowedFile pack, final long position,
+			final byte[] data, final int objectType) {
+		if (data.length > maxByteCount)
+			return; // Too large to cache.
+
+		final Bucket b = bucket(pack, position);
+		synchronized (b) {
+			for (Entry e = b.head; e != null; e = e.chainNext) {
+				if (e.provider == pack && e.position == position) {
+					e.lastAccessed = clock.incrementAndGet();
+					return;
+				}
+			}
+			final Entry e = new Entry(pack, position, data, objectType);
+			e.lastAccessed = clock.incrementAndGet();
+			e.chainNext = b.head;
+			b.head = e;
+		}
+		openByteCount.addAndGet(data.length);
+		releaseMemory();
+	}
+
+	private static void releaseMemory() {
+		while (openByteCount.get() > maxByteCount) {
+			if (!evictOne())
+				break;
+		}
+	}
+
+	private static boolean evictOne() {
+		int idx = (evictHand.getAndAdd(EVICT_STRIDE) >>> 1) % TABLE_SIZE;
+
+		Bucket victimBucket = null;
+		Entry victim = null;
+		long victimTime = Long.MAX_VALUE;
+		int seen = 0;
+
+		for (int scanned = 0; scanned < TABLE_SIZE && seen < EVICT_SAMPLE;
+				scanned++) {
+			final Bucket b = table[idx];
+			synchronized (b) {
+				for (Entry e = b.head; e != null; e = e.chainNext) {
+					if (e.lastAccessed < victimTime) {
+						victimBucket = b;
+						victim = e;
+						victimTime = e.lastAccessed;
+					}
+					seen++;
+				}
+			}
+			if (++idx == TABLE_SIZE)
+				idx = 0;
+		}
+
+		if (victim == null)
+			return false;
+
+		final boolean removed;
+		synchronized (victimBucket) {
+			removed = victimBucket.remove(victim);
+		}
+		if (removed) {
+			openByteCount.addAndGet(-victim.data.length);
+			evictions.incrementAndGet();
+		}
+
+		// If the victim vanished another thread removed it, which
+		// also reduced the open byte count. Let the caller re-test.
+		//
+		return true;
+	}
+
+	static void purge(final WindowedFile file) {
+		for (final Bucket b : table) {
+			long freed = 0;
+			synchronized (b) {
+				Entry e = b.head, p = null;
+				for (; e != null; e = e.chainNext) {
+					if (e.provider == file) {
+						if (p == null)
+							b.head = e.chainNext;
+						else
+							p.chainNext = e.chainNext;
+						freed += e.data.length;
+					} else
+						p = e;
+				}
+			}
+			if (freed > 0)
+				openByteCount.addAndGet(-freed);
+		}
+	}
+
+	private DeltaBaseCache() {
+		throw new UnsupportedOperationException();
+	}
+
+	static class Entry {
+		final WindowedFile provider;
+
+		final long position;
+
+		final byte[] data;
+
+		final int type;
+
+		/** Guarded by the monitor of the bucket holding the entry. */
+		Entry chainNext;
+
+		/** Guarded by the monitor of the bucket holding the entry. */
+		long lastAccessed;
+
+		Entry(final WindowedFile provider, final long position,
+				final byte[] aData, final int aType) {
+			this.provider = provider;
+			this.position = position;
+			data = aData;
+			type = aType;
+		}
+	}
+
+	/** One hash chain of the cache, and the lock protecting it. */
+	private static final class Bucket {
+		Entry head;
+
+		boolean remove(final Entry dead) {
+			Entry e = head, p = null;
+			for (; e != null; p = e, e = e.chainNext) {
+				if (e == dead) {
+					if (p == null)
+						head = e.chainNext;
+					else
+						p.chainNext = e.chainNext;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
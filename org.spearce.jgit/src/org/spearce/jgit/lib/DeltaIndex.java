@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Index of a delta base, able to encode a target as a git pack delta.
+ * <p>
+ * The base is split into blocks of {@link #BLKSZ} bytes and every block is
+ * recorded in a hash table under a hash of its content. Encoding a target
+ * slides a rolling hash of the same width over it; whenever the hash names a
+ * base block with identical content the match is extended as far as possible
+ * in both directions and emitted as a copy instruction. Everything else is
+ * emitted as literal inserts.
+ * <p>
+ * The output is the format understood by {@link BinaryDelta#apply(byte[],
+ * byte[])}: the base and result lengths as variable length integers,
+ * followed by copy and insert instructions.
+ */
+final class DeltaIndex {
+	/** Number of bytes hashed together to find a matching block. */
+	static final int BLKSZ = 16;
+
+	/** Longest run of same-hash blocks examined for a single position. */
+	private static final int MAX_CHAIN = 64;
+
+	/** Largest copy a single instruction may describe. */
+	private static final int MAX_COPY = 0x10000;
+
+	/** Largest insert a single instruction may describe. */
+	private static final int MAX_INSERT = 0x7f;
+
+	private static final int P = 0x01000193;
+
+	/** P raised to the power BLKSZ - 1; used to roll a byte out. */
+	private static final int P_OUT;
+
+	static {
+		int p = 1;
+		for (int i = 1; i < BLKSZ; i++)
+			p *= P;
+		P_OUT = p;
+	}
+
+	private static int tableSize(final int blocks) {
+		int sz = 16;
+		while (sz < blocks && sz < (1 << 30))
+			sz <<= 1;
+		return sz;
+	}
+
+	private static int hash(final byte[] raw, final int ptr) {
+		int h = 0;
+		for (int i = 0; i < BLKSZ; i++)
+			h = h * P + (raw[ptr + i] & 0xff);
+		return h;
+	}
+
+	private static int roll(final int h, final byte out, final byte in) {
+		return (h - (out & 0xff) * P_OUT) * P + (in & 0xff);
+	}
+
+	private final byte[] src;
+
+	private final int tableMask;
+
+	/** Head of each bucket; block number plus one, 0 for empty. */
+	private final int[] table;
+
+	/** Next block (plus one) in the same bucket, by block number. */
+	private final int[] next;
+
+	/** Full hash of each block, to reject bucket collisions cheaply. */
+	private final int[] blockHash;
+
+	/**
+	 * Construct an index for the given base.
+	 *
+	 * @param base
+	 *            the data that deltas will be made against. The array is
+	 *            retained and must not be modified while the index is in use.
+	 */
+	DeltaIndex(final byte[] base) {
+		src = base;
+
+		final int blocks = base.length / BLKSZ;
+		table = new int[tableSize(blocks)];
+		tableMask = table.length - 1;
+		next = new int[blocks];
+		blockHash = new int[blocks];
+
+		// Insert from the end so earlier blocks are found first.
+		//
+		for (int b = blocks - 1; b >= 0; b--) {
+			final int h = hash(base, b * BLKSZ);
+			final int idx = bucket(h);
+			blockHash[b] = h;
+			next[b] = table[idx];
+			table[idx] = b + 1;
+		}
+	}
+
+	/** @return the base this index describes. */
+	byte[] getBase() {
+		return src;
+	}
+
+	/** @return approximate number of bytes of heap used by the index. */
+	long getIndexSize() {
+		long sz = 4L * (table.length + next.length + blockHash.length);
+		return sz + 3 * 16 + 32;
+	}
+
+	private int bucket(final int h) {
+		return (h ^ (h >>> 12) ^ (h >>> 24)) & tableMask;
+	}
+
+	/**
+	 * Create a delta that transforms the base into the result.
+	 *
+	 * @param res
+	 *            the data to encode.
+	 * @param limit
+	 *            maximum number of bytes the delta may occupy; encoding stops
+	 *            as soon as this is exceeded. Use {@link Integer#MAX_VALUE}
+	 *            for no limit.
+	 * @return the delta; null if it would be larger than <code>limit</code>.
+	 */
+	byte[] encode(final byte[] res, final int limit) {
+		final Encoder out = new Encoder(limit);
+		if (!out.header(src.length) || !out.header(res.length))
+			return null;
+
+		final int end = res.length - BLKSZ;
+		int anchor = 0;
+		int pos = 0;
+		int h = 0 <= end && next.length > 0 ? hash(res, 0) : 0;
+
+		while (pos <= end && next.length > 0) {
+			int bestLen = 0;
+			int bestSrc = 0;
+			int chain = 0;
+			for (int b = table[bucket(h)]; b != 0 && chain < MAX_CHAIN; b = next[b - 1]) {
+				chain++;
+				if (blockHash[b - 1] != h)
+					continue;
+				final int s = (b - 1) * BLKSZ;
+				final int len = matchForward(s, res, pos);
+				if (len > bestLen) {
+					bestLen = len;
+					bestSrc = s;
+				}
+			}
+
+			if (bestLen < BLKSZ) {
+				if (pos < end)
+					h = roll(h, res[pos], res[pos + BLKSZ]);
+				pos++;
+				continue;
+			}
+
+			// Pull any bytes preceding the match back out of the
+			// pending insert if they also appear in the base.
+			//
+			while (anchor < pos && 0 < bestSrc
+					&& src[bestSrc - 1] == res[pos - 1]) {
+				bestSrc--;
+				pos--;
+				bestLen++;
+			}
+
+			if (!out.insert(res, anchor, pos) || !out.copy(bestSrc, bestLen))
+				return null;
+			pos += bestLen;
+			anchor = pos;
+			if (pos <= end)
+				h = hash(res, pos);
+		}
+
+		if (!out.insert(res, anchor, res.length))
+			return null;
+		return out.toByteArray();
+	}
+
+	private int matchForward(int s, final byte[] res, int r) {
+		final int start = r;
+		while (s < src.length && r < res.length && src[s] == res[r]) {
+			s++;
+			r++;
+		}
+		return r - start;
+	}
+
+	private static final class Encoder {
+		private final int limit;
+
+		private byte[] buf;
+
+		private int cnt;
+
+		Encoder(final int limit) {
+			this.limit = limit;
+			buf = new byte[256];
+		}
+
+		boolean header(int len) {
+			while (0x80 <= len) {
+				if (!put(0x80 | (len & 0x7f)))
+					return false;
+				len >>>= 7;
+			}
+			return put(len);
+		}
+
+		boolean insert(final byte[] res, int ptr, final int end) {
+			while (ptr < end) {
+				final int n = Math.min(end - ptr, MAX_INSERT);
+				if (!ensure(1 + n))
+					return false;
+				buf[cnt++] = (byte) n;
+				System.arraycopy(res, ptr, buf, cnt, n);
+				cnt += n;
+				ptr += n;
+			}
+			return true;
+		}
+
+		boolean copy(int offset, int len) {
+			while (0 < len) {
+				final int n = Math.min(len, MAX_COPY);
+
+				// A size of 0x10000 is encoded by omitting all size bytes.
+				//
+				final int size = n == MAX_COPY ? 0 : n;
+				int cmd = 0x80;
+				int need = 1;
+				for (int i = 0; i < 4; i++) {
+					if (((offset >>> (8 * i)) & 0xff) != 0) {
+						cmd |= 1 << i;
+						need++;
+					}
+				}
+				for (int i = 0; i < 2; i++) {
+					if (((size >>> (8 * i)) & 0xff) != 0) {
+						cmd |= 0x10 << i;
+						need++;
+					}
+				}
+				if (!ensure(need))
+					return false;
+
+				buf[cnt++] = (byte) cmd;
+				for (int i = 0; i < 4; i++) {
+					if ((cmd & (1 << i)) != 0)
+						buf[cnt++] = (byte) (offset >>> (8 * i));
+				}
+				for (int i = 0; i < 2; i++) {
+					if ((cmd & (0x10 << i)) != 0)
+						buf[cnt++] = (byte) (size >>> (8 * i));
+				}
+
+				offset += n;
+				len -= n;
+			}
+			return true;
+		}
+
+		private boolean put(final int b) {
+			if (!ensure(1))
+				return false;
+			buf[cnt++] = (byte) b;
+			return true;
+		}
+
+		private boolean ensure(final int n) {
+			if (limit < cnt + n)
+				return false;
+			if (buf.length < cnt + n) {
+				final byte[] nb = new byte[Math.max(buf.length * 2, cnt + n)];
+				System.arraycopy(buf, 0, nb, 0, cnt);
+				buf = nb;
+			}
+			return true;
+		}
+
+		byte[] toByteArray() {
+			final byte[] r = new byte[cnt];
+			System.arraycopy(buf, 0, r, 0, cnt);
+			return r;
+		}
+	}
+}
@@ -53,17 +53,27 @@ abstract class DeltaPackedObjectLoader extends PackedObjectLoader {
 			final long dataOffset, final long objectOffset, final int deltaSz) {
 		super(curs, pr, dataOffset, objectOffset);
 		objectType = -1;
+		objectSize = -1;
 		deltaSize = deltaSz;
 	}
 
 	public int getType() throws IOException {
-		if (objectType < 0)
-			getCachedBytes();
+		if (objectType < 0) {
+			// The type is that of the chain's last base. Reading the
+			// headers down the chain is much cheaper than inflating
+			// and applying every delta on it.
+			//
+			PackedObjectLoader base = getBaseLoader();
+			while (base instanceof DeltaPackedObjectLoader
+					&& base.objectType < 0)
+				base = ((DeltaPackedObjectLoader) base).getBaseLoader();
+			objectType = base.getType();
+		}
 		return objectType;
 	}
 
 	public long getSize() throws IOException {
-		if (objectType < 0)
+		if (objectSize < 0)
 			getCachedBytes();
 		return objectSize;
 	}
@@ -71,7 +81,7 @@ public long getSize() throws IOException {
 	@Override
 	public byte[] getCachedBytes() throws IOException {
 		if (objectType != OBJ_COMMIT) {
-			final UnpackedObjectCache.Entry cache = pack.readCache(dataOffset);
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
 			if (cache != null) {
 				curs.release();
 				objectType = cache.type;
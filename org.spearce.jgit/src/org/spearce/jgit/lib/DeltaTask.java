@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+
+/**
+ * A contiguous range of the delta search list, processed by one thread.
+ * <p>
+ * The sorted object list is split into one task per thread, each ending on a
+ * path boundary so that objects likely to delta against each other stay in
+ * the same task. A thread that finishes its own task early steals the upper
+ * half of the task with the most work left, so all threads stay busy until
+ * the end of the search.
+ */
+final class DeltaTask {
+	/** State shared by all tasks of a single delta search. */
+	static final class Block {
+		final Repository db;
+
+		final ObjectToPack[] list;
+
+		final int windowSize;
+
+		final int maxDepth;
+
+		final int compressionLevel;
+
+		final long memoryLimit;
+
+		final AtomicLong memoryUsed = new AtomicLong();
+
+		private final ProgressMonitor monitor;
+
+		private final List<DeltaTask> tasks = new ArrayList<DeltaTask>();
+
+		private Throwable failure;
+
+		private volatile boolean stopped;
+
+		/**
+		 * Create the shared state of a search.
+		 *
+		 * @param db
+		 *            repository to read object contents from.
+		 * @param list
+		 *            objects to search, sorted by
+		 *            {@link DeltaWindow#SEARCH_ORDER}.
+		 * @param windowSize
+		 *            number of objects in each thread's window.
+		 * @param maxDepth
+		 *            maximum length of a delta chain.
+		 * @param compressionLevel
+		 *            level to compress found deltas at.
+		 * @param memoryLimit
+		 *            bytes all windows together may hold; 0 for no limit.
+		 * @param monitor
+		 *            progress monitor, updated once per object. Calls are
+		 *            serialized by this block.
+		 */
+		Block(final Repository db, final ObjectToPack[] list,
+				final int windowSize, final int maxDepth,
+				final int compressionLevel, final long memoryLimit,
+				final ProgressMonitor monitor) {
+			this.db = db;
+			this.list = list;
+			this.windowSize = windowSize;
+			this.maxDepth = maxDepth;
+			this.compressionLevel = compressionLevel;
+			this.memoryLimit = memoryLimit;
+			this.monitor = monitor;
+		}
+
+		/**
+		 * Search the entire list for deltas.
+		 * <p>
+		 * Lists too small to be worth splitting are searched in the calling
+		 * thread, as is everything if <code>threads</code> is 1.
+		 *
+		 * @param threads
+		 *            maximum number of threads to search with.
+		 * @throws IOException
+		 *             an object could not be read, or the search was
+		 *             cancelled or interrupted.
+		 */
+		void search(int threads) throws IOException {
+			threads = Math.min(threads, list.length / minSplit());
+			if (threads <= 1) {
+				new DeltaTask(this, 0, list.length).run();
+				return;
+			}
+
+			int start = 0;
+			for (int i = 0; i < threads; i++) {
+				final int want = (list.length - start) / (threads - i);
+				final int end = boundary(start + want, list.length);
+				if (start < end)
+					tasks.add(new DeltaTask(this, start, end));
+				start = end;
+			}
+
+			final Thread[] workers = new Thread[tasks.size()];
+			for (int i = 0; i < workers.length; i++) {
+				final DeltaTask task = tasks.get(i);
+				workers[i] = new Thread("PackWriter-DeltaSearch-" + i) {
+					public void run() {
+						try {
+							task.run();
+						} catch (Throwable err) {
+							fail(err);
+						}
+					}
+				};
+				workers[i].setDaemon(true);
+			}
+			for (final Thread w : workers)
+				w.start();
+
+			boolean interrupted = false;
+			for (final Thread w : workers) {
+				for (;;) {
+					try {
+						w.join();
+						break;
+					} catch (InterruptedException ie) {
+						interrupted = true;
+						stopped = true;
+					}
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Delta search interrupted");
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			if (failure != null) {
+				final IOException e = new IOException("Delta search failed");
+				e.initCause(failure);
+				throw e;
+			}
+		}
+
+		private int minSplit() {
+			return Math.max(2 * windowSize, 2);
+		}
+
+		/**
+		 * Move a split point forward to the start of the next path.
+		 *
+		 * @param pos
+		 *            proposed split point.
+		 * @param end
+		 *            end of the range being split.
+		 * @return the first index at or after <code>pos</code> whose object
+		 *         has a different type or path than its predecessor;
+		 *         <code>end</code> if there is none.
+		 */
+		int boundary(int pos, final int end) {
+			if (pos <= 0)
+				return 0;
+			while (pos < end && samePath(list[pos - 1], list[pos]))
+				pos++;
+			return Math.min(pos, end);
+		}
+
+		private static boolean samePath(final ObjectToPack a,
+				final ObjectToPack b) {
+			return a.getType() == b.getType()
+					&& (a.getPathHash() >>> 1) == (b.getPathHash() >>> 1);
+		}
+
+		/** @return more work for a thread whose task is done; null if none. */
+		synchronized DeltaTask steal() {
+			if (stopped)
+				return null;
+			DeltaTask victim = null;
+			int most = 0;
+			for (final DeltaTask t : tasks) {
+				final int r = t.remaining();
+				if (r > most) {
+					victim = t;
+					most = r;
+				}
+			}
+			if (victim == null || most < minSplit())
+				return null;
+			final DeltaTask t = victim.split();
+			if (t != null)
+				tasks.add(t);
+			return t;
+		}
+
+		synchronized void fail(final Throwable err) {
+			if (failure == null)
+				failure = err;
+			stopped = true;
+		}
+
+		boolean isStopped() {
+			return stopped;
+		}
+
+		boolean isCancelled() {
+			synchronized (monitor) {
+				return monitor.isCancelled();
+			}
+		}
+
+		void update(final int completed) {
+			synchronized (monitor) {
+				monitor.update(completed);
+			}
+		}
+	}
+
+	private final Block block;
+
+	/** Next object of the list to search. */
+	private int next;
+
+	/** One past the last object of the list this task owns. */
+	private int end;
+
+	DeltaTask(final Block block, final int start, final int end) {
+		this.block = block;
+		this.next = start;
+		this.end = end;
+	}
+
+	/**
+	 * Search this task's objects, then keep stealing work from others.
+	 *
+	 * @throws IOException
+	 *             an object could not be read, or the search was cancelled.
+	 */
+	void run() throws IOException {
+		final WindowCursor curs = new WindowCursor();
+		final DeltaWindow window = new DeltaWindow(block.db, curs,
+				block.windowSize, block.maxDepth, block.compressionLevel,
+				block.memoryUsed, block.memoryLimit);
+		try {
+			for (DeltaTask t = this; t != null; t = block.steal()) {
+				ObjectToPack otp;
+				while ((otp = t.nextObject()) != null) {
+					if (block.isStopped())
+						return;
+					if (block.isCancelled())
+						throw new IOException(
+								"Packing cancelled during delta search");
+					final DeltaWindow.Result r = window.search(otp);
+					if (r != null)
+						otp.setCachedDelta(r.base, r.delta, r.compressed);
+					block.update(1);
+				}
+
+				// The next range is unrelated to what the window holds.
+				//
+				window.clear();
+			}
+		} finally {
+			window.release();
+			curs.release();
+		}
+	}
+
+	private synchronized ObjectToPack nextObject() {
+		return next < end ? block.list[next++] : null;
+	}
+
+	private synchronized int remaining() {
+		return end - next;
+	}
+
+	/**
+	 * Give away the upper half of the remaining work.
+	 *
+	 * @return a task for the upper half; null if no path boundary was found
+	 *         to split at.
+	 */
+	private synchronized DeltaTask split() {
+		final int mid = block.boundary(next + (end - next) / 2, end);
+		if (mid <= next || end <= mid)
+			return null;
+		final DeltaTask t = new DeltaTask(block, mid, end);
+		end = mid;
+		return t;
+	}
+}
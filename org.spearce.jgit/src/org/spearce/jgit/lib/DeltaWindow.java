@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+
+/**
+ * Sliding window of recent objects, searched for the best delta base.
+ * <p>
+ * Objects must be presented in {@link #SEARCH_ORDER}, which places objects of
+ * the same type and path name next to each other, largest first. Each object
+ * is compared against the objects still in the window and then becomes part
+ * of the window itself, pushing out the oldest entry.
+ * <p>
+ * A window is used by only one thread at a time. Several windows may share a
+ * memory budget; when the budget is exceeded each window discards the content
+ * of its own oldest entries, which are then no longer used as bases.
+ */
+final class DeltaWindow {
+	/** Order objects must be searched in: type, path hash, size descending. */
+	static final Comparator<ObjectToPack> SEARCH_ORDER = new Comparator<ObjectToPack>() {
+		public int compare(final ObjectToPack a, final ObjectToPack b) {
+			int cmp = a.getType() - b.getType();
+			if (cmp != 0)
+				return cmp;
+
+			final int ah = a.getPathHash() >>> 1;
+			final int bh = b.getPathHash() >>> 1;
+			if (ah != bh)
+				return ah < bh ? -1 : 1;
+
+			cmp = b.getWeight() - a.getWeight();
+			if (cmp != 0)
+				return cmp;
+			return a.compareTo(b);
+		}
+	};
+
+	/** Result of a successful search. */
+	static final class Result {
+		/** The object the delta applies to. */
+		final ObjectToPack base;
+
+		/** The delta, uncompressed. */
+		final byte[] delta;
+
+		/** The delta, compressed as it should appear in the pack. */
+		final byte[] compressed;
+
+		Result(final ObjectToPack base, final byte[] delta,
+				final byte[] compressed) {
+			this.base = base;
+			this.delta = delta;
+			this.compressed = compressed;
+		}
+	}
+
+	private final Repository db;
+
+	private final WindowCursor curs;
+
+	private final int maxDepth;
+
+	private final int compressionLevel;
+
+	private final AtomicLong memoryUsed;
+
+	private final long memoryLimit;
+
+	private final Entry[] window;
+
+	private Deflater deflater;
+
+	/** Slot the next object will be stored into. */
+	private int next;
+
+	/**
+	 * Create an empty window.
+	 *
+	 * @param db
+	 *            repository to read object contents from.
+	 * @param curs
+	 *            cursor for reading object contents.
+	 * @param size
+	 *            number of objects a new object is compared against.
+	 * @param maxDepth
+	 *            maximum length of a delta chain.
+	 * @param compressionLevel
+	 *            level to compress found deltas at.
+	 * @param memoryUsed
+	 *            bytes currently held by all windows sharing this budget.
+	 * @param memoryLimit
+	 *            maximum value for <code>memoryUsed</code>; 0 for no limit.
+	 */
+	DeltaWindow(final Repository db, final WindowCursor curs, final int size,
+			final int maxDepth, final int compressionLevel,
+			final AtomicLong memoryUsed, final long memoryLimit) {
+		this.db = db;
+		this.curs = curs;
+		this.maxDepth = maxDepth;
+		this.compressionLevel = compressionLevel;
+		this.memoryUsed = memoryUsed;
+		this.memoryLimit = memoryLimit;
+		window = new Entry[size];
+	}
+
+	/**
+	 * Find the best delta base for an object, then add it to the window.
+	 * <p>
+	 * Objects already stored as a delta are not searched for, but still join
+	 * the window as candidate bases for the objects that follow.
+	 *
+	 * @param res
+	 *            the object to compress.
+	 * @return the best delta found; null if no delta is smaller than the
+	 *         object's limit, or the object was not searched.
+	 * @throws IOException
+	 *             an object's content could not be read.
+	 */
+	Result search(final ObjectToPack res) throws IOException {
+		final Entry resEntry = new Entry(res);
+		ObjectToPack bestBase = null;
+		byte[] bestDelta = null;
+
+		if (!res.isDeltaRepresentation()) {
+			for (int i = 1; i <= window.length; i++) {
+				final Entry src = window[(next - i + window.length)
+						% window.length];
+				if (src == null || src.otp.getType() != res.getType())
+					break;
+				if (src.evicted)
+					continue;
+
+				final int limit;
+				if (bestDelta != null)
+					limit = bestDelta.length - 1;
+				else
+					limit = res.getWeight() / 2 - 20;
+				if (limit <= 0)
+					break;
+				if (src.otp.getWeight() < res.getWeight() / 32)
+					continue;
+				if (res.getWeight() - src.otp.getWeight() >= limit)
+					continue;
+
+				final int depth = depth(src.otp, res);
+				if (depth < 0 || maxDepth <= depth)
+					continue;
+
+				final byte[] delta = src.index().encode(resEntry.data(), limit);
+				if (delta != null) {
+					bestBase = src.otp;
+					bestDelta = delta;
+				}
+				trim();
+			}
+		}
+
+		final Entry old = window[next];
+		if (old != null)
+			old.release();
+		window[next] = resEntry;
+		next = (next + 1) % window.length;
+
+		if (bestDelta == null)
+			return null;
+		return new Result(bestBase, bestDelta, deflate(bestDelta));
+	}
+
+	/** Release the oldest entries' content until the budget is met. */
+	private void trim() {
+		if (memoryLimit <= 0)
+			return;
+		for (int i = 0; i < window.length; i++) {
+			if (memoryUsed.get() <= memoryLimit)
+				break;
+			final Entry e = window[(next + i) % window.length];
+			if (e != null && !e.evicted) {
+				e.release();
+				e.evicted = true;
+			}
+		}
+	}
+
+	private byte[] deflate(final byte[] data) {
+		if (deflater == null)
+			deflater = new Deflater(compressionLevel);
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+				data.length / 2 + 16);
+		final byte[] buf = new byte[Math.min(data.length + 64, 4096)];
+		deflater.setInput(data);
+		deflater.finish();
+		while (!deflater.finished()) {
+			final int n = deflater.deflate(buf);
+			bos.write(buf, 0, n);
+		}
+		deflater.reset();
+		return bos.toByteArray();
+	}
+
+	/** Discard all objects held by the window. */
+	void clear() {
+		for (int i = 0; i < window.length; i++) {
+			if (window[i] != null) {
+				window[i].release();
+				window[i] = null;
+			}
+		}
+		next = 0;
+	}
+
+	/** Discard all objects and free the native resources of the window. */
+	void release() {
+		clear();
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Compute the length of the delta chain below a candidate base.
+	 *
+	 * @param base
+	 *            the candidate base.
+	 * @param res
+	 *            the object that would be stored as a delta.
+	 * @return number of deltas that must be applied to obtain
+	 *         <code>base</code>, capped at {@link #maxDepth}; -1 if using
+	 *         <code>base</code> would create a cycle through <code>res</code>.
+	 */
+	private int depth(final ObjectToPack base, final ObjectToPack res) {
+		int depth = 0;
+		ObjectId cur = base;
+		while (cur instanceof ObjectToPack && depth < maxDepth) {
+			final ObjectId n = ((ObjectToPack) cur).getDeltaBaseId();
+			if (n == null)
+				break;
+			if (n == res)
+				return -1;
+			depth++;
+			cur = n;
+		}
+		return depth;
+	}
+
+	private final class Entry {
+		final ObjectToPack otp;
+
+		private byte[] data;
+
+		private DeltaIndex index;
+
+		boolean evicted;
+
+		Entry(final ObjectToPack otp) {
+			this.otp = otp;
+		}
+
+		byte[] data() throws IOException {
+			if (data == null) {
+				final ObjectLoader ldr = db.openObject(curs, otp);
+				if (ldr == null)
+					throw new MissingObjectException(otp, Constants
+							.typeString(otp.getType()));
+				data = ldr.getCachedBytes();
+				memoryUsed.addAndGet(data.length);
+			}
+			return data;
+		}
+
+		DeltaIndex index() throws IOException {
+			if (index == null) {
+				index = new DeltaIndex(data());
+				memoryUsed.addAndGet(index.getIndexSize());
+			}
+			return index;
+		}
+
+		void release() {
+			if (index != null) {
+				memoryUsed.addAndGet(-index.getIndexSize());
+				index = null;
+			}
+			if (data != null) {
+				memoryUsed.addAndGet(-data.length);
+				data = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Fixed size set of bit positions, stored EWAH compressed on disk.
+ * <p>
+ * In memory the bitmap is a plain array of 64 bit words, making the logical
+ * operations used to combine reachability sets a simple loop. On disk runs of
+ * empty or full words are collapsed using the Enhanced Word-Aligned Hybrid
+ * encoding, in the same layout C git uses for its <code>.bitmap</code> files:
+ * a sequence of marker words, each giving the length of a run of identical
+ * words followed by the number of literal words that come after it.
+ */
+final class EWAHBitmap {
+	private static final long MAX_RUN = (1L << 32) - 1;
+
+	private static final int MAX_LITERALS = (1 << 31) - 1;
+
+	/**
+	 * Decode a bitmap serialized by {@link #encode()}.
+	 *
+	 * @param buf
+	 *            buffer holding the serialized bitmap.
+	 * @param ptr
+	 *            position of the bitmap within <code>buf</code>.
+	 * @param size
+	 *            number of bits of the returned bitmap.
+	 * @return the decoded bitmap.
+	 * @throws IOException
+	 *             the encoded bitmap is larger than <code>size</code> or
+	 *             extends past the end of <code>buf</code>.
+	 */
+	static EWAHBitmap decode(final byte[] buf, final int ptr, final int size)
+			throws IOException {
+		if (buf.length < ptr + 12)
+			throw new IOException("Truncated bitmap");
+		final int n = NB.decodeInt32(buf, ptr + 4);
+		if (n < 0 || buf.length < ptr + 12 + 8L * n)
+			throw new IOException("Truncated bitmap");
+
+		final EWAHBitmap r = new EWAHBitmap(size);
+		final long[] words = r.words;
+		int p = ptr + 8;
+		int w = 0;
+		for (int i = 0; i < n;) {
+			final long rlw = NB.decodeUInt64(buf, p);
+			final long run = (rlw >>> 1) & MAX_RUN;
+			final int lit = (int) (rlw >>> 33);
+			p += 8;
+			i++;
+
+			if (words.length < w + run + lit || n < i + lit)
+				throw new IOException("Bitmap is larger than its pack");
+			if ((rlw & 1) != 0) {
+				for (int k = 0; k < run; k++)
+					words[w + k] = -1L;
+			}
+			w += run;
+			for (int k = 0; k < lit; k++) {
+				words[w++] = NB.decodeUInt64(buf, p);
+				p += 8;
+			}
+			i += lit;
+		}
+		return r;
+	}
+
+	/**
+	 * Determine the length of a serialized bitmap.
+	 *
+	 * @param buf
+	 *            buffer holding the serialized bitmap.
+	 * @param ptr
+	 *            position of the bitmap within <code>buf</code>.
+	 * @return number of bytes the bitmap occupies in <code>buf</code>.
+	 */
+	static int encodedLength(final byte[] buf, final int ptr) {
+		return 4 + 4 + 8 * NB.decodeInt32(buf, ptr + 4) + 4;
+	}
+
+	private final int size;
+
+	private final long[] words;
+
+	/**
+	 * Create an empty bitmap.
+	 *
+	 * @param size
+	 *            number of bits; positions must be less than this.
+	 */
+	EWAHBitmap(final int size) {
+		this.size = size;
+		this.words = new long[(size + 63) >>> 6];
+	}
+
+	/** @return number of bits of this bitmap. */
+	int size() {
+		return size;
+	}
+
+	boolean get(final int pos) {
+		return (words[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	void set(final int pos) {
+		words[pos >>> 6] |= 1L << pos;
+	}
+
+	/**
+	 * Add all positions of another bitmap to this one.
+	 *
+	 * @param other
+	 *            bitmap of the same size.
+	 */
+	void or(final EWAHBitmap other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++)
+			words[i] |= o[i];
+	}
+
+	/**
+	 * Remove all positions of another bitmap from this one.
+	 *
+	 * @param other
+	 *            bitmap of the same size.
+	 */
+	void andNot(final EWAHBitmap other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++)
+			words[i] &= ~o[i];
+	}
+
+	/**
+	 * Toggle the positions set in another bitmap.
+	 *
+	 * @param other
+	 *            bitmap of the same size.
+	 */
+	void xor(final EWAHBitmap other) {
+		final long[] o = other.words;
+		for (int i = 0; i < words.length; i++)
+			words[i] ^= o[i];
+	}
+
+	/** @return number of positions set. */
+	int cardinality() {
+		int cnt = 0;
+		for (final long w : words)
+			cnt += Long.bitCount(w);
+		return cnt;
+	}
+
+	/**
+	 * Find the next position set.
+	 *
+	 * @param from
+	 *            first position to examine.
+	 * @return the first position at or after <code>from</code> that is set;
+	 *         -1 if there is none.
+	 */
+	int nextSetBit(final int from) {
+		if (from >= size)
+			return -1;
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		for (;;) {
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == words.length)
+				return -1;
+			word = words[w];
+		}
+	}
+
+	/**
+	 * Serialize the bitmap.
+	 * <p>
+	 * The format is the bit count and the number of compressed words as 32 bit
+	 * integers, the compressed words, then the index of the last marker word.
+	 *
+	 * @return the compressed bitmap.
+	 */
+	byte[] encode() {
+		long[] out = new long[words.length / 2 + 2];
+		int n = 0;
+		int lastMarker;
+		int i = 0;
+		do {
+			long run = 0;
+			boolean ones = false;
+			if (i < words.length && (words[i] == 0 || words[i] == -1L)) {
+				final long w = words[i];
+				ones = w != 0;
+				while (i < words.length && words[i] == w && run < MAX_RUN) {
+					run++;
+					i++;
+				}
+			}
+
+			final int start = i;
+			while (i < words.length && words[i] != 0 && words[i] != -1L
+					&& i - start < MAX_LITERALS)
+				i++;
+			final int lit = i - start;
+
+			if (out.length < n + 1 + lit) {
+				final long[] grown = new long[Math.max(out.length * 2, n + 1
+						+ lit)];
+				System.arraycopy(out, 0, grown, 0, n);
+				out = grown;
+			}
+			lastMarker = n;
+			out[n++] = (ones ? 1 : 0) | (run << 1) | ((long) lit << 33);
+			System.arraycopy(words, start, out, n, lit);
+			n += lit;
+		} while (i < words.length);
+
+		final byte[] r = new byte[4 + 4 + 8 * n + 4];
+		NB.encodeInt32(r, 0, size);
+		NB.encodeInt32(r, 4, n);
+		for (int k = 0; k < n; k++)
+			NB.encodeInt64(r, 8 + 8 * k, out[k]);
+		NB.encodeInt32(r, 8 + 8 * n, lastMarker);
+		return r;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Reports files which changed since they were last looked at.
+ * <p>
+ * {@link PollingFileWatcher} compares modification times and sizes each time
+ * it is polled, and works on every platform. A watcher driven by change
+ * notifications of the operating system, such as inotify, can be supplied to
+ * {@link RepositoryWatcher} by applications running where one is available.
+ */
+public abstract class FileWatcher {
+	/**
+	 * Start watching a file or directory.
+	 *
+	 * @param path
+	 *            the file or directory. It need not exist yet; its creation is
+	 *            reported as a change.
+	 * @param recursive
+	 *            true to watch every file below a directory, except those
+	 *            within a directory named <code>.git</code>.
+	 * @throws IOException
+	 *             the path could not be watched.
+	 */
+	public abstract void watch(File path, boolean recursive) throws IOException;
+
+	/**
+	 * Collect the changes made since the previous poll.
+	 * <p>
+	 * A file may be reported even though it did not change, e.g. when the
+	 * watcher cannot yet tell; callers must tolerate that.
+	 *
+	 * @return files modified, created or deleted since the previous call, or
+	 *         since they were first watched. A directory may be reported in
+	 *         place of files below it. Null if changes may have been lost and
+	 *         every watched path must be assumed to have changed.
+	 * @throws IOException
+	 *             the changes could not be collected.
+	 */
+	public abstract Set<File> poll() throws IOException;
+
+	/** Stop watching and release any resources held by this watcher. */
+	public abstract void close();
+}
@@ -0,0 +1,804 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Repacks a repository and removes the files it no longer needs.
+ * <p>
+ * {@link #gc()} runs the steps of <code>git gc</code> in order: it moves the
+ * references into <code>packed-refs</code>, writes every reachable object
+ * into a single new pack, deletes the packs the new one replaces, removes
+ * loose objects which are packed or unreachable, and finally rewrites the
+ * commit-graph and the multi-pack index.
+ * <p>
+ * Concurrent readers, such as {@link org.spearce.jgit.transport.UploadPack},
+ * may keep using the old packs. A replaced pack is deleted only once it was
+ * replaced longer ago than {@link #setPackExpireAgeMillis(long)}; the time it
+ * was replaced is recorded by an empty <code>.old</code> file next to the
+ * pack, and the pack is left for a later run. An unreachable loose object
+ * is pruned only once it is older than {@link #setExpireAgeMillis(long)}, so
+ * objects created while the collection runs survive it. Unreachable objects
+ * of a deleted pack become loose objects as old as the pack, and follow the
+ * same rule. A repository which cannot find an object scans its pack
+ * directory again, picking up the new pack.
+ */
+public class GC {
+	/** Default age of unreachable loose objects to prune: two weeks. */
+	public static final long DEFAULT_EXPIRE_AGE_MILLIS = 14 * 24 * 60 * 60 * 1000L;
+
+	/** Default age of replaced packs to delete: one hour. */
+	public static final long DEFAULT_PACK_EXPIRE_AGE_MILLIS = 60 * 60 * 1000L;
+
+	private final Repository db;
+
+	private ProgressMonitor monitor = NullProgressMonitor.INSTANCE;
+
+	private long expireAgeMillis = DEFAULT_EXPIRE_AGE_MILLIS;
+
+	private long packExpireAgeMillis = DEFAULT_PACK_EXPIRE_AGE_MILLIS;
+
+	/**
+	 * Create a collector for a repository.
+	 *
+	 * @param repo
+	 *            the repository to clean up.
+	 */
+	public GC(final Repository repo) {
+		db = repo;
+	}
+
+	/**
+	 * @param pm
+	 *            progress of counting, compressing and writing objects.
+	 */
+	public void setProgressMonitor(final ProgressMonitor pm) {
+		monitor = pm;
+	}
+
+	/**
+	 * Set the age an unreachable loose object must have to be pruned.
+	 *
+	 * @param millis
+	 *            minimum age in milliseconds; 0 prunes all of them.
+	 */
+	public void setExpireAgeMillis(final long millis) {
+		expireAgeMillis = millis;
+	}
+
+	/**
+	 * Set how long a replaced pack is kept before it is deleted.
+	 *
+	 * @param millis
+	 *            minimum time since the pack was replaced, in milliseconds; 0
+	 *            deletes replaced packs right away.
+	 */
+	public void setPackExpireAgeMillis(final long millis) {
+		packExpireAgeMillis = millis;
+	}
+
+	/**
+	 * Run all steps of the collection.
+	 *
+	 * @throws IOException
+	 *             a reference, an object or a pack could not be read or
+	 *             written.
+	 */
+	public void gc() throws IOException {
+		packRefs();
+		final File pack = repack();
+		prune(pack);
+		writeCommitGraph();
+		writeMultiPackIndex();
+	}
+
+	/**
+	 * Move all loose references into the <code>packed-refs</code> file.
+	 *
+	 * @throws IOException
+	 *             the packed-refs file could not be written.
+	 */
+	public void packRefs() throws IOException {
+		db.packRefs();
+	}
+
+	/**
+	 * Write all reachable objects into one new pack.
+	 * <p>
+	 * Objects are reachable from references, reflog entries and the index.
+	 * Deltas and compressed data of the existing packs are reused. Packs of
+	 * the repository's own object directory which are replaced by the new
+	 * one are deleted, unless a <code>.keep</code> file protects them or
+	 * they were replaced more recently than the pack expiration age.
+	 * Unreachable objects stored only in a deleted pack are written out as
+	 * loose objects, dated like the pack, so they are pruned by the same
+	 * rule as other unreachable loose objects.
+	 *
+	 * @return the new pack; null if nothing is reachable.
+	 * @throws IOException
+	 *             an object could not be read, or the pack could not be
+	 *             written.
+	 */
+	public File repack() throws IOException {
+		final List<PackFile> old = Arrays.asList(localPacks());
+		final Set<ObjectId> tips = findTips();
+		if (tips.isEmpty())
+			return null;
+
+		final PackWriter pw = new PackWriter(db, monitor);
+		pw.setReuseDeltas(true);
+		pw.setReuseObjects(true);
+		pw.preparePack(tips, Collections.<ObjectId> emptyList(), false, true);
+		if (pw.getObjectsNumber() == 0)
+			return null;
+
+		final File finalPack = installPack(pw, db.getConfig().getCore()
+				.isPackUseBitmaps());
+		db.scanForPacks();
+		if (deleteOldPacks(old, finalPack))
+			packsDeleted();
+		return finalPack;
+	}
+
+	private File installPack(final PackWriter pw, final boolean bitmap)
+			throws IOException {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-" + pw.computeName().name();
+		final File finalPack = new File(packDir, name + ".pack");
+		final File finalIdx = new File(packDir, name + ".idx");
+		final File finalBitmap = new File(packDir, name + ".bitmap");
+		if (finalPack.exists()) {
+			// The same objects are already packed under this name. It
+			// is current again, should an earlier run have replaced it.
+			//
+			new File(packDir, name + ".old").delete();
+			return finalPack;
+		}
+
+		packDir.mkdirs();
+		final File tmpPack = File.createTempFile("gc_", ".pack_tmp", packDir);
+		final File tmpIdx = File.createTempFile("gc_", ".idx_tmp", packDir);
+		final File tmpBitmap = bitmap ? File.createTempFile("gc_",
+				".bitmap_tmp", packDir) : null;
+		try {
+			FileOutputStream fos = new FileOutputStream(tmpPack);
+			try {
+				pw.writePack(fos);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			fos = new FileOutputStream(tmpIdx);
+			try {
+				final OutputStream out = new BufferedOutputStream(fos);
+				pw.writeIndex(out);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			if (tmpBitmap != null) {
+				fos = new FileOutputStream(tmpBitmap);
+				try {
+					final OutputStream out = new BufferedOutputStream(fos);
+					pw.writeBitmapIndex(out);
+					out.flush();
+					fos.getFD().sync();
+				} finally {
+					fos.close();
+				}
+			}
+
+			tmpPack.setReadOnly();
+			tmpIdx.setReadOnly();
+
+			// The index goes last: packs are found through their index,
+			// so the pack is not used before all of its files are there.
+			//
+			if (tmpBitmap != null && !tmpBitmap.renameTo(finalBitmap))
+				throw new ObjectWritingException("Cannot move bitmap to "
+						+ finalBitmap);
+			if (!tmpPack.renameTo(finalPack))
+				throw new ObjectWritingException("Cannot move pack to "
+						+ finalPack);
+			if (!tmpIdx.renameTo(finalIdx)) {
+				finalPack.delete();
+				throw new ObjectWritingException("Cannot move index to "
+						+ finalIdx);
+			}
+			return finalPack;
+		} finally {
+			tmpPack.delete();
+			tmpIdx.delete();
+			if (tmpBitmap != null)
+				tmpBitmap.delete();
+		}
+	}
+
+	private boolean deleteOldPacks(final List<PackFile> old, final File keep)
+			throws IOException {
+		final long expire = System.currentTimeMillis() - packExpireAgeMillis;
+		final List<PackFile> expired = new ArrayList<PackFile>();
+		for (final PackFile p : old) {
+			final File pack = p.getPackFile();
+			if (pack.equals(keep) || hasKeep(p))
+				continue;
+			if (isExpired(p, expire))
+				expired.add(p);
+		}
+		if (expired.isEmpty())
+			return false;
+
+		unpackUnreachable(expired);
+		boolean deleted = false;
+		for (final PackFile p : expired)
+			deleted |= deletePack(p);
+		return deleted;
+	}
+
+	/**
+	 * Write out the objects only the given packs hold as loose objects.
+	 * <p>
+	 * Each object gets the modification time of its pack, so it is pruned
+	 * once it would be as an unreachable loose object. Objects of packs
+	 * older than the expiration age are not written at all, as
+	 * {@link #prune(File)} would remove them right away.
+	 *
+	 * @param expired
+	 *            packs about to be deleted.
+	 * @throws IOException
+	 *             an object could not be read or written.
+	 */
+	private void unpackUnreachable(final List<PackFile> expired)
+			throws IOException {
+		final long expire = System.currentTimeMillis() - expireAgeMillis;
+		final Set<File> deleting = new HashSet<File>();
+		for (final PackFile p : expired)
+			deleting.add(p.getPackFile());
+		final List<PackFile> kept = new ArrayList<PackFile>();
+		for (final PackFile p : db.packs()) {
+			if (!deleting.contains(p.getPackFile()))
+				kept.add(p);
+		}
+
+		final ObjectIdSubclassMap<ObjectId> done = new ObjectIdSubclassMap<ObjectId>();
+		final LooseObjectInserter ins = new LooseObjectInserter(db, true);
+		final WindowCursor curs = new WindowCursor();
+		try {
+			for (final PackFile p : expired) {
+				final long time = p.getPackFile().lastModified();
+				if (time <= expire)
+					continue;
+				for (final PackIndex.MutableEntry e : p) {
+					final ObjectId id = e.toObjectId();
+					if (done.get(id) != null || isPacked(kept, id))
+						continue;
+					done.add(id);
+					final File f = db.toFile(id);
+					if (f.exists())
+						continue;
+					final PackedObjectLoader ldr = p.get(curs, id);
+					ins.insert(ldr.getType(), ldr.getCachedBytes());
+					f.setLastModified(time);
+				}
+			}
+		} finally {
+			curs.release();
+			ins.release();
+		}
+	}
+
+	/**
+	 * Forget deleted packs, and drop them from the multi-pack index.
+	 * <p>
+	 * Readers ignore a multi-pack index naming a pack which is gone, so it
+	 * must be rewritten before it is useful again.
+	 *
+	 * @throws IOException
+	 *             the multi-pack index could not be written.
+	 */
+	private void packsDeleted() throws IOException {
+		db.scanForPacks();
+		writeMultiPackIndex();
+	}
+
+	private static boolean hasKeep(final PackFile p) {
+		return sibling(p, ".keep").exists();
+	}
+
+	/**
+	 * Decide if a replaced pack may be deleted.
+	 * <p>
+	 * The first time a pack is found to be replaced, an empty
+	 * <code>.old</code> file is created next to it and the pack is kept.
+	 * Readers which opened the pack before it was replaced may reopen it by
+	 * name later, so the pack must stay for the expiration age counted from
+	 * that moment, not from when the pack itself was written.
+	 *
+	 * @param p
+	 *            a pack whose objects are all in a newer pack.
+	 * @param expire
+	 *            packs replaced at or before this time are expired.
+	 * @return true if the pack can be deleted now.
+	 */
+	private boolean isExpired(final PackFile p, final long expire) {
+		if (packExpireAgeMillis <= 0)
+			return true;
+		final File old = sibling(p, ".old");
+		final long replaced = old.lastModified();
+		if (replaced == 0) {
+			try {
+				old.createNewFile();
+			} catch (IOException err) {
+				// Try again on the next run; until then the pack stays.
+			}
+			return false;
+		}
+		return replaced <= expire;
+	}
+
+	private static boolean deletePack(final PackFile p) {
+		// Processes which already opened the pack keep reading it through
+		// their open descriptor. Removing the pack before its index keeps
+		// new scans from picking up a lone index.
+		//
+		sibling(p, ".bitmap").delete();
+		if (!p.getPackFile().delete())
+			return false;
+		sibling(p, ".idx").delete();
+		sibling(p, ".old").delete();
+		return true;
+	}
+
+	private static File sibling(final PackFile p, final String ext) {
+		final File pack = p.getPackFile();
+		final String n = pack.getName();
+		return new File(pack.getParentFile(), n.substring(0, n.length()
+				- ".pack".length())
+				+ ext);
+	}
+
+	/**
+	 * Merge the smallest packs, so pack sizes form a geometric progression.
+	 * <p>
+	 * Packs are ordered by their number of objects. The smallest ones are
+	 * merged, together with all loose objects, until each remaining pack
+	 * holds at least <code>factor</code> times as many objects as all
+	 * smaller packs together. Big packs are usually left alone, so the cost
+	 * of a run follows the amount of new data rather than the size of the
+	 * repository. Reachability is not computed and nothing is pruned.
+	 * <p>
+	 * Packs with a <code>.keep</code> file are never merged. The new pack
+	 * and its index are written and synced to disk before they are renamed
+	 * into place, and only then are the merged packs deleted. A merged pack
+	 * stays until a later run finds it was merged longer ago than the pack
+	 * expiration age; meanwhile runs skip it, as all of its objects are in
+	 * newer packs.
+	 *
+	 * @param factor
+	 *            minimum ratio between the object counts of a pack and of
+	 *            all smaller packs; at least 2.
+	 * @return the new pack; null if no packs needed merging.
+	 * @throws IOException
+	 *             an object could not be read, or the pack could not be
+	 *             written.
+	 */
+	public File repackGeometric(final int factor) throws IOException {
+		if (factor < 2)
+			throw new IllegalArgumentException("Geometric factor " + factor
+					+ " is less than 2");
+		final long expire = System.currentTimeMillis() - packExpireAgeMillis;
+		final PackFile[] local = localPacks();
+		Arrays.sort(local, PackFile.SORT);
+
+		final List<PackFile> retained = new ArrayList<PackFile>();
+		final List<PackFile> candidates = new ArrayList<PackFile>();
+		final List<PackFile> newer = new ArrayList<PackFile>();
+		final Map<PackFile, Long> counts = new HashMap<PackFile, Long>();
+		long newerCount = 0;
+		boolean deleted = false;
+		for (final PackFile p : local) {
+			final long cnt = p.getObjectCount();
+			if (hasKeep(p))
+				retained.add(p);
+			else if (cnt <= newerCount && isRedundant(p, newer)) {
+				// Merged by an earlier run. Delete it once readers had
+				// time to move on to the newer pack.
+				//
+				if (isExpired(p, expire) && deletePack(p)) {
+					deleted = true;
+					continue;
+				}
+				retained.add(p);
+			} else {
+				candidates.add(p);
+				counts.put(p, cnt);
+			}
+			newer.add(p);
+			newerCount += cnt;
+		}
+
+		Collections.sort(candidates, new Comparator<PackFile>() {
+			public int compare(final PackFile a, final PackFile b) {
+				final long x = counts.get(a);
+				final long y = counts.get(b);
+				return x < y ? -1 : x == y ? 0 : 1;
+			}
+		});
+		final long[] weights = new long[candidates.size()];
+		for (int i = 0; i < weights.length; i++)
+			weights[i] = counts.get(candidates.get(i));
+		final int split = geometricSplit(weights, factor);
+		final List<PackFile> merge = candidates.subList(0, split);
+		retained.addAll(candidates.subList(split, candidates.size()));
+
+		final List<ObjectId> loose = listLooseObjects();
+		if (merge.size() < 2 && loose.isEmpty()) {
+			if (deleted)
+				packsDeleted();
+			return null;
+		}
+
+		final List<RevObject> objects = listObjects(merge, loose, retained);
+		File pack = null;
+		if (!objects.isEmpty()) {
+			final PackWriter pw = new PackWriter(db, monitor);
+			pw.setReuseDeltas(true);
+			pw.setReuseObjects(true);
+			pw.preparePack(objects.iterator());
+			pack = installPack(pw, false);
+		}
+		db.scanForPacks();
+		if (deleteOldPacks(merge, pack))
+			deleted = true;
+		if (deleted)
+			packsDeleted();
+		removePackedLoose(loose);
+		return pack;
+	}
+
+	/**
+	 * Find how many of the smallest packs must be merged.
+	 *
+	 * @param counts
+	 *            number of objects in each pack, in ascending order.
+	 * @param factor
+	 *            minimum ratio between a pack and all smaller packs.
+	 * @return number of packs, from the start of <code>counts</code>, to
+	 *         merge into one.
+	 */
+	static int geometricSplit(final long[] counts, final int factor) {
+		if (counts.length == 0)
+			return 0;
+
+		// Find where the progression breaks, from the biggest pack down.
+		// The bigger pack of the failing pair cannot stay either.
+		//
+		int split = counts.length - 1;
+		while (split > 0 && counts[split] >= factor * counts[split - 1])
+			split--;
+		if (split > 0)
+			split++;
+
+		// The merged pack is bigger than any of its parts, and may now be
+		// too close to the packs after it. Merge those too.
+		//
+		long total = 0;
+		for (int i = 0; i < split; i++)
+			total += counts[i];
+		while (split < counts.length && counts[split] < factor * total)
+			total += counts[split++];
+		return split;
+	}
+
+	private boolean isRedundant(final PackFile p, final List<PackFile> newer)
+			throws IOException {
+		if (newer.isEmpty())
+			return false;
+		for (final PackIndex.MutableEntry e : p) {
+			if (!isPacked(newer, e.toObjectId()))
+				return false;
+		}
+		return true;
+	}
+
+	private List<RevObject> listObjects(final List<PackFile> merge,
+			final List<ObjectId> loose, final List<PackFile> retained)
+			throws IOException {
+		final ObjectIdSubclassMap<ObjectId> ids = new ObjectIdSubclassMap<ObjectId>();
+		final List<ObjectId> order = new ArrayList<ObjectId>();
+		for (final PackFile p : merge) {
+			for (final PackIndex.MutableEntry e : p) {
+				final ObjectId id = e.toObjectId();
+				if (ids.get(id) == null && !isPacked(retained, id)) {
+					ids.add(id);
+					order.add(id);
+				}
+			}
+		}
+		for (final ObjectId id : loose) {
+			if (ids.get(id) == null && !isPacked(retained, id)) {
+				ids.add(id);
+				order.add(id);
+			}
+		}
+
+		// Types are needed to order the objects in the pack. Reading them
+		// in storage order visits each pack front to back only once.
+		//
+		final RevWalk rw = new RevWalk(db);
+		final List<RevObject> r = new ArrayList<RevObject>(order.size());
+		final WindowCursor curs = new WindowCursor();
+		try {
+			final ObjectLoaderQueue<ObjectId> q = db.openObjects(curs, order);
+			while (q.next()) {
+				final ObjectLoader ldr = q.open();
+				if (ldr == null)
+					throw new MissingObjectException(q.getCurrent().copy(),
+							"unknown");
+				r.add(rw.lookupAny(q.getCurrent(), ldr.getType()));
+			}
+		} finally {
+			curs.release();
+		}
+		return r;
+	}
+
+	private List<ObjectId> listLooseObjects() {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		final File objects = db.getObjectsDirectory();
+		final String[] fanout = objects.list();
+		if (fanout == null)
+			return r;
+		for (final String d : fanout) {
+			if (d.length() != 2)
+				continue;
+			final String[] entries = new File(objects, d).list();
+			if (entries == null)
+				continue;
+			for (final String e : entries) {
+				if (ObjectId.isId(d + e))
+					r.add(ObjectId.fromString(d + e));
+			}
+		}
+		return r;
+	}
+
+	private void removePackedLoose(final List<ObjectId> loose)
+			throws IOException {
+		final List<PackFile> packs = Arrays.asList(db.packs());
+		for (final ObjectId id : loose) {
+			if (isPacked(packs, id)) {
+				final File f = db.toFile(id);
+				f.delete();
+				f.getParentFile().delete(); // Only succeeds if now empty.
+			}
+		}
+	}
+
+	private PackFile[] localPacks() {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final List<PackFile> r = new ArrayList<PackFile>();
+		for (final PackFile p : db.packs()) {
+			if (packDir.equals(p.getPackFile().getParentFile()))
+				r.add(p);
+		}
+		return r.toArray(new PackFile[r.size()]);
+	}
+
+	/**
+	 * Delete loose objects which are not needed anymore.
+	 * <p>
+	 * A loose object is removed if it is stored in a pack, or if it is
+	 * older than the expiration age and not in <code>pack</code>, which
+	 * holds every object reachable when it was written.
+	 *
+	 * @param pack
+	 *            pack just written by {@link #repack()}; null if nothing was
+	 *            reachable.
+	 * @throws IOException
+	 *             a pack index could not be read.
+	 */
+	private void prune(final File pack) throws IOException {
+		final long expire = System.currentTimeMillis() - expireAgeMillis;
+		final List<PackFile> packs = Arrays.asList(db.packs());
+		final File objects = db.getObjectsDirectory();
+		final String[] fanout = objects.list();
+		if (fanout == null)
+			return;
+		for (final String d : fanout) {
+			if (d.length() != 2)
+				continue;
+			final File dir = new File(objects, d);
+			final String[] entries = dir.list();
+			if (entries == null)
+				continue;
+			for (final String e : entries) {
+				final String name = d + e;
+				if (!ObjectId.isId(name))
+					continue;
+				final ObjectId id = ObjectId.fromString(name);
+				final File f = new File(dir, e);
+				if (isPacked(packs, id)
+						|| (f.lastModified() <= expire && !isIn(packs, pack,
+								id)))
+					f.delete();
+			}
+			dir.delete(); // Only succeeds if it is now empty.
+		}
+	}
+
+	private static boolean isPacked(final List<PackFile> packs,
+			final AnyObjectId id) throws IOException {
+		for (final PackFile p : packs) {
+			if (p.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isIn(final List<PackFile> packs, final File pack,
+			final ObjectId id) throws IOException {
+		for (final PackFile p : packs) {
+			if (p.getPackFile().equals(pack))
+				return p.hasObject(id);
+		}
+		return false;
+	}
+
+	/**
+	 * Rewrite <code>objects/info/commit-graph</code>, if it is enabled.
+	 *
+	 * @throws IOException
+	 *             a commit could not be read, or the file could not be
+	 *             written.
+	 */
+	public void writeCommitGraph() throws IOException {
+		if (!db.getConfig().getCore().isCommitGraph())
+			return;
+		final Set<ObjectId> tips = new HashSet<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+		if (tips.isEmpty())
+			return;
+		final CommitGraphWriter w = new CommitGraphWriter(db, monitor);
+		w.prepare(tips);
+		final File info = new File(db.getObjectsDirectory(), "info");
+		info.mkdirs();
+		final LockFile lck = new LockFile(new File(info, "commit-graph"));
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock commit-graph");
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				w.write(out);
+			} finally {
+				out.close();
+			}
+			if (!lck.commit())
+				throw new ObjectWritingException("Unable to write commit-graph");
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	/**
+	 * Rewrite <code>objects/pack/multi-pack-index</code>, if there is one.
+	 * <p>
+	 * The index is updated to cover the packs left after repacking. A
+	 * repository without a multi-pack index is left without one.
+	 *
+	 * @throws IOException
+	 *             a pack index could not be read, or the file could not be
+	 *             written.
+	 */
+	public void writeMultiPackIndex() throws IOException {
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final File f = new File(packDir, MultiPackIndex.FILE_NAME);
+		if (!f.exists())
+			return;
+		final List<PackFile> local = Arrays.asList(localPacks());
+		final LockFile lck = new LockFile(f);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock "
+					+ MultiPackIndex.FILE_NAME);
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				new MultiPackIndexWriter(local).write(out);
+			} finally {
+				out.close();
+			}
+			if (!lck.commit())
+				throw new ObjectWritingException("Unable to write "
+						+ MultiPackIndex.FILE_NAME);
+		} finally {
+			lck.unlock();
+		}
+		db.scanForPacks();
+	}
+
+	private Set<ObjectId> findTips() throws IOException {
+		final Set<ObjectId> tips = new HashSet<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+
+		final Set<ObjectId> extra = new HashSet<ObjectId>();
+		db.getRefDatabase().addReflogIds(extra);
+		final DirCache dc = DirCache.read(db);
+		for (int i = 0; i < dc.getEntryCount(); i++) {
+			final DirCacheEntry e = dc.getEntry(i);
+			if (e.getRawMode() != FileMode.GITLINK.getBits())
+				extra.add(e.getObjectId());
+		}
+
+		// Reflogs and the index may name objects which were already
+		// removed, and we must not fail the whole repack over them.
+		//
+		extra.removeAll(tips);
+		for (final ObjectId id : extra) {
+			if (db.hasObject(id))
+				tips.add(id);
+		}
+		return tips;
+	}
+}
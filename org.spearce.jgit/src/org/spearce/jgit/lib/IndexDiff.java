@@ -46,6 +46,8 @@
 
 /**
  * Compares the Index, a Tree, and the working directory
+ *
+ * @see IndexStatus
  */
 public class IndexDiff {
 	private GitIndex index;
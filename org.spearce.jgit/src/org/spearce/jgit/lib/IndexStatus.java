@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.dircache.DirCacheIterator;
+import org.spearce.jgit.dircache.UntrackedCache;
+import org.spearce.jgit.treewalk.AbstractTreeIterator;
+import org.spearce.jgit.treewalk.EmptyTreeIterator;
+import org.spearce.jgit.treewalk.FileTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.WorkingTreeIterator;
+import org.spearce.jgit.treewalk.filter.PathFilterGroup;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Compares HEAD, the index and the working directory.
+ * <p>
+ * Unlike {@link IndexDiff} this walks the {@link DirCache} with a single
+ * {@link TreeWalk}. The working directory is compared through the stat data
+ * cached in each {@link DirCacheEntry}: a file whose size and modification
+ * time match its entry is not read at all. Only files whose stat data differ,
+ * or entries which are racily clean, are hashed.
+ * <p>
+ * Each path is reported in every category it belongs to. A file which was
+ * staged and then edited again is both changed and modified.
+ */
+public class IndexStatus {
+	private final Repository db;
+
+	private final AnyObjectId tree;
+
+	private final DirCache cache;
+
+	private final WorkingTreeIterator workTree;
+
+	private UntrackedCache untrackedCache;
+
+	private final Set<String> added = new LinkedHashSet<String>();
+
+	private final Set<String> changed = new LinkedHashSet<String>();
+
+	private final Set<String> removed = new LinkedHashSet<String>();
+
+	private final Set<String> missing = new LinkedHashSet<String>();
+
+	private final Set<String> modified = new LinkedHashSet<String>();
+
+	private final Set<String> untracked = new LinkedHashSet<String>();
+
+	private final Set<String> conflicting = new LinkedHashSet<String>();
+
+	/**
+	 * Compare HEAD, the index and the working directory of a repository.
+	 *
+	 * @param repo
+	 *            the repository to examine.
+	 * @throws IOException
+	 *             HEAD or the index could not be read.
+	 */
+	public IndexStatus(final Repository repo) throws IOException {
+		this(repo, repo.resolve(Constants.HEAD + "^{tree}"), DirCache
+				.read(repo), new FileTreeIterator(repo.getWorkDir()));
+	}
+
+	/**
+	 * Compare a tree, an index and a working directory.
+	 *
+	 * @param repo
+	 *            the repository the tree is read from.
+	 * @param treeId
+	 *            the tree to compare the index to; null if there is none,
+	 *            e.g. before the first commit.
+	 * @param dc
+	 *            the index. It must already be read.
+	 * @param wt
+	 *            iterator over the working directory.
+	 */
+	public IndexStatus(final Repository repo, final AnyObjectId treeId,
+			final DirCache dc, final WorkingTreeIterator wt) {
+		db = repo;
+		tree = treeId;
+		cache = dc;
+		workTree = wt;
+	}
+
+	/**
+	 * Find untracked files through a cache of directory listings.
+	 * <p>
+	 * The walk of {@link #diff()} then only enters directories which hold
+	 * tracked files, and the untracked files are taken from the cache, which
+	 * lists only directories modified since its last scan. The caller should
+	 * {@link UntrackedCache#write()} the cache once the comparison is done.
+	 *
+	 * @param uc
+	 *            cache of the working directory given to the constructor;
+	 *            null to look at every file during the walk.
+	 */
+	public void setUntrackedCache(final UntrackedCache uc) {
+		untrackedCache = uc;
+	}
+
+	/**
+	 * Run the comparison. Until this is called, all sets are empty.
+	 * <p>
+	 * The working tree iterator given to the constructor is consumed, so this
+	 * can be run only once.
+	 *
+	 * @return true if anything is different between the tree, the index and
+	 *         the working directory.
+	 * @throws IOException
+	 *             the tree or a file could not be read.
+	 */
+	public boolean diff() throws IOException {
+		if (untrackedCache != null) {
+			walk(TRACKED, true, true);
+			untracked.addAll(untrackedCache.scan(cache));
+		} else
+			walk(TreeFilter.ALL, true, true);
+		return !isClean();
+	}
+
+	/**
+	 * Update an earlier comparison, looking only at paths known to be dirty.
+	 * <p>
+	 * The tree is compared to the whole index again, which does not touch the
+	 * working directory. The working directory however is compared only at
+	 * the dirty paths; for every other path the modified, missing and
+	 * untracked state is taken from <code>base</code>.
+	 * <p>
+	 * The dirty paths must cover everything modified in the working directory
+	 * since <code>base</code> was computed, and the index must not have changed
+	 * since then. {@link RepositoryWatcher#getDirtyPaths()} gives such paths.
+	 *
+	 * @param base
+	 *            an earlier status of the same repository; null to compare
+	 *            everything.
+	 * @param dirtyPaths
+	 *            paths which may have been modified since <code>base</code>; a
+	 *            directory stands for everything below it. Null to compare
+	 *            everything.
+	 * @return true if anything is different between the tree, the index and
+	 *         the working directory.
+	 * @throws IOException
+	 *             the tree or a file could not be read.
+	 */
+	public boolean diff(final IndexStatus base, final Set<String> dirtyPaths)
+			throws IOException {
+		if (base == null || dirtyPaths == null || dirtyPaths.contains(""))
+			return diff();
+
+		walk(TreeFilter.ALL, true, false);
+		keepClean(base.modified, modified, dirtyPaths);
+		keepClean(base.missing, missing, dirtyPaths);
+		keepClean(base.untracked, untracked, dirtyPaths);
+		if (!dirtyPaths.isEmpty())
+			walk(PathFilterGroup.createFromStrings(dirtyPaths), false, true);
+		return !isClean();
+	}
+
+	/** Selects paths which are in the tree or the index. */
+	private static final TreeFilter TRACKED = new TreeFilter() {
+		@Override
+		public boolean include(final TreeWalk walker) {
+			return walker.getRawMode(0) != 0 || walker.getRawMode(1) != 0;
+		}
+
+		@Override
+		public boolean shouldBeRecursive() {
+			return false;
+		}
+
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return "TRACKED";
+		}
+	};
+
+	private void walk(final TreeFilter filter, final boolean toIndex,
+			final boolean toWorkTree) throws IOException {
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.setRecursive(true);
+		tw.setFilter(filter);
+		if (tree != null)
+			tw.addTree(tree.toObjectId());
+		else
+			tw.addTree(new EmptyTreeIterator());
+		tw.addTree(new DirCacheIterator(cache));
+		if (toWorkTree)
+			tw.addTree(workTree);
+
+		String lastConflict = null;
+		while (tw.next()) {
+			final AbstractTreeIterator h = tw.getTree(0,
+					AbstractTreeIterator.class);
+			final DirCacheIterator i = tw.getTree(1, DirCacheIterator.class);
+			final WorkingTreeIterator w = toWorkTree ? tw.getTree(2,
+					WorkingTreeIterator.class) : null;
+			final String path = tw.getPathString();
+
+			if (i == null) {
+				if (toIndex && h != null)
+					removed.add(path);
+				if (w != null)
+					untracked.add(path);
+				continue;
+			}
+
+			final DirCacheEntry e = i.getDirCacheEntry();
+			if (e.getStage() != DirCacheEntry.STAGE_0) {
+				// Every stage of a conflict is its own entry in the
+				// index; report the path once, for its first stage.
+				//
+				if (toIndex && !path.equals(lastConflict))
+					conflicting.add(path);
+				lastConflict = path;
+				continue;
+			}
+
+			if (toIndex) {
+				if (h == null)
+					added.add(path);
+				else if (tw.getRawMode(0) != tw.getRawMode(1)
+						|| !tw.idEqual(0, 1))
+					changed.add(path);
+			}
+
+			if (toWorkTree) {
+				if (w == null)
+					missing.add(path);
+				else if (w.isModified(e, cache.isRacilyClean(e)))
+					modified.add(path);
+			}
+		}
+	}
+
+	private static void keepClean(final Set<String> src,
+			final Set<String> dst, final Set<String> dirtyPaths) {
+		for (final String p : src) {
+			if (!isDirty(p, dirtyPaths))
+				dst.add(p);
+		}
+	}
+
+	private static boolean isDirty(final String path,
+			final Set<String> dirtyPaths) {
+		if (dirtyPaths.contains(path))
+			return true;
+		for (int s = path.indexOf('/'); s > 0; s = path.indexOf('/', s + 1)) {
+			if (dirtyPaths.contains(path.substring(0, s)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the last {@link #diff()} found no difference at all.
+	 */
+	public boolean isClean() {
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty()
+				&& missing.isEmpty() && modified.isEmpty()
+				&& untracked.isEmpty() && conflicting.isEmpty();
+	}
+
+	/**
+	 * @return files in the index, but not in the tree.
+	 */
+	public Set<String> getAdded() {
+		return Collections.unmodifiableSet(added);
+	}
+
+	/**
+	 * @return files whose content or mode differs between tree and index.
+	 */
+	public Set<String> getChanged() {
+		return Collections.unmodifiableSet(changed);
+	}
+
+	/**
+	 * @return files in the tree, but not in the index.
+	 */
+	public Set<String> getRemoved() {
+		return Collections.unmodifiableSet(removed);
+	}
+
+	/**
+	 * @return files in the index, but not in the working directory.
+	 */
+	public Set<String> getMissing() {
+		return Collections.unmodifiableSet(missing);
+	}
+
+	/**
+	 * @return files modified in the working directory relative to the index.
+	 */
+	public Set<String> getModified() {
+		return Collections.unmodifiableSet(modified);
+	}
+
+	/**
+	 * @return files in the working directory, but not in the index.
+	 */
+	public Set<String> getUntracked() {
+		return Collections.unmodifiableSet(untracked);
+	}
+
+	/**
+	 * @return files with unmerged stages in the index.
+	 */
+	public Set<String> getConflicting() {
+		return Collections.unmodifiableSet(conflicting);
+	}
+}
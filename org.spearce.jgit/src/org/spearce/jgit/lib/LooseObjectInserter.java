@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.spearce.jgit.errors.ObjectWritingException;
+
+/**
+ * Writes every object as a loose file below <code>objects/</code>.
+ * <p>
+ * Objects are visible as soon as they are inserted, so {@link #flush()} has
+ * nothing to do.
+ */
+class LooseObjectInserter extends ObjectInserter {
+	private final Repository r;
+
+	private final byte[] buf;
+
+	private final MessageDigest md;
+
+	private final Deflater def;
+
+	/** True to write objects a pack already holds, unless already loose. */
+	private final boolean unpack;
+
+	LooseObjectInserter(final Repository d) {
+		this(d, false);
+	}
+
+	LooseObjectInserter(final Repository d, final boolean unpackPacked) {
+		r = d;
+		unpack = unpackPacked;
+		buf = new byte[8192];
+		md = Constants.newMessageDigest();
+		def = new Deflater(r.getConfig().getCore().getCompression());
+	}
+
+	@Override
+	public ObjectId insert(final int type, long len, final InputStream is)
+			throws IOException {
+		final File t;
+		final DeflaterOutputStream deflateStream;
+		final FileOutputStream fileStream;
+		ObjectId id = null;
+
+		t = File.createTempFile("noz", null, r.getObjectsDirectory());
+		fileStream = new FileOutputStream(t);
+
+		md.reset();
+		def.reset();
+		deflateStream = new DeflaterOutputStream(fileStream, def);
+
+		try {
+			byte[] header;
+			int n;
+
+			header = Constants.encodedTypeString(type);
+			md.update(header);
+			deflateStream.write(header);
+
+			md.update((byte) ' ');
+			deflateStream.write((byte) ' ');
+
+			header = Constants.encodeASCII(len);
+			md.update(header);
+			deflateStream.write(header);
+
+			md.update((byte) 0);
+			deflateStream.write((byte) 0);
+
+			while (len > 0
+					&& (n = is.read(buf, 0, (int) Math.min(len, buf.length))) > 0) {
+				md.update(buf, 0, n);
+				deflateStream.write(buf, 0, n);
+				len -= n;
+			}
+
+			if (len != 0)
+				throw new IOException("Input did not match supplied length. "
+						+ len + " bytes are missing.");
+
+			deflateStream.close();
+			t.setReadOnly();
+
+			id = ObjectId.fromRaw(md.digest());
+		} finally {
+			if (id == null) {
+				try {
+					deflateStream.close();
+				} finally {
+					t.delete();
+				}
+			}
+		}
+
+		if (unpack ? r.toFile(id).exists() : r.hasObject(id)) {
+			// Object is already in the repository so remove
+			// the temporary file.
+			//
+			t.delete();
+		} else {
+			final File o = r.toFile(id);
+			if (!t.renameTo(o)) {
+				// Maybe the directory doesn't exist yet as the object
+				// directories are always lazily created. Note that we
+				// try the rename first as the directory likely does exist.
+				//
+				o.getParentFile().mkdir();
+				if (!t.renameTo(o)) {
+					if (!r.hasObject(id)) {
+						// The object failed to be renamed into its proper
+						// location and it doesn't exist in the repository
+						// either. We really don't know what went wrong, so
+						// fail.
+						//
+						t.delete();
+						throw new ObjectWritingException("Unable to"
+								+ " create new object: " + o);
+					}
+				}
+			}
+		}
+
+		return id;
+	}
+
+	@Override
+	public void flush() {
+		// Every object was written when it was inserted.
+	}
+
+	@Override
+	public void release() {
+		def.end();
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Locations of the objects of many packs, in one table.
+ * <p>
+ * Finding an object in a repository with many packs means searching the index
+ * of each pack in turn. A multi-pack index lists every object of a set of
+ * packs once, sorted by name, along with the pack holding it and its offset
+ * within that pack, so one binary search answers for all of them. Objects
+ * stored in more than one pack are listed for the most recently modified
+ * pack only.
+ * <p>
+ * The file is stored as <code>objects/pack/multi-pack-index</code>, in the
+ * format written by C git, and is memory mapped while in use.
+ *
+ * @see MultiPackIndexWriter
+ */
+public class MultiPackIndex {
+	/** Name of the file within a pack directory. */
+	public static final String FILE_NAME = "multi-pack-index";
+
+	/** Magic number at the start of a multi-pack index file. */
+	static final byte[] MAGIC = { 'M', 'I', 'D', 'X' };
+
+	/** Length of the header, up to the chunk table. */
+	static final int HEADER_LENGTH = 12;
+
+	/** Chunk holding the names of the packs' index files. */
+	static final int CHUNK_PACK_NAMES = 0x504e414d;
+
+	/** Chunk holding the 256 entry fan-out table. */
+	static final int CHUNK_OID_FANOUT = 0x4f494446;
+
+	/** Chunk holding the sorted object names. */
+	static final int CHUNK_OID_LOOKUP = 0x4f49444c;
+
+	/** Chunk holding the pack and offset of every object. */
+	static final int CHUNK_OBJECT_OFFSETS = 0x4f4f4646;
+
+	/** Chunk holding offsets which do not fit into 31 bits. */
+	static final int CHUNK_LARGE_OFFSETS = 0x4c4f4646;
+
+	/** Bit of an object offset referring to {@link #CHUNK_LARGE_OFFSETS}. */
+	static final int LARGE_OFFSET = 0x80000000;
+
+	/**
+	 * Open an existing multi-pack index file for reading.
+	 *
+	 * @param midxFile
+	 *            the file to read.
+	 * @return access implementation for the file.
+	 * @throws IOException
+	 *             the file could not be read or is in an unknown format.
+	 */
+	public static MultiPackIndex open(final File midxFile) throws IOException {
+		try {
+			final RandomAccessFile fd = new RandomAccessFile(midxFile, "r");
+			try {
+				final long len = fd.length();
+				if (len > Integer.MAX_VALUE)
+					throw new IOException("Multi-pack index too large");
+				return new MultiPackIndex(fd.getChannel().map(
+						MapMode.READ_ONLY, 0, len));
+			} finally {
+				fd.close();
+			}
+		} catch (IOException ioe) {
+			final String path = midxFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable multi-pack index: " + path);
+			err.initCause(ioe);
+			throw err;
+		}
+	}
+
+	private final ByteBuffer buf;
+
+	private final String[] packNames;
+
+	private final int fanout;
+
+	private final int objectCount;
+
+	private final int oidLookup;
+
+	private final int objectOffsets;
+
+	/** Offset of the large offset table in {@link #buf}; -1 if none. */
+	private final int largeOffsets;
+
+	private final int largeOffsetCount;
+
+	MultiPackIndex(final ByteBuffer buf) throws IOException {
+		this.buf = buf;
+
+		final int end = buf.limit() - Constants.OBJECT_ID_LENGTH;
+		if (end < HEADER_LENGTH)
+			throw new IOException("Truncated multi-pack index");
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buf.get(i) != MAGIC[i])
+				throw new IOException("Not a multi-pack index");
+		final int version = buf.get(4) & 0xff;
+		if (version != 1)
+			throw new IOException("Unsupported multi-pack index version "
+					+ version);
+		final int hashVersion = buf.get(5) & 0xff;
+		if (hashVersion != 1)
+			throw new IOException("Unsupported multi-pack index hash version "
+					+ hashVersion);
+		final int chunkCount = buf.get(6) & 0xff;
+		if (buf.get(7) != 0)
+			throw new IOException("Incremental multi-pack indexes are not"
+					+ " supported");
+		final int packCount = buf.getInt(8);
+
+		if (end < HEADER_LENGTH + 12 * (chunkCount + 1) || packCount < 0)
+			throw new IOException("Truncated multi-pack index");
+		int namesPtr = -1;
+		int namesEnd = -1;
+		int fanoutPtr = -1;
+		int lookupPtr = -1;
+		int offsetsPtr = -1;
+		int largePtr = -1;
+		int largeEnd = -1;
+		for (int i = 0; i < chunkCount; i++) {
+			final int ptr = HEADER_LENGTH + 12 * i;
+			final int id = buf.getInt(ptr);
+			final long start = buf.getLong(ptr + 4);
+			final long next = buf.getLong(ptr + 12 + 4);
+			if (start < 0 || start > next || next > end)
+				throw new IOException("Corrupt multi-pack index chunk table");
+			switch (id) {
+			case CHUNK_PACK_NAMES:
+				namesPtr = (int) start;
+				namesEnd = (int) next;
+				break;
+			case CHUNK_OID_FANOUT:
+				if (next - start != 256 * 4)
+					throw new IOException("Corrupt multi-pack index fan-out");
+				fanoutPtr = (int) start;
+				break;
+			case CHUNK_OID_LOOKUP:
+				lookupPtr = (int) start;
+				break;
+			case CHUNK_OBJECT_OFFSETS:
+				offsetsPtr = (int) start;
+				break;
+			case CHUNK_LARGE_OFFSETS:
+				largePtr = (int) start;
+				largeEnd = (int) next;
+				break;
+			default:
+				// Chunks we do not understand are optional.
+				break;
+			}
+		}
+		if (namesPtr < 0 || fanoutPtr < 0 || lookupPtr < 0 || offsetsPtr < 0)
+			throw new IOException("Multi-pack index lacks a required chunk");
+
+		packNames = readPackNames(namesPtr, namesEnd, packCount);
+
+		for (int k = 0; k < 256; k++) {
+			final int n = buf.getInt(fanoutPtr + 4 * k);
+			if (n < 0 || (k > 0 && n < buf.getInt(fanoutPtr + 4 * (k - 1))))
+				throw new IOException("Corrupt multi-pack index fan-out");
+		}
+		fanout = fanoutPtr;
+		objectCount = buf.getInt(fanoutPtr + 4 * 255);
+		if (end < lookupPtr + (long) objectCount * Constants.OBJECT_ID_LENGTH
+				|| end < offsetsPtr + (long) objectCount * 8)
+			throw new IOException("Truncated multi-pack index");
+		oidLookup = lookupPtr;
+		objectOffsets = offsetsPtr;
+		largeOffsets = largePtr;
+		largeOffsetCount = largePtr < 0 ? 0 : (largeEnd - largePtr) / 8;
+	}
+
+	private String[] readPackNames(final int start, final int end,
+			final int packCount) throws IOException {
+		final List<String> names = new ArrayList<String>(packCount);
+		final StringBuilder b = new StringBuilder();
+		for (int p = start; p < end && names.size() < packCount; p++) {
+			final int c = buf.get(p) & 0xff;
+			if (c != 0)
+				b.append((char) c);
+			else {
+				names.add(b.toString());
+				b.setLength(0);
+			}
+		}
+		if (names.size() != packCount)
+			throw new IOException("Corrupt multi-pack index pack names");
+		return names.toArray(new String[packCount]);
+	}
+
+	/**
+	 * @return names of the index files of the packs covered, such as
+	 *         <code>pack-0123....idx</code>. The position of a name in this
+	 *         array is the pack id returned by {@link #getPackId(int)}.
+	 */
+	public String[] getPackNames() {
+		return packNames.clone();
+	}
+
+	/** @return number of objects listed. */
+	public int getObjectCount() {
+		return objectCount;
+	}
+
+	/**
+	 * Find the position of an object.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return position of the object; -1 if the index does not list it.
+	 */
+	public int findPosition(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne > 0 ? buf.getInt(fanout + 4 * (levelOne - 1)) : 0;
+		int high = buf.getInt(fanout + 4 * levelOne);
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(buf, oidLookup + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Obtain the name of an object.
+	 *
+	 * @param position
+	 *            position of the object.
+	 * @param dst
+	 *            buffer to receive the object's name.
+	 */
+	public void getObjectId(final int position, final MutableObjectId dst) {
+		final int p = oidLookup + position * Constants.OBJECT_ID_LENGTH;
+		dst.w1 = buf.getInt(p);
+		dst.w2 = buf.getInt(p + 4);
+		dst.w3 = buf.getInt(p + 8);
+		dst.w4 = buf.getInt(p + 12);
+		dst.w5 = buf.getInt(p + 16);
+	}
+
+	/**
+	 * @param position
+	 *            position of the object.
+	 * @return index into {@link #getPackNames()} of the pack holding the
+	 *         object.
+	 */
+	public int getPackId(final int position) {
+		return buf.getInt(objectOffsets + 8 * position);
+	}
+
+	/**
+	 * @param position
+	 *            position of the object.
+	 * @return offset of the object within its pack.
+	 * @throws IOException
+	 *             the index refers to a large offset it does not have.
+	 */
+	public long getOffset(final int position) throws IOException {
+		final int ofs = buf.getInt(objectOffsets + 8 * position + 4);
+		if (largeOffsets < 0 || (ofs & LARGE_OFFSET) == 0)
+			return ofs & 0xffffffffL;
+		final int n = ofs & ~LARGE_OFFSET;
+		if (n >= largeOffsetCount)
+			throw new IOException("Corrupt multi-pack index offset " + n);
+		return buf.getLong(largeOffsets + 8 * n);
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates multi-pack index files.
+ * <p>
+ * The writer merges the indexes of a set of packs, which are already sorted
+ * by object name, several times over: once to count the objects, and once for
+ * each table it writes. Only one entry per pack is held in memory at a time,
+ * no matter how many objects the packs contain. The result is usually
+ * installed as <code>objects/pack/multi-pack-index</code>, where
+ * {@link Repository#scanForPacks()} will find it.
+ *
+ * @see MultiPackIndex
+ */
+public class MultiPackIndexWriter {
+	private static final Comparator<PackFile> BY_NAME = new Comparator<PackFile>() {
+		public int compare(final PackFile a, final PackFile b) {
+			return indexName(a).compareTo(indexName(b));
+		}
+	};
+
+	private final PackFile[] packs;
+
+	/** Preference of each pack for duplicate objects; lower wins. */
+	private final int[] rank;
+
+	private int objectCount;
+
+	private final byte[] tmp = new byte[12];
+
+	/**
+	 * Create a writer for a set of packs.
+	 *
+	 * @param packs
+	 *            the packs to cover. All of them must be in the same
+	 *            directory as the file being written.
+	 */
+	public MultiPackIndexWriter(final Collection<PackFile> packs) {
+		this.packs = packs.toArray(new PackFile[packs.size()]);
+		Arrays.sort(this.packs, BY_NAME);
+
+		final PackFile[] byAge = this.packs.clone();
+		Arrays.sort(byAge, PackFile.SORT);
+		rank = new int[this.packs.length];
+		for (int i = 0; i < byAge.length; i++)
+			rank[Arrays.binarySearch(this.packs, byAge[i], BY_NAME)] = i;
+	}
+
+	/** @return number of objects in the last file written. */
+	public int getObjectCount() {
+		return objectCount;
+	}
+
+	/**
+	 * Write the multi-pack index file.
+	 * <p>
+	 * After writing the stream is flushed but remains open.
+	 *
+	 * @param dst
+	 *            the stream to write to. If the stream is not buffered it
+	 *            will be automatically wrapped in a buffered stream.
+	 * @throws IOException
+	 *             an index of a pack could not be read, or an error occurred
+	 *             while writing to the output stream.
+	 */
+	public void write(final OutputStream dst) throws IOException {
+		// Load every index now; iterating a pack hides index errors.
+		//
+		for (final PackFile p : packs)
+			p.getObjectCount();
+
+		final int[] fanout = new int[256];
+		int largeCount = 0;
+		boolean largeNeeded = false;
+		int n = 0;
+		for (final Merge m = new Merge(); m.next();) {
+			fanout[m.id.getFirstByte()]++;
+			if (m.offset > 0x7fffffffL)
+				largeCount++;
+			if (m.offset > 0xffffffffL)
+				largeNeeded = true;
+			n++;
+		}
+		for (int k = 1; k < 256; k++)
+			fanout[k] += fanout[k - 1];
+		if (!largeNeeded)
+			largeCount = 0;
+
+		final byte[] names = packNames();
+		final DigestOutputStream out = new DigestOutputStream(
+				dst instanceof BufferedOutputStream ? dst
+						: new BufferedOutputStream(dst), Constants
+						.newMessageDigest());
+		final int chunkCount = largeNeeded ? 5 : 4;
+
+		out.write(MultiPackIndex.MAGIC);
+		tmp[0] = 1; // version
+		tmp[1] = 1; // SHA-1
+		tmp[2] = (byte) chunkCount;
+		tmp[3] = 0; // no base indexes
+		NB.encodeInt32(tmp, 4, packs.length);
+		out.write(tmp, 0, 8);
+
+		long ptr = MultiPackIndex.HEADER_LENGTH + 12 * (chunkCount + 1);
+		ptr = writeChunkHeader(out, MultiPackIndex.CHUNK_PACK_NAMES, ptr,
+				names.length);
+		ptr = writeChunkHeader(out, MultiPackIndex.CHUNK_OID_FANOUT, ptr,
+				256 * 4);
+		ptr = writeChunkHeader(out, MultiPackIndex.CHUNK_OID_LOOKUP, ptr,
+				(long) n * Constants.OBJECT_ID_LENGTH);
+		ptr = writeChunkHeader(out, MultiPackIndex.CHUNK_OBJECT_OFFSETS, ptr,
+				(long) n * 8);
+		if (largeNeeded)
+			ptr = writeChunkHeader(out, MultiPackIndex.CHUNK_LARGE_OFFSETS,
+					ptr, 8L * largeCount);
+		writeChunkHeader(out, 0, ptr, 0);
+
+		out.write(names);
+
+		for (int k = 0; k < 256; k++) {
+			NB.encodeInt32(tmp, 0, fanout[k]);
+			out.write(tmp, 0, 4);
+		}
+
+		for (final Merge m = new Merge(); m.next();)
+			m.id.copyRawTo(out);
+
+		int large = 0;
+		for (final Merge m = new Merge(); m.next();) {
+			NB.encodeInt32(tmp, 0, m.packId);
+			if (largeNeeded && m.offset > 0x7fffffffL)
+				NB.encodeInt32(tmp, 4, MultiPackIndex.LARGE_OFFSET | large++);
+			else
+				NB.encodeInt32(tmp, 4, (int) m.offset);
+			out.write(tmp, 0, 8);
+		}
+
+		if (largeNeeded) {
+			for (final Merge m = new Merge(); m.next();) {
+				if (m.offset > 0x7fffffffL) {
+					NB.encodeInt64(tmp, 0, m.offset);
+					out.write(tmp, 0, 8);
+				}
+			}
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+		objectCount = n;
+	}
+
+	private byte[] packNames() {
+		int len = 0;
+		for (final PackFile p : packs)
+			len += indexName(p).length() + 1;
+		final byte[] r = new byte[(len + 3) & ~3];
+		int ptr = 0;
+		for (final PackFile p : packs) {
+			final String s = indexName(p);
+			for (int i = 0; i < s.length(); i++)
+				r[ptr++] = (byte) s.charAt(i);
+			ptr++; // NUL terminator
+		}
+		return r;
+	}
+
+	private static String indexName(final PackFile p) {
+		final String n = p.getPackFile().getName();
+		return n.substring(0, n.length() - ".pack".length()) + ".idx";
+	}
+
+	private long writeChunkHeader(final OutputStream out, final int id,
+			final long ptr, final long len) throws IOException {
+		NB.encodeInt32(tmp, 0, id);
+		NB.encodeInt64(tmp, 4, ptr);
+		out.write(tmp, 0, 12);
+		return ptr + len;
+	}
+
+	private static int compare(final AnyObjectId a, final AnyObjectId b) {
+		int cmp;
+
+		cmp = NB.compareUInt32(a.w1, b.w1);
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(a.w2, b.w2);
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(a.w3, b.w3);
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(a.w4, b.w4);
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(a.w5, b.w5);
+	}
+
+	/** Objects of all packs in name order, each name once. */
+	private class Merge {
+		private final PriorityQueue<Source> queue;
+
+		final MutableObjectId id = new MutableObjectId();
+
+		int packId;
+
+		long offset;
+
+		Merge() {
+			queue = new PriorityQueue<Source>(Math.max(1, packs.length));
+			for (int i = 0; i < packs.length; i++) {
+				final Source s = new Source(i, packs[i].iterator());
+				if (s.advance())
+					queue.add(s);
+			}
+		}
+
+		boolean next() {
+			final Source s = queue.poll();
+			if (s == null)
+				return false;
+
+			// Of the packs holding this object the head of the queue
+			// has the lowest rank. Skip the object in all others.
+			//
+			id.fromObjectId(s.entry.idBuffer);
+			packId = s.packId;
+			offset = s.entry.getOffset();
+			if (s.advance())
+				queue.add(s);
+			Source dup;
+			while ((dup = queue.peek()) != null
+					&& compare(dup.entry.idBuffer, id) == 0) {
+				queue.poll();
+				if (dup.advance())
+					queue.add(dup);
+			}
+			return true;
+		}
+	}
+
+	private class Source implements Comparable<Source> {
+		final int packId;
+
+		private final Iterator<PackIndex.MutableEntry> itr;
+
+		PackIndex.MutableEntry entry;
+
+		Source(final int packId, final Iterator<PackIndex.MutableEntry> itr) {
+			this.packId = packId;
+			this.itr = itr;
+		}
+
+		boolean advance() {
+			if (!itr.hasNext())
+				return false;
+			entry = itr.next();
+			entry.ensureId();
+			return true;
+		}
+
+		public int compareTo(final Source o) {
+			final int cmp = compare(entry.idBuffer, o.entry.idBuffer);
+			if (cmp != 0)
+				return cmp;
+			return rank[packId] - rank[o.packId];
+		}
+	}
+}
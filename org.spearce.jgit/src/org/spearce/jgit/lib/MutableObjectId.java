@@ -66,6 +66,20 @@ public MutableObjectId() {
 		this.w5 = src.w5;
 	}
 
+	/**
+	 * Make this id match another id.
+	 *
+	 * @param src
+	 *            the id to copy.
+	 */
+	public void fromObjectId(final AnyObjectId src) {
+		this.w1 = src.w1;
+		this.w2 = src.w2;
+		this.w3 = src.w3;
+		this.w4 = src.w4;
+		this.w5 = src.w5;
+	}
+
 	/** Make this id match {@link ObjectId#zeroId()}. */
 	public void clear() {
 		w1 = 0;
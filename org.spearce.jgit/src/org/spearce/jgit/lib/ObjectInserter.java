@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Inserts new objects into a repository.
+ * <p>
+ * Depending on the implementation, objects may only become visible to readers
+ * of the repository after {@link #flush()}. Callers must flush before they
+ * make the objects reachable, e.g. by updating a ref, and must call
+ * {@link #release()} when done.
+ *
+ * @see Repository#newObjectInserter()
+ * @see Repository#newPackInserter()
+ */
+public abstract class ObjectInserter {
+	private final MessageDigest md = Constants.newMessageDigest();
+
+	/**
+	 * Compute the name of an object, without inserting it.
+	 *
+	 * @param type
+	 *            type code of the object, e.g. {@link Constants#OBJ_BLOB}.
+	 * @param data
+	 *            complete content of the object.
+	 * @param off
+	 *            first byte of the content in <code>data</code>.
+	 * @param len
+	 *            number of bytes of content.
+	 * @return the name of the object.
+	 */
+	public ObjectId idFor(final int type, final byte[] data, final int off,
+			final int len) {
+		md.reset();
+		md.update(Constants.encodedTypeString(type));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(len));
+		md.update((byte) 0);
+		md.update(data, off, len);
+		return ObjectId.fromRaw(md.digest());
+	}
+
+	/**
+	 * Insert a single object.
+	 *
+	 * @param type
+	 *            type code of the object, e.g. {@link Constants#OBJ_BLOB}.
+	 * @param data
+	 *            complete content of the object.
+	 * @return the name of the object.
+	 * @throws IOException
+	 *             the object could not be stored.
+	 */
+	public ObjectId insert(final int type, final byte[] data)
+			throws IOException {
+		return insert(type, data, 0, data.length);
+	}
+
+	/**
+	 * Insert a single object.
+	 *
+	 * @param type
+	 *            type code of the object, e.g. {@link Constants#OBJ_BLOB}.
+	 * @param data
+	 *            complete content of the object.
+	 * @param off
+	 *            first byte of the content in <code>data</code>.
+	 * @param len
+	 *            number of bytes of content.
+	 * @return the name of the object.
+	 * @throws IOException
+	 *             the object could not be stored.
+	 */
+	public ObjectId insert(final int type, final byte[] data, final int off,
+			final int len) throws IOException {
+		return insert(type, len, new ByteArrayInputStream(data, off, len));
+	}
+
+	/**
+	 * Insert a single object, reading its content from a stream.
+	 *
+	 * @param type
+	 *            type code of the object, e.g. {@link Constants#OBJ_BLOB}.
+	 * @param len
+	 *            number of bytes to consume from the stream.
+	 * @param in
+	 *            stream supplying the content.
+	 * @return the name of the object.
+	 * @throws IOException
+	 *             the stream ended early, or the object could not be stored.
+	 */
+	public abstract ObjectId insert(int type, long len, InputStream in)
+			throws IOException;
+
+	/**
+	 * Make all inserted objects visible to readers of the repository.
+	 *
+	 * @throws IOException
+	 *             the objects could not be stored.
+	 */
+	public abstract void flush() throws IOException;
+
+	/** Discard anything not yet flushed and free the resources used. */
+	public abstract void release();
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Objects of a batch, in the order they are stored on disk.
+ * <p>
+ * Opening objects one at a time with
+ * {@link Repository#openObject(WindowCursor, AnyObjectId)} searches the packs
+ * for every object, and reads land wherever the objects happen to be, which
+ * keeps replacing the windows of {@link WindowCache}. A queue obtained from
+ * {@link Repository#openObjects(WindowCursor, Iterable)} locates every object
+ * of a batch up front, then returns them grouped by pack and sorted by their
+ * offset within the pack, so the pack files are read front to back. Objects
+ * not found in any pack are returned last, in the order they were given.
+ * <p>
+ * Use the queue like an iterator:
+ *
+ * <pre>
+ * ObjectLoaderQueue&lt;RevTree&gt; q = db.openObjects(curs, trees);
+ * while (q.next()) {
+ * 	ObjectLoader ldr = q.open();
+ * 	if (ldr == null)
+ * 		throw new MissingObjectException(q.getCurrent(), Constants.TYPE_TREE);
+ * 	...
+ * }
+ * </pre>
+ *
+ * @param <T>
+ *            type of object identifier supplied by the caller.
+ */
+public class ObjectLoaderQueue<T extends AnyObjectId> {
+	private static final Comparator<Entry<?>> BY_POSITION = new Comparator<Entry<?>>() {
+		public int compare(final Entry<?> a, final Entry<?> b) {
+			if (a.pack == null || b.pack == null)
+				return (a.pack == null ? 1 : 0) - (b.pack == null ? 1 : 0);
+			if (a.rank != b.rank)
+				return a.rank - b.rank;
+			if (a.offset != b.offset)
+				return a.offset < b.offset ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private final Repository db;
+
+	private final WindowCursor curs;
+
+	private final Map<PackFile, Integer> ranks;
+
+	private final List<Entry<T>> entries;
+
+	private int next;
+
+	private Entry<T> current;
+
+	ObjectLoaderQueue(final Repository db, final WindowCursor curs,
+			final PackFile[] packOrder) {
+		this.db = db;
+		this.curs = curs;
+		ranks = new IdentityHashMap<PackFile, Integer>();
+		for (int i = 0; i < packOrder.length; i++)
+			ranks.put(packOrder[i], Integer.valueOf(i));
+		entries = new ArrayList<Entry<T>>();
+	}
+
+	void add(final T id, final PackFile pack, final long offset) {
+		final Integer r = ranks.get(pack);
+		entries.add(new Entry<T>(id, pack, r != null ? r.intValue()
+				: Integer.MAX_VALUE, offset));
+	}
+
+	void addUnpacked(final T id) {
+		entries.add(new Entry<T>(id, null, 0, 0));
+	}
+
+	void sort() {
+		Collections.sort(entries, BY_POSITION);
+	}
+
+	/** @return total number of objects the queue returns. */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Move to the next object.
+	 *
+	 * @return true if there is a next object; false if the queue is empty.
+	 */
+	public boolean next() {
+		if (next == entries.size()) {
+			current = null;
+			return false;
+		}
+		current = entries.get(next);
+		entries.set(next++, null);
+		return true;
+	}
+
+	/** @return the object the queue is positioned at. */
+	public T getCurrent() {
+		return current.id;
+	}
+
+	/**
+	 * Determine if the current object exists, without opening it.
+	 *
+	 * @return true if the object is in a pack or stored loose.
+	 */
+	public boolean exists() {
+		return current.pack != null || db.toFile(current.id).isFile();
+	}
+
+	/**
+	 * Open the current object.
+	 *
+	 * @return a loader for the object's data; null if the object does not
+	 *         exist. Queues searching all packs only return packed objects,
+	 *         through a {@link PackedObjectLoader}.
+	 * @throws IOException
+	 *             the pack file or loose object could not be read.
+	 */
+	public ObjectLoader open() throws IOException {
+		if (current.pack != null) {
+			try {
+				return current.pack.get(curs, current.offset);
+			} catch (IOException e) {
+				// A repack may have deleted the pack after the queue was
+				// built. Look the object up again before giving up.
+				//
+				final ObjectLoader ol = db.openObject(curs, current.id);
+				if (ol == null)
+					throw e;
+				return ol;
+			}
+		}
+		try {
+			return new UnpackedObjectLoader(db, current.id);
+		} catch (FileNotFoundException fnfe) {
+			return null;
+		}
+	}
+
+	private static class Entry<T> {
+		final T id;
+
+		final PackFile pack;
+
+		final int rank;
+
+		final long offset;
+
+		Entry(final T id, final PackFile pack, final int rank,
+				final long offset) {
+			this.id = id;
+			this.pack = pack;
+			this.rank = rank;
+			this.offset = offset;
+		}
+	}
+}
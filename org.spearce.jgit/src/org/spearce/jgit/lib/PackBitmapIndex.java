@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Reachability bitmaps for selected commits of a single pack.
+ * <p>
+ * Every object of the pack is numbered by its position in the pack file, the
+ * object at the lowest offset being 0. A commit's bitmap has the position of
+ * every object reachable from that commit set. As packs are closed under
+ * reachability, the set of objects reachable from several commits is the OR
+ * of their bitmaps, and the objects one side has that another lacks is the
+ * first set AND-NOT the second, without parsing a single commit or tree.
+ * <p>
+ * The file is stored next to the pack as <code>pack-*.bitmap</code>, in the
+ * format written by C git.
+ *
+ * @see BitmapWalker
+ */
+abstract class PackBitmapIndex {
+	/** Magic number at the start of a bitmap file. */
+	static final byte[] MAGIC = { 'B', 'I', 'T', 'M' };
+
+	/** Bitmaps include every object reachable from their commit. */
+	static final int OPT_FULL_DAG = 1;
+
+	/** A path name hash of every object follows the bitmaps. */
+	static final int OPT_HASH_CACHE = 4;
+
+	/**
+	 * Open an existing <code>.bitmap</code> file for reading.
+	 *
+	 * @param bitmapFile
+	 *            the file to read.
+	 * @param idx
+	 *            index of the pack the bitmaps describe.
+	 * @param reverseIdx
+	 *            reverse index of the same pack.
+	 * @return access implementation for the file.
+	 * @throws IOException
+	 *             the file could not be read, is in an unknown format or does
+	 *             not belong to the pack.
+	 */
+	static PackBitmapIndex open(final File bitmapFile, final PackIndex idx,
+			final PackReverseIndex reverseIdx) throws IOException {
+		final FileInputStream fd = new FileInputStream(bitmapFile);
+		try {
+			final long len = bitmapFile.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Bitmap index too large");
+			final byte[] buf = new byte[(int) len];
+			NB.readFully(fd, buf, 0, buf.length);
+			return new PackBitmapIndexV1(buf, idx, reverseIdx);
+		} catch (IOException ioe) {
+			final String path = bitmapFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException("Unreadable pack bitmap index: " + path);
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+	}
+
+	/** @return number of objects in the pack; also the size of each bitmap. */
+	abstract int getObjectCount();
+
+	/**
+	 * Find the bit position of an object.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return position of the object; -1 if it is not in the pack.
+	 */
+	abstract int findPosition(AnyObjectId id);
+
+	/**
+	 * @param position
+	 *            bit position of an object.
+	 * @return the object's id.
+	 */
+	abstract ObjectId getObject(int position);
+
+	/**
+	 * @param position
+	 *            bit position of an object.
+	 * @return the object's type, such as {@link Constants#OBJ_BLOB}.
+	 */
+	abstract int getType(int position);
+
+	/**
+	 * @param position
+	 *            bit position of an object.
+	 * @return hash of the path the object was found at, as computed by
+	 *         {@link PackWriter}; 0 if unknown.
+	 */
+	abstract int getPathHash(int position);
+
+	/**
+	 * Get the reachability bitmap of a commit.
+	 *
+	 * @param commit
+	 *            the commit.
+	 * @return a new bitmap of all objects reachable from <code>commit</code>,
+	 *         which the caller may modify; null if the commit was not
+	 *         selected for a bitmap.
+	 * @throws IOException
+	 *             the stored bitmap is corrupt.
+	 */
+	abstract EWAHBitmap getBitmap(AnyObjectId commit) throws IOException;
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+
+/**
+ * Bitmap index of a pack being written, collecting bitmaps in memory.
+ * <p>
+ * Bitmaps are held compressed until {@link PackBitmapIndexWriterV1} stores
+ * them. Bitmaps added earlier are used by {@link BitmapWalker} to compute
+ * later ones, so commits should be added oldest first.
+ */
+class PackBitmapIndexBuilder extends PackBitmapIndex {
+	private final List<ObjectToPack> byName;
+
+	private final ObjectToPack[] byOffset;
+
+	private final ObjectIdSubclassMap<Position> positions;
+
+	private final ObjectIdSubclassMap<StoredBitmap> bitmaps;
+
+	private final List<StoredBitmap> bitmapList;
+
+	/**
+	 * Create an empty index for a pack that has been written.
+	 *
+	 * @param sortedByName
+	 *            all objects of the pack, sorted by name, with their offsets
+	 *            in the pack.
+	 */
+	PackBitmapIndexBuilder(final List<ObjectToPack> sortedByName) {
+		byName = sortedByName;
+		byOffset = sortedByName.toArray(new ObjectToPack[sortedByName.size()]);
+		Arrays.sort(byOffset, new Comparator<ObjectToPack>() {
+			public int compare(final ObjectToPack a, final ObjectToPack b) {
+				return Long.signum(a.getOffset() - b.getOffset());
+			}
+		});
+
+		positions = new ObjectIdSubclassMap<Position>();
+		for (int nth = 0; nth < sortedByName.size(); nth++)
+			positions.add(new Position(sortedByName.get(nth), nth));
+		for (int i = 0; i < byOffset.length; i++)
+			positions.get(byOffset[i]).position = i;
+		bitmaps = new ObjectIdSubclassMap<StoredBitmap>();
+		bitmapList = new ArrayList<StoredBitmap>();
+	}
+
+	/**
+	 * Remember the bitmap of a commit.
+	 *
+	 * @param commit
+	 *            the commit.
+	 * @param bitmap
+	 *            all objects reachable from <code>commit</code>.
+	 */
+	void addBitmap(final AnyObjectId commit, final EWAHBitmap bitmap) {
+		final StoredBitmap b = new StoredBitmap(commit, bitmap.encode());
+		bitmaps.add(b);
+		bitmapList.add(b);
+	}
+
+	/** @return objects of the pack sorted by name. */
+	List<ObjectToPack> getObjectsByName() {
+		return byName;
+	}
+
+	/**
+	 * @param id
+	 *            an object of the pack.
+	 * @return position of the object in the pack's index, sorted by name.
+	 */
+	int findIndexPosition(final AnyObjectId id) {
+		return positions.get(id).nth;
+	}
+
+	/** @return commits with a bitmap, in the order added. */
+	List<? extends ObjectId> getBitmapCommits() {
+		return Collections.unmodifiableList(bitmapList);
+	}
+
+	/**
+	 * @param commit
+	 *            a commit returned by {@link #getBitmapCommits()}.
+	 * @return the commit's bitmap, serialized.
+	 */
+	byte[] getEncodedBitmap(final AnyObjectId commit) {
+		return bitmaps.get(commit).bitmap;
+	}
+
+	/**
+	 * @param type
+	 *            an object type, such as {@link Constants#OBJ_TREE}.
+	 * @return bitmap of all objects of that type.
+	 */
+	EWAHBitmap getTypeBitmap(final int type) {
+		final EWAHBitmap r = new EWAHBitmap(byOffset.length);
+		for (int i = 0; i < byOffset.length; i++) {
+			if (byOffset[i].getType() == type)
+				r.set(i);
+		}
+		return r;
+	}
+
+	@Override
+	int getObjectCount() {
+		return byOffset.length;
+	}
+
+	@Override
+	int findPosition(final AnyObjectId id) {
+		final Position p = positions.get(id);
+		return p != null ? p.position : -1;
+	}
+
+	@Override
+	ObjectId getObject(final int position) {
+		return byOffset[position];
+	}
+
+	@Override
+	int getType(final int position) {
+		return byOffset[position].getType();
+	}
+
+	@Override
+	int getPathHash(final int position) {
+		return byOffset[position].getPathHash();
+	}
+
+	@Override
+	EWAHBitmap getBitmap(final AnyObjectId commit) throws IOException {
+		final StoredBitmap b = bitmaps.get(commit);
+		if (b == null)
+			return null;
+		return EWAHBitmap.decode(b.bitmap, 0, byOffset.length);
+	}
+
+	private static final class Position extends ObjectId {
+		final int nth;
+
+		int position;
+
+		Position(final AnyObjectId id, final int nth) {
+			super(id);
+			this.nth = nth;
+		}
+	}
+
+	private static final class StoredBitmap extends ObjectId {
+		final byte[] bitmap;
+
+		StoredBitmap(final AnyObjectId id, final byte[] bitmap) {
+			super(id);
+			this.bitmap = bitmap;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.spearce.jgit.util.NB;
+
+/** Support for the version 1 pack bitmap file format. */
+class PackBitmapIndexV1 extends PackBitmapIndex {
+	private final PackIndex idx;
+
+	private final PackReverseIndex reverseIdx;
+
+	private final int objectCount;
+
+	private final byte[] buf;
+
+	private final EWAHBitmap commits;
+
+	private final EWAHBitmap trees;
+
+	private final EWAHBitmap blobs;
+
+	private final EWAHBitmap tags;
+
+	private final ObjectIdSubclassMap<StoredBitmap> bitmaps;
+
+	/** Offset of the path hash cache in {@link #buf}; -1 if none. */
+	private final int hashCache;
+
+	PackBitmapIndexV1(final byte[] buf, final PackIndex idx,
+			final PackReverseIndex reverseIdx) throws IOException {
+		this.idx = idx;
+		this.reverseIdx = reverseIdx;
+		this.buf = buf;
+
+		final long cnt = idx.getObjectCount();
+		if (cnt > Integer.MAX_VALUE)
+			throw new IOException("Huge bitmap indexes are not supported");
+		objectCount = (int) cnt;
+
+		if (buf.length < 32 + Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Truncated bitmap index");
+		for (int i = 0; i < MAGIC.length; i++)
+			if (buf[i] != MAGIC[i])
+				throw new IOException("Not a bitmap index");
+		final int version = NB.decodeUInt16(buf, 4);
+		if (version != 1)
+			throw new IOException("Unsupported bitmap index version "
+					+ version);
+		final int options = NB.decodeUInt16(buf, 6);
+		if ((options & OPT_FULL_DAG) == 0)
+			throw new IOException("Bitmap index is not a full closure");
+		final int entryCount = NB.decodeInt32(buf, 8);
+		final byte[] csum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, 12, csum, 0, csum.length);
+		if (!Arrays.equals(csum, idx.packChecksum))
+			throw new IOException("Bitmap index is for another pack");
+
+		int ptr = 12 + Constants.OBJECT_ID_LENGTH;
+		commits = EWAHBitmap.decode(buf, ptr, objectCount);
+		ptr += EWAHBitmap.encodedLength(buf, ptr);
+		trees = EWAHBitmap.decode(buf, ptr, objectCount);
+		ptr += EWAHBitmap.encodedLength(buf, ptr);
+		blobs = EWAHBitmap.decode(buf, ptr, objectCount);
+		ptr += EWAHBitmap.encodedLength(buf, ptr);
+		tags = EWAHBitmap.decode(buf, ptr, objectCount);
+		ptr += EWAHBitmap.encodedLength(buf, ptr);
+
+		bitmaps = new ObjectIdSubclassMap<StoredBitmap>();
+		final StoredBitmap[] recent = new StoredBitmap[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			if (buf.length < ptr + 6 + 12)
+				throw new IOException("Truncated bitmap index");
+			final long nth = NB.decodeUInt32(buf, ptr);
+			final int xor = buf[ptr + 4] & 0xff;
+			ptr += 6;
+			if (cnt <= nth || i < xor)
+				throw new IOException("Corrupt bitmap index entry " + i);
+
+			final StoredBitmap b = new StoredBitmap(idx.getObjectId(nth), ptr,
+					xor == 0 ? null : recent[i - xor]);
+			recent[i] = b;
+			bitmaps.add(b);
+			ptr += EWAHBitmap.encodedLength(buf, ptr);
+		}
+
+		if ((options & OPT_HASH_CACHE) != 0) {
+			hashCache = ptr;
+			ptr += 4 * objectCount;
+		} else
+			hashCache = -1;
+		if (buf.length < ptr + Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Truncated bitmap index");
+	}
+
+	@Override
+	int getObjectCount() {
+		return objectCount;
+	}
+
+	@Override
+	int findPosition(final AnyObjectId id) {
+		final long offset = idx.findOffset(id);
+		if (offset < 0)
+			return -1;
+		return reverseIdx.findPosition(offset);
+	}
+
+	@Override
+	ObjectId getObject(final int position) {
+		return reverseIdx.findObjectByPosition(position);
+	}
+
+	@Override
+	int getType(final int position) {
+		if (commits.get(position))
+			return Constants.OBJ_COMMIT;
+		if (trees.get(position))
+			return Constants.OBJ_TREE;
+		if (blobs.get(position))
+			return Constants.OBJ_BLOB;
+		if (tags.get(position))
+			return Constants.OBJ_TAG;
+		return Constants.OBJ_BAD;
+	}
+
+	@Override
+	int getPathHash(final int position) {
+		if (hashCache < 0)
+			return 0;
+		final int nth = reverseIdx.findIndexPosition(position);
+		return NB.decodeInt32(buf, hashCache + 4 * nth);
+	}
+
+	@Override
+	EWAHBitmap getBitmap(final AnyObjectId commit) throws IOException {
+		StoredBitmap b = bitmaps.get(commit);
+		if (b == null)
+			return null;
+		final EWAHBitmap r = EWAHBitmap.decode(buf, b.ptr, objectCount);
+		while ((b = b.xorBase) != null)
+			r.xor(EWAHBitmap.decode(buf, b.ptr, objectCount));
+		return r;
+	}
+
+	/** A commit's bitmap, possibly stored as the XOR of an earlier one. */
+	private static final class StoredBitmap extends ObjectId {
+		final int ptr;
+
+		final StoredBitmap xorBase;
+
+		StoredBitmap(final AnyObjectId id, final int ptr,
+				final StoredBitmap xorBase) {
+			super(id);
+			this.ptr = ptr;
+			this.xorBase = xorBase;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.List;
+
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates version 1 pack bitmap files.
+ * <p>
+ * The file holds a header naming the pack by its checksum, one bitmap per
+ * object type, the bitmaps of the selected commits (each identified by its
+ * position in the pack's <code>.idx</code>), a path name hash for every object
+ * in <code>.idx</code> order, and a SHA-1 of all preceding bytes.
+ *
+ * @see PackBitmapIndexV1
+ */
+class PackBitmapIndexWriterV1 {
+	private final DigestOutputStream out;
+
+	private final byte[] tmp = new byte[8];
+
+	/**
+	 * Create a writer.
+	 *
+	 * @param dst
+	 *            the stream to write to. If the stream is not buffered it
+	 *            will be automatically wrapped in a buffered stream.
+	 */
+	PackBitmapIndexWriterV1(final OutputStream dst) {
+		out = new DigestOutputStream(dst instanceof BufferedOutputStream ? dst
+				: new BufferedOutputStream(dst), Constants.newMessageDigest());
+	}
+
+	/**
+	 * Write the bitmap file.
+	 * <p>
+	 * After writing the stream is flushed but remains open.
+	 *
+	 * @param index
+	 *            the bitmaps to store.
+	 * @param packDataChecksum
+	 *            checksum signature of the entire pack data content.
+	 * @throws IOException
+	 *             an error occurred while writing to the output stream.
+	 */
+	void write(final PackBitmapIndexBuilder index,
+			final byte[] packDataChecksum) throws IOException {
+		final List<ObjectToPack> byName = index.getObjectsByName();
+		final List<? extends ObjectId> commits = index.getBitmapCommits();
+
+		out.write(PackBitmapIndex.MAGIC);
+		NB.encodeInt16(tmp, 0, 1);
+		NB.encodeInt16(tmp, 2, PackBitmapIndex.OPT_FULL_DAG
+				| PackBitmapIndex.OPT_HASH_CACHE);
+		NB.encodeInt32(tmp, 4, commits.size());
+		out.write(tmp, 0, 8);
+		out.write(packDataChecksum);
+
+		out.write(index.getTypeBitmap(Constants.OBJ_COMMIT).encode());
+		out.write(index.getTypeBitmap(Constants.OBJ_TREE).encode());
+		out.write(index.getTypeBitmap(Constants.OBJ_BLOB).encode());
+		out.write(index.getTypeBitmap(Constants.OBJ_TAG).encode());
+
+		for (final ObjectId c : commits) {
+			NB.encodeInt32(tmp, 0, index.findIndexPosition(c));
+			tmp[4] = 0; // not XOR'd against another bitmap
+			tmp[5] = 0; // no flags
+			out.write(tmp, 0, 6);
+			out.write(index.getEncodedBitmap(c));
+		}
+
+		for (final ObjectToPack otp : byName) {
+			NB.encodeInt32(tmp, 0, otp.getPathHash());
+			out.write(tmp, 0, 4);
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+}
@@ -76,6 +76,10 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private boolean bitmapIdxLoaded;
+
 	/**
 	 * Construct a reader for an existing, pre-indexed packfile.
 	 * 
@@ -97,7 +101,7 @@ protected void onOpen() throws IOException {
 
 	private synchronized PackIndex idx() throws IOException {
 		if (loadedIdx == null) {
-			loadedIdx = PackIndex.open(idxFile);
+			loadedIdx = PackIndexCache.acquire(idxFile);
 		}
 		return loadedIdx;
 	}
@@ -147,14 +151,48 @@ public PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 		return 0 < offset ? reader(curs, offset) : null;
 	}
 
+	/**
+	 * Locate an object in this pack.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return offset of the object's header; -1 if the pack does not have it.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	final long findOffset(final AnyObjectId id) throws IOException {
+		return idx().findOffset(id);
+	}
+
+	/**
+	 * Get the object stored at an offset of this pack.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param offset
+	 *            position of the object's header, as listed by an index.
+	 * @return the object loader for the object at that position.
+	 * @throws IOException
+	 *             the pack file could not be read.
+	 */
+	final PackedObjectLoader get(final WindowCursor curs, final long offset)
+			throws IOException {
+		return reader(curs, offset);
+	}
+
 	/**
 	 * Close the resources utilized by this repository
 	 */
 	public void close() {
-		UnpackedObjectCache.purge(pack);
+		DeltaBaseCache.purge(pack);
 		pack.close();
 		synchronized (this) {
+			if (loadedIdx != null)
+				PackIndexCache.release(loadedIdx);
 			loadedIdx = null;
+			reverseIdx = null;
+			bitmapIdx = null;
+			bitmapIdxLoaded = false;
 		}
 	}
 
@@ -204,12 +242,12 @@ ObjectId findObjectForOffset(final long offset) throws IOException {
 		return getReverseIdx().findObject(offset);
 	}
 
-	final UnpackedObjectCache.Entry readCache(final long position) {
-		return UnpackedObjectCache.get(pack, position);
+	final DeltaBaseCache.Entry readCache(final long position) {
+		return DeltaBaseCache.get(pack, position);
 	}
 
 	final void saveCache(final long position, final byte[] data, final int type) {
-		UnpackedObjectCache.store(pack, position, data, type);
+		DeltaBaseCache.store(pack, position, data, type);
 	}
 
 	final byte[] decompress(final long position, final int totalSize,
@@ -358,6 +396,35 @@ private long findEndOffset(final long startOffset)
 		return getReverseIdx().findNextOffset(startOffset, maxOffset);
 	}
 
+	/**
+	 * Get the reachability bitmaps stored next to this pack.
+	 *
+	 * @return the bitmap index; null if the pack has none, or it could not
+	 *         be used.
+	 * @throws IOException
+	 *             the pack index could not be read.
+	 */
+	synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		if (!bitmapIdxLoaded) {
+			final String n = idxFile.getName();
+			final File f = new File(idxFile.getParentFile(), n.substring(0, n
+					.length() - ".idx".length())
+					+ ".bitmap");
+			if (f.isFile()) {
+				final PackIndex idx = idx();
+				try {
+					bitmapIdx = PackBitmapIndex.open(f, idx, getReverseIdx());
+				} catch (IOException notUsable) {
+					// Bitmaps only speed up object counting. A stale or
+					// corrupt file is ignored, as C git does.
+					bitmapIdx = null;
+				}
+			}
+			bitmapIdxLoaded = true;
+		}
+		return bitmapIdx;
+	}
+
 	private synchronized PackReverseIndex getReverseIdx() throws IOException {
 		if (reverseIdx == null)
 			reverseIdx = new PackReverseIndex(idx());
@@ -83,6 +83,8 @@ public static PackIndex open(final File idxFile) throws IOException {
 				final int v = NB.decodeInt32(hdr, 4);
 				switch (v) {
 				case 2:
+					if (idxFile.length() <= Integer.MAX_VALUE)
+						return PackIndexV2Mapped.map(idxFile);
 					return new PackIndexV2(fd);
 				default:
 					throw new IOException("Unsupported pack index version " + v);
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Process wide table of open pack indexes.
+ * <p>
+ * Several {@link Repository} instances may open the same object directory,
+ * for example a daemon serving many clients, or repositories sharing packs
+ * through alternates. Each of them creates its own {@link PackFile}, but they
+ * all find the same {@link PackIndex} here, keyed by the canonical path of
+ * the <code>.idx</code> file. An index is dropped from the table when the
+ * last pack using it has released it, or replaced when the file on disk no
+ * longer has the size and modification time it was opened with.
+ */
+class PackIndexCache {
+	private static final Map<File, Entry> byFile = new HashMap<File, Entry>();
+
+	private static final Map<PackIndex, Entry> byIndex = new IdentityHashMap<PackIndex, Entry>();
+
+	/**
+	 * Obtain the index for a file, opening it if nobody else has.
+	 * <p>
+	 * Every successful call must be paired with {@link #release(PackIndex)}.
+	 *
+	 * @param idxFile
+	 *            the <code>.idx</code> file.
+	 * @return the shared index.
+	 * @throws IOException
+	 *             the index could not be opened.
+	 */
+	static PackIndex acquire(final File idxFile) throws IOException {
+		final File key = idxFile.getCanonicalFile();
+		final long modified = key.lastModified();
+		final long length = key.length();
+		synchronized (PackIndexCache.class) {
+			final Entry e = byFile.get(key);
+			if (e != null && e.modified == modified && e.length == length) {
+				e.refs++;
+				return e.idx;
+			}
+		}
+
+		// Open outside of the lock; a v1 index has to be read entirely.
+		//
+		final PackIndex idx = PackIndex.open(idxFile);
+		synchronized (PackIndexCache.class) {
+			final Entry e = byFile.get(key);
+			if (e != null && e.modified == modified && e.length == length) {
+				e.refs++;
+				return e.idx;
+			}
+
+			final Entry n = new Entry(key, idx, modified, length);
+			byFile.put(key, n);
+			byIndex.put(idx, n);
+			return idx;
+		}
+	}
+
+	/**
+	 * Release an index obtained from {@link #acquire(File)}.
+	 *
+	 * @param idx
+	 *            the index to release.
+	 */
+	static synchronized void release(final PackIndex idx) {
+		final Entry e = byIndex.get(idx);
+		if (e != null && --e.refs == 0) {
+			byIndex.remove(idx);
+			if (byFile.get(e.file) == e)
+				byFile.remove(e.file);
+		}
+	}
+
+	/** @return number of distinct indexes currently open. */
+	static synchronized int size() {
+		return byIndex.size();
+	}
+
+	private PackIndexCache() {
+		// Static utility class only.
+	}
+
+	private static class Entry {
+		final File file;
+
+		final PackIndex idx;
+
+		final long modified;
+
+		final long length;
+
+		int refs = 1;
+
+		Entry(final File file, final PackIndex idx, final long modified,
+				final long length) {
+			this.file = file;
+			this.idx = idx;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+}
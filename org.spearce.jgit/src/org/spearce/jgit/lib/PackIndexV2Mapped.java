@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2008, Shawn O. Pearce <spearce@spearce.org>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+
+/**
+ * Support for the pack index v2 format, read through a memory mapping.
+ * <p>
+ * Unlike {@link PackIndexV2} nothing is copied onto the heap. The fan-out
+ * table and the binary search over the object names run directly against the
+ * mapped file, so opening the index costs a constant amount of time no matter
+ * how many objects it lists, and the pages are shared with any other process
+ * that has the same index mapped.
+ */
+class PackIndexV2Mapped extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	private static final int FANOUT_START = 8;
+
+	private static final int NAMES_START = FANOUT_START + 4 * FANOUT;
+
+	private static final int TRAILER = 2 * Constants.OBJECT_ID_LENGTH;
+
+	/**
+	 * Map an index file.
+	 *
+	 * @param idxFile
+	 *            the v2 index file. Must be no larger than 2 GB.
+	 * @return the index.
+	 * @throws IOException
+	 *             the file cannot be mapped, or is not a valid v2 index.
+	 */
+	static PackIndexV2Mapped map(final File idxFile) throws IOException {
+		final RandomAccessFile fd = new RandomAccessFile(idxFile, "r");
+		try {
+			final long sz = fd.length();
+			if (sz > Integer.MAX_VALUE)
+				throw new IOException("Index file is too large to map");
+			return new PackIndexV2Mapped(fd.getChannel().map(
+					MapMode.READ_ONLY, 0, sz));
+		} finally {
+			fd.close();
+		}
+	}
+
+	private final ByteBuffer map;
+
+	private final int objectCnt;
+
+	private final int crcStart;
+
+	private final int offset32Start;
+
+	private final int offset64Start;
+
+	private final int offset64Cnt;
+
+	PackIndexV2Mapped(final ByteBuffer map) throws IOException {
+		this.map = map;
+
+		final int len = map.limit();
+		if (len < NAMES_START + TRAILER)
+			throw new IOException("Truncated pack index");
+
+		long prior = 0;
+		for (int k = 0; k < FANOUT; k++) {
+			final long cnt = fanout(k);
+			if (cnt < prior)
+				throw new IOException("Corrupt pack index fan-out table");
+			prior = cnt;
+		}
+
+		// Each object uses 20 bytes of name, 4 of CRC and 4 of offset; the
+		// remaining space before the trailer must be whole 64 bit offsets.
+		//
+		final long tables = NAMES_START + 28 * prior;
+		final long rem = len - TRAILER - tables;
+		if (rem < 0 || rem % 8 != 0)
+			throw new IOException("Pack index size does not match its"
+					+ " object count of " + prior);
+
+		objectCnt = (int) prior;
+		crcStart = NAMES_START + Constants.OBJECT_ID_LENGTH * objectCnt;
+		offset32Start = crcStart + 4 * objectCnt;
+		offset64Start = offset32Start + 4 * objectCnt;
+		offset64Cnt = (int) (rem / 8);
+
+		packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < packChecksum.length; i++)
+			packChecksum[i] = map.get(len - TRAILER + i);
+	}
+
+	@Override
+	long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	long getOffset64Count() {
+		return offset64Cnt;
+	}
+
+	@Override
+	ObjectId getObjectId(final long nthPosition) {
+		final int p = NAMES_START + Constants.OBJECT_ID_LENGTH
+				* (int) nthPosition;
+		return new ObjectId(map.getInt(p), map.getInt(p + 4), map
+				.getInt(p + 8), map.getInt(p + 12), map.getInt(p + 16));
+	}
+
+	@Override
+	long findOffset(final AnyObjectId objId) {
+		final int pos = find(objId);
+		if (pos == -1)
+			return -1;
+		return offset(pos);
+	}
+
+	@Override
+	long findCRC32(final AnyObjectId objId) throws MissingObjectException {
+		final int pos = find(objId);
+		if (pos == -1)
+			throw new MissingObjectException(objId.copy(), "unknown");
+		return map.getInt(crcStart + 4 * pos) & 0xffffffffL;
+	}
+
+	@Override
+	boolean hasCRC32Support() {
+		return true;
+	}
+
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorV2Mapped();
+	}
+
+	private long fanout(final int k) {
+		return map.getInt(FANOUT_START + 4 * k) & 0xffffffffL;
+	}
+
+	private long offset(final int pos) {
+		final long p = map.getInt(offset32Start + 4 * pos) & 0xffffffffL;
+		if ((p & IS_O64) != 0)
+			return map.getLong(offset64Start + 8 * (int) (p & ~IS_O64));
+		return p;
+	}
+
+	private int find(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne == 0 ? 0 : (int) fanout(levelOne - 1);
+		int high = (int) fanout(levelOne);
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = objId.compareTo(map, NAMES_START
+					+ Constants.OBJECT_ID_LENGTH * mid);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	private class EntriesIteratorV2Mapped extends EntriesIterator {
+		private int current;
+
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					final int p = NAMES_START + Constants.OBJECT_ID_LENGTH
+							* current;
+					idBuffer.w1 = map.getInt(p);
+					idBuffer.w2 = map.getInt(p + 4);
+					idBuffer.w3 = map.getInt(p + 8);
+					idBuffer.w4 = map.getInt(p + 12);
+					idBuffer.w5 = map.getInt(p + 16);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (returnedNumber >= objectCnt)
+				throw new NoSuchElementException();
+			current = (int) returnedNumber++;
+			entry.offset = offset(current);
+			return entry;
+		}
+	}
+}
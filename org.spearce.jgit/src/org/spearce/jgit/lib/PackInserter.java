@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Writes new objects into a single new pack.
+ * <p>
+ * Objects are appended, whole and deflated, to a temporary pack file as they
+ * are inserted. {@link #flush()} completes the pack header and trailer, writes
+ * the index and opens the pack in the repository. Until then the objects are
+ * not visible to readers.
+ * <p>
+ * Objects larger than {@link #BUFFER_LIMIT} are not held in memory; they are
+ * streamed into loose files instead.
+ */
+class PackInserter extends ObjectInserter {
+	/** Largest object copied into memory to be written to the pack. */
+	static final int BUFFER_LIMIT = 1024 * 1024;
+
+	private static final Comparator<PackedObjectInfo> ID_CMP = new Comparator<PackedObjectInfo>() {
+		public int compare(final PackedObjectInfo a, final PackedObjectInfo b) {
+			return a.compareTo(b);
+		}
+	};
+
+	private final Repository db;
+
+	private final File packDir;
+
+	private final Deflater def;
+
+	private final CRC32 crc = new CRC32();
+
+	private final byte[] buf = new byte[8192];
+
+	private final byte[] hdr = new byte[16];
+
+	private final ObjectIdSubclassMap<PackedObjectInfo> objectMap = new ObjectIdSubclassMap<PackedObjectInfo>();
+
+	private final List<PackedObjectInfo> objectList = new ArrayList<PackedObjectInfo>();
+
+	private LooseObjectInserter loose;
+
+	private File tmpPack;
+
+	private OutputStream packOut;
+
+	/** Number of bytes written to {@link #packOut}. */
+	private long position;
+
+	PackInserter(final Repository d) {
+		db = d;
+		packDir = new File(db.getObjectsDirectory(), "pack");
+		def = new Deflater(db.getConfig().getCore().getCompression());
+	}
+
+	@Override
+	public ObjectId insert(final int type, final long len, final InputStream in)
+			throws IOException {
+		if (len > BUFFER_LIMIT) {
+			if (loose == null)
+				loose = new LooseObjectInserter(db);
+			return loose.insert(type, len, in);
+		}
+
+		final byte[] data = new byte[(int) len];
+		int n = 0;
+		while (n < data.length) {
+			final int r = in.read(data, n, data.length - n);
+			if (r <= 0)
+				throw new IOException("Input did not match supplied length. "
+						+ (data.length - n) + " bytes are missing.");
+			n += r;
+		}
+		return insert(type, data, 0, data.length);
+	}
+
+	@Override
+	public ObjectId insert(final int type, final byte[] data, final int off,
+			final int len) throws IOException {
+		final ObjectId id = idFor(type, data, off, len);
+		if (objectMap.get(id) != null || db.hasObject(id))
+			return id;
+
+		if (packOut == null)
+			beginPack();
+
+		final long start = position;
+		crc.reset();
+		write(hdr, 0, encodeHeader(type, len));
+		def.reset();
+		def.setInput(data, off, len);
+		def.finish();
+		while (!def.finished()) {
+			final int n = def.deflate(buf);
+			write(buf, 0, n);
+		}
+
+		final PackedObjectInfo oe = new PackedObjectInfo(id);
+		oe.setOffset(start);
+		oe.setCRC((int) crc.getValue());
+		objectMap.add(oe);
+		objectList.add(oe);
+		return id;
+	}
+
+	private void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		packOut.write(b, off, len);
+		crc.update(b, off, len);
+		position += len;
+	}
+
+	private int encodeHeader(final int type, long size) {
+		int n = 0;
+		int c = (type << 4) | (int) (size & 15);
+		size >>>= 4;
+		while (size != 0) {
+			hdr[n++] = (byte) (c | 0x80);
+			c = (int) (size & 0x7f);
+			size >>>= 7;
+		}
+		hdr[n++] = (byte) c;
+		return n;
+	}
+
+	private void beginPack() throws IOException {
+		packDir.mkdirs();
+		tmpPack = File.createTempFile("insert_", ".pack", packDir);
+		packOut = new BufferedOutputStream(new FileOutputStream(tmpPack));
+
+		// The object count is not known yet; flush() fills it in.
+		//
+		System.arraycopy(Constants.PACK_SIGNATURE, 0, hdr, 0, 4);
+		NB.encodeInt32(hdr, 4, 2);
+		NB.encodeInt32(hdr, 8, 0);
+		packOut.write(hdr, 0, 12);
+		position = 12;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (loose != null)
+			loose.flush();
+		if (packOut == null)
+			return;
+
+		File tmpIdx = null;
+		try {
+			packOut.close();
+			packOut = null;
+			final byte[] packHash = finishPack();
+
+			Collections.sort(objectList, ID_CMP);
+			tmpIdx = new File(packDir, tmpPack.getName().replace(".pack",
+					".idx"));
+			final FileOutputStream os = new FileOutputStream(tmpIdx);
+			try {
+				PackIndexWriter.createOldestPossible(os, objectList).write(
+						objectList, packHash);
+				os.getChannel().force(true);
+			} finally {
+				os.close();
+			}
+
+			final MessageDigest md = Constants.newMessageDigest();
+			final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			for (final PackedObjectInfo oe : objectList) {
+				oe.copyRawTo(raw, 0);
+				md.update(raw);
+			}
+			final String name = ObjectId.fromRaw(md.digest()).name();
+			final File finalPack = new File(packDir, "pack-" + name + ".pack");
+			final File finalIdx = new File(packDir, "pack-" + name + ".idx");
+			if (!finalPack.exists()) {
+				if (!tmpPack.renameTo(finalPack))
+					throw new IOException("Cannot move pack to " + finalPack);
+				if (!tmpIdx.renameTo(finalIdx)) {
+					finalPack.delete();
+					throw new IOException("Cannot move index to " + finalIdx);
+				}
+				try {
+					db.openPack(finalPack, finalIdx);
+				} catch (IOException err) {
+					finalPack.delete();
+					finalIdx.delete();
+					throw err;
+				}
+			}
+		} finally {
+			if (tmpIdx != null)
+				tmpIdx.delete();
+			discard();
+		}
+	}
+
+	/**
+	 * Fill in the object count, then append the trailing checksum.
+	 *
+	 * @return the checksum of the pack.
+	 * @throws IOException
+	 *             the temporary pack could not be rewritten.
+	 */
+	private byte[] finishPack() throws IOException {
+		final RandomAccessFile f = new RandomAccessFile(tmpPack, "rw");
+		try {
+			NB.encodeInt32(hdr, 0, objectList.size());
+			f.seek(8);
+			f.write(hdr, 0, 4);
+
+			final MessageDigest md = Constants.newMessageDigest();
+			f.seek(0);
+			for (long rem = position; rem > 0;) {
+				final int n = f.read(buf, 0, (int) Math.min(rem, buf.length));
+				if (n <= 0)
+					throw new IOException("Pack " + tmpPack + " truncated");
+				md.update(buf, 0, n);
+				rem -= n;
+			}
+			final byte[] packHash = md.digest();
+			f.write(packHash);
+			f.getChannel().force(true);
+			return packHash;
+		} finally {
+			f.close();
+		}
+	}
+
+	private void discard() {
+		if (packOut != null) {
+			try {
+				packOut.close();
+			} catch (IOException err) {
+				// Ignored; the file is deleted anyway.
+			}
+			packOut = null;
+		}
+		if (tmpPack != null) {
+			tmpPack.delete();
+			tmpPack = null;
+		}
+		objectMap.clear();
+		objectList.clear();
+		position = 0;
+	}
+
+	@Override
+	public void release() {
+		discard();
+		def.end();
+		if (loose != null) {
+			loose.release();
+			loose = null;
+		}
+	}
+}
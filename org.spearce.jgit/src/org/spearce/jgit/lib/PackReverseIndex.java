@@ -140,6 +140,54 @@ ObjectId findObject(final long offset) {
 		}
 	}
 
+	/**
+	 * Find the position of an object in offset order.
+	 * <p>
+	 * The first object of the pack has position 0, the next 1, and so on.
+	 * Positions are the bit numbers used by {@link PackBitmapIndex}.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return position of the object; -1 if no object starts at
+	 *         <code>offset</code>.
+	 */
+	int findPosition(final long offset) {
+		if (offset <= Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		} else {
+			final int i64 = Arrays.binarySearch(offsets64, offset);
+			return i64 < 0 ? -1 : offsets32.length + i64;
+		}
+	}
+
+	/**
+	 * Get the object at a position in offset order.
+	 *
+	 * @param position
+	 *            position of the object, as returned by
+	 *            {@link #findPosition(long)}.
+	 * @return object id at that position.
+	 */
+	ObjectId findObjectByPosition(final int position) {
+		return index.getObjectId(findIndexPosition(position));
+	}
+
+	/**
+	 * Get the position in the forward index of the object at a position in
+	 * offset order.
+	 *
+	 * @param position
+	 *            position of the object, as returned by
+	 *            {@link #findPosition(long)}.
+	 * @return the object's position in SHA-1 order.
+	 */
+	int findIndexPosition(final int position) {
+		if (position < offsets32.length)
+			return nth32[position];
+		return nth64[position - offsets32.length];
+	}
+
 	/**
 	 * Search for the next offset to the specified offset in this pack (reverse)
 	 * index.
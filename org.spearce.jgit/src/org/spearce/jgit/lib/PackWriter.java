@@ -43,10 +43,13 @@
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -84,8 +87,9 @@
  * <p>
  * Class provide set of configurable options and {@link ProgressMonitor}
  * support, as operations may take a long time for big repositories. Deltas
- * searching algorithm is <b>NOT IMPLEMENTED</b> yet - this implementation
- * relies only on deltas and objects reuse.
+ * found in existing packs are reused; objects still stored whole afterwards
+ * are compared against their neighbors in a sliding window (sorted by type,
+ * path name hash and size), and stored as a new delta when that is smaller.
  * </p>
  * <p>
  * This class is not thread safe, it is intended to be used in one thread, with
@@ -111,6 +115,14 @@ public class PackWriter {
 	 */
 	public static final String SEARCHING_REUSE_PROGRESS = "Compressing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used during computing new deltas
+	 * for objects that could not reuse one.
+	 *
+	 * @see #writePack(OutputStream)
+	 */
+	public static final String SEARCHING_DELTAS_PROGRESS = "Deltifying objects";
+
 	/**
 	 * Title of {@link ProgressMonitor} task used during writing out pack
 	 * (objects)
@@ -147,6 +159,37 @@ public class PackWriter {
 	 */
 	public static final int DEFAULT_MAX_DELTA_DEPTH = 50;
 
+	/**
+	 * Default number of objects a new delta's base is searched among.
+	 *
+	 * @see #setDeltaSearchWindowSize(int)
+	 */
+	public static final int DEFAULT_DELTA_SEARCH_WINDOW_SIZE = 10;
+
+	/**
+	 * Default number of threads searching for deltas; 0 for one per processor.
+	 *
+	 * @see #setThreads(int)
+	 */
+	public static final int DEFAULT_THREADS = 0;
+
+	/**
+	 * Default limit on memory held by delta search windows; 0 for no limit.
+	 *
+	 * @see #setDeltaSearchMemoryLimit(long)
+	 */
+	public static final long DEFAULT_DELTA_SEARCH_MEMORY_LIMIT = 0;
+
+	/**
+	 * Default value of the use bitmaps option.
+	 *
+	 * @see #setUseBitmaps(boolean)
+	 */
+	public static final boolean DEFAULT_USE_BITMAPS = true;
+
+	/** Every this many commits one is selected to have a bitmap. */
+	private static final int BITMAP_COMMIT_SPACING = 100;
+
 	private static final int PACK_VERSION_GENERATED = 2;
 
 	@SuppressWarnings("unchecked")
@@ -164,12 +207,22 @@ public class PackWriter {
 	// edge objects for thin packs
 	private final ObjectIdSubclassMap<ObjectId> edgeObjects = new ObjectIdSubclassMap<ObjectId>();
 
+	// edge objects for thin packs, if objects were counted using bitmaps
+	private PackBitmapIndex edgeBitmapIndex;
+
+	private EWAHBitmap edgeBitmap;
+
+	// starting points of the object walk, preferred for bitmaps
+	private List<ObjectId> bitmapTips;
+
 	private final Repository db;
 
 	private DigestOutputStream out;
 
 	private CountingOutputStream countingOut;
 
+	private final CRC32 crc32 = new CRC32();
+
 	private final Deflater deflater;
 
 	private ProgressMonitor initMonitor;
@@ -190,7 +243,17 @@ public class PackWriter {
 
 	private boolean deltaBaseAsOffset = DEFAULT_DELTA_BASE_AS_OFFSET;
 
-	private int maxDeltaDepth = DEFAULT_MAX_DELTA_DEPTH;
+	private int maxDeltaDepth;
+
+	private int deltaSearchWindowSize;
+
+	private long deltaSearchMemoryLimit;
+
+	private int threads;
+
+	private boolean useBitmaps;
+
+	private final int compressionLevel;
 
 	private int outputVersion;
 
@@ -236,8 +299,15 @@ public PackWriter(final Repository repo, final ProgressMonitor imonitor,
 		this.db = repo;
 		initMonitor = imonitor;
 		writeMonitor = wmonitor;
-		this.deflater = new Deflater(db.getConfig().getCore().getCompression());
-		outputVersion = repo.getConfig().getCore().getPackIndexVersion();
+		final CoreConfig core = repo.getConfig().getCore();
+		compressionLevel = core.getCompression();
+		this.deflater = new Deflater(compressionLevel);
+		outputVersion = core.getPackIndexVersion();
+		maxDeltaDepth = core.getPackDepth();
+		deltaSearchWindowSize = core.getPackWindow();
+		deltaSearchMemoryLimit = core.getPackWindowMemory();
+		threads = core.getPackThreads();
+		useBitmaps = core.isPackUseBitmaps();
 	}
 
 	/**
@@ -367,6 +437,125 @@ public void setMaxDeltaDepth(int maxDeltaDepth) {
 		this.maxDeltaDepth = maxDeltaDepth;
 	}
 
+	/**
+	 * Get the number of objects searched for a base when computing new deltas.
+	 * <p>
+	 * Default setting: the repository's <code>pack.window</code>, or
+	 * {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE} if not configured.
+	 * </p>
+	 *
+	 * @return size of the delta search window; 0 if no new deltas are
+	 *         computed.
+	 */
+	public int getDeltaSearchWindowSize() {
+		return deltaSearchWindowSize;
+	}
+
+	/**
+	 * Set the number of objects searched for a base when computing new deltas.
+	 * <p>
+	 * Each object not already stored as a delta is compared with up to this
+	 * many preceding objects of the same type, in an order that places
+	 * objects of the same path and similar size next to each other. A larger
+	 * window finds more deltas at the cost of CPU time and memory; 0 disables
+	 * the search so that only existing deltas are reused.
+	 * </p>
+	 *
+	 * @param objectCount
+	 *            number of objects in the search window.
+	 */
+	public void setDeltaSearchWindowSize(final int objectCount) {
+		deltaSearchWindowSize = objectCount;
+	}
+
+	/**
+	 * Get the limit on memory held by all delta search windows together.
+	 * <p>
+	 * Default setting: the repository's <code>pack.windowmemory</code>, or
+	 * {@value #DEFAULT_DELTA_SEARCH_MEMORY_LIMIT} if not configured.
+	 * </p>
+	 *
+	 * @return maximum number of bytes of object content and index held by the
+	 *         delta search; 0 if unlimited.
+	 */
+	public long getDeltaSearchMemoryLimit() {
+		return deltaSearchMemoryLimit;
+	}
+
+	/**
+	 * Set the limit on memory held by all delta search windows together.
+	 * <p>
+	 * When the limit is exceeded each search thread drops the oldest objects
+	 * from its window, trading compression for a bounded heap. The limit is
+	 * shared by all threads searching for deltas.
+	 * </p>
+	 *
+	 * @param memoryLimit
+	 *            maximum number of bytes; 0 for no limit.
+	 */
+	public void setDeltaSearchMemoryLimit(final long memoryLimit) {
+		deltaSearchMemoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Get the number of threads used to search for deltas.
+	 * <p>
+	 * Default setting: the repository's <code>pack.threads</code>, or
+	 * {@value #DEFAULT_THREADS} if not configured.
+	 * </p>
+	 *
+	 * @return number of threads; 0 for one per available processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to search for deltas.
+	 * <p>
+	 * The sorted object list is split into ranges, each searched by its own
+	 * thread with its own window. A thread finishing early takes over half of
+	 * the largest remaining range. Small lists are always searched by the
+	 * calling thread.
+	 * </p>
+	 *
+	 * @param threads
+	 *            number of threads; 0 for one per available processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Check whether objects are counted using reachability bitmaps.
+	 * <p>
+	 * Default setting: the repository's <code>pack.usebitmaps</code>, or
+	 * {@value #DEFAULT_USE_BITMAPS} if not configured.
+	 * </p>
+	 *
+	 * @return true if bitmaps are used when available.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * Set whether objects are counted using reachability bitmaps.
+	 * <p>
+	 * If a pack of the repository has a <code>.bitmap</code> file,
+	 * {@link #preparePack(Collection, Collection, boolean, boolean)} combines
+	 * the bitmaps of the interesting and uninteresting commits instead of
+	 * walking their history. Only commits and trees not covered by a bitmap
+	 * are parsed.
+	 * </p>
+	 *
+	 * @param useBitmaps
+	 *            true to use bitmaps when available.
+	 */
+	public void setUseBitmaps(final boolean useBitmaps) {
+		this.useBitmaps = useBitmaps;
+	}
+
 	/**
 	 * Set the pack index file format version this instance will create.
 	 *
@@ -440,6 +629,12 @@ public void preparePack(final Iterator<RevObject> objectsSource)
 	 * Order is consistent with general git in-pack rules: sort by object type,
 	 * recency, path and delta-base first.
 	 * </p>
+	 * <p>
+	 * If a pack of the repository has reachability bitmaps (and
+	 * {@link #isUseBitmaps()}) the set is instead computed as the union of the
+	 * interesting objects' bitmaps minus the union of the uninteresting ones,
+	 * and objects keep the order of the bitmapped pack.
+	 * </p>
 	 *
 	 * @param interestingObjects
 	 *            collection of objects to be marked as interesting (start
@@ -467,6 +662,11 @@ public void preparePack(
 			final boolean packthin, final boolean ignoreMissingUninteresting)
 			throws IOException {
 		this.thin = packthin;
+		bitmapTips = new ArrayList<ObjectId>(interestingObjects);
+		if (useBitmaps
+				&& findObjectsToPackUsingBitmaps(interestingObjects,
+						uninterestingObjects, ignoreMissingUninteresting))
+			return;
 		ObjectWalk walker = setUpWalker(interestingObjects,
 				uninterestingObjects, ignoreMissingUninteresting);
 		findObjectsToPack(walker);
@@ -522,6 +722,64 @@ public void writeIndex(final OutputStream indexStream) throws IOException {
 		iw.write(list, packcsum);
 	}
 
+	/**
+	 * Create a reachability bitmap file to match the pack file just written.
+	 * <p>
+	 * This method can only be invoked after {@link #writePack(OutputStream)}
+	 * has completed, and only if the pack is closed under reachability: it
+	 * must have been prepared with
+	 * {@link #preparePack(Collection, Collection, boolean, boolean)}, without
+	 * uninteresting objects and not thin. Bitmaps are stored for the
+	 * interesting commits and for every {@value #BITMAP_COMMIT_SPACING}th
+	 * commit of the pack.
+	 *
+	 * @param bitmapStream
+	 *            output for the bitmap data. Caller is responsible for closing
+	 *            this stream.
+	 * @throws IOException
+	 *             an object reachable from the pack's commits is not in the
+	 *             pack, an object could not be read, or the bitmap data could
+	 *             not be written to the supplied stream.
+	 */
+	public void writeBitmapIndex(final OutputStream bitmapStream)
+			throws IOException {
+		if (packcsum == null)
+			throw new IllegalStateException("Pack has not been written");
+		final PackBitmapIndexBuilder index = new PackBitmapIndexBuilder(
+				sortByName());
+		final BitmapWalker walker = new BitmapWalker(db, index);
+		final List<ObjectToPack> selected = selectBitmapCommits();
+
+		// Oldest first, so each walk stops at the previous bitmaps.
+		//
+		for (int i = selected.size() - 1; i >= 0; i--) {
+			final ObjectToPack c = selected.get(i);
+			index.addBitmap(c, walker.findReachable(Collections
+					.singleton(c), false, null));
+		}
+		new PackBitmapIndexWriterV1(bitmapStream).write(index, packcsum);
+	}
+
+	private List<ObjectToPack> selectBitmapCommits() {
+		final ObjectIdSubclassMap<ObjectToPack> tips = new ObjectIdSubclassMap<ObjectToPack>();
+		if (bitmapTips != null) {
+			for (ObjectId id : bitmapTips) {
+				final ObjectToPack otp = objectsMap.get(id);
+				if (otp != null && otp.getType() == Constants.OBJ_COMMIT)
+					tips.add(otp);
+			}
+		}
+
+		final List<ObjectToPack> commits = objectsLists[Constants.OBJ_COMMIT];
+		final List<ObjectToPack> r = new ArrayList<ObjectToPack>();
+		for (int i = 0; i < commits.size(); i++) {
+			final ObjectToPack c = commits.get(i);
+			if (i % BITMAP_COMMIT_SPACING == 0 || tips.get(c) != null)
+				r.add(c);
+		}
+		return r;
+	}
+
 	private List<ObjectToPack> sortByName() {
 		if (sortedByName == null) {
 			sortedByName = new ArrayList<ObjectToPack>(objectsMap.size());
@@ -560,11 +818,14 @@ private List<ObjectToPack> sortByName() {
 	public void writePack(OutputStream packStream) throws IOException {
 		if (reuseDeltas || reuseObjects)
 			searchForReuse();
+		if (deltaSearchWindowSize > 0 && maxDeltaDepth > 0)
+			searchForDeltas();
 
 		if (!(packStream instanceof BufferedOutputStream))
 			packStream = new BufferedOutputStream(packStream);
 		countingOut = new CountingOutputStream(packStream);
-		out = new DigestOutputStream(countingOut, Constants.newMessageDigest());
+		out = new DigestOutputStream(new CheckedOutputStream(countingOut,
+				crc32), Constants.newMessageDigest());
 
 		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, getObjectsNumber());
 		writeHeader();
@@ -577,52 +838,52 @@ public void writePack(OutputStream packStream) throws IOException {
 	}
 
 	private void searchForReuse() throws IOException {
-		initMonitor.beginTask(SEARCHING_REUSE_PROGRESS, getObjectsNumber());
-		final Collection<PackedObjectLoader> reuseLoaders = new ArrayList<PackedObjectLoader>();
-		for (List<ObjectToPack> list : objectsLists) {
-			for (ObjectToPack otp : list) {
-				if (initMonitor.isCancelled())
-					throw new IOException(
-							"Packing cancelled during objects writing");
-				reuseLoaders.clear();
-				db.openObjectInAllPacks(otp, reuseLoaders, windowCursor);
-				if (reuseDeltas) {
-					selectDeltaReuseForObject(otp, reuseLoaders);
-				}
-				// delta reuse is preferred over object reuse
-				if (reuseObjects && !otp.hasReuseLoader()) {
-					selectObjectReuseForObject(otp, reuseLoaders);
-				}
-				initMonitor.update(1);
+		final List<ObjectToPack> all = new ArrayList<ObjectToPack>(
+				getObjectsNumber());
+		for (List<ObjectToPack> list : objectsLists)
+			all.addAll(list);
+
+		// Visit the candidates in pack order, so that reading their
+		// headers moves through each pack file once, front to back.
+		//
+		final ObjectLoaderQueue<ObjectToPack> q = db.openObjectsInAllPacks(
+				windowCursor, all);
+		initMonitor.beginTask(SEARCHING_REUSE_PROGRESS, q.size());
+		while (q.next()) {
+			if (initMonitor.isCancelled())
+				throw new IOException("Packing cancelled during objects writing");
+			final ObjectToPack otp = q.getCurrent();
+			final PackedObjectLoader loader = (PackedObjectLoader) q.open();
+			if (reuseDeltas) {
+				selectDeltaReuseForObject(otp, loader);
+			}
+			// delta reuse is preferred over object reuse
+			if (reuseObjects && !otp.hasReuseLoader()) {
+				selectObjectReuseForObject(otp, loader);
 			}
+			initMonitor.update(1);
 		}
 
 		initMonitor.endTask();
 	}
 
 	private void selectDeltaReuseForObject(final ObjectToPack otp,
-			final Collection<PackedObjectLoader> loaders) throws IOException {
-		PackedObjectLoader bestLoader = null;
-		ObjectId bestBase = null;
+			final PackedObjectLoader loader) throws IOException {
+		final ObjectId idBase = loader.getDeltaBase();
+		if (idBase == null)
+			return;
+		final ObjectToPack otpBase = objectsMap.get(idBase);
 
-		for (PackedObjectLoader loader : loaders) {
-			ObjectId idBase = loader.getDeltaBase();
-			if (idBase == null)
-				continue;
-			ObjectToPack otpBase = objectsMap.get(idBase);
-
-			// only if base is in set of objects to write or thin-pack's edge
-			if ((otpBase != null || (thin && edgeObjects.get(idBase) != null))
-			// select smallest possible delta if > 1 available
-					&& isBetterDeltaReuseLoader(bestLoader, loader)) {
-				bestLoader = loader;
-				bestBase = (otpBase != null ? otpBase : idBase);
-			}
-		}
+		// only if base is in set of objects to write or thin-pack's edge
+		if (otpBase == null && !(thin && isEdge(idBase)))
+			return;
 
-		if (bestLoader != null) {
-			otp.setReuseLoader(bestLoader);
-			otp.setDeltaBase(bestBase);
+		// select smallest possible delta if > 1 available
+		final PackedObjectLoader best;
+		best = otp.isDeltaRepresentation() ? otp.getReuseLoader() : null;
+		if (isBetterDeltaReuseLoader(best, loader)) {
+			otp.setReuseLoader(loader);
+			otp.setDeltaBase(otpBase != null ? otpBase : idBase);
 		}
 	}
 
@@ -639,13 +900,36 @@ private static boolean isBetterDeltaReuseLoader(
 	}
 
 	private void selectObjectReuseForObject(final ObjectToPack otp,
-			final Collection<PackedObjectLoader> loaders) {
-		for (final PackedObjectLoader loader : loaders) {
-			if (loader instanceof WholePackedObjectLoader) {
-				otp.setReuseLoader(loader);
-				return;
+			final PackedObjectLoader loader) {
+		if (loader instanceof WholePackedObjectLoader)
+			otp.setReuseLoader(loader);
+	}
+
+	private void searchForDeltas() throws IOException {
+		final List<ObjectToPack> list = new ArrayList<ObjectToPack>();
+		for (List<ObjectToPack> typeList : objectsLists) {
+			for (ObjectToPack otp : typeList) {
+				final ObjectLoader loader = db.openObject(windowCursor, otp);
+				if (loader == null)
+					throw new MissingObjectException(otp, Constants
+							.typeString(otp.getType()));
+				otp.setWeight(loader.getSize());
+				list.add(otp);
 			}
 		}
+		final ObjectToPack[] sorted = list.toArray(new ObjectToPack[list
+				.size()]);
+		Arrays.sort(sorted, DeltaWindow.SEARCH_ORDER);
+
+		int n = threads;
+		if (n <= 0)
+			n = Runtime.getRuntime().availableProcessors();
+
+		initMonitor.beginTask(SEARCHING_DELTAS_PROGRESS, sorted.length);
+		new DeltaTask.Block(db, sorted, deltaSearchWindowSize, maxDeltaDepth,
+				compressionLevel, deltaSearchMemoryLimit, initMonitor)
+				.search(n);
+		initMonitor.endTask();
 	}
 
 	private void writeHeader() throws IOException {
@@ -687,11 +971,13 @@ private void writeObject(final ObjectToPack otp) throws IOException {
 
 		assert !otp.isWritten();
 
+		crc32.reset();
 		otp.setOffset(countingOut.getCount());
 		if (otp.isDeltaRepresentation())
 			writeDeltaObject(otp);
 		else
 			writeWholeObject(otp);
+		otp.setCRC((int) crc32.getValue());
 
 		writeMonitor.update(1);
 	}
@@ -716,8 +1002,14 @@ private void writeWholeObject(final ObjectToPack otp) throws IOException {
 
 	private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 		final PackedObjectLoader loader = otp.getReuseLoader();
+		final long rawSize;
+		if (loader != null)
+			rawSize = loader.getRawSize();
+		else
+			rawSize = otp.getCachedDeltaSize();
+
 		if (deltaBaseAsOffset && otp.getDeltaBase() != null) {
-			writeObjectHeader(Constants.OBJ_OFS_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_OFS_DELTA, rawSize);
 
 			final ObjectToPack deltaBase = otp.getDeltaBase();
 			long offsetDiff = otp.getOffset() - deltaBase.getOffset();
@@ -729,12 +1021,17 @@ private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 
 			out.write(buf, pos, buf.length - pos);
 		} else {
-			writeObjectHeader(Constants.OBJ_REF_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_REF_DELTA, rawSize);
 			otp.getDeltaBaseId().copyRawTo(buf, 0);
 			out.write(buf, 0, Constants.OBJECT_ID_LENGTH);
 		}
-		loader.copyRawData(out, buf);
-		otp.disposeLoader();
+		if (loader != null) {
+			loader.copyRawData(out, buf);
+			otp.disposeLoader();
+		} else {
+			out.write(otp.getCachedDelta());
+			otp.clearCachedDelta();
+		}
 	}
 
 	private void writeObjectHeader(final int objectType, long dataLength)
@@ -765,6 +1062,7 @@ private ObjectWalk setUpWalker(
 			throws MissingObjectException, IOException,
 			IncorrectObjectTypeException {
 		final ObjectWalk walker = new ObjectWalk(db);
+		walker.setRetainBody(false);
 		walker.sort(RevSort.TOPO);
 		walker.sort(RevSort.COMMIT_TIME_DESC, true);
 		if (thin)
@@ -788,6 +1086,68 @@ private ObjectWalk setUpWalker(
 		return walker;
 	}
 
+	private boolean isEdge(final AnyObjectId id) {
+		if (edgeObjects.get(id) != null)
+			return true;
+		if (edgeBitmap != null) {
+			final int pos = edgeBitmapIndex.findPosition(id);
+			return pos >= 0 && edgeBitmap.get(pos);
+		}
+		return false;
+	}
+
+	private boolean findObjectsToPackUsingBitmaps(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects,
+			final boolean ignoreMissingUninteresting) throws IOException {
+		PackBitmapIndex bitmapIndex = null;
+		for (final PackFile p : db.packs()) {
+			final PackBitmapIndex b = p.getBitmapIndex();
+			if (b != null && (bitmapIndex == null
+					|| bitmapIndex.getObjectCount() < b.getObjectCount()))
+				bitmapIndex = b;
+		}
+		if (bitmapIndex == null)
+			return false;
+
+		initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+				ProgressMonitor.UNKNOWN);
+		final BitmapWalker walker = new BitmapWalker(db, bitmapIndex);
+		final List<BitmapWalker.Extra> haveExtra = new ArrayList<BitmapWalker.Extra>();
+		final EWAHBitmap have = walker.findReachable(uninterestingObjects,
+				ignoreMissingUninteresting, haveExtra);
+		final List<BitmapWalker.Extra> wantExtra = new ArrayList<BitmapWalker.Extra>();
+		final EWAHBitmap want = walker.findReachable(interestingObjects,
+				false, wantExtra);
+		want.andNot(have);
+
+		final ObjectIdSubclassMap<ObjectId> haveExtraMap = new ObjectIdSubclassMap<ObjectId>();
+		for (final BitmapWalker.Extra e : haveExtra) {
+			haveExtraMap.add(e);
+			if (thin)
+				edgeObjects.add(e);
+		}
+		for (final BitmapWalker.Extra e : wantExtra) {
+			if (haveExtraMap.get(e) == null) {
+				addObject(e, e.type, e.pathHash);
+				initMonitor.update(1);
+			}
+		}
+		for (int pos = want.nextSetBit(0); pos >= 0; pos = want
+				.nextSetBit(pos + 1)) {
+			addObject(bitmapIndex.getObject(pos), bitmapIndex.getType(pos),
+					bitmapIndex.getPathHash(pos));
+			initMonitor.update(1);
+		}
+
+		if (thin) {
+			edgeBitmapIndex = bitmapIndex;
+			edgeBitmap = have;
+		}
+		initMonitor.endTask();
+		return true;
+	}
+
 	private void findObjectsToPack(final ObjectWalk walker)
 			throws MissingObjectException, IncorrectObjectTypeException,
 			IOException {
@@ -801,7 +1161,7 @@ private void findObjectsToPack(final ObjectWalk walker)
 			initMonitor.update(1);
 		}
 		while ((o = walker.nextObject()) != null) {
-			addObject(o);
+			addObject(o, pathHash(walker.getPathString()));
 			o.dispose();
 			initMonitor.update(1);
 		}
@@ -822,26 +1182,61 @@ private void findObjectsToPack(final ObjectWalk walker)
 	 */
 	public void addObject(final RevObject object)
 			throws IncorrectObjectTypeException {
+		addObject(object, 0);
+	}
+
+	private void addObject(final RevObject object, final int pathHash)
+			throws IncorrectObjectTypeException {
 		if (object.has(RevFlag.UNINTERESTING)) {
 			edgeObjects.add(object);
 			thin = true;
 			return;
 		}
 
-		final ObjectToPack otp = new ObjectToPack(object, object.getType());
+		addObject(object, object.getType(), pathHash);
+	}
+
+	private void addObject(final AnyObjectId id, final int type,
+			final int pathHash) throws IncorrectObjectTypeException {
+		final ObjectToPack otp = new ObjectToPack(id, type);
+		otp.setPathHash(pathHash);
 		try {
-			objectsLists[object.getType()].add(otp);
+			objectsLists[type].add(otp);
 		} catch (ArrayIndexOutOfBoundsException x) {
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(id.toObjectId(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		} catch (UnsupportedOperationException x) {
 			// index pointing to "dummy" empty list
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(id.toObjectId(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		}
 		objectsMap.add(otp);
 	}
 
+	/**
+	 * Hash a path so objects of the same name sort next to each other.
+	 * <p>
+	 * Only the last characters of the name contribute much to the hash, so
+	 * files with the same suffix (e.g. <code>.c</code>) end up close together
+	 * as well. Whitespace is ignored.
+	 *
+	 * @param path
+	 *            path of the object; may be null.
+	 * @return the hash; 0 for null.
+	 */
+	static int pathHash(final String path) {
+		if (path == null)
+			return 0;
+		int hash = 0;
+		for (int i = 0; i < path.length(); i++) {
+			final char c = path.charAt(i);
+			if (Character.isWhitespace(c))
+				continue;
+			hash = (hash >>> 2) + (c << 24);
+		}
+		return hash;
+	}
+
 	/**
 	 * Class holding information about object that is going to be packed by
 	 * {@link PackWriter}. Information include object representation in a
@@ -853,6 +1248,14 @@ static class ObjectToPack extends PackedObjectInfo {
 
 		private PackedObjectLoader reuseLoader;
 
+		private byte[] cachedDelta;
+
+		private int cachedDeltaSize;
+
+		private int weight;
+
+		private int pathHash;
+
 		/**
 		 * Bit field, from bit 0 to bit 31:
 		 * <ul>
@@ -914,6 +1317,58 @@ void setDeltaBase(ObjectId deltaBase) {
 
 		void clearDeltaBase() {
 			this.deltaBase = null;
+			clearCachedDelta();
+		}
+
+		/**
+		 * Remember a delta computed by the writer, replacing any reuse.
+		 *
+		 * @param base
+		 *            the object the delta was computed against.
+		 * @param delta
+		 *            the delta, uncompressed.
+		 * @param compressed
+		 *            the delta as it should appear in the pack.
+		 */
+		void setCachedDelta(final ObjectToPack base, final byte[] delta,
+				final byte[] compressed) {
+			deltaBase = base;
+			reuseLoader = null;
+			cachedDelta = compressed;
+			cachedDeltaSize = delta.length;
+		}
+
+		/** @return the computed delta, compressed; null if none. */
+		byte[] getCachedDelta() {
+			return cachedDelta;
+		}
+
+		/** @return length of the computed delta before compression. */
+		int getCachedDeltaSize() {
+			return cachedDeltaSize;
+		}
+
+		void clearCachedDelta() {
+			cachedDelta = null;
+			cachedDeltaSize = 0;
+		}
+
+		/** @return the inflated size of the object; 0 until searched. */
+		int getWeight() {
+			return weight;
+		}
+
+		void setWeight(final long size) {
+			weight = (int) Math.min(size, Integer.MAX_VALUE);
+		}
+
+		/** @return hash of the path the object was found under. */
+		int getPathHash() {
+			return pathHash;
+		}
+
+		void setPathHash(final int hc) {
+			pathHash = hc;
 		}
 
 		/**
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds changed files by comparing their modification time and size.
+ * <p>
+ * Every {@link #poll()} lists the watched directories and stats the files in
+ * them. This costs a stat per file, but never reads a file's content.
+ * <p>
+ * Modification times may be as coarse as a second or two, so a file rewritten
+ * with the same size shortly after a scan saw it may look unchanged. Such a
+ * file is reported by every poll until a scan saw its modification time old
+ * enough that a later change would have to move it.
+ */
+public class PollingFileWatcher extends FileWatcher {
+	/** Coarsest modification time resolution we expect to meet. */
+	private static final long RACY_MILLIS = 2500;
+
+	/** Watched paths, mapped to true if they are watched recursively. */
+	private final Map<File, Boolean> roots = new LinkedHashMap<File, Boolean>();
+
+	/** Modification time, size and scan time of every file last seen. */
+	private Map<File, long[]> last = new HashMap<File, long[]>();
+
+	@Override
+	public void watch(final File path, final boolean recursive) {
+		roots.put(path, Boolean.valueOf(recursive));
+		scan(path, recursive, System.currentTimeMillis(), last);
+	}
+
+	@Override
+	public Set<File> poll() {
+		final long start = System.currentTimeMillis();
+		final Map<File, long[]> now = new HashMap<File, long[]>(last.size());
+		for (final Map.Entry<File, Boolean> r : roots.entrySet())
+			scan(r.getKey(), r.getValue().booleanValue(), start, now);
+
+		final Set<File> changed = new HashSet<File>();
+		for (final Map.Entry<File, long[]> e : now.entrySet()) {
+			final long[] old = last.get(e.getKey());
+			final long[] cur = e.getValue();
+			if (old == null || old[0] != cur[0] || old[1] != cur[1]
+					|| isRacy(old))
+				changed.add(e.getKey());
+		}
+		for (final File f : last.keySet()) {
+			if (!now.containsKey(f))
+				changed.add(f);
+		}
+		last = now;
+		return changed;
+	}
+
+	@Override
+	public void close() {
+		roots.clear();
+		last.clear();
+	}
+
+	/**
+	 * @param stat
+	 *            modification time, size and scan time of a file.
+	 * @return true if the file may have changed again in the same tick after
+	 *         it was scanned, without its modification time changing.
+	 */
+	private static boolean isRacy(final long[] stat) {
+		return stat[2] - stat[0] <= RACY_MILLIS;
+	}
+
+	private static void scan(final File path, final boolean recursive,
+			final long start, final Map<File, long[]> into) {
+		final File[] list = recursive ? path.listFiles() : null;
+		if (list == null) {
+			final long modified = path.lastModified();
+			if (modified != 0)
+				into.put(path, new long[] { modified, path.length(), start });
+			return;
+		}
+		for (final File f : list) {
+			if (f.isDirectory()) {
+				if (!".git".equals(f.getName()))
+					scan(f, true, start, into);
+			} else
+				into.put(f, new long[] { f.lastModified(), f.length(), start });
+		}
+	}
+}
@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2007, Robin Rosenberg <robin.rosenberg@dewire.com>
+ * Copyright (C) 2008, Shawn O. Pearce <spearce@spearce.org>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.lib.Ref.Storage;
+import org.spearce.jgit.util.FS;
+
+/**
+ * Traditional file based {@link RefDatabase}.
+ * <p>
+ * Each ref is a loose file below <code>refs/</code>, and refs which are not
+ * loose are looked up in <code>packed-refs</code>. Reflogs are stored as text
+ * files below <code>logs/</code>.
+ */
+class RefDirectory extends RefDatabase {
+	private final File gitDir;
+
+	private final File refsDir;
+
+	private Map<String, Ref> looseRefs;
+	private Map<String, Long> looseRefsMTime;
+	private Map<String, String> looseSymRefs;
+
+	private final File packedRefsFile;
+
+	private RefSnapshot snapshot;
+
+	private Map<String, Ref> allRefs;
+
+	private int allRefsVersion;
+
+	private Ref allRefsHead;
+
+	RefDirectory(final Repository r) {
+		super(r);
+		gitDir = db.getDirectory();
+		refsDir = FS.resolve(gitDir, "refs");
+		packedRefsFile = FS.resolve(gitDir, "packed-refs");
+		clearCache();
+	}
+
+	synchronized void clearCache() {
+		looseRefs = new HashMap<String, Ref>();
+		looseRefsMTime = new HashMap<String, Long>();
+		looseSymRefs = new HashMap<String, String>();
+		snapshot = RefSnapshot.EMPTY;
+		allRefs = null;
+	}
+
+	void create() {
+		refsDir.mkdir();
+		new File(refsDir, "heads").mkdir();
+		new File(refsDir, "tags").mkdir();
+	}
+
+	ObjectId idOf(final String name) throws IOException {
+		refreshPackedRefs();
+		final Ref r = readRefBasic(name, 0);
+		return r != null ? r.getObjectId() : null;
+	}
+
+	/**
+	 * Create a command to update, create or delete a ref in this repository.
+	 * 
+	 * @param name
+	 *            name of the ref the caller wants to modify.
+	 * @return an update command. The caller must finish populating this command
+	 *         and then invoke one of the update methods to actually make a
+	 *         change.
+	 * @throws IOException
+	 *             a symbolic ref was passed in and could not be resolved back
+	 *             to the base ref, as the symbolic ref could not be read.
+	 */
+	RefUpdate newUpdate(final String name) throws IOException {
+		refreshPackedRefs();
+		Ref r = readRefBasic(name, 0);
+		if (r == null)
+			r = new Ref(Ref.Storage.NEW, name, null);
+		return new RefDirectoryUpdate(this, r, fileForRef(r.getName()));
+	}
+
+	void stored(final String origName, final String name, final ObjectId id, final long time) {
+		synchronized (this) {
+			looseRefs.put(name, new Ref(Ref.Storage.LOOSE, origName, name, id));
+			looseRefsMTime.put(name, time);
+			setModified();
+		}
+	}
+
+	BatchRefUpdate newBatchUpdate() {
+		return new RefDirectoryBatchUpdate(this);
+	}
+
+	/**
+	 * Writes a symref (e.g. HEAD) to disk
+	 * 
+	 * @param name
+	 *            symref name
+	 * @param target
+	 *            pointed to ref
+	 * @throws IOException
+	 */
+	void link(final String name, final String target) throws IOException {
+		final byte[] content = Constants.encode("ref: " + target + "\n");
+		lockAndWriteFile(fileForRef(name), content);
+		synchronized (this) {
+			setModified();
+		}
+		db.fireRefsMaybeChanged();
+	}
+
+	Ref readRef(final String partialName) throws IOException {
+		refreshPackedRefs();
+		for (int k = 0; k < SEARCH_PATH.length; k++) {
+			final Ref r = readRefBasic(SEARCH_PATH[k] + partialName, 0);
+			if (r != null && r.getObjectId() != null)
+				return r;
+		}
+		return null;
+	}
+
+	/**
+	 * @return all known refs (heads, tags, remotes).
+	 */
+	Map<String, Ref> getAllRefs() {
+		final Map<String, Ref> r;
+		synchronized (this) {
+			final RefSnapshot s = refresh("");
+			Ref head;
+			try {
+				head = readRefBasic(Constants.HEAD, 0);
+				if (head != null && head.getObjectId() == null)
+					head = null;
+			} catch (IOException e) {
+				head = null; // ignore here
+			}
+
+			if (allRefs == null || allRefsVersion != s.version
+					|| !sameRef(allRefsHead, head)) {
+				if (allRefs != null && !sameRef(allRefsHead, head))
+					setModified(); // HEAD moved, e.g. to another branch
+				final Map<String, Ref> refs = s.getRefs("");
+				final Map<String, Ref> m;
+				m = new LinkedHashMap<String, Ref>(refs.size() * 4 / 3 + 2);
+				if (head != null)
+					m.put(Constants.HEAD, head);
+				m.putAll(refs);
+				allRefs = Collections.unmodifiableMap(m);
+				allRefsVersion = s.version;
+				allRefsHead = head;
+			}
+			r = allRefs;
+		}
+		db.fireRefsMaybeChanged();
+		return r;
+	}
+
+	private static boolean sameRef(final Ref a, final Ref b) {
+		if (a == null || b == null)
+			return a == b;
+		return a.getName().equals(b.getName())
+				&& a.getObjectId().equals(b.getObjectId());
+	}
+
+	/**
+	 * Get the refs whose names start with a prefix.
+	 * <p>
+	 * Only the loose ref directories below the prefix are examined, so asking
+	 * for <code>refs/heads/</code> does not touch <code>refs/changes/</code>.
+	 *
+	 * @param prefix
+	 *            required prefix of the full ref names, e.g.
+	 *            <code>refs/heads/</code>; "" for every ref below
+	 *            <code>refs/</code>.
+	 * @return unmodifiable map of the matching refs, keyed and sorted by their
+	 *         full name.
+	 */
+	Map<String, Ref> getRefs(final String prefix) {
+		final Map<String, Ref> r;
+		synchronized (this) {
+			r = refresh(prefix).getRefs(prefix);
+		}
+		db.fireRefsMaybeChanged();
+		return r;
+	}
+
+	private RefSnapshot refresh(final String prefix) {
+		return install(snapshot.refresh(packedRefsFile, refsDir, prefix));
+	}
+
+	private RefSnapshot install(final RefSnapshot n) {
+		if (n.version != snapshot.version)
+			setModified();
+		snapshot = n;
+		return n;
+	}
+
+	String readLink(final String name) throws IOException {
+		final String line = readLine(fileForRef(name));
+		if (line != null && line.startsWith("ref: "))
+			return line.substring("ref: ".length());
+		return line;
+	}
+
+	void log(final String refName, final ObjectId oldId,
+			final ObjectId newId, final PersonIdent ident, final String msg)
+			throws IOException {
+		final StringBuilder r = new StringBuilder();
+		r.append(ObjectId.toString(oldId));
+		r.append(' ');
+		r.append(ObjectId.toString(newId));
+		r.append(' ');
+		r.append(ident.toExternalString());
+		r.append('\t');
+		r.append(msg);
+		r.append('\n');
+
+		final byte[] rec = Constants.encode(r.toString());
+		final File logdir = new File(gitDir, Constants.LOGS);
+		final File reflog = new File(logdir, refName);
+		final File refdir = reflog.getParentFile();
+
+		if (!refdir.exists() && !refdir.mkdirs())
+			throw new IOException("Cannot create directory " + refdir);
+
+		final FileOutputStream out = new FileOutputStream(reflog, true);
+		try {
+			out.write(rec);
+		} finally {
+			out.close();
+		}
+	}
+
+	void addReflogIds(final Set<ObjectId> ids) throws IOException {
+		addReflogIds(ids, new File(gitDir, Constants.LOGS));
+	}
+
+	private static void addReflogIds(final Set<ObjectId> ids, final File dir)
+			throws IOException {
+		final File[] entries = dir.listFiles();
+		if (entries == null)
+			return;
+		for (final File e : entries) {
+			if (e.isDirectory()) {
+				addReflogIds(ids, e);
+				continue;
+			}
+
+			final BufferedReader br = openReader(e);
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					// Each line starts with "<old-id> <new-id> ".
+					//
+					if (line.length() < 82)
+						continue;
+					addId(ids, line.substring(0, 40));
+					addId(ids, line.substring(41, 81));
+				}
+			} finally {
+				br.close();
+			}
+		}
+	}
+
+	private static void addId(final Set<ObjectId> ids, final String s) {
+		if (ObjectId.isId(s)) {
+			final ObjectId id = ObjectId.fromString(s);
+			if (!ObjectId.zeroId().equals(id))
+				ids.add(id);
+		}
+	}
+
+	private File fileForRef(final String name) {
+		if (name.startsWith(REFS_SLASH))
+			return new File(refsDir, name.substring(REFS_SLASH.length()));
+		return new File(gitDir, name);
+	}
+
+	private Ref readRefBasic(final String name, final int depth) throws IOException {
+		return readRefBasic(name, name, depth);
+	}
+
+	private synchronized Ref readRefBasic(final String origName,
+			final String name, final int depth) throws IOException {
+		// Prefer loose ref to packed ref as the loose
+		// file can be more up-to-date than a packed one.
+		//
+		Ref ref = looseRefs.get(origName);
+		final File loose = fileForRef(name);
+		final long mtime = loose.lastModified();
+		if (ref != null) {
+			Long cachedlastModified = looseRefsMTime.get(name);
+			if (cachedlastModified != null && cachedlastModified == mtime)
+				return ref;
+			looseRefs.remove(origName);
+			looseRefsMTime.remove(origName);
+		}
+
+		if (mtime == 0) {
+			// If last modified is 0 the file does not exist.
+			// Try packed cache.
+			//
+			ref = snapshot.packed.get(name);
+			if (ref != null)
+				if (!ref.getOrigName().equals(origName))
+					ref = new Ref(Storage.LOOSE_PACKED, origName, name, ref.getObjectId());
+			return ref;
+		}
+
+		String line = null;
+		try {
+			Long cachedlastModified = looseRefsMTime.get(name);
+			if (cachedlastModified != null && cachedlastModified == mtime) {
+				line = looseSymRefs.get(name);
+			}
+			if (line == null) {
+				line = readLine(loose);
+				looseRefsMTime.put(name, mtime);
+				looseSymRefs.put(name, line);
+			}
+		} catch (FileNotFoundException notLoose) {
+			return snapshot.packed.get(name);
+		}
+
+		if (line == null || line.length() == 0) {
+			looseRefs.remove(origName);
+			looseRefsMTime.remove(origName);
+			return new Ref(Ref.Storage.LOOSE, origName, name, null);
+		}
+
+		if (line.startsWith("ref: ")) {
+			if (depth >= MAX_SYMBOLIC_REF_DEPTH) {
+				throw new IOException("Exceeded maximum ref depth of " + depth
+						+ " at " + name + ".  Circular reference?");
+			}
+
+			final String target = line.substring("ref: ".length());
+			Ref r = readRefBasic(target, target, depth + 1);
+			Long cachedMtime = looseRefsMTime.get(name);
+			if (cachedMtime != null && cachedMtime != mtime)
+				setModified();
+			looseRefsMTime.put(name, mtime);
+			if (r == null)
+				return new Ref(Ref.Storage.LOOSE, origName, target, null);
+			if (!origName.equals(r.getName()))
+				r = new Ref(Ref.Storage.LOOSE_PACKED, origName, r.getName(), r.getObjectId(), r.getPeeledObjectId(), true);
+			return r; 
+		}
+
+		setModified();
+
+		final ObjectId id;
+		try {
+			id = ObjectId.fromString(line);
+		} catch (IllegalArgumentException notRef) {
+			throw new IOException("Not a ref: " + name + ": " + line);
+		}
+
+		ref = new Ref(Ref.Storage.LOOSE, origName, name, id);
+
+		looseRefs.put(origName, ref);
+		ref = new Ref(Ref.Storage.LOOSE, origName, id);
+		looseRefs.put(name, ref);
+		looseRefsMTime.put(name, mtime);
+		return ref;
+	}
+
+	private synchronized void refreshPackedRefs() {
+		install(snapshot.refreshPacked(packedRefsFile));
+	}
+
+	private void lockAndWriteFile(File file, byte[] content) throws IOException {
+		String name = file.getName();
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + name);
+		try {
+			lck.write(content);
+		} catch (IOException ioe) {
+			throw new ObjectWritingException("Unable to write " + name, ioe);
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + name);
+	}
+
+	synchronized void removePackedRef(String name) throws IOException {
+		final LockFile lck = lockPackedRefs();
+		try {
+			refreshPackedRefs();
+			if (snapshot.packed.get(name) == null)
+				return;
+			final List<Ref> keep = new ArrayList<Ref>();
+			for (final Ref r : snapshot.packed.getRefs()) {
+				if (!r.getName().equals(name))
+					keep.add(r);
+			}
+			writePackedRefs(lck, keep);
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	/**
+	 * Move all loose references into the packed-refs file.
+	 * <p>
+	 * The packed-refs file is locked for the whole operation, so concurrent
+	 * deletes cannot be lost. Each loose reference is locked and re-read
+	 * before it is removed; a reference updated after the scan keeps its
+	 * loose file, which takes precedence over the packed value.
+	 *
+	 * @throws IOException
+	 *             the packed-refs file could not be locked or written.
+	 */
+	void packRefs() throws IOException {
+		final LockFile lck = lockPackedRefs();
+		final List<Ref> loose = new ArrayList<Ref>();
+		try {
+			final List<Ref> packed = new ArrayList<Ref>();
+			for (final Ref r : getRefs(REFS_SLASH).values()) {
+				final Ref p = peel(r);
+				packed.add(new Ref(Ref.Storage.PACKED, r.getName(), r
+						.getObjectId(), p.getPeeledObjectId(), true));
+				if (r.getStorage() == Ref.Storage.LOOSE)
+					loose.add(r);
+			}
+			writePackedRefs(lck, packed);
+		} finally {
+			lck.unlock();
+		}
+
+		for (final Ref r : loose)
+			removeLooseRefIfUnchanged(r);
+		clearCache();
+		synchronized (this) {
+			setModified();
+		}
+		db.fireRefsMaybeChanged();
+	}
+
+	private void removeLooseRefIfUnchanged(final Ref r) {
+		final File file = fileForRef(r.getName());
+		final LockFile lck = new LockFile(file);
+		try {
+			if (!lck.lock())
+				return; // Being updated right now, leave it alone.
+		} catch (IOException err) {
+			return;
+		}
+		try {
+			final String line = readLine(file);
+			if (line != null && line.equals(r.getObjectId().name()))
+				file.delete();
+		} catch (IOException err) {
+			// Leave the loose ref in place; it shadows the packed one.
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	/**
+	 * @return lock on <code>packed-refs</code>; null if it is already locked.
+	 * @throws IOException
+	 *             the lock file could not be created.
+	 */
+	LockFile tryLockPackedRefs() throws IOException {
+		final LockFile lck = new LockFile(packedRefsFile);
+		return lck.lock() ? lck : null;
+	}
+
+	/**
+	 * Rewrite <code>packed-refs</code> with some refs changed.
+	 *
+	 * @param lck
+	 *            the lock returned by {@link #tryLockPackedRefs()}.
+	 * @param set
+	 *            refs to add or replace, keyed by name.
+	 * @param remove
+	 *            names of the refs to drop.
+	 * @return true if the file was rewritten, which commits the lock; false
+	 *         if nothing changed and the lock is still held.
+	 * @throws IOException
+	 *             the file could not be read or written.
+	 */
+	synchronized boolean writePackedRefs(final LockFile lck,
+			final Map<String, ObjectId> set, final Set<String> remove)
+			throws IOException {
+		refreshPackedRefs();
+		final Ref[] packed = snapshot.packed.getRefs();
+		boolean changed = !set.isEmpty();
+		final Map<String, Ref> m = new TreeMap<String, Ref>();
+		for (final Ref r : packed) {
+			if (remove.contains(r.getName()))
+				changed = true;
+			else
+				m.put(r.getName(), r);
+		}
+		if (!changed)
+			return false;
+		for (final Map.Entry<String, ObjectId> e : set.entrySet()) {
+			final Ref p = peel(new Ref(Storage.PACKED, e.getKey(), e
+					.getValue()));
+			m.put(e.getKey(), new Ref(Storage.PACKED, e.getKey(), e
+					.getValue(), p.getPeeledObjectId(), true));
+		}
+		writePackedRefs(lck, new ArrayList<Ref>(m.values()));
+		setModified();
+		return true;
+	}
+
+	private LockFile lockPackedRefs() throws IOException {
+		final LockFile lck = new LockFile(packedRefsFile);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock "
+					+ packedRefsFile.getName());
+		return lck;
+	}
+
+	private void writePackedRefs(final LockFile lck, final List<Ref> refs)
+			throws IOException {
+		new RefWriter(refs) {
+			@Override
+			protected void writeFile(String name, byte[] content)
+					throws IOException {
+				lck.write(content);
+			}
+		}.writePackedRefs();
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write "
+					+ packedRefsFile.getName());
+	}
+
+	private static String readLine(final File file)
+			throws FileNotFoundException, IOException {
+		final BufferedReader br = openReader(file);
+		try {
+			return br.readLine();
+		} finally {
+			br.close();
+		}
+	}
+
+	private static BufferedReader openReader(final File fileLocation)
+			throws FileNotFoundException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(
+				fileLocation), Constants.CHARSET));
+	}
+}
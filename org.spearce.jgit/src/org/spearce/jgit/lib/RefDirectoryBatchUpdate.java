@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.lib.RefUpdate.Result;
+
+/**
+ * Updates many refs of a {@link RefDirectory}.
+ * <p>
+ * Every loose ref of the batch is locked first. A large batch is then written
+ * by rewriting <code>packed-refs</code> once and removing the loose files,
+ * instead of renaming a lock file per ref. A small batch is written to the
+ * loose files, but all its deletions still share one rewrite of
+ * <code>packed-refs</code>.
+ * <p>
+ * An atomic batch always goes through <code>packed-refs</code>, whatever its
+ * size: committing that one file stores every ref below <code>refs/</code>
+ * at once, while renaming loose files one by one could fail half way.
+ */
+class RefDirectoryBatchUpdate extends BatchRefUpdate {
+	/** Smallest batch written through <code>packed-refs</code>. */
+	static final int PACKED_BATCH_SIZE = 100;
+
+	private final RefDirectory database;
+
+	private final List<RefDirectoryUpdate> locked = new ArrayList<RefDirectoryUpdate>();
+
+	/** Updates whose loose file was removed, leaving maybe empty dirs. */
+	private final List<RefDirectoryUpdate> emptied = new ArrayList<RefDirectoryUpdate>();
+
+	private LockFile packedLock;
+
+	private boolean packed;
+
+	RefDirectoryBatchUpdate(final RefDirectory r) {
+		super(r);
+		database = r;
+	}
+
+	@Override
+	void lock(final List<RefUpdate> updates) throws IOException {
+		packed = isAtomic() || updates.size() >= PACKED_BATCH_SIZE;
+		boolean deletes = false;
+		for (final RefUpdate u : updates)
+			deletes |= isDelete(u);
+		if (packed || deletes) {
+			packedLock = database.tryLockPackedRefs();
+			if (packedLock == null) {
+				for (final RefUpdate u : updates)
+					u.setResult(Result.LOCK_FAILURE);
+				return;
+			}
+		}
+
+		for (final RefUpdate cmd : updates) {
+			final RefDirectoryUpdate u = (RefDirectoryUpdate) cmd;
+			if (u.tryLock())
+				locked.add(u);
+			else
+				u.setResult(Result.LOCK_FAILURE);
+		}
+	}
+
+	@Override
+	void store(final List<RefUpdate> updates) throws IOException {
+		final Map<String, ObjectId> set = new HashMap<String, ObjectId>();
+		final Set<String> remove = new HashSet<String>();
+		final List<RefDirectoryUpdate> written = new ArrayList<RefDirectoryUpdate>();
+		final List<RefDirectoryUpdate> deleted = new ArrayList<RefDirectoryUpdate>();
+		final List<RefDirectoryUpdate> loose = new ArrayList<RefDirectoryUpdate>();
+		for (final RefUpdate cmd : updates) {
+			final RefDirectoryUpdate u = (RefDirectoryUpdate) cmd;
+			final Result status = u.getResult();
+			final String name = u.getRef().getName();
+			if (isDelete(u)) {
+				// NEW means the ref did not exist when it was locked.
+				if (status != Result.NEW) {
+					remove.add(name);
+					deleted.add(u);
+				}
+			} else if (status == Result.NO_CHANGE) {
+				continue;
+			} else if (packed && name.startsWith(RefDatabase.REFS_SLASH)) {
+				RefLogWriter.append(u, u.getRefLogMessage(status));
+				set.put(name, u.getNewObjectId());
+				written.add(u);
+			} else {
+				// Only refs below refs/ may be packed. Write the loose
+				// ones once packed-refs is stored, so that a failure to
+				// store it leaves every ref unchanged.
+				//
+				loose.add(u);
+			}
+		}
+
+		if (packedLock != null && database.writePackedRefs(packedLock, set, remove))
+			packedLock = null;
+
+		// From here on each ref is committed on its own. A failure only
+		// affects the ref it happened on.
+		//
+		for (final RefDirectoryUpdate u : loose) {
+			try {
+				u.setResult(u.writeLoose(u.getResult()));
+			} catch (IOException err) {
+				u.setResult(Result.IO_FAILURE);
+			}
+		}
+
+		// The packed values are only visible once the loose files, which
+		// shadow them, are gone. We still hold their locks.
+		//
+		for (final RefDirectoryUpdate u : written) {
+			if (deleteLooseFile(u))
+				emptied.add(u);
+		}
+		for (final RefDirectoryUpdate u : deleted) {
+			if (!deleteLooseFile(u))
+				continue;
+			emptied.add(u);
+			try {
+				u.deleteLog();
+			} catch (IOException err) {
+				// The ref is gone; a leftover log does not bring it back.
+			}
+		}
+	}
+
+	private static boolean deleteLooseFile(final RefDirectoryUpdate u) {
+		try {
+			u.deleteLooseFile();
+			return true;
+		} catch (IOException err) {
+			// The loose file still holds the old value, and shadows the
+			// packed one.
+			u.setResult(Result.IO_FAILURE);
+			return false;
+		}
+	}
+
+	@Override
+	void unlock() {
+		if (packedLock != null) {
+			packedLock.unlock();
+			packedLock = null;
+		}
+		for (final RefDirectoryUpdate u : locked)
+			u.unlock();
+		locked.clear();
+		for (final RefDirectoryUpdate u : emptied)
+			u.deleteEmptyDirs();
+		emptied.clear();
+	}
+}
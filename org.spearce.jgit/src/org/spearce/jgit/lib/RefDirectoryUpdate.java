@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2008, Shawn O. Pearce <spearce@spearce.org>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.spearce.jgit.lib.Ref.Storage;
+
+/** Updates a ref stored by a {@link RefDirectory}. */
+class RefDirectoryUpdate extends RefUpdate {
+	private final RefDirectory database;
+
+	/** Location of the loose file holding the value of this ref. */
+	private final File looseFile;
+
+	private LockFile lock;
+
+	RefDirectoryUpdate(final RefDirectory r, final Ref ref, final File f) {
+		super(r, ref);
+		database = r;
+		looseFile = f;
+	}
+
+	@Override
+	boolean tryLock() throws IOException {
+		lock = new LockFile(looseFile);
+		return lock.lock();
+	}
+
+	@Override
+	void unlock() {
+		if (lock != null) {
+			lock.unlock();
+			lock = null;
+		}
+	}
+
+	@Override
+	Result doUpdate(final Result status) throws IOException {
+		final Result r = writeLoose(status);
+		getRepository().fireRefsMaybeChanged();
+		return r;
+	}
+
+	/**
+	 * Store the new value in the locked loose file and append the reflog,
+	 * without notifying listeners.
+	 *
+	 * @param status
+	 *            the result of the merge test.
+	 * @return <code>status</code>, or the reason the store failed.
+	 * @throws IOException
+	 *             the new value could not be written.
+	 */
+	Result writeLoose(final Result status) throws IOException {
+		lock.setNeedStatInformation(true);
+		lock.write(getNewObjectId());
+		RefLogWriter.append(this, getRefLogMessage(status));
+		if (!lock.commit())
+			return Result.LOCK_FAILURE;
+		final Ref ref = getRef();
+		database.stored(ref.getOrigName(), ref.getName(), getNewObjectId(),
+				lock.getCommitLastModified());
+		return status;
+	}
+
+	@Override
+	Result doDelete(final Result status) throws IOException {
+		final Ref ref = getRef();
+		Storage storage = ref.getStorage();
+		if (storage == Storage.NEW)
+			return status;
+		if (storage.isPacked())
+			database.removePackedRef(ref.getName());
+
+		// Delete logs _before_ unlocking
+		deleteLog();
+
+		// We have to unlock before (maybe) deleting the parent directories
+		unlock();
+		if (storage.isLoose())
+			deleteFileAndEmptyDir(looseFile, levels());
+		return status;
+	}
+
+	/**
+	 * Delete the reflog of the ref.
+	 *
+	 * @throws IOException
+	 *             the reflog could not be deleted.
+	 */
+	void deleteLog() throws IOException {
+		final File logDir = new File(getRepository().getDirectory(),
+				Constants.LOGS);
+		deleteFileAndEmptyDir(new File(logDir, getRef().getName()), levels());
+	}
+
+	/**
+	 * Delete the loose file while the ref is still locked.
+	 *
+	 * @throws IOException
+	 *             the file could not be deleted.
+	 */
+	void deleteLooseFile() throws IOException {
+		if (looseFile.exists() && !looseFile.delete())
+			throw new IOException("File cannot be deleted: " + looseFile);
+	}
+
+	/** Remove the directories left empty by {@link #deleteLooseFile()}. */
+	void deleteEmptyDirs() {
+		deleteEmptyDir(looseFile.getParentFile(), levels());
+	}
+
+	private int levels() {
+		return count(getRef().getName(), '/') - 2;
+	}
+
+	private static void deleteFileAndEmptyDir(final File file, final int depth)
+			throws IOException {
+		if (file.exists()) {
+			if (!file.delete())
+				throw new IOException("File cannot be deleted: " + file);
+			deleteEmptyDir(file.getParentFile(), depth);
+		}
+	}
+
+	private static void deleteEmptyDir(File dir, int depth) {
+		for (; depth > 0 && dir != null; depth--) {
+			if (!dir.delete())
+				break;
+			dir = dir.getParentFile();
+		}
+	}
+
+	private static int count(final String s, final char c) {
+		int count = 0;
+		for (int p = s.indexOf(c); p >= 0; p = s.indexOf(c, p + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
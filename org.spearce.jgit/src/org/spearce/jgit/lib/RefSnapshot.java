@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Immutable picture of the references stored in a repository.
+ * <p>
+ * A snapshot combines the sorted contents of <code>packed-refs</code> with a
+ * tree of the loose reference directories under <code>refs/</code>. Every
+ * part remembers the modification time it was read at, so
+ * {@link #refresh(File, File, String)} only stats the directories covered by
+ * the requested prefix and re-reads the files that actually changed. Parts
+ * which did not change are shared between the old and the new snapshot.
+ * <p>
+ * Loose references are always replaced by renaming a lock file over them,
+ * which updates the modification time of their directory. An unchanged
+ * directory therefore does not need its files examined at all.
+ * <p>
+ * The version number grows only when the references themselves changed, so
+ * two snapshots with the same version describe the same set of references.
+ */
+class RefSnapshot {
+	private static final String REFS_SLASH = "refs/";
+
+	private static final long RACY_MILLIS = 2500;
+
+	private static final Ref[] NO_REFS = {};
+
+	private static final String[] NO_NAMES = {};
+
+	private static final long[] NO_TIMES = {};
+
+	private static final LooseDir[] NO_DIRS = {};
+
+	private static final Comparator<Ref> BY_NAME = new Comparator<Ref>() {
+		public int compare(final Ref a, final Ref b) {
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	/** Snapshot of a repository before anything was read. */
+	static final RefSnapshot EMPTY = new RefSnapshot(0, PackedList.NONE, null,
+			null);
+
+	/** Number incremented each time the set of references changed. */
+	final int version;
+
+	/** References listed in <code>packed-refs</code>. */
+	final PackedList packed;
+
+	/** Root of the loose reference tree; null if not read yet. */
+	private final LooseDir loose;
+
+	private volatile Map<String, Ref> all;
+
+	private RefSnapshot(final int version, final PackedList packed,
+			final LooseDir loose, final Map<String, Ref> all) {
+		this.version = version;
+		this.packed = packed;
+		this.loose = loose;
+		this.all = all;
+	}
+
+	/**
+	 * Bring the parts of this snapshot covering a prefix up to date.
+	 *
+	 * @param packedRefsFile
+	 *            location of the <code>packed-refs</code> file.
+	 * @param refsDir
+	 *            location of the <code>refs</code> directory.
+	 * @param prefix
+	 *            prefix of the reference names the caller will query. Only
+	 *            loose directories which may hold such names are examined;
+	 *            "" examines the entire tree.
+	 * @return <code>this</code> if nothing was re-read; otherwise a new
+	 *         snapshot, with a larger version if any reference changed.
+	 */
+	RefSnapshot refresh(final File packedRefsFile, final File refsDir,
+			final String prefix) {
+		final Scan scan = new Scan();
+		final PackedList p = packed.refresh(scan, packedRefsFile);
+		final LooseDir l;
+		if (prefix.startsWith(REFS_SLASH))
+			l = LooseDir.refresh(scan, loose, refsDir, REFS_SLASH, prefix);
+		else if (REFS_SLASH.startsWith(prefix))
+			l = LooseDir.refresh(scan, loose, refsDir, REFS_SLASH);
+		else
+			l = loose;
+		return update(scan, p, l);
+	}
+
+	/**
+	 * Bring only the packed references of this snapshot up to date.
+	 *
+	 * @param packedRefsFile
+	 *            location of the <code>packed-refs</code> file.
+	 * @return <code>this</code> if the file did not change; otherwise a new
+	 *         snapshot.
+	 */
+	RefSnapshot refreshPacked(final File packedRefsFile) {
+		final Scan scan = new Scan();
+		return update(scan, packed.refresh(scan, packedRefsFile), loose);
+	}
+
+	private RefSnapshot update(final Scan scan, final PackedList p,
+			final LooseDir l) {
+		if (p == packed && l == loose)
+			return this;
+		if (scan.changed)
+			return new RefSnapshot(version + 1, p, l, null);
+		return new RefSnapshot(version, p, l, all);
+	}
+
+	/**
+	 * Get the references whose names start with a prefix.
+	 * <p>
+	 * A loose reference hides a packed one of the same name. Only the parts
+	 * of the snapshot matching the prefix are visited.
+	 *
+	 * @param prefix
+	 *            required prefix of the names; "" for all references.
+	 * @return unmodifiable map of the matching references, keyed and ordered
+	 *         by their full name.
+	 */
+	Map<String, Ref> getRefs(final String prefix) {
+		if (prefix.length() == 0) {
+			Map<String, Ref> m = all;
+			if (m == null) {
+				m = collect(prefix);
+				all = m;
+			}
+			return m;
+		}
+		return collect(prefix);
+	}
+
+	private Map<String, Ref> collect(final String prefix) {
+		final List<Ref> l = new ArrayList<Ref>();
+		if (loose != null)
+			loose.collect(prefix, l);
+
+		final Ref[] p = packed.refs;
+		int pi = packed.lowerBound(prefix);
+		int li = 0;
+		final Map<String, Ref> m = new LinkedHashMap<String, Ref>();
+		for (;;) {
+			final Ref pr = pi < p.length && p[pi].getName().startsWith(prefix) ? p[pi]
+					: null;
+			final Ref lr = li < l.size() ? l.get(li) : null;
+			if (pr == null && lr == null)
+				break;
+			final int cmp = pr == null ? 1 : lr == null ? -1 : BY_NAME.compare(
+					pr, lr);
+			if (cmp < 0) {
+				m.put(pr.getName(), pr);
+				pi++;
+			} else {
+				m.put(lr.getName(), lr);
+				li++;
+				if (cmp == 0)
+					pi++;
+			}
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+	private static boolean isRacy(final Scan scan, final long modified) {
+		return scan.now - modified <= RACY_MILLIS;
+	}
+
+	private static boolean sameRef(final Ref a, final Ref b) {
+		return a.getName().equals(b.getName())
+				&& a.getObjectId().equals(b.getObjectId())
+				&& (a.getPeeledObjectId() == null ? b.getPeeledObjectId() == null
+						: a.getPeeledObjectId().equals(b.getPeeledObjectId()));
+	}
+
+	/** State shared by one refresh. */
+	private static class Scan {
+		final long now = System.currentTimeMillis();
+
+		boolean changed;
+	}
+
+	/** Sorted contents of the <code>packed-refs</code> file. */
+	static final class PackedList {
+		static final PackedList NONE = new PackedList(0, 0, NO_REFS);
+
+		/** Modification time read at; -1 if it may change unnoticed. */
+		private final long modified;
+
+		private final long length;
+
+		private final Ref[] refs;
+
+		private PackedList(final long modified, final long length,
+				final Ref[] refs) {
+			this.modified = modified;
+			this.length = length;
+			this.refs = refs;
+		}
+
+		/** @return all packed references, sorted by name. */
+		Ref[] getRefs() {
+			return refs;
+		}
+
+		/**
+		 * @param name
+		 *            full name of the reference.
+		 * @return the packed reference; null if it is not packed.
+		 */
+		Ref get(final String name) {
+			final int i = lowerBound(name);
+			if (i < refs.length && refs[i].getName().equals(name))
+				return refs[i];
+			return null;
+		}
+
+		private int lowerBound(final String name) {
+			int lo = 0;
+			int hi = refs.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (refs[mid].getName().compareTo(name) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private PackedList refresh(final Scan scan, final File file) {
+			final long currTime = file.lastModified();
+			final long currLen = currTime == 0 ? 0 : file.length();
+			if (currTime == modified && currLen == length)
+				return this;
+			if (currTime == 0) {
+				if (refs.length > 0)
+					scan.changed = true;
+				return NONE;
+			}
+
+			Ref[] n;
+			try {
+				n = read(file);
+			} catch (FileNotFoundException noPackedRefs) {
+				if (refs.length > 0)
+					scan.changed = true;
+				return NONE;
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read packed refs", e);
+			}
+			if (same(n))
+				n = refs;
+			else
+				scan.changed = true;
+			return new PackedList(isRacy(scan, currTime) ? -1 : currTime,
+					currLen, n);
+		}
+
+		private boolean same(final Ref[] n) {
+			if (n.length != refs.length)
+				return false;
+			for (int i = 0; i < n.length; i++) {
+				if (!sameRef(n[i], refs[i]))
+					return false;
+			}
+			return true;
+		}
+
+		private static Ref[] read(final File file) throws IOException {
+			final List<Ref> list = new ArrayList<Ref>();
+			boolean sorted = true;
+			final BufferedReader b = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), Constants.CHARSET));
+			try {
+				String p;
+				Ref last = null;
+				while ((p = b.readLine()) != null) {
+					if (p.length() == 0 || p.charAt(0) == '#')
+						continue;
+
+					if (p.charAt(0) == '^') {
+						if (last == null)
+							throw new IOException("Peeled line before ref.");
+
+						final ObjectId id = ObjectId.fromString(p.substring(1));
+						last = new Ref(Ref.Storage.PACKED, last.getName(), last
+								.getName(), last.getObjectId(), id, true);
+						list.set(list.size() - 1, last);
+						continue;
+					}
+
+					final int sp = p.indexOf(' ');
+					final ObjectId id = ObjectId.fromString(p.substring(0, sp));
+					final String name = new String(p.substring(sp + 1));
+					if (last != null && last.getName().compareTo(name) >= 0)
+						sorted = false;
+					last = new Ref(Ref.Storage.PACKED, name, name, id);
+					list.add(last);
+				}
+			} finally {
+				b.close();
+			}
+
+			final Ref[] r = list.toArray(new Ref[list.size()]);
+			if (!sorted) {
+				Arrays.sort(r, BY_NAME);
+				int n = 0;
+				for (int i = 0; i < r.length; i++) {
+					if (n > 0 && r[n - 1].getName().equals(r[i].getName()))
+						r[n - 1] = r[i];
+					else
+						r[n++] = r[i];
+				}
+				if (n < r.length) {
+					final Ref[] t = new Ref[n];
+					System.arraycopy(r, 0, t, 0, n);
+					return t;
+				}
+			}
+			return r;
+		}
+	}
+
+	/** One directory of loose references. */
+	private static final class LooseDir {
+		/** Name of the directory, "refs/heads/" style. */
+		final String prefix;
+
+		/** Modification time listed at; -1 if it must be listed again. */
+		final long modified;
+
+		/** Full names of the files in this directory, sorted. */
+		final String[] names;
+
+		/** Modification time of each file; -1 if it must be read again. */
+		final long[] times;
+
+		/** Reference of each file; null if not a valid reference. */
+		final Ref[] refs;
+
+		/** Subdirectories, sorted by prefix. */
+		final LooseDir[] dirs;
+
+		LooseDir(final String prefix, final long modified,
+				final String[] names, final long[] times, final Ref[] refs,
+				final LooseDir[] dirs) {
+			this.prefix = prefix;
+			this.modified = modified;
+			this.names = names;
+			this.times = times;
+			this.refs = refs;
+			this.dirs = dirs;
+		}
+
+		/**
+		 * Refresh only the path from this directory to a prefix.
+		 * <p>
+		 * Directories along the path are not listed again, but the one the
+		 * prefix ends in is refreshed completely.
+		 */
+		static LooseDir refresh(final Scan scan, final LooseDir old,
+				final File dir, final String prefix, final String target) {
+			final int slash = target.indexOf('/', prefix.length());
+			if (slash < 0)
+				return refresh(scan, old, dir, prefix);
+
+			final String name = target.substring(prefix.length(), slash);
+			final String childPrefix = prefix + name + "/";
+			final int i = old != null ? old.findDir(childPrefix) : -1;
+			final LooseDir oc = i >= 0 ? old.dirs[i] : null;
+			final LooseDir nc = refresh(scan, oc, new File(dir, name),
+					childPrefix, target);
+			if (nc == oc)
+				return old;
+			if (old == null) {
+				// Never listed; hold just this path until a full refresh.
+				return new LooseDir(prefix, -1, NO_NAMES, NO_TIMES, NO_REFS,
+						new LooseDir[] { nc });
+			}
+			return old.withDir(i, childPrefix, nc);
+		}
+
+		/** Refresh this directory and everything below it. */
+		static LooseDir refresh(final Scan scan, final LooseDir old,
+				final File dir, final String prefix) {
+			final long modified = dir.lastModified();
+			if (modified == 0) {
+				if (old != null)
+					scan.changed = true;
+				return null;
+			}
+			if (old != null && old.modified != -1 && old.modified == modified)
+				return old.refreshDirs(scan, dir);
+
+			final String[] list = dir.list();
+			if (list == null) {
+				if (old != null)
+					scan.changed = true;
+				return null;
+			}
+			Arrays.sort(list);
+
+			final List<String> names = new ArrayList<String>(list.length);
+			final List<Ref> refs = new ArrayList<Ref>(list.length);
+			final long[] times = new long[list.length];
+			final List<LooseDir> dirs = new ArrayList<LooseDir>();
+			int oldFiles = 0, oldDirs = 0;
+			for (final String n : list) {
+				if (n.endsWith(".lock"))
+					continue;
+				final String name = prefix + n;
+				final File f = new File(dir, n);
+				final int oi = old != null ? old.findFile(name) : -1;
+				if (oi >= 0) {
+					oldFiles++;
+					final long m = old.times[oi];
+					if (m != -1 && m == f.lastModified()) {
+						times[names.size()] = m;
+						names.add(name);
+						refs.add(old.refs[oi]);
+						continue;
+					}
+				}
+
+				if (f.isDirectory()) {
+					final int di = old != null ? old.findDir(name + "/") : -1;
+					final LooseDir od = di >= 0 ? old.dirs[di] : null;
+					if (od != null)
+						oldDirs++;
+					final LooseDir nd = refresh(scan, od, f, name + "/");
+					if (nd != null)
+						dirs.add(nd);
+					continue;
+				}
+
+				final long m = f.lastModified();
+				if (m == 0)
+					continue; // Deleted while we were looking.
+				Ref r = read(f, name);
+				final Ref or = oi >= 0 ? old.refs[oi] : null;
+				if (r == null) {
+					if (or != null)
+						scan.changed = true;
+				} else if (or != null && sameRef(r, or))
+					r = or;
+				else
+					scan.changed = true;
+				times[names.size()] = isRacy(scan, m) ? -1 : m;
+				names.add(name);
+				refs.add(r);
+			}
+			if (old != null
+					&& (oldFiles < old.names.length || oldDirs < old.dirs.length))
+				scan.changed = true;
+
+			final long[] t = new long[names.size()];
+			System.arraycopy(times, 0, t, 0, t.length);
+			return new LooseDir(prefix, isRacy(scan, modified) ? -1 : modified,
+					names.toArray(new String[names.size()]), t, refs
+							.toArray(new Ref[refs.size()]), dirs
+							.toArray(new LooseDir[dirs.size()]));
+		}
+
+		private LooseDir refreshDirs(final Scan scan, final File dir) {
+			LooseDir[] n = null;
+			int cnt = 0;
+			for (int i = 0; i < dirs.length; i++) {
+				final LooseDir d = dirs[i];
+				final String name = d.prefix.substring(prefix.length(),
+						d.prefix.length() - 1);
+				final LooseDir r = refresh(scan, d, new File(dir, name),
+						d.prefix);
+				if (r != d && n == null) {
+					n = new LooseDir[dirs.length];
+					System.arraycopy(dirs, 0, n, 0, i);
+					cnt = i;
+				}
+				if (n != null && r != null)
+					n[cnt++] = r;
+			}
+			if (n == null)
+				return this;
+			if (cnt < n.length) {
+				final LooseDir[] t = new LooseDir[cnt];
+				System.arraycopy(n, 0, t, 0, cnt);
+				n = t;
+			}
+			return new LooseDir(prefix, modified, names, times, refs, n);
+		}
+
+		private LooseDir withDir(final int i, final String childPrefix,
+				final LooseDir child) {
+			final LooseDir[] n;
+			if (i >= 0 && child != null) {
+				n = dirs.clone();
+				n[i] = child;
+			} else if (i >= 0) {
+				n = new LooseDir[dirs.length - 1];
+				System.arraycopy(dirs, 0, n, 0, i);
+				System.arraycopy(dirs, i + 1, n, i, n.length - i);
+			} else {
+				final int p = -(i + 1);
+				n = new LooseDir[dirs.length + 1];
+				System.arraycopy(dirs, 0, n, 0, p);
+				n[p] = child;
+				System.arraycopy(dirs, p, n, p + 1, dirs.length - p);
+			}
+			return new LooseDir(prefix, modified, names, times, refs, n);
+		}
+
+		private int findFile(final String name) {
+			return Arrays.binarySearch(names, name);
+		}
+
+		/** @return index of the directory, or -(insertion point + 1). */
+		private int findDir(final String dirPrefix) {
+			int lo = 0;
+			int hi = dirs.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int cmp = dirs[mid].prefix.compareTo(dirPrefix);
+				if (cmp < 0)
+					lo = mid + 1;
+				else if (cmp == 0)
+					return mid;
+				else
+					hi = mid;
+			}
+			return -(lo + 1);
+		}
+
+		/** Append the references matching a prefix, sorted by name. */
+		void collect(final String want, final List<Ref> out) {
+			int fi = 0;
+			int di = 0;
+			if (want.length() > prefix.length()) {
+				fi = lowerBound(names, want);
+				final int r = findDir(want);
+				di = r >= 0 ? r : -(r + 1);
+				if (di > 0 && want.startsWith(dirs[di - 1].prefix))
+					di--;
+			}
+			for (;;) {
+				final String fn = fi < names.length ? names[fi] : null;
+				final LooseDir d = di < dirs.length ? dirs[di] : null;
+				if (fn != null && !fn.startsWith(want))
+					fi = names.length;
+				if (d != null && !d.prefix.startsWith(want)
+						&& !want.startsWith(d.prefix))
+					di = dirs.length;
+				if (fi >= names.length && di >= dirs.length)
+					break;
+
+				if (di >= dirs.length
+						|| (fi < names.length && fn.compareTo(d.prefix) < 0)) {
+					if (refs[fi] != null)
+						out.add(refs[fi]);
+					fi++;
+				} else {
+					d.collect(want, out);
+					di++;
+				}
+			}
+		}
+
+		private static int lowerBound(final String[] a, final String key) {
+			final int i = Arrays.binarySearch(a, key);
+			return i >= 0 ? i : -(i + 1);
+		}
+
+		private static Ref read(final File f, final String name) {
+			try {
+				final FileInputStream in = new FileInputStream(f);
+				try {
+					final byte[] str = new byte[Constants.OBJECT_ID_LENGTH * 2];
+					NB.readFully(in, str, 0, str.length);
+					final ObjectId id = ObjectId.fromString(str, 0);
+					return new Ref(Ref.Storage.LOOSE, name, name, id, null,
+							false);
+				} finally {
+					in.close();
+				}
+			} catch (EOFException tooShortToBeRef) {
+				// Its below the minimum length needed. It could
+				// be a symbolic reference.
+				//
+				return null;
+			} catch (IllegalArgumentException notRef) {
+				// It is not a well-formed ObjectId. It may be
+				// a symbolic reference ("ref: ").
+				//
+				return null;
+			} catch (FileNotFoundException noFile) {
+				// Deleted while we were reading? Its gone now!
+				//
+				return null;
+			} catch (IOException err) {
+				throw new RuntimeException("Cannot read ref " + f, err);
+			}
+		}
+	}
+}
@@ -37,11 +37,9 @@
 
 package org.spearce.jgit.lib;
 
-import java.io.File;
 import java.io.IOException;
 
 import org.spearce.jgit.errors.MissingObjectException;
-import org.spearce.jgit.lib.Ref.Storage;
 import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevWalk;
@@ -49,7 +47,7 @@
 /**
  * Updates any locally stored ref.
  */
-public class RefUpdate {
+public abstract class RefUpdate {
 	/** Status of an update request. */
 	public static enum Result {
 		/** The ref update/delete has not been attempted by the caller. */
@@ -125,15 +123,20 @@ public static enum Result {
 		 * This kind of error doesn't include {@link #LOCK_FAILURE}, which is a
 		 * different case.
 		 */
-		IO_FAILURE
+		IO_FAILURE,
+
+		/**
+		 * Not stored because another update of the same atomic
+		 * {@link BatchRefUpdate} failed.
+		 * <p>
+		 * The ref still contains its old value.
+		 */
+		ABORTED
 	}
 
 	/** Repository the ref is stored in. */
 	private final RefDatabase db;
 
-	/** Location of the loose file holding the value of this ref. */
-	private final File looseFile;
-
 	/** New value the caller wants this ref to have. */
 	private ObjectId newValue;
 
@@ -160,11 +163,68 @@ public static enum Result {
 
 	private final Ref ref;
 
-	RefUpdate(final RefDatabase r, final Ref ref, final File f) {
+	RefUpdate(final RefDatabase r, final Ref ref) {
 		db = r;
 		this.ref = ref;
 		oldValue = ref.getObjectId();
-		looseFile = f;
+	}
+
+	/** @return the ref this update operates on, as it was read. */
+	Ref getRef() {
+		return ref;
+	}
+
+	/**
+	 * Lock the ref against concurrent updates.
+	 *
+	 * @return true if the lock was taken; false if someone else holds it.
+	 * @throws IOException
+	 *             the lock could not be created.
+	 */
+	abstract boolean tryLock() throws IOException;
+
+	/** Release the lock taken by {@link #tryLock()}, if any. */
+	abstract void unlock();
+
+	/**
+	 * Store the new value while the ref is locked.
+	 *
+	 * @param status
+	 *            the result of the merge test.
+	 * @return <code>status</code>, or the reason the store failed.
+	 * @throws IOException
+	 *             the new value could not be written.
+	 */
+	abstract Result doUpdate(Result status) throws IOException;
+
+	/**
+	 * Delete the ref while it is locked.
+	 *
+	 * @param status
+	 *            the result of the merge test.
+	 * @return <code>status</code>, or the reason the delete failed.
+	 * @throws IOException
+	 *             the ref could not be deleted.
+	 */
+	abstract Result doDelete(Result status) throws IOException;
+
+	/**
+	 * @param status
+	 *            the result of the update.
+	 * @return the reflog message, with the result appended if the caller asked
+	 *         for it.
+	 */
+	String getRefLogMessage(final Result status) {
+		String msg = getRefLogMessage();
+		if (msg != null && refLogIncludeResult) {
+			if (status == Result.FORCED)
+				msg += ": forced-update";
+			else if (status == Result.FAST_FORWARD)
+				msg += ": fast forward";
+			else if (status == Result.NEW)
+				msg += ": created";
+		}
+		return msg;
 	}
 
 	/** @return the repository the updated ref resides in */
@@ -414,42 +474,79 @@ public Result delete(final RevWalk walk) throws IOException {
 
 	private Result updateImpl(final RevWalk walk, final Store store)
 			throws IOException {
-		final LockFile lock;
-		RevObject newObj;
-		RevObject oldObj;
-
-		lock = new LockFile(looseFile);
-		if (!lock.lock())
+		if (!tryLock())
 			return Result.LOCK_FAILURE;
 		try {
-			oldValue = db.idOf(getName());
-			if (expValue != null) {
-				final ObjectId o;
-				o = oldValue != null ? oldValue : ObjectId.zeroId();
-				if (!expValue.equals(o))
-					return Result.LOCK_FAILURE;
-			}
-			if (oldValue == null)
-				return store.store(lock, Result.NEW);
-
-			newObj = safeParse(walk, newValue);
-			oldObj = safeParse(walk, oldValue);
-			if (newObj == oldObj)
-				return store.store(lock, Result.NO_CHANGE);
-
-			if (newObj instanceof RevCommit && oldObj instanceof RevCommit) {
-				if (walk.isMergedInto((RevCommit) oldObj, (RevCommit) newObj))
-					return store.store(lock, Result.FAST_FORWARD);
-			}
-
-			if (isForceUpdate())
-				return store.store(lock, Result.FORCED);
-			return Result.REJECTED;
+			final Result status = check(walk);
+			if (isStorable(status))
+				return store.store(status);
+			return status;
 		} finally {
-			lock.unlock();
+			unlock();
 		}
 	}
 
+	/**
+	 * Read the current value of the locked ref and run the merge test.
+	 *
+	 * @param walk
+	 *            walk to perform the merge test with.
+	 * @return {@link Result#LOCK_FAILURE} if the ref does not have the
+	 *         expected old value, {@link Result#REJECTED} if the update is not
+	 *         permitted, otherwise the status to store the update with.
+	 * @throws IOException
+	 *             the ref or the objects could not be read.
+	 */
+	Result check(final RevWalk walk) throws IOException {
+		RevObject newObj;
+		RevObject oldObj;
+
+		oldValue = db.idOf(getName());
+		if (expValue != null) {
+			final ObjectId o;
+			o = oldValue != null ? oldValue : ObjectId.zeroId();
+			if (!expValue.equals(o))
+				return Result.LOCK_FAILURE;
+		}
+		if (oldValue == null)
+			return Result.NEW;
+
+		newObj = safeParse(walk, newValue);
+		oldObj = safeParse(walk, oldValue);
+		if (newObj == oldObj)
+			return Result.NO_CHANGE;
+
+		if (newObj instanceof RevCommit && oldObj instanceof RevCommit) {
+			if (walk.isMergedInto((RevCommit) oldObj, (RevCommit) newObj))
+				return Result.FAST_FORWARD;
+		}
+
+		if (isForceUpdate())
+			return Result.FORCED;
+		return Result.REJECTED;
+	}
+
+	/**
+	 * @param status
+	 *            result of {@link #check(RevWalk)}.
+	 * @return true if the update should be stored with this status.
+	 */
+	static boolean isStorable(final Result status) {
+		switch (status) {
+		case NEW:
+		case NO_CHANGE:
+		case FAST_FORWARD:
+		case FORCED:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	void setResult(final Result status) {
+		result = status;
+	}
+
 	private static RevObject safeParse(final RevWalk rw, final AnyObjectId id)
 			throws IOException {
 		try {
@@ -464,93 +561,29 @@ private static RevObject safeParse(final RevWalk rw, final AnyObjectId id)
 		}
 	}
 
-	private Result updateStore(final LockFile lock, final Result status)
-			throws IOException {
-		if (status == Result.NO_CHANGE)
-			return status;
-		lock.setNeedStatInformation(true);
-		lock.write(newValue);
-		String msg = getRefLogMessage();
-		if (msg != null && refLogIncludeResult) {
-			if (status == Result.FORCED)
-				msg += ": forced-update";
-			else if (status == Result.FAST_FORWARD)
-				msg += ": fast forward";
-			else if (status == Result.NEW)
-				msg += ": created";
-		}
-		RefLogWriter.append(this, msg);
-		if (!lock.commit())
-			return Result.LOCK_FAILURE;
-		db.stored(this.ref.getOrigName(),  ref.getName(), newValue, lock.getCommitLastModified());
-		return status;
-	}
-
 	/**
 	 * Handle the abstraction of storing a ref update. This is because both
 	 * updating and deleting of a ref have merge testing in common.
 	 */
 	private abstract class Store {
-		abstract Result store(final LockFile lock, final Result status)
-				throws IOException;
+		abstract Result store(final Result status) throws IOException;
 	}
 
 	private class UpdateStore extends Store {
 
 		@Override
-		Result store(final LockFile lock, final Result status)
-				throws IOException {
-			return updateStore(lock, status);
+		Result store(final Result status) throws IOException {
+			if (status == Result.NO_CHANGE)
+				return status;
+			return doUpdate(status);
 		}
 	}
 
 	private class DeleteStore extends Store {
 
 		@Override
-		Result store(LockFile lock, Result status) throws IOException {
-			Storage storage = ref.getStorage();
-			if (storage == Storage.NEW)
-				return status;
-			if (storage.isPacked())
-				db.removePackedRef(ref.getName());
-
-			final int levels = count(ref.getName(), '/') - 2;
-
-			// Delete logs _before_ unlocking
-			final File gitDir = db.getRepository().getDirectory();
-			final File logDir = new File(gitDir, Constants.LOGS);
-			deleteFileAndEmptyDir(new File(logDir, ref.getName()), levels);
-
-			// We have to unlock before (maybe) deleting the parent directories
-			lock.unlock();
-			if (storage.isLoose())
-				deleteFileAndEmptyDir(looseFile, levels);
-			return status;
-		}
-
-		private void deleteFileAndEmptyDir(final File file, final int depth)
-				throws IOException {
-			if (file.exists()) {
-				if (!file.delete())
-					throw new IOException("File cannot be deleted: " + file);
-				deleteEmptyDir(file.getParentFile(), depth);
-			}
-		}
-
-		private void deleteEmptyDir(File dir, int depth) {
-			for (; depth > 0 && dir != null; depth--) {
-				if (!dir.delete())
-					break;
-				dir = dir.getParentFile();
-			}
-		}
-	}
-
-	private static int count(final String s, final char c) {
-		int count = 0;
-		for (int p = s.indexOf(c); p >= 0; p = s.indexOf(c, p + 1)) {
-			count++;
+		Result store(final Result status) throws IOException {
+			return doDelete(status);
 		}
-		return count;
 	}
 }
@@ -0,0 +1,753 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Reader for a single reftable file.
+ * <p>
+ * A reftable holds refs and reflog records sorted by name in blocks. Keys
+ * within a block are prefix compressed against the previous key, except at
+ * restart points, whose offsets are listed at the end of the block so a
+ * lookup can binary search them. Tables with many ref blocks carry an index
+ * of the last key in each block. Log blocks are compressed with zlib.
+ * <p>
+ * Tables are immutable once written, so a reader may be shared freely.
+ *
+ * @see ReftableWriter
+ */
+class Reftable {
+	static final byte[] MAGIC = { 'R', 'E', 'F', 'T' };
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 24;
+
+	static final int FOOTER_SIZE = 68;
+
+	static final byte BLOCK_REF = 'r';
+
+	static final byte BLOCK_LOG = 'g';
+
+	static final byte BLOCK_INDEX = 'i';
+
+	static final byte BLOCK_OBJ = 'o';
+
+	static final int VALUE_DELETION = 0;
+
+	static final int VALUE_ID = 1;
+
+	static final int VALUE_PEELED = 2;
+
+	static final int VALUE_SYMREF = 3;
+
+	static final int LOG_DELETION = 0;
+
+	static final int LOG_UPDATE = 1;
+
+	private static final int ID_LEN = Constants.OBJECT_ID_LENGTH;
+
+	private final byte[] buf;
+
+	private final int blockSize;
+
+	private final long minUpdateIndex;
+
+	private final long maxUpdateIndex;
+
+	private final int refEnd;
+
+	private final int refIndexPosition;
+
+	private final int logPosition;
+
+	private final boolean hasLogs;
+
+	private final int logEnd;
+
+	/**
+	 * Read a table completely into memory.
+	 *
+	 * @param file
+	 *            the table.
+	 * @return the table.
+	 * @throws IOException
+	 *             the file could not be read, or is not a valid reftable.
+	 */
+	static Reftable open(final File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final long sz = in.getChannel().size();
+			if (sz > Integer.MAX_VALUE)
+				throw new IOException("Reftable too large: " + file);
+			final byte[] buf = new byte[(int) sz];
+			NB.readFully(in, buf, 0, buf.length);
+			return new Reftable(buf);
+		} catch (IOException err) {
+			final IOException e = new IOException("Cannot read reftable "
+					+ file);
+			e.initCause(err);
+			throw e;
+		} finally {
+			in.close();
+		}
+	}
+
+	Reftable(final byte[] buf) throws IOException {
+		this.buf = buf;
+		if (buf.length < HEADER_SIZE + FOOTER_SIZE)
+			throw new IOException("Reftable truncated");
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buf[i] != MAGIC[i])
+				throw new IOException("Not a reftable");
+		}
+		if ((buf[4] & 0xff) != VERSION)
+			throw new IOException("Unsupported reftable version "
+					+ (buf[4] & 0xff));
+		blockSize = uint24(buf, 5);
+		minUpdateIndex = NB.decodeUInt64(buf, 8);
+		maxUpdateIndex = NB.decodeUInt64(buf, 16);
+
+		final int f = buf.length - FOOTER_SIZE;
+		for (int i = 0; i < HEADER_SIZE; i++) {
+			if (buf[f + i] != buf[i])
+				throw new IOException("Reftable footer does not match header");
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(buf, f, FOOTER_SIZE - 4);
+		if ((int) crc.getValue() != NB.decodeInt32(buf, f + FOOTER_SIZE - 4))
+			throw new IOException("Reftable footer is corrupt");
+
+		refIndexPosition = position(f + 24);
+		final int objPosition = position(f + 32) >>> 5;
+		final int objIndexPosition = position(f + 40);
+		logPosition = position(f + 48);
+		final int logIndexPosition = position(f + 56);
+
+		int end = f;
+		for (final int p : new int[] { refIndexPosition, objPosition,
+				objIndexPosition, logPosition, logIndexPosition }) {
+			if (0 < p && p < end)
+				end = p;
+		}
+		// A table holding only logs starts its log section at position 0.
+		//
+		if (end > HEADER_SIZE && buf[HEADER_SIZE] == BLOCK_LOG) {
+			refEnd = 0;
+			hasLogs = true;
+		} else {
+			refEnd = end;
+			hasLogs = logPosition > 0;
+		}
+		logEnd = logIndexPosition > 0 ? logIndexPosition : f;
+	}
+
+	private int position(final int ptr) throws IOException {
+		final long p = NB.decodeUInt64(buf, ptr);
+		if (p < 0 || p > buf.length)
+			throw new IOException("Reftable position out of range");
+		return (int) p;
+	}
+
+	/** @return smallest update index of any record in this table. */
+	long getMinUpdateIndex() {
+		return minUpdateIndex;
+	}
+
+	/** @return largest update index of any record in this table. */
+	long getMaxUpdateIndex() {
+		return maxUpdateIndex;
+	}
+
+	/** @return size of the table in bytes, excluding header and footer. */
+	long size() {
+		return buf.length - HEADER_SIZE - FOOTER_SIZE;
+	}
+
+	/**
+	 * Find a ref by exact name.
+	 *
+	 * @param name
+	 *            full name of the ref.
+	 * @return the record, which may be a deletion; null if this table does
+	 *         not mention the ref.
+	 * @throws IOException
+	 *             the table is corrupt.
+	 */
+	RefRecord seekRef(final String name) throws IOException {
+		final RefCursor c = seekRefs(name);
+		final RefRecord r = c.next();
+		if (r != null && r.name.equals(name))
+			return r;
+		return null;
+	}
+
+	/**
+	 * Iterate over the refs whose names start with a prefix.
+	 *
+	 * @param prefix
+	 *            required prefix; "" for all refs.
+	 * @return cursor positioned before the first matching ref.
+	 * @throws IOException
+	 *             the table is corrupt.
+	 */
+	RefCursor seekRefs(final String prefix) throws IOException {
+		final byte[] key = Constants.encode(prefix);
+		final RefCursor c = new RefCursor(key);
+		if (refEnd <= HEADER_SIZE)
+			return c;
+
+		Block b;
+		if (refIndexPosition > 0) {
+			b = readBlock(refIndexPosition);
+			while (b.type == BLOCK_INDEX) {
+				// Index keys are the last key of each block they point to.
+				if (!b.seek(key))
+					return c;
+				b.readKey();
+				b = readBlock((int) b.readVarint());
+			}
+		} else {
+			// Without an index, the first block that can hold the key is
+			// the last block whose first key is not larger.
+			//
+			b = readBlock(0);
+			for (;;) {
+				final int next = nextBlock(b);
+				if (next >= refEnd)
+					break;
+				final Block n = readBlock(next);
+				if (n.type != BLOCK_REF || compare(n.firstKey(), key) > 0)
+					break;
+				b = n;
+			}
+		}
+		if (b.type != BLOCK_REF)
+			return c;
+		c.block = b;
+		if (!b.seek(key))
+			c.advanceBlock();
+		return c;
+	}
+
+	/**
+	 * Iterate over all reflog records, sorted by name and by descending
+	 * update index.
+	 *
+	 * @return cursor positioned before the first record.
+	 * @throws IOException
+	 *             the table is corrupt.
+	 */
+	LogCursor allLogs() throws IOException {
+		final LogCursor c = new LogCursor();
+		if (hasLogs && logPosition < logEnd) {
+			c.block = readBlock(logPosition);
+			c.block.rewind();
+		}
+		return c;
+	}
+
+	private int nextBlock(final Block b) {
+		int p = b.nextPosition;
+		if (p < refEnd && buf[p] == 0 && blockSize > 0) {
+			// Skip the padding after an aligned block.
+			p = ((p + blockSize - 1) / blockSize) * blockSize;
+		}
+		return p;
+	}
+
+	private Block readBlock(final int pos) throws IOException {
+		final int headerOff = pos == 0 ? HEADER_SIZE : 0;
+		final int p = pos + headerOff;
+		if (p + 4 > buf.length)
+			throw new IOException("Reftable block out of range");
+		final byte type = buf[p];
+		final int len = uint24(buf, p + 1);
+		if (type != BLOCK_LOG) {
+			if (pos + len > buf.length || len < headerOff + 6)
+				throw new IOException("Reftable block out of range");
+			return new Block(type, buf, pos, headerOff, len, pos + len);
+		}
+
+		final byte[] raw = new byte[len];
+		System.arraycopy(buf, pos, raw, 0, headerOff + 4);
+		final Inflater inf = new Inflater();
+		try {
+			inf.setInput(buf, p + 4, buf.length - (p + 4));
+			int n = headerOff + 4;
+			while (n < len) {
+				final int r = inf.inflate(raw, n, len - n);
+				if (r == 0) {
+					if (inf.finished() || inf.needsInput())
+						throw new IOException("Reftable log block truncated");
+					if (inf.needsDictionary())
+						throw new IOException("Reftable log block corrupt");
+				}
+				n += r;
+			}
+			if (!inf.finished()
+					&& (inf.inflate(new byte[1]) != 0 || !inf.finished()))
+				throw new IOException("Reftable log block too long");
+			final int consumed = (buf.length - (p + 4)) - inf.getRemaining();
+			return new Block(type, raw, 0, headerOff, len, p + 4 + consumed);
+		} catch (DataFormatException e) {
+			final IOException err = new IOException(
+					"Reftable log block corrupt");
+			err.initCause(e);
+			throw err;
+		} finally {
+			inf.end();
+		}
+	}
+
+	static int compare(final byte[] a, final byte[] b) {
+		final int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			final int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+	static int uint24(final byte[] b, final int p) {
+		return ((b[p] & 0xff) << 16) | ((b[p + 1] & 0xff) << 8)
+				| (b[p + 2] & 0xff);
+	}
+
+	/** One decoded block, positioned at a record. */
+	private static final class Block {
+		final byte type;
+
+		final byte[] data;
+
+		final int start;
+
+		final int end;
+
+		final int restartCount;
+
+		final int restartTable;
+
+		final int firstRecord;
+
+		/** Position of the next block in the file. */
+		final int nextPosition;
+
+		int ptr;
+
+		byte[] key = {};
+
+		int valueType;
+
+		Block(final byte type, final byte[] data, final int start,
+				final int headerOff, final int len, final int nextPosition)
+				throws IOException {
+			this.type = type;
+			this.data = data;
+			this.start = start;
+			this.end = start + len;
+			this.nextPosition = nextPosition;
+			restartCount = NB.decodeUInt16(data, end - 2);
+			restartTable = end - 2 - 3 * restartCount;
+			firstRecord = start + headerOff + 4;
+			if (restartCount == 0 || restartTable < firstRecord)
+				throw new IOException("Reftable block is corrupt");
+			ptr = firstRecord;
+		}
+
+		void rewind() {
+			ptr = firstRecord;
+			key = new byte[0];
+		}
+
+		boolean hasNext() {
+			return ptr < restartTable;
+		}
+
+		byte[] firstKey() throws IOException {
+			rewind();
+			readKey();
+			return key;
+		}
+
+		/**
+		 * Position before the first record whose key is not less than a key.
+		 *
+		 * @return false if every key in the block is smaller.
+		 */
+		boolean seek(final byte[] want) throws IOException {
+			int lo = 0;
+			int hi = restartCount;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				ptr = restart(mid);
+				key = new byte[0];
+				readKey();
+				if (compare(key, want) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+
+			// Scan forward from the last restart whose key is not larger.
+			//
+			ptr = lo == 0 ? firstRecord : restart(lo - 1);
+			key = new byte[0];
+			while (ptr < restartTable) {
+				final int rec = ptr;
+				final byte[] prior = key;
+				readKey();
+				if (compare(key, want) >= 0) {
+					ptr = rec;
+					key = prior;
+					return true;
+				}
+				skipValue();
+			}
+			return false;
+		}
+
+		private int restart(final int i) {
+			return start + uint24(data, restartTable + 3 * i);
+		}
+
+		void readKey() throws IOException {
+			final int prefix = (int) readVarint();
+			final int sfx = (int) readVarint();
+			final int suffixLen = sfx >>> 3;
+			valueType = sfx & 7;
+			if (prefix > key.length || ptr + suffixLen > restartTable)
+				throw new IOException("Reftable record is corrupt");
+			final byte[] k = new byte[prefix + suffixLen];
+			System.arraycopy(key, 0, k, 0, prefix);
+			System.arraycopy(data, ptr, k, prefix, suffixLen);
+			ptr += suffixLen;
+			key = k;
+		}
+
+		void skipValue() throws IOException {
+			switch (type) {
+			case BLOCK_REF:
+				readVarint();
+				switch (valueType) {
+				case VALUE_ID:
+					ptr += ID_LEN;
+					break;
+				case VALUE_PEELED:
+					ptr += 2 * ID_LEN;
+					break;
+				case VALUE_SYMREF:
+					skipString();
+					break;
+				}
+				break;
+			case BLOCK_LOG:
+				if (valueType == LOG_UPDATE) {
+					ptr += 2 * ID_LEN;
+					skipString();
+					skipString();
+					readVarint();
+					ptr += 2;
+					skipString();
+				}
+				break;
+			default:
+				readVarint();
+				break;
+			}
+		}
+
+		private void skipString() {
+			final int n = (int) readVarint();
+			ptr += n;
+		}
+
+		long readVarint() {
+			int c = data[ptr++];
+			long val = c & 0x7f;
+			while ((c & 0x80) != 0) {
+				c = data[ptr++];
+				val = ((val + 1) << 7) | (c & 0x7f);
+			}
+			return val;
+		}
+
+		ObjectId readId() {
+			final ObjectId id = ObjectId.fromRaw(data, ptr);
+			ptr += ID_LEN;
+			return id;
+		}
+
+		String readString() {
+			final int n = (int) readVarint();
+			final String s = RawParseUtils.decode(Constants.CHARSET, data, ptr,
+					ptr + n);
+			ptr += n;
+			return s;
+		}
+	}
+
+	/** A ref, or the deletion of a ref, as stored in a table. */
+	static final class RefRecord {
+		final String name;
+
+		final long updateIndex;
+
+		final int valueType;
+
+		final ObjectId value;
+
+		final ObjectId peeled;
+
+		final String target;
+
+		RefRecord(final String name, final long updateIndex,
+				final int valueType, final ObjectId value,
+				final ObjectId peeled, final String target) {
+			this.name = name;
+			this.updateIndex = updateIndex;
+			this.valueType = valueType;
+			this.value = value;
+			this.peeled = peeled;
+			this.target = target;
+		}
+
+		boolean isDeletion() {
+			return valueType == VALUE_DELETION;
+		}
+
+		boolean isSymbolic() {
+			return valueType == VALUE_SYMREF;
+		}
+
+		/** @return the record as a ref; only valid if not symbolic. */
+		Ref toRef() {
+			return new Ref(Ref.Storage.PACKED, name, name, value, peeled, true);
+		}
+	}
+
+	/** A reflog entry, or the deletion of one, as stored in a table. */
+	static final class LogRecord {
+		final String name;
+
+		final long updateIndex;
+
+		final int logType;
+
+		final ObjectId oldId;
+
+		final ObjectId newId;
+
+		final PersonIdent who;
+
+		final String message;
+
+		LogRecord(final String name, final long updateIndex,
+				final int logType, final ObjectId oldId, final ObjectId newId,
+				final PersonIdent who, final String message) {
+			this.name = name;
+			this.updateIndex = updateIndex;
+			this.logType = logType;
+			this.oldId = oldId;
+			this.newId = newId;
+			this.who = who;
+			this.message = message;
+		}
+
+		boolean isDeletion() {
+			return logType == LOG_DELETION;
+		}
+
+		/** @return the key the record is sorted by. */
+		byte[] key() {
+			return logKey(name, updateIndex);
+		}
+	}
+
+	static byte[] logKey(final String name, final long updateIndex) {
+		final byte[] n = Constants.encode(name);
+		final byte[] k = new byte[n.length + 1 + 8];
+		System.arraycopy(n, 0, k, 0, n.length);
+		NB.encodeInt64(k, n.length + 1, ~updateIndex);
+		return k;
+	}
+
+	/** Iterates over ref records in name order. */
+	final class RefCursor {
+		private final byte[] prefix;
+
+		Block block;
+
+		RefCursor(final byte[] prefix) {
+			this.prefix = prefix;
+		}
+
+		/**
+		 * @return the next record whose name starts with the prefix; null
+		 *         when there are no more.
+		 * @throws IOException
+		 *             the table is corrupt.
+		 */
+		RefRecord next() throws IOException {
+			while (block != null && !block.hasNext())
+				advanceBlock();
+			if (block == null)
+				return null;
+
+			final Block b = block;
+			b.readKey();
+			if (!startsWith(b.key, prefix)) {
+				block = null;
+				return null;
+			}
+			final String name = RawParseUtils.decode(Constants.CHARSET, b.key,
+					0, b.key.length);
+			final long idx = minUpdateIndex + b.readVarint();
+			ObjectId value = null;
+			ObjectId peeled = null;
+			String target = null;
+			switch (b.valueType) {
+			case VALUE_DELETION:
+				break;
+			case VALUE_ID:
+				value = b.readId();
+				break;
+			case VALUE_PEELED:
+				value = b.readId();
+				peeled = b.readId();
+				break;
+			case VALUE_SYMREF:
+				target = b.readString();
+				break;
+			default:
+				throw new IOException("Unknown reftable value type "
+						+ b.valueType);
+			}
+			return new RefRecord(name, idx, b.valueType, value, peeled, target);
+		}
+
+		void advanceBlock() throws IOException {
+			final int next = nextBlock(block);
+			if (next >= refEnd) {
+				block = null;
+				return;
+			}
+			final Block b = readBlock(next);
+			if (b.type != BLOCK_REF) {
+				block = null;
+				return;
+			}
+			b.rewind();
+			block = b;
+		}
+	}
+
+	/** Iterates over log records in key order. */
+	final class LogCursor {
+		Block block;
+
+		/**
+		 * @return the next record; null when there are no more.
+		 * @throws IOException
+		 *             the table is corrupt.
+		 */
+		LogRecord next() throws IOException {
+			while (block != null && !block.hasNext()) {
+				final int next = block.nextPosition;
+				if (next >= logEnd) {
+					block = null;
+					break;
+				}
+				block = readBlock(next);
+				if (block.type != BLOCK_LOG)
+					block = null;
+				else
+					block.rewind();
+			}
+			if (block == null)
+				return null;
+
+			final Block b = block;
+			b.readKey();
+			final int n = b.key.length - 9;
+			if (n < 0 || b.key[n] != 0)
+				throw new IOException("Reftable log key is corrupt");
+			final String name = RawParseUtils.decode(Constants.CHARSET, b.key,
+					0, n);
+			final long idx = ~NB.decodeUInt64(b.key, n + 1);
+			if (b.valueType == LOG_DELETION)
+				return new LogRecord(name, idx, LOG_DELETION, null, null, null,
+						null);
+			if (b.valueType != LOG_UPDATE)
+				throw new IOException("Unknown reftable log type "
+						+ b.valueType);
+
+			final ObjectId oldId = b.readId();
+			final ObjectId newId = b.readId();
+			final String who = b.readString();
+			final String email = b.readString();
+			final long when = b.readVarint();
+			final short tz = (short) NB.decodeUInt16(b.data, b.ptr);
+			b.ptr += 2;
+			final String msg = b.readString();
+			return new LogRecord(name, idx, LOG_UPDATE, oldId, newId,
+					new PersonIdent(who, email, when * 1000L, tz), msg);
+		}
+	}
+
+	private static boolean startsWith(final byte[] key, final byte[] prefix) {
+		if (key.length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (key[i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.lib.RefUpdate.Result;
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+
+/**
+ * Updates many refs of a {@link ReftableDatabase} as a single table.
+ * <p>
+ * The whole batch becomes visible at once, when the new table is added to
+ * <code>tables.list</code>.
+ */
+class ReftableBatchUpdate extends BatchRefUpdate {
+	private final ReftableDatabase database;
+
+	private LockFile lock;
+
+	ReftableBatchUpdate(final ReftableDatabase r) {
+		super(r);
+		database = r;
+	}
+
+	@Override
+	void lock(final List<RefUpdate> updates) throws IOException {
+		lock = database.lock();
+		if (lock == null) {
+			for (final RefUpdate u : updates)
+				u.setResult(Result.LOCK_FAILURE);
+		}
+	}
+
+	@Override
+	void store(final List<RefUpdate> updates) throws IOException {
+		final long idx = database.stack().getMaxUpdateIndex() + 1;
+		final List<RefRecord> refs = new ArrayList<RefRecord>(updates.size());
+		final List<LogRecord> logs = new ArrayList<LogRecord>(updates.size());
+		for (final RefUpdate cmd : updates) {
+			final ReftableUpdate u = (ReftableUpdate) cmd;
+			final Result status = u.getResult();
+			if (isDelete(u)) {
+				// NEW means the ref did not exist when it was locked.
+				if (status != Result.NEW)
+					u.addDelete(idx, refs, logs);
+			} else if (status != Result.NO_CHANGE)
+				u.addUpdate(status, idx, refs, logs);
+		}
+		if (!refs.isEmpty())
+			database.commit(lock, refs, logs);
+	}
+
+	@Override
+	void unlock() {
+		if (lock != null) {
+			lock.unlock();
+			lock = null;
+		}
+	}
+}
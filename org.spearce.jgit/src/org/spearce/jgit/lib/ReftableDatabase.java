@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.lib.Ref.Storage;
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+
+/**
+ * {@link RefDatabase} storing refs and reflogs in a stack of reftables.
+ * <p>
+ * Every update appends one small table holding the new ref values and their
+ * reflog records, then rewrites <code>reftable/tables.list</code> under its
+ * lock file. Whenever the table sizes stop decreasing geometrically from the
+ * oldest to the newest, the smallest tables are merged so a lookup only has
+ * to consult a logarithmic number of tables.
+ * <p>
+ * All updates are serialized by the lock on <code>tables.list</code>, so a
+ * {@link RefUpdate} waits briefly for it before reporting
+ * {@link RefUpdate.Result#LOCK_FAILURE}.
+ */
+class ReftableDatabase extends RefDatabase {
+	private static final int COMPACTION_FACTOR = 2;
+
+	private static final int LOCK_ATTEMPTS = 20;
+
+	private static final long LOCK_WAIT_MILLIS = 10;
+
+	private static final Random RANDOM = new Random();
+
+	private static final Comparator<RefRecord> REF_ORDER = new Comparator<RefRecord>() {
+		public int compare(final RefRecord a, final RefRecord b) {
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	private static final Comparator<LogRecord> LOG_ORDER = new Comparator<LogRecord>() {
+		public int compare(final LogRecord a, final LogRecord b) {
+			return Reftable.compare(a.key(), b.key());
+		}
+	};
+
+	private final File gitDir;
+
+	private final File reftableDir;
+
+	private ReftableStack stack;
+
+	private Map<String, Ref> allRefs;
+
+	private Reftable[] allRefsTables;
+
+	ReftableDatabase(final Repository r) {
+		super(r);
+		gitDir = db.getDirectory();
+		reftableDir = new File(gitDir, "reftable");
+		clearCache();
+	}
+
+	synchronized void clearCache() {
+		stack = ReftableStack.EMPTY;
+		allRefs = null;
+		allRefsTables = null;
+	}
+
+	void create() throws IOException {
+		if (!reftableDir.mkdirs() && !reftableDir.isDirectory())
+			throw new IOException("Cannot create directory " + reftableDir);
+		new File(reftableDir, ReftableStack.TABLES_LIST).createNewFile();
+
+		// Other tools expect HEAD and refs/ to exist. Give them contents
+		// which cannot be mistaken for real refs.
+		//
+		final File refsDir = new File(gitDir, "refs");
+		refsDir.mkdir();
+		writeFile(new File(refsDir, "heads"),
+				"this repository uses the reftable format\n");
+		writeFile(new File(gitDir, Constants.HEAD), "ref: refs/heads/.invalid\n");
+	}
+
+	private static void writeFile(final File f, final String content)
+			throws IOException {
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(Constants.encode(content));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the current stack, re-read if <code>tables.list</code> changed.
+	 * @throws IOException
+	 *             the stack could not be read.
+	 */
+	synchronized ReftableStack stack() throws IOException {
+		final ReftableStack n = ReftableStack.read(reftableDir, stack);
+		if (n.tables != stack.tables)
+			setModified();
+		stack = n;
+		return n;
+	}
+
+	private ReftableStack stackForRead() {
+		try {
+			return stack();
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read reftables", e);
+		}
+	}
+
+	ObjectId idOf(final String name) throws IOException {
+		final Ref r = resolve(stack(), name, name, 0);
+		return r != null ? r.getObjectId() : null;
+	}
+
+	RefUpdate newUpdate(final String name) throws IOException {
+		Ref r = resolve(stack(), name, name, 0);
+		if (r == null)
+			r = new Ref(Storage.NEW, name, null);
+		return new ReftableUpdate(this, r);
+	}
+
+	BatchRefUpdate newBatchUpdate() {
+		return new ReftableBatchUpdate(this);
+	}
+
+	Ref readRef(final String partialName) throws IOException {
+		final ReftableStack s = stack();
+		for (int k = 0; k < SEARCH_PATH.length; k++) {
+			final String name = SEARCH_PATH[k] + partialName;
+			final Ref r = resolve(s, name, name, 0);
+			if (r != null && r.getObjectId() != null)
+				return r;
+		}
+		return null;
+	}
+
+	String readLink(final String name) throws IOException {
+		final RefRecord r = stack().exactRef(name);
+		if (r == null || r.isDeletion())
+			throw new FileNotFoundException(name);
+		return r.isSymbolic() ? r.target : r.value.name();
+	}
+
+	private static Ref resolve(final ReftableStack s, final String origName,
+			final String name, final int depth) throws IOException {
+		final RefRecord r = s.exactRef(name);
+		if (r == null || r.isDeletion())
+			return null;
+		if (!r.isSymbolic()) {
+			if (origName.equals(name))
+				return r.toRef();
+			return new Ref(Storage.PACKED, origName, name, r.value, r.peeled,
+					true);
+		}
+
+		if (depth >= MAX_SYMBOLIC_REF_DEPTH) {
+			throw new IOException("Exceeded maximum ref depth of " + depth
+					+ " at " + name + ".  Circular reference?");
+		}
+		final Ref t = resolve(s, origName, r.target, depth + 1);
+		if (t == null)
+			return new Ref(Storage.NEW, origName, r.target, null);
+		return t;
+	}
+
+	Map<String, Ref> getAllRefs() {
+		final Map<String, Ref> r;
+		synchronized (this) {
+			final ReftableStack s = stackForRead();
+			if (allRefs == null || allRefsTables != s.tables) {
+				final Map<String, Ref> m = new LinkedHashMap<String, Ref>();
+				try {
+					final Ref head = resolve(s, Constants.HEAD,
+							Constants.HEAD, 0);
+					if (head != null && head.getObjectId() != null)
+						m.put(Constants.HEAD, head);
+				} catch (IOException e) {
+					// ignore here
+				}
+				m.putAll(getRefs(s, ""));
+				allRefs = Collections.unmodifiableMap(m);
+				allRefsTables = s.tables;
+			}
+			r = allRefs;
+		}
+		db.fireRefsMaybeChanged();
+		return r;
+	}
+
+	Map<String, Ref> getRefs(final String prefix) {
+		final Map<String, Ref> r = getRefs(stackForRead(), prefix);
+		db.fireRefsMaybeChanged();
+		return r;
+	}
+
+	private static Map<String, Ref> getRefs(final ReftableStack s,
+			final String prefix) {
+		final List<RefRecord> list;
+		try {
+			list = s.refs(prefix, 0, s.tables.length, false);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read reftables", e);
+		}
+		final Map<String, Ref> m = new LinkedHashMap<String, Ref>();
+		for (final RefRecord r : list) {
+			if (!r.isSymbolic() && r.name.startsWith(REFS_SLASH))
+				m.put(r.name, r.toRef());
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+	void link(final String name, final String target) throws IOException {
+		final LockFile lck = lock();
+		if (lck == null)
+			throw new ObjectWritingException("Unable to lock " + name);
+		try {
+			final long idx = stack().getMaxUpdateIndex() + 1;
+			final List<RefRecord> refs = new ArrayList<RefRecord>(1);
+			refs.add(new RefRecord(name, idx, Reftable.VALUE_SYMREF, null,
+					null, target));
+			commit(lck, refs, new ArrayList<LogRecord>(0));
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	void log(final String refName, final ObjectId oldId,
+			final ObjectId newId, final PersonIdent ident, final String msg)
+			throws IOException {
+		final LockFile lck = lock();
+		if (lck == null)
+			throw new ObjectWritingException("Unable to lock reflog of "
+					+ refName);
+		try {
+			final long idx = stack().getMaxUpdateIndex() + 1;
+			final List<LogRecord> logs = new ArrayList<LogRecord>(1);
+			logs.add(newLogRecord(refName, idx, oldId, newId, ident, msg));
+			commit(lck, new ArrayList<RefRecord>(0), logs);
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	static LogRecord newLogRecord(final String refName, final long idx,
+			final ObjectId oldId, final ObjectId newId,
+			final PersonIdent ident, final String msg) {
+		return new LogRecord(refName, idx, Reftable.LOG_UPDATE,
+				oldId != null ? oldId : ObjectId.zeroId(),
+				newId != null ? newId : ObjectId.zeroId(), ident,
+				msg != null ? msg : "");
+	}
+
+	void addReflogIds(final Set<ObjectId> ids) throws IOException {
+		final ReftableStack s = stack();
+		for (final LogRecord r : s.logs(0, s.tables.length, false)) {
+			if (!ObjectId.zeroId().equals(r.oldId))
+				ids.add(r.oldId);
+			if (!ObjectId.zeroId().equals(r.newId))
+				ids.add(r.newId);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            full name of a ref.
+	 * @return the reflog records of the ref, newest first.
+	 * @throws IOException
+	 *             the reftables could not be read.
+	 */
+	List<LogRecord> getLogs(final String name) throws IOException {
+		final ReftableStack s = stack();
+		final List<LogRecord> r = new ArrayList<LogRecord>();
+		for (final LogRecord e : s.logs(0, s.tables.length, false)) {
+			if (e.name.equals(name))
+				r.add(e);
+		}
+		return r;
+	}
+
+	/** Merge all tables into one. */
+	void packRefs() throws IOException {
+		final LockFile lck = lock();
+		if (lck == null)
+			throw new ObjectWritingException("Unable to lock "
+					+ ReftableStack.TABLES_LIST);
+		final List<String> created = new ArrayList<String>();
+		try {
+			final ReftableStack s = stack();
+			if (s.tables.length > 1)
+				install(lck, s.names, s.tables, 0, s.tables.length, created);
+		} catch (IOException e) {
+			for (final String name : created)
+				new File(reftableDir, name).delete();
+			throw e;
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	/**
+	 * Lock <code>tables.list</code>, waiting briefly if it is busy.
+	 *
+	 * @return the lock; null if it could not be taken.
+	 * @throws IOException
+	 *             the lock file could not be created.
+	 */
+	LockFile lock() throws IOException {
+		final LockFile lck = new LockFile(new File(reftableDir,
+				ReftableStack.TABLES_LIST));
+		for (int attempt = 1;; attempt++) {
+			if (lck.lock())
+				return lck;
+			if (attempt == LOCK_ATTEMPTS)
+				return null;
+			try {
+				Thread.sleep(LOCK_WAIT_MILLIS);
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Append a table to the stack.
+	 * <p>
+	 * The caller must hold the lock returned by {@link #lock()}, and must
+	 * have numbered the records with the next update index of
+	 * {@link #stack()}.
+	 *
+	 * @param lck
+	 *            the lock on <code>tables.list</code>.
+	 * @param refs
+	 *            ref records to store.
+	 * @param logs
+	 *            reflog records to store.
+	 * @throws IOException
+	 *             the table or the new list could not be written.
+	 */
+	void commit(final LockFile lck, final List<RefRecord> refs,
+			final List<LogRecord> logs) throws IOException {
+		final ReftableStack s = stack();
+		final long idx = s.getMaxUpdateIndex() + 1;
+		Collections.sort(refs, REF_ORDER);
+		Collections.sort(logs, LOG_ORDER);
+
+		final List<String> created = new ArrayList<String>();
+		try {
+			final File table = writeTable(idx, idx, refs, logs);
+			created.add(table.getName());
+
+			final int n = s.tables.length;
+			final String[] names = new String[n + 1];
+			final Reftable[] tables = new Reftable[n + 1];
+			System.arraycopy(s.names, 0, names, 0, n);
+			System.arraycopy(s.tables, 0, tables, 0, n);
+			names[n] = table.getName();
+			tables[n] = Reftable.open(table);
+
+			final long[] sizes = new long[n + 1];
+			for (int i = 0; i <= n; i++)
+				sizes[i] = tables[i].size();
+			final int[] seg = compactionSegment(sizes, COMPACTION_FACTOR);
+			if (seg != null)
+				install(lck, names, tables, seg[0], seg[1], created);
+			else
+				install(lck, names, tables, 0, 0, created);
+		} catch (IOException e) {
+			for (final String name : created)
+				new File(reftableDir, name).delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write a new <code>tables.list</code>, first merging the tables in
+	 * <code>[start, end)</code> into one.
+	 */
+	private void install(final LockFile lck, final String[] names,
+			final Reftable[] tables, final int start, final int end,
+			final List<String> created) throws IOException {
+		final List<String> list = new ArrayList<String>(Arrays.asList(names));
+		final List<String> obsolete = new ArrayList<String>();
+		if (end - start > 1) {
+			final File merged = merge(names, tables, start, end);
+			created.add(merged.getName());
+			for (int i = start; i < end; i++) {
+				obsolete.add(names[i]);
+				list.remove(names[i]);
+			}
+			list.add(start, merged.getName());
+		}
+
+		final StringBuilder b = new StringBuilder();
+		for (final String name : list)
+			b.append(name).append('\n');
+		lck.write(Constants.encode(b.toString()));
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write "
+					+ ReftableStack.TABLES_LIST);
+
+		// Readers holding the old list retry if a table vanished under
+		// them; tables already opened are kept in memory.
+		//
+		for (final String name : obsolete)
+			new File(reftableDir, name).delete();
+		stack();
+	}
+
+	private File merge(final String[] names, final Reftable[] tables,
+			final int start, final int end) throws IOException {
+		final ReftableStack s = ReftableStack.of(names, tables);
+
+		// Deletions must hide older records, unless no older table remains.
+		final boolean deletions = start > 0;
+		return writeTable(tables[start].getMinUpdateIndex(),
+				tables[end - 1].getMaxUpdateIndex(), s.refs("", start, end,
+						deletions), s.logs(start, end, deletions));
+	}
+
+	private File writeTable(final long min, final long max,
+			final List<RefRecord> refs, final List<LogRecord> logs)
+			throws IOException {
+		final int blockSize = db.getConfig().getInt("reftable", "blocksize",
+				ReftableWriter.DEFAULT_BLOCK_SIZE);
+		final File tmp = File.createTempFile("table_", ".ref_tmp", reftableDir);
+		try {
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				final ReftableWriter w = new ReftableWriter(
+						new BufferedOutputStream(fos), blockSize, min, max);
+				for (final RefRecord r : refs)
+					w.writeRef(r);
+				for (final LogRecord r : logs)
+					w.writeLog(r);
+				w.finish();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+
+			final File dst = new File(reftableDir, String.format(
+					"0x%012x-0x%012x-%08x.ref", min, max, RANDOM.nextInt()));
+			if (!tmp.renameTo(dst))
+				throw new ObjectWritingException("Unable to create " + dst);
+			return dst;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Choose the tables to merge so their sizes decrease geometrically again.
+	 * <p>
+	 * Walking from the newest table, the end of the range is the first table
+	 * whose older neighbour is less than <code>factor</code> times its size.
+	 * The range then extends to every older table which is still smaller than
+	 * <code>factor</code> times the sum of the tables after it.
+	 *
+	 * @param sizes
+	 *            size of each table, oldest first.
+	 * @param factor
+	 *            required ratio between neighbouring tables.
+	 * @return <code>{start, end}</code> of the tables to merge, end
+	 *         exclusive; null if the sizes are already geometric.
+	 */
+	static int[] compactionSegment(final long[] sizes, final int factor) {
+		if (sizes.length <= 1)
+			return null;
+
+		int i;
+		int end = 0;
+		long bytes = 0;
+		for (i = sizes.length - 1; i > 0; i--) {
+			if (sizes[i - 1] < sizes[i] * factor) {
+				end = i + 1;
+				bytes = sizes[i];
+				break;
+			}
+		}
+		if (end == 0)
+			return null;
+
+		int start = i;
+		for (; i > 0; i--) {
+			final long curr = bytes;
+			bytes += sizes[i - 1];
+			if (sizes[i - 1] < curr * factor)
+				start = i - 1;
+		}
+		return new int[] { start, end };
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.lib.Reftable.LogCursor;
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefCursor;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+
+/**
+ * The ordered tables making up a {@link ReftableDatabase}.
+ * <p>
+ * Tables are listed oldest first in <code>reftable/tables.list</code>. A
+ * record in a newer table replaces any record with the same key in an older
+ * table, and a deletion record hides it. Instances are immutable; a changed
+ * list is read into a new stack which shares the tables that are still
+ * listed.
+ */
+class ReftableStack {
+	static final String TABLES_LIST = "tables.list";
+
+	private static final long RACY_MILLIS = 2500;
+
+	private static final int MAX_ATTEMPTS = 5;
+
+	static final ReftableStack EMPTY = new ReftableStack(new String[0],
+			new Reftable[0], 0, 0);
+
+	/** File names of the tables, oldest first. */
+	final String[] names;
+
+	/** The tables, in the same order as {@link #names}. */
+	final Reftable[] tables;
+
+	/** Modification time of the list; -1 if it must be read again. */
+	private final long modified;
+
+	private final long length;
+
+	private ReftableStack(final String[] names, final Reftable[] tables,
+			final long modified, final long length) {
+		this.names = names;
+		this.tables = tables;
+		this.modified = modified;
+		this.length = length;
+	}
+
+	/**
+	 * Wrap tables which are not (yet) listed in <code>tables.list</code>.
+	 *
+	 * @param names
+	 *            file names of the tables, oldest first.
+	 * @param tables
+	 *            the tables, in the same order.
+	 * @return a stack of the tables; never returned by {@link #read}.
+	 */
+	static ReftableStack of(final String[] names, final Reftable[] tables) {
+		return new ReftableStack(names, tables, -1, -1);
+	}
+
+	/**
+	 * Read the current stack of a directory.
+	 *
+	 * @param dir
+	 *            the <code>reftable</code> directory.
+	 * @param old
+	 *            the stack read last time, whose tables are reused.
+	 * @return <code>old</code> if the list did not change; otherwise the new
+	 *         stack. Its {@link #tables} array is the same as the old one if
+	 *         the list still names the same tables.
+	 * @throws IOException
+	 *             the list or a table could not be read.
+	 */
+	static ReftableStack read(final File dir, final ReftableStack old)
+			throws IOException {
+		final File list = new File(dir, TABLES_LIST);
+		for (int attempt = 1;; attempt++) {
+			final long now = System.currentTimeMillis();
+			final long m = list.lastModified();
+			final long len = m == 0 ? 0 : list.length();
+			if (m == old.modified && len == old.length)
+				return old;
+
+			final String[] names = readList(list);
+			final long stamp = now - m > RACY_MILLIS ? m : -1;
+			if (Arrays.equals(names, old.names))
+				return new ReftableStack(old.names, old.tables, stamp, len);
+
+			final Map<String, Reftable> reuse = new HashMap<String, Reftable>();
+			for (int i = 0; i < old.names.length; i++)
+				reuse.put(old.names[i], old.tables[i]);
+			try {
+				final Reftable[] tables = new Reftable[names.length];
+				for (int i = 0; i < names.length; i++) {
+					tables[i] = reuse.get(names[i]);
+					if (tables[i] == null)
+						tables[i] = Reftable.open(new File(dir, names[i]));
+				}
+				return new ReftableStack(names, tables, stamp, len);
+			} catch (FileNotFoundException e) {
+				// A concurrent compaction replaced a table after we read
+				// the list. Read the list again to find its replacement.
+				//
+				if (attempt == MAX_ATTEMPTS)
+					throw e;
+			}
+		}
+	}
+
+	private static String[] readList(final File list) throws IOException {
+		final List<String> names = new ArrayList<String>();
+		final BufferedReader br;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(
+					list), Constants.CHARSET));
+		} catch (FileNotFoundException noList) {
+			return new String[0];
+		}
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() > 0)
+					names.add(line);
+			}
+		} finally {
+			br.close();
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/** @return the largest update index used so far; 0 if none. */
+	long getMaxUpdateIndex() {
+		if (tables.length == 0)
+			return 0;
+		return tables[tables.length - 1].getMaxUpdateIndex();
+	}
+
+	/**
+	 * Find the newest record of a ref.
+	 *
+	 * @param name
+	 *            full name of the ref.
+	 * @return the record, which may be a deletion; null if no table mentions
+	 *         the ref.
+	 * @throws IOException
+	 *             a table is corrupt.
+	 */
+	RefRecord exactRef(final String name) throws IOException {
+		for (int i = tables.length - 1; i >= 0; i--) {
+			final RefRecord r = tables[i].seekRef(name);
+			if (r != null)
+				return r;
+		}
+		return null;
+	}
+
+	/**
+	 * Merge the refs of a range of tables.
+	 *
+	 * @param prefix
+	 *            required prefix of the names; "" for all refs.
+	 * @param from
+	 *            first table of the range.
+	 * @param to
+	 *            end of the range, exclusive.
+	 * @param deletions
+	 *            true to include the deletion records which won the merge.
+	 * @return the newest record of each ref, sorted by name.
+	 * @throws IOException
+	 *             a table is corrupt.
+	 */
+	List<RefRecord> refs(final String prefix, final int from, final int to,
+			final boolean deletions) throws IOException {
+		final int n = to - from;
+		final RefCursor[] cur = new RefCursor[n];
+		final RefRecord[] head = new RefRecord[n];
+		for (int i = 0; i < n; i++) {
+			cur[i] = tables[from + i].seekRefs(prefix);
+			head[i] = cur[i].next();
+		}
+
+		final List<RefRecord> out = new ArrayList<RefRecord>();
+		for (;;) {
+			// The smallest name wins; on a tie the newest table wins.
+			//
+			int best = -1;
+			for (int i = n - 1; i >= 0; i--) {
+				if (head[i] != null
+						&& (best < 0 || head[i].name.compareTo(head[best].name) < 0))
+					best = i;
+			}
+			if (best < 0)
+				break;
+
+			final RefRecord r = head[best];
+			if (deletions || !r.isDeletion())
+				out.add(r);
+			for (int i = 0; i < n; i++) {
+				if (head[i] != null && head[i].name.equals(r.name))
+					head[i] = cur[i].next();
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Merge the reflogs of a range of tables.
+	 *
+	 * @param from
+	 *            first table of the range.
+	 * @param to
+	 *            end of the range, exclusive.
+	 * @param deletions
+	 *            true to include the deletion records which won the merge.
+	 * @return the newest record of each key, sorted by name and then by
+	 *         descending update index.
+	 * @throws IOException
+	 *             a table is corrupt.
+	 */
+	List<LogRecord> logs(final int from, final int to, final boolean deletions)
+			throws IOException {
+		final int n = to - from;
+		final LogCursor[] cur = new LogCursor[n];
+		final LogRecord[] head = new LogRecord[n];
+		final byte[][] key = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			cur[i] = tables[from + i].allLogs();
+			head[i] = cur[i].next();
+			key[i] = head[i] != null ? head[i].key() : null;
+		}
+
+		final List<LogRecord> out = new ArrayList<LogRecord>();
+		for (;;) {
+			int best = -1;
+			for (int i = n - 1; i >= 0; i--) {
+				if (head[i] != null
+						&& (best < 0 || Reftable.compare(key[i], key[best]) < 0))
+					best = i;
+			}
+			if (best < 0)
+				break;
+
+			final LogRecord r = head[best];
+			final byte[] k = key[best];
+			if (deletions || !r.isDeletion())
+				out.add(r);
+			for (int i = 0; i < n; i++) {
+				if (head[i] != null && Reftable.compare(key[i], k) == 0) {
+					head[i] = cur[i].next();
+					key[i] = head[i] != null ? head[i].key() : null;
+				}
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.lib.Ref.Storage;
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+
+/**
+ * Updates a ref stored by a {@link ReftableDatabase}.
+ * <p>
+ * The new value and its reflog record are written as one table, so both
+ * become visible at the same time.
+ */
+class ReftableUpdate extends RefUpdate {
+	private final ReftableDatabase database;
+
+	private LockFile lock;
+
+	ReftableUpdate(final ReftableDatabase r, final Ref ref) {
+		super(r, ref);
+		database = r;
+	}
+
+	@Override
+	boolean tryLock() throws IOException {
+		lock = database.lock();
+		return lock != null;
+	}
+
+	@Override
+	void unlock() {
+		if (lock != null) {
+			lock.unlock();
+			lock = null;
+		}
+	}
+
+	@Override
+	Result doUpdate(final Result status) throws IOException {
+		final List<RefRecord> refs = new ArrayList<RefRecord>(1);
+		final List<LogRecord> logs = new ArrayList<LogRecord>(1);
+		addUpdate(status, database.stack().getMaxUpdateIndex() + 1, refs, logs);
+		database.commit(lock, refs, logs);
+		return status;
+	}
+
+	@Override
+	Result doDelete(final Result status) throws IOException {
+		if (getRef().getStorage() == Storage.NEW)
+			return status;
+		final List<RefRecord> refs = new ArrayList<RefRecord>(1);
+		final List<LogRecord> logs = new ArrayList<LogRecord>();
+		addDelete(database.stack().getMaxUpdateIndex() + 1, refs, logs);
+		database.commit(lock, refs, logs);
+		return status;
+	}
+
+	/**
+	 * Describe the new value as records of the next table.
+	 *
+	 * @param status
+	 *            result of the merge test.
+	 * @param idx
+	 *            update index of the next table.
+	 * @param refs
+	 *            receives the ref record.
+	 * @param logs
+	 *            receives the reflog record.
+	 */
+	void addUpdate(final Result status, final long idx,
+			final List<RefRecord> refs, final List<LogRecord> logs) {
+		final String name = getRef().getName();
+		final ObjectId newId = getNewObjectId();
+		final Ref peeled = database.peel(new Ref(Storage.PACKED, name, newId));
+		if (peeled.getPeeledObjectId() != null)
+			refs.add(new RefRecord(name, idx, Reftable.VALUE_PEELED, newId,
+					peeled.getPeeledObjectId(), null));
+		else
+			refs.add(new RefRecord(name, idx, Reftable.VALUE_ID, newId, null,
+					null));
+
+		PersonIdent ident = getRefLogIdent();
+		if (ident == null)
+			ident = new PersonIdent(getRepository());
+		else
+			ident = new PersonIdent(ident);
+		logs.add(ReftableDatabase.newLogRecord(name, idx, getOldObjectId(),
+				newId, ident, getRefLogMessage(status)));
+	}
+
+	/**
+	 * Describe the deletion as records of the next table.
+	 *
+	 * @param idx
+	 *            update index of the next table.
+	 * @param refs
+	 *            receives the deletion record.
+	 * @param logs
+	 *            receives a deletion record for each reflog entry.
+	 * @throws IOException
+	 *             the reflog could not be read.
+	 */
+	void addDelete(final long idx, final List<RefRecord> refs,
+			final List<LogRecord> logs) throws IOException {
+		final String name = getRef().getName();
+		refs.add(new RefRecord(name, idx, Reftable.VALUE_DELETION, null, null,
+				null));
+
+		// The reflog goes away with the ref, as it does for loose refs.
+		for (final LogRecord e : database.getLogs(name))
+			logs.add(new LogRecord(name, e.updateIndex, Reftable.LOG_DELETION,
+					null, null, null, null));
+	}
+}
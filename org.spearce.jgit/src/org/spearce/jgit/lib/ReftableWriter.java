@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import static org.spearce.jgit.lib.Reftable.BLOCK_INDEX;
+import static org.spearce.jgit.lib.Reftable.BLOCK_LOG;
+import static org.spearce.jgit.lib.Reftable.BLOCK_REF;
+import static org.spearce.jgit.lib.Reftable.FOOTER_SIZE;
+import static org.spearce.jgit.lib.Reftable.HEADER_SIZE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.spearce.jgit.lib.Reftable.LogRecord;
+import org.spearce.jgit.lib.Reftable.RefRecord;
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Writes a single reftable.
+ * <p>
+ * Refs must be written first, sorted by name, followed by log records sorted
+ * by name and then by descending update index. Ref blocks are padded to the
+ * block size so readers can step between them; an index of the last key of
+ * each ref block is added when there are more than a few of them.
+ *
+ * @see Reftable
+ */
+class ReftableWriter {
+	/** Block size used unless the caller asks for another. */
+	static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private static final int RESTART_INTERVAL = 16;
+
+	private static final int MAX_BLOCK_SIZE = (1 << 24) - 1;
+
+	/** Fewest ref blocks for which an index is written. */
+	private static final int MIN_INDEXED_BLOCKS = 4;
+
+	private final OutputStream out;
+
+	private final int blockSize;
+
+	private final long minUpdateIndex;
+
+	private final long maxUpdateIndex;
+
+	private final BlockBuffer block;
+
+	private final List<IndexEntry> refIndex = new ArrayList<IndexEntry>();
+
+	private long position;
+
+	private long refIndexPosition;
+
+	private long logPosition;
+
+	private boolean logs;
+
+	private byte[] lastKey;
+
+	/**
+	 * Create a writer.
+	 *
+	 * @param out
+	 *            stream receiving the table.
+	 * @param blockSize
+	 *            size of the ref blocks.
+	 * @param minUpdateIndex
+	 *            smallest update index of the records to be written.
+	 * @param maxUpdateIndex
+	 *            largest update index of the records to be written.
+	 */
+	ReftableWriter(final OutputStream out, final int blockSize,
+			final long minUpdateIndex, final long maxUpdateIndex) {
+		if (blockSize < HEADER_SIZE + 64 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Invalid block size "
+					+ blockSize);
+		this.out = out;
+		this.blockSize = blockSize;
+		this.minUpdateIndex = minUpdateIndex;
+		this.maxUpdateIndex = maxUpdateIndex;
+		block = new BlockBuffer();
+	}
+
+	/**
+	 * Append a ref record.
+	 *
+	 * @param r
+	 *            the record; its name must sort after the previous ref.
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	void writeRef(final RefRecord r) throws IOException {
+		if (logs)
+			throw new IllegalStateException("Refs must precede logs");
+		final ValueBuffer v = new ValueBuffer();
+		v.varint(r.updateIndex - minUpdateIndex);
+		switch (r.valueType) {
+		case Reftable.VALUE_ID:
+			v.id(r.value);
+			break;
+		case Reftable.VALUE_PEELED:
+			v.id(r.value);
+			v.id(r.peeled);
+			break;
+		case Reftable.VALUE_SYMREF:
+			v.string(r.target);
+			break;
+		}
+		add(BLOCK_REF, Constants.encode(r.name), r.valueType, v);
+	}
+
+	/**
+	 * Append a log record.
+	 *
+	 * @param r
+	 *            the record; its key must sort after the previous log.
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	void writeLog(final LogRecord r) throws IOException {
+		if (!logs) {
+			finishRefs();
+			logPosition = position;
+			logs = true;
+			lastKey = null;
+		}
+		final ValueBuffer v = new ValueBuffer();
+		if (r.logType == Reftable.LOG_UPDATE) {
+			v.id(r.oldId);
+			v.id(r.newId);
+			v.string(r.who.getName());
+			v.string(r.who.getEmailAddress());
+			v.varint(r.who.getWhen().getTime() / 1000L);
+			v.int16(r.who.getTimeZoneOffset());
+			v.string(r.message);
+		}
+		add(BLOCK_LOG, r.key(), r.logType, v);
+	}
+
+	/**
+	 * Finish the table by writing the footer.
+	 *
+	 * @throws IOException
+	 *             the stream could not be written.
+	 */
+	void finish() throws IOException {
+		if (!logs)
+			finishRefs();
+		else if (block.entries > 0)
+			flushBlock(false);
+		if (position == 0)
+			write(header(), 0, HEADER_SIZE);
+
+		final byte[] f = new byte[FOOTER_SIZE];
+		System.arraycopy(header(), 0, f, 0, HEADER_SIZE);
+		NB.encodeInt64(f, 24, refIndexPosition);
+		NB.encodeInt64(f, 32, 0); // no object blocks
+		NB.encodeInt64(f, 40, 0);
+		NB.encodeInt64(f, 48, logPosition);
+		NB.encodeInt64(f, 56, 0); // no log index
+		final CRC32 crc = new CRC32();
+		crc.update(f, 0, FOOTER_SIZE - 4);
+		NB.encodeInt32(f, FOOTER_SIZE - 4, (int) crc.getValue());
+		write(f, 0, f.length);
+		out.flush();
+	}
+
+	private void finishRefs() throws IOException {
+		if (block.entries > 0)
+			flushBlock(false);
+		if (refIndex.size() < MIN_INDEXED_BLOCKS)
+			return;
+
+		// Index the ref blocks, and then the index blocks, until a single
+		// index block covers everything.
+		//
+		List<IndexEntry> level = refIndex;
+		for (;;) {
+			final List<IndexEntry> next = new ArrayList<IndexEntry>();
+			lastKey = null;
+			for (final IndexEntry e : level) {
+				final ValueBuffer v = new ValueBuffer();
+				v.varint(e.position);
+				if (block.entries > 0
+						&& !block.add(e.key, 0, v, blockSize)) {
+					next.add(new IndexEntry(lastKey, position));
+					flushBlock(false);
+				}
+				if (block.entries == 0) {
+					block.begin(BLOCK_INDEX, 0);
+					if (!block.add(e.key, 0, v, MAX_BLOCK_SIZE))
+						throw new IOException("Reftable index record too large");
+				}
+				lastKey = e.key;
+			}
+			next.add(new IndexEntry(lastKey, position));
+			flushBlock(false);
+			if (next.size() == 1) {
+				refIndexPosition = next.get(0).position;
+				break;
+			}
+			level = next;
+		}
+		lastKey = null;
+	}
+
+	private void add(final byte type, final byte[] key, final int valueType,
+			final ValueBuffer v) throws IOException {
+		if (lastKey != null && Reftable.compare(lastKey, key) >= 0)
+			throw new IllegalArgumentException("Reftable records out of order");
+		if (block.entries > 0) {
+			if (block.add(key, valueType, v, blockSize)) {
+				lastKey = key;
+				return;
+			}
+			flushBlock(true);
+		}
+
+		block.begin(type, position == 0 ? HEADER_SIZE : 0);
+		final int limit = type == BLOCK_LOG ? MAX_BLOCK_SIZE : blockSize;
+		if (!block.add(key, valueType, v, limit))
+			throw new IOException("Reftable record too large for block: "
+					+ RawParseUtils.decode(Constants.CHARSET, key, 0,
+							key.length));
+		lastKey = key;
+	}
+
+	private void flushBlock(final boolean more) throws IOException {
+		final long start = position;
+		final byte type = block.type;
+		final byte[] key = block.lastKey;
+		final int len = block.finish();
+		final int raw = block.headerOff + 4;
+		if (type == BLOCK_LOG) {
+			final ByteArrayOutputStream z = new ByteArrayOutputStream();
+			final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			try {
+				final DeflaterOutputStream dos = new DeflaterOutputStream(z,
+						def);
+				dos.write(block.buf, raw, len - raw);
+				dos.finish();
+			} finally {
+				def.end();
+			}
+			write(block.buf, 0, raw);
+			final byte[] c = z.toByteArray();
+			write(c, 0, c.length);
+		} else {
+			write(block.buf, 0, len);
+			if (type == BLOCK_REF) {
+				refIndex.add(new IndexEntry(key, start));
+				if (more)
+					write(new byte[blockSize - len], 0, blockSize - len);
+			}
+		}
+		block.entries = 0;
+	}
+
+	private void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		out.write(b, off, len);
+		position += len;
+	}
+
+	private byte[] header() {
+		final byte[] h = new byte[HEADER_SIZE];
+		System.arraycopy(Reftable.MAGIC, 0, h, 0, 4);
+		h[4] = Reftable.VERSION;
+		uint24(h, 5, blockSize);
+		NB.encodeInt64(h, 8, minUpdateIndex);
+		NB.encodeInt64(h, 16, maxUpdateIndex);
+		return h;
+	}
+
+	private static void uint24(final byte[] b, final int p, final int v) {
+		b[p] = (byte) (v >>> 16);
+		b[p + 1] = (byte) (v >>> 8);
+		b[p + 2] = (byte) v;
+	}
+
+	private static int varintLength(long v) {
+		int n = 1;
+		while ((v >>>= 7) != 0) {
+			v--;
+			n++;
+		}
+		return n;
+	}
+
+	private static int putVarint(final byte[] b, final int p, long v) {
+		final byte[] tmp = new byte[10];
+		int pos = tmp.length - 1;
+		tmp[pos] = (byte) (v & 0x7f);
+		while ((v >>>= 7) != 0)
+			tmp[--pos] = (byte) (0x80 | (--v & 0x7f));
+		final int n = tmp.length - pos;
+		System.arraycopy(tmp, pos, b, p, n);
+		return n;
+	}
+
+	private static final class IndexEntry {
+		final byte[] key;
+
+		final long position;
+
+		IndexEntry(final byte[] key, final long position) {
+			this.key = key;
+			this.position = position;
+		}
+	}
+
+	/** Encoded value of one record. */
+	private static final class ValueBuffer {
+		byte[] buf = new byte[64];
+
+		int len;
+
+		private void ensure(final int n) {
+			if (len + n > buf.length) {
+				final byte[] b = new byte[Math.max(buf.length * 2, len + n)];
+				System.arraycopy(buf, 0, b, 0, len);
+				buf = b;
+			}
+		}
+
+		void varint(final long v) {
+			ensure(10);
+			len += putVarint(buf, len, v);
+		}
+
+		void id(final AnyObjectId id) {
+			ensure(Constants.OBJECT_ID_LENGTH);
+			(id != null ? id : ObjectId.zeroId()).copyRawTo(buf, len);
+			len += Constants.OBJECT_ID_LENGTH;
+		}
+
+		void int16(final int v) {
+			ensure(2);
+			NB.encodeInt16(buf, len, v);
+			len += 2;
+		}
+
+		void string(final String s) {
+			final byte[] b = Constants.encode(s != null ? s : "");
+			varint(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, len, b.length);
+			len += b.length;
+		}
+	}
+
+	/** Block being filled with records. */
+	private final class BlockBuffer {
+		byte type;
+
+		int headerOff;
+
+		byte[] buf = new byte[blockSize];
+
+		int len;
+
+		int[] restarts = new int[16];
+
+		int restartCount;
+
+		int entries;
+
+		byte[] lastKey;
+
+		void begin(final byte t, final int off) {
+			type = t;
+			headerOff = off;
+			if (off > 0)
+				System.arraycopy(header(), 0, buf, 0, off);
+			buf[off] = t;
+			len = off + 4;
+			restartCount = 0;
+			entries = 0;
+			lastKey = null;
+		}
+
+		boolean add(final byte[] key, final int valueType,
+				final ValueBuffer v, final int limit) {
+			final boolean restart = entries % RESTART_INTERVAL == 0;
+			int prefix = 0;
+			if (!restart) {
+				final int n = Math.min(lastKey.length, key.length);
+				while (prefix < n && lastKey[prefix] == key[prefix])
+					prefix++;
+			}
+			final int suffix = key.length - prefix;
+			final long sfx = ((long) suffix << 3) | valueType;
+			final int recLen = varintLength(prefix) + varintLength(sfx)
+					+ suffix + v.len;
+			final int restartsLen = 3 * (restartCount + (restart ? 1 : 0)) + 2;
+			if (len + recLen + restartsLen > limit)
+				return false;
+
+			if (len + recLen + restartsLen > buf.length) {
+				final byte[] b = new byte[len + recLen + restartsLen];
+				System.arraycopy(buf, 0, b, 0, len);
+				buf = b;
+			}
+			if (restart) {
+				if (restartCount == restarts.length) {
+					final int[] r = new int[restarts.length * 2];
+					System.arraycopy(restarts, 0, r, 0, restartCount);
+					restarts = r;
+				}
+				restarts[restartCount++] = len;
+			}
+			len += putVarint(buf, len, prefix);
+			len += putVarint(buf, len, sfx);
+			System.arraycopy(key, prefix, buf, len, suffix);
+			len += suffix;
+			System.arraycopy(v.buf, 0, buf, len, v.len);
+			len += v.len;
+			lastKey = key;
+			entries++;
+			return true;
+		}
+
+		/** @return total length of the finished block. */
+		int finish() {
+			for (int i = 0; i < restartCount; i++) {
+				uint24(buf, len, restarts[i]);
+				len += 3;
+			}
+			NB.encodeInt16(buf, len, restartCount);
+			len += 2;
+			uint24(buf, headerOff + 1, len);
+			return len;
+		}
+	}
+}
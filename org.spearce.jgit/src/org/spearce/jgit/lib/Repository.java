@@ -56,6 +56,7 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.RevisionSyntaxException;
@@ -87,18 +88,41 @@
  *
  */
 public class Repository {
+	/** Ref storage format of loose ref files and <code>packed-refs</code>. */
+	public static final String REF_FORMAT_FILES = "files";
+
+	/** Ref storage format of a stack of reftables. */
+	public static final String REF_FORMAT_REFTABLE = "reftable";
+
+	private static final long RACY_MILLIS = 2500;
+
 	private final File gitDir;
 
-	private final RepositoryConfig config;
+	private volatile RepositoryConfig config;
+
+	/** Modification time (-1 if racy) and size of the loaded config file. */
+	private long[] configStat;
 
-	private final RefDatabase refs;
+	private RefDatabase refs;
 
 	private File[] objectDirectoryList;
 
 	private PackFile[] packFileList;
 
+	private PackLookup packLookup;
+
+	private long[] packDirModified;
+
+	private final AtomicInteger useCnt = new AtomicInteger(1);
+
 	private GitIndex index;
 
+	private CommitGraph commitGraph;
+
+	private long commitGraphModified;
+
+	private long commitGraphLength;
+
 	private List<RepositoryListener> listeners = new Vector<RepositoryListener>(); // thread safe
 	static private List<RepositoryListener> allListeners = new Vector<RepositoryListener>(); // thread safe
 
@@ -122,21 +146,30 @@ public Repository(final File d) throws IOException {
 			ex.initCause(e);
 			throw ex;
 		}
-		refs = new RefDatabase(this);
 		packFileList = new PackFile[0];
+		packLookup = PackLookup.EMPTY;
 		config = new RepositoryConfig(this);
 
 		final boolean isExisting = objectDirectoryList[0].exists();
 		if (isExisting) {
+			configStat = statConfig();
 			getConfig().load();
 			final String repositoryFormatVersion = getConfig().getString(
 					"core", null, "repositoryFormatVersion");
-			if (!"0".equals(repositoryFormatVersion)) {
+			if ("1".equals(repositoryFormatVersion)) {
+				checkExtensions();
+				refs = openRefDatabase(getConfig().getString("extensions",
+						null, "refStorage"));
+			} else if ("0".equals(repositoryFormatVersion)) {
+				refs = new RefDirectory(this);
+			} else {
 				throw new IOException("Unknown repository format \""
-						+ repositoryFormatVersion + "\"; expected \"0\".");
+						+ repositoryFormatVersion
+						+ "\"; expected \"0\" or \"1\".");
 			}
 		} else {
 			getConfig().create();
+			refs = new RefDirectory(this);
 		}
 		if (isExisting)
 			scanForPacks();
@@ -159,18 +192,65 @@ private static Collection<File> readObjectsDirs(File objectsDir,
 		return ret;
 	}
 
+	/**
+	 * Refuse a repository using an extension this library does not know.
+	 * <p>
+	 * An extension changes what the repository's files mean, for example the
+	 * hash of its objects, or which objects may be missing or must never be
+	 * deleted. Reading or collecting such a repository without understanding
+	 * it could corrupt it or lose data.
+	 *
+	 * @throws IOException
+	 *             the configuration names an unknown extension.
+	 */
+	private void checkExtensions() throws IOException {
+		for (final String name : getConfig().getNames("extensions")) {
+			if (!"refStorage".equalsIgnoreCase(name))
+				throw new IOException("Unknown repository format extension \""
+						+ name + "\"; only \"refStorage\" is supported.");
+		}
+	}
+
+	private RefDatabase openRefDatabase(final String format)
+			throws IOException {
+		if (format == null || REF_FORMAT_FILES.equals(format))
+			return new RefDirectory(this);
+		if (REF_FORMAT_REFTABLE.equals(format))
+			return new ReftableDatabase(this);
+		throw new IOException("Unknown ref storage format \"" + format + "\"");
+	}
+
 	/**
 	 * Create a new Git repository initializing the necessary files and
 	 * directories.
+	 * <p>
+	 * Refs are stored in the format named by <code>init.defaultRefFormat</code>
+	 * in the user's configuration, or as loose files if it is not set.
 	 *
 	 * @throws IOException
 	 */
-	public synchronized void create() throws IOException {
+	public void create() throws IOException {
+		create(getConfig().getString("init", null, "defaultRefFormat"));
+	}
+
+	/**
+	 * Create a new Git repository initializing the necessary files and
+	 * directories.
+	 *
+	 * @param refFormat
+	 *            how refs are stored: {@link #REF_FORMAT_FILES} for loose
+	 *            files and <code>packed-refs</code>,
+	 *            {@link #REF_FORMAT_REFTABLE} for a stack of reftables. Null
+	 *            selects loose files.
+	 * @throws IOException
+	 */
+	public synchronized void create(final String refFormat) throws IOException {
 		if (gitDir.exists()) {
 			throw new IllegalStateException("Repository already exists: "
 					+ gitDir);
 		}
 
+		refs = openRefDatabase(refFormat);
 		gitDir.mkdirs();
 		refs.create();
 
@@ -184,6 +264,11 @@ public synchronized void create() throws IOException {
 		refs.link(Constants.HEAD, master);
 
 		getConfig().create();
+		if (refs instanceof ReftableDatabase) {
+			getConfig().setString("core", null, "repositoryformatversion", "1");
+			getConfig().setString("extensions", null, "refStorage",
+					REF_FORMAT_REFTABLE);
+		}
 		getConfig().save();
 	}
 
@@ -191,10 +276,47 @@ private synchronized File[] objectsDirs(){
 		return objectDirectoryList;
 	}
 
-	private synchronized PackFile[] packs(){
+	synchronized PackFile[] packs(){
 		return packFileList;
 	}
 
+	private synchronized PackLookup packLookup() {
+		return packLookup;
+	}
+
+	/**
+	 * Get the commit-graph of this repository.
+	 * <p>
+	 * The graph is read from <code>objects/info/commit-graph</code> on first
+	 * use, and read again whenever the file is replaced. A missing or
+	 * unusable file, or <code>core.commitGraph</code> set to false, leaves
+	 * the repository without a graph.
+	 *
+	 * @return the commit-graph; null if the repository does not have one.
+	 */
+	public synchronized CommitGraph getCommitGraph() {
+		if (!getConfig().getCore().isCommitGraph())
+			return null;
+		final File f = new File(getObjectsDirectory(), "info/commit-graph");
+		final long modified = f.lastModified();
+		final long length = f.length();
+		if (modified != commitGraphModified || length != commitGraphLength) {
+			commitGraphModified = modified;
+			commitGraphLength = length;
+			commitGraph = null;
+			if (modified != 0) {
+				try {
+					commitGraph = CommitGraph.open(f);
+				} catch (IOException e) {
+					// An unusable graph only makes walks slower. Until
+					// the file is replaced we walk without it.
+					//
+				}
+			}
+		}
+		return commitGraph;
+	}
+
 	/**
 	 * @return GIT_DIR
 	 */
@@ -245,7 +367,20 @@ public File toFile(final AnyObjectId objectId) {
 	 *         known shared repositories.
 	 */
 	public boolean hasObject(final AnyObjectId objectId) {
-		final PackFile[] packs = packs();
+		final PackLookup lookup = packLookup();
+		if (hasObject(lookup, objectId))
+			return true;
+		final PackLookup rescanned = rescanPacks(lookup);
+		return rescanned != null && hasObject(rescanned, objectId);
+	}
+
+	private boolean hasObject(final PackLookup lookup,
+			final AnyObjectId objectId) {
+		for (final MultiPackIndexPacks m : lookup.multiPackIndexes) {
+			if (m.find(objectId) >= 0)
+				return true;
+		}
+		final PackFile[] packs = lookup.unindexedPacks;
 		int k = packs.length;
 		while (k > 0) {
 			try {
@@ -291,7 +426,38 @@ public ObjectLoader openObject(final AnyObjectId id)
 	 */
 	public ObjectLoader openObject(final WindowCursor curs, final AnyObjectId id)
 			throws IOException {
-		final PackFile[] packs = packs();
+		final PackLookup lookup = packLookup();
+		final ObjectLoader ol = openObject(curs, lookup, id);
+		if (ol != null)
+			return ol;
+		final PackLookup rescanned = rescanPacks(lookup);
+		return rescanned != null ? openObject(curs, rescanned, id) : null;
+	}
+
+	/**
+	 * Pick up packs added since <code>lookup</code> was current.
+	 * <p>
+	 * A repack may have moved a missing object into a new pack and deleted
+	 * its loose copy, or the pack we knew it from.
+	 *
+	 * @param lookup
+	 *            the lookup which failed to find an object.
+	 * @return the new lookup; null if the packs did not change.
+	 */
+	private PackLookup rescanPacks(final PackLookup lookup) {
+		scanForPacksIfModified();
+		final PackLookup n = packLookup();
+		return n != lookup ? n : null;
+	}
+
+	private ObjectLoader openObject(final WindowCursor curs,
+			final PackLookup lookup, final AnyObjectId id) throws IOException {
+		for (final MultiPackIndexPacks m : lookup.multiPackIndexes) {
+			final int pos = m.find(id);
+			if (pos >= 0)
+				return m.get(curs, pos, id);
+		}
+		final PackFile[] packs = lookup.unindexedPacks;
 		int k = packs.length;
 		while (k > 0) {
 			final ObjectLoader ol = packs[--k].get(curs, id);
@@ -346,6 +512,86 @@ void openObjectInAllPacks(final AnyObjectId objectId,
 		}
 	}
 
+	/**
+	 * Open many objects, in the order they are stored.
+	 * <p>
+	 * All objects are located before the first is returned, so callers can
+	 * read them in pack order instead of the order they were discovered.
+	 *
+	 * @param <T>
+	 *            type of object identifier supplied by the caller.
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 *            Loaders returned by the queue use it too.
+	 * @param ids
+	 *            objects to open. Each is returned once.
+	 * @return queue returning the objects.
+	 * @throws IOException
+	 *             a pack index could not be read.
+	 */
+	public <T extends AnyObjectId> ObjectLoaderQueue<T> openObjects(
+			final WindowCursor curs, final Iterable<T> ids) throws IOException {
+		final ObjectLoaderQueue<T> q = new ObjectLoaderQueue<T>(this, curs,
+				packs());
+		final PackLookup lookup = packLookup();
+		final PackFile[] packs = lookup.unindexedPacks;
+		SCAN: for (final T id : ids) {
+			for (final MultiPackIndexPacks m : lookup.multiPackIndexes) {
+				final int pos = m.find(id);
+				if (pos >= 0) {
+					q.add(id, m.packs[m.midx.getPackId(pos)], m.midx
+							.getOffset(pos));
+					continue SCAN;
+				}
+			}
+			for (int k = packs.length - 1; k >= 0; k--) {
+				final long offset = packs[k].findOffset(id);
+				if (0 < offset) {
+					q.add(id, packs[k], offset);
+					continue SCAN;
+				}
+			}
+			q.addUnpacked(id);
+		}
+		q.sort();
+		return q;
+	}
+
+	/**
+	 * Open every packed copy of many objects, in the order they are stored.
+	 * <p>
+	 * The batch equivalent of
+	 * {@link #openObjectInAllPacks(AnyObjectId, WindowCursor)}: an object is
+	 * returned once for each pack holding it, and not at all if no pack
+	 * does.
+	 *
+	 * @param <T>
+	 *            type of object identifier supplied by the caller.
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 *            Loaders returned by the queue use it too.
+	 * @param ids
+	 *            objects to open. The collection is iterated once per pack.
+	 * @return queue returning the packed copies.
+	 * @throws IOException
+	 *             a pack index could not be read.
+	 */
+	public <T extends AnyObjectId> ObjectLoaderQueue<T> openObjectsInAllPacks(
+			final WindowCursor curs, final Iterable<T> ids) throws IOException {
+		final PackFile[] packs = packs();
+		final ObjectLoaderQueue<T> q = new ObjectLoaderQueue<T>(this, curs,
+				packs);
+		for (final PackFile pack : packs) {
+			for (final T id : ids) {
+				final long offset = pack.findOffset(id);
+				if (0 < offset)
+					q.add(id, pack, offset);
+			}
+		}
+		q.sort();
+		return q;
+	}
+
 	/**
 	 * @param id
 	 *            SHA'1 of a blob
@@ -530,6 +776,39 @@ public RefUpdate updateRef(final String ref) throws IOException {
 		return refs.newUpdate(ref);
 	}
 
+	/**
+	 * Create an inserter writing new objects as loose files.
+	 *
+	 * @return a new inserter. The caller must release it when done.
+	 */
+	public ObjectInserter newObjectInserter() {
+		return new LooseObjectInserter(this);
+	}
+
+	/**
+	 * Create an inserter writing new objects into a single new pack.
+	 * <p>
+	 * This avoids a file per object when many objects are created at once.
+	 * The objects become visible when the inserter is flushed.
+	 *
+	 * @return a new inserter. The caller must flush and release it.
+	 */
+	public ObjectInserter newPackInserter() {
+		return new PackInserter(this);
+	}
+
+	/**
+	 * Create a batch to update, create or delete many refs at once.
+	 * <p>
+	 * Commands are created by {@link #updateRef(String)} and added to the
+	 * batch instead of being executed one by one.
+	 *
+	 * @return a new, empty batch.
+	 */
+	public BatchRefUpdate newBatchUpdate() {
+		return refs.newBatchUpdate();
+	}
+
 	/**
 	 * Parse a git revision string and return an object id.
 	 *
@@ -768,17 +1047,41 @@ private ObjectId resolveSimple(final String revstr) throws IOException {
 		return r != null ? r.getObjectId() : null;
 	}
 
+	/** Increment the use counter by one, requiring a matched {@link #close()}. */
+	public void incrementOpen() {
+		useCnt.incrementAndGet();
+	}
+
+	int getUseCount() {
+		return useCnt.get();
+	}
+
 	/**
 	 * Close all resources used by this repository
+	 * <p>
+	 * Resources are released only once every {@link #incrementOpen()} has
+	 * been matched by a call to this method. Closing a repository which is
+	 * already closed does nothing.
 	 */
 	public void close() {
-		closePacks();
+		for (;;) {
+			final int n = useCnt.get();
+			if (n == 0)
+				return;
+			if (useCnt.compareAndSet(n, n - 1)) {
+				if (n == 1)
+					closePacks();
+				return;
+			}
+		}
 	}
 
 	synchronized void closePacks() {
 		for (int k = packFileList.length - 1; k >= 0; k--)
 			packFileList[k].close();
 		packFileList = new PackFile[0];
+		packLookup = PackLookup.EMPTY;
+		packDirModified = null;
 	}
 
 	/**
@@ -809,26 +1112,186 @@ public void openPack(final File pack, final File idx) throws IOException {
 			System.arraycopy(cur, 0, arr, 1, cur.length);
 			arr[0] = new PackFile(idx, pack);
 			packFileList = arr;
+
+			final PackFile[] u = packLookup.unindexedPacks;
+			final PackFile[] un = new PackFile[u.length + 1];
+			System.arraycopy(u, 0, un, 1, u.length);
+			un[0] = arr[0];
+			packLookup = new PackLookup(packLookup.multiPackIndexes, un);
 		}
 	}
 
 	/**
 	 * Scan the object dirs, including alternates for packs
 	 * to use.
+	 * <p>
+	 * Packs whose file has been deleted since they were opened are closed
+	 * and dropped from the list. The multi-pack index of each directory is
+	 * loaded too, unless <code>core.multiPackIndex</code> is false.
 	 */
 	public void scanForPacks() {
+		final File[] dirs = objectsDirs();
+		final long now = System.currentTimeMillis();
+		final long[] modified = new long[dirs.length];
+		for (int i = 0; i < dirs.length; i++) {
+			// A directory changed within the timestamp resolution of
+			// the filesystem may change again without its time moving,
+			// so remember it as unknown to force the next scan.
+			//
+			final long m = new File(dirs[i], "pack").lastModified();
+			modified[i] = now - m > RACY_MILLIS ? m : -1;
+		}
+
 		final ArrayList<PackFile> p = new ArrayList<PackFile>();
-		p.addAll(Arrays.asList(packs()));
-		for (final File d : objectsDirs())
+		for (final PackFile pack : packs()) {
+			if (pack.getPackFile().isFile())
+				p.add(pack);
+			else
+				pack.close();
+		}
+		for (final File d : dirs)
 			scanForPacks(new File(d, "pack"), p);
 		final PackFile[] arr = new PackFile[p.size()];
 		p.toArray(arr);
 		Arrays.sort(arr, PackFile.SORT);
+
+		final PackLookup lookup;
+		if (getConfig().getCore().isMultiPackIndex())
+			lookup = scanForMultiPackIndexes(dirs, arr);
+		else
+			lookup = new PackLookup(new MultiPackIndexPacks[0], arr);
 		synchronized (this) {
 			packFileList = arr;
+			packLookup = lookup;
+			packDirModified = modified;
+		}
+	}
+
+	private PackLookup scanForMultiPackIndexes(final File[] dirs,
+			final PackFile[] packs) {
+		final MultiPackIndexPacks[] old = packLookup().multiPackIndexes;
+		final Map<File, PackFile> byFile = new HashMap<File, PackFile>();
+		for (final PackFile pack : packs)
+			byFile.put(pack.getPackFile(), pack);
+
+		final List<MultiPackIndexPacks> found = new ArrayList<MultiPackIndexPacks>();
+		final Set<PackFile> covered = new HashSet<PackFile>();
+		for (final File d : dirs) {
+			final File packDir = new File(d, "pack");
+			final File f = new File(packDir, MultiPackIndex.FILE_NAME);
+			final long modified = f.lastModified();
+			if (modified == 0)
+				continue;
+			final long length = f.length();
+
+			MultiPackIndex midx = null;
+			for (final MultiPackIndexPacks m : old) {
+				if (m.file.equals(f) && m.modified == modified
+						&& m.length == length)
+					midx = m.midx;
+			}
+			if (midx == null) {
+				try {
+					midx = MultiPackIndex.open(f);
+				} catch (IOException e) {
+					// An unusable index only makes lookups slower. The
+					// packs are searched one by one until it is replaced.
+					//
+					continue;
+				}
+			}
+
+			// The index lists each object once, in one of its packs. If
+			// that pack was deleted the object may still be in another
+			// one, so an index naming a missing pack is ignored until a
+			// repack writes it again.
+			//
+			final String[] names = midx.getPackNames();
+			final PackFile[] byId = new PackFile[names.length];
+			boolean stale = false;
+			for (int i = 0; i < names.length && !stale; i++) {
+				final String n = names[i];
+				if (n.endsWith(".idx")) {
+					final String packName = n.substring(0, n.length() - 4)
+							+ ".pack";
+					byId[i] = byFile.get(new File(packDir, packName));
+				}
+				stale = byId[i] == null;
+			}
+			if (stale)
+				continue;
+			covered.addAll(Arrays.asList(byId));
+			found.add(new MultiPackIndexPacks(f, modified, length, midx, byId));
+		}
+
+		final List<PackFile> unindexed = new ArrayList<PackFile>();
+		for (final PackFile pack : packs) {
+			if (!covered.contains(pack))
+				unindexed.add(pack);
+		}
+		return new PackLookup(found.toArray(new MultiPackIndexPacks[found
+				.size()]), unindexed.toArray(new PackFile[unindexed.size()]));
+	}
+
+	/**
+	 * Read the configuration again if its file changed since it was read.
+	 * <p>
+	 * The new configuration is loaded into a new {@link RepositoryConfig},
+	 * so threads still reading the old one are not disturbed. Settings
+	 * changed in memory but not saved are lost.
+	 *
+	 * @throws IOException
+	 *             the configuration file could not be read.
+	 */
+	void reloadConfigIfModified() throws IOException {
+		final long[] old;
+		synchronized (this) {
+			old = configStat;
+		}
+		final long[] now = statConfig();
+		if (old != null && old[0] != -1 && old[0] == now[0]
+				&& old[1] == now[1])
+			return;
+
+		final RepositoryConfig c = new RepositoryConfig(this);
+		c.load();
+		synchronized (this) {
+			config = c;
+			configStat = now;
 		}
 	}
 
+	private long[] statConfig() {
+		final File f = new File(gitDir, "config");
+		final long now = System.currentTimeMillis();
+		final long m = f.lastModified();
+		return new long[] { now - m > RACY_MILLIS ? m : -1, f.length() };
+	}
+
+	/**
+	 * Scan for packs again only if a pack directory changed.
+	 * <p>
+	 * Adding or deleting a pack updates the modification time of its
+	 * directory, so a repository kept open for a long time can check its
+	 * pack list with one stat call per object directory.
+	 */
+	void scanForPacksIfModified() {
+		final File[] dirs = objectsDirs();
+		final long[] modified;
+		synchronized (this) {
+			modified = packDirModified;
+		}
+		if (modified != null && modified.length == dirs.length) {
+			int i = 0;
+			while (i < dirs.length
+					&& new File(dirs[i], "pack").lastModified() == modified[i])
+				i++;
+			if (i == dirs.length)
+				return;
+		}
+		scanForPacks();
+	}
+
 	private void scanForPacks(final File packDir, Collection<PackFile> packList) {
 		final String[] idxList = packDir.list(new FilenameFilter() {
 			public boolean accept(final File baseDir, final String n) {
@@ -882,17 +1345,7 @@ public String toString() {
 	 * @throws IOException
 	 */
 	public String getFullBranch() throws IOException {
-		final File ptr = new File(getDirectory(),Constants.HEAD);
-		final BufferedReader br = new BufferedReader(new FileReader(ptr));
-		String ref;
-		try {
-			ref = br.readLine();
-		} finally {
-			br.close();
-		}
-		if (ref.startsWith("ref: "))
-			ref = ref.substring(5);
-		return ref;
+		return refs.readLink(Constants.HEAD);
 	}
 	
 	/**
@@ -901,16 +1354,7 @@ public String getFullBranch() throws IOException {
 	 */
 	public String getBranch() throws IOException {
 		try {
-			final File ptr = new File(getDirectory(), Constants.HEAD);
-			final BufferedReader br = new BufferedReader(new FileReader(ptr));
-			String ref;
-			try {
-				ref = br.readLine();
-			} finally {
-				br.close();
-			}
-			if (ref.startsWith("ref: "))
-				ref = ref.substring(5);
+			String ref = refs.readLink(Constants.HEAD);
 			if (ref.startsWith("refs/heads/"))
 				ref = ref.substring(11);
 			return ref;
@@ -956,6 +1400,25 @@ public Map<String, Ref> getTags() {
 		return refs.getTags();
 	}
 
+	/**
+	 * Get the refs whose names start with a prefix.
+	 * <p>
+	 * Unlike {@link #getAllRefs()} this only examines the loose refs below
+	 * the prefix, which is much cheaper when a repository holds many refs in
+	 * other namespaces. Symbolic refs such as <code>HEAD</code> are not
+	 * included.
+	 *
+	 * @param prefix
+	 *            required prefix of the full ref names, e.g.
+	 *            <code>refs/heads/</code>; "" for all refs below
+	 *            <code>refs/</code>.
+	 * @return unmodifiable map of the matching refs, keyed and sorted by
+	 *         their full name ("refs/heads/master").
+	 */
+	public Map<String, Ref> getRefs(final String prefix) {
+		return refs.getRefs(prefix);
+	}
+
 	/**
 	 * Peel a possibly unpeeled ref and updates it.
 	 * <p>
@@ -1000,6 +1463,20 @@ public Map<AnyObjectId, Set<Ref>> getAllRefsByPeeledObjectId() {
 		return ret;
 	}
 
+	/**
+	 * Move all loose references into the packed-refs file.
+	 *
+	 * @throws IOException
+	 *             the packed-refs file could not be written.
+	 */
+	void packRefs() throws IOException {
+		refs.packRefs();
+	}
+
+	RefDatabase getRefDatabase() {
+		return refs;
+	}
+
 	/** Clean up stale caches */
 	public void refreshFromDisk() {
 		refs.clearCache();
@@ -1192,6 +1669,22 @@ void fireIndexChanged() {
 		}
 	}
 
+	/**
+	 * Notify listeners that the index file changed on disk.
+	 * <p>
+	 * A cached {@link GitIndex} is read again first, which notifies the
+	 * listeners itself if the file really is different.
+	 *
+	 * @throws IOException
+	 *             the cached index could not be read again.
+	 */
+	void indexFileChanged() throws IOException {
+		if (index != null)
+			index.rereadIfNecessary();
+		else
+			fireIndexChanged();
+	}
+
 	/**
 	 * Force a scan for changed refs.
 	 *
@@ -1201,4 +1694,99 @@ public void scanForRepoChanges() throws IOException {
 		getAllRefs(); // This will look for changes to refs
 		getIndex(); // This will detect changes in the index
 	}
+
+	/** Where object lookups search, in order; replaced as a whole. */
+	private static class PackLookup {
+		static final PackLookup EMPTY = new PackLookup(
+				new MultiPackIndexPacks[0], new PackFile[0]);
+
+		final MultiPackIndexPacks[] multiPackIndexes;
+
+		/** Packs not covered by any multi-pack index, in pack list order. */
+		final PackFile[] unindexedPacks;
+
+		PackLookup(final MultiPackIndexPacks[] midx, final PackFile[] packs) {
+			multiPackIndexes = midx;
+			unindexedPacks = packs;
+		}
+	}
+
+	/** A multi-pack index, with the open packs its pack ids refer to. */
+	private static class MultiPackIndexPacks {
+		final File file;
+
+		final long modified;
+
+		final long length;
+
+		final MultiPackIndex midx;
+
+		/** Pack of each pack id. */
+		final PackFile[] packs;
+
+		MultiPackIndexPacks(final File file, final long modified,
+				final long length, final MultiPackIndex midx,
+				final PackFile[] packs) {
+			this.file = file;
+			this.modified = modified;
+			this.length = length;
+			this.midx = midx;
+			this.packs = packs;
+		}
+
+		/**
+		 * @param id
+		 *            the object to look for.
+		 * @return position of the object in {@link #midx}; -1 if it is not
+		 *         listed.
+		 */
+		int find(final AnyObjectId id) {
+			final int pos = midx.findPosition(id);
+			if (pos < 0)
+				return -1;
+			final int packId = midx.getPackId(pos);
+			if (packId < 0 || packs.length <= packId)
+				return -1;
+			return pos;
+		}
+
+		/**
+		 * Open an object found by {@link #find(AnyObjectId)}.
+		 * <p>
+		 * Should the pack chosen by the index have been deleted or replaced
+		 * since it was opened, the other packs of the index are searched.
+		 *
+		 * @param curs
+		 *            temporary working space associated with the calling
+		 *            thread.
+		 * @param pos
+		 *            position of the object in {@link #midx}.
+		 * @param id
+		 *            the object.
+		 * @return loader for the object.
+		 * @throws IOException
+		 *             the chosen pack could not be read, and no other pack
+		 *             of the index has the object.
+		 */
+		PackedObjectLoader get(final WindowCursor curs, final int pos,
+				final AnyObjectId id) throws IOException {
+			final PackFile chosen = packs[midx.getPackId(pos)];
+			try {
+				return chosen.get(curs, midx.getOffset(pos));
+			} catch (IOException e) {
+				for (final PackFile p : packs) {
+					if (p == chosen)
+						continue;
+					try {
+						final PackedObjectLoader ol = p.get(curs, id);
+						if (ol != null)
+							return ol;
+					} catch (IOException notHere) {
+						continue;
+					}
+				}
+				throw e;
+			}
+		}
+	}
 }
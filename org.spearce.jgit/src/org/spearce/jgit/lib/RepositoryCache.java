@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Cache of open repositories, shared by the whole process.
+ * <p>
+ * Opening a {@link Repository} reads its configuration and scans its pack
+ * directory, which is wasteful for a server handling many requests for the
+ * same repository. This cache keeps repositories open between requests,
+ * keyed by the canonical path of their GIT_DIR.
+ * <p>
+ * Every repository returned by {@link #open(File)} must be released with
+ * {@link Repository#close()}. Repositories no client is using are closed
+ * once they have been idle too long, or when the cache holds more than its
+ * limit; the least recently opened ones go first.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RepositoryCache {
+	/** Default number of repositories kept open. */
+	public static final int DEFAULT_MAX_REPOSITORIES = 128;
+
+	/** Default time an unused repository stays open: 5 minutes. */
+	public static final long DEFAULT_IDLE_MILLIS = 5 * 60 * 1000;
+
+	private static final RepositoryCache INSTANCE = new RepositoryCache();
+
+	/** @return the cache shared by the process. */
+	public static RepositoryCache getInstance() {
+		return INSTANCE;
+	}
+
+	/** Open repositories, least recently opened first. */
+	private final LinkedHashMap<File, Entry> cache;
+
+	private int maxRepositories = DEFAULT_MAX_REPOSITORIES;
+
+	private long idleMillis = DEFAULT_IDLE_MILLIS;
+
+	/** Create a new, empty cache. */
+	public RepositoryCache() {
+		cache = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+	}
+
+	/** @return number of repositories kept open once unused. */
+	public synchronized int getMaxRepositories() {
+		return maxRepositories;
+	}
+
+	/**
+	 * @param max
+	 *            number of repositories kept open once unused. Repositories
+	 *            still in use are never closed, so the cache may briefly
+	 *            hold more.
+	 */
+	public synchronized void setMaxRepositories(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid cache size " + max);
+		maxRepositories = max;
+	}
+
+	/** @return milliseconds an unused repository stays open. */
+	public synchronized long getIdleTime() {
+		return idleMillis;
+	}
+
+	/**
+	 * @param millis
+	 *            milliseconds an unused repository stays open.
+	 */
+	public synchronized void setIdleTime(final long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Invalid idle time " + millis);
+		idleMillis = millis;
+	}
+
+	/** @return number of repositories currently open in the cache. */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Open a repository, reusing a cached instance if possible.
+	 * <p>
+	 * A cached repository rescans its packs if a pack directory changed
+	 * since the last scan, and reads its configuration again if the
+	 * configuration file changed. References are always checked against the
+	 * files on disk as they are read, so they need no extra validation.
+	 *
+	 * @param gitDir
+	 *            GIT_DIR of the repository.
+	 * @return the repository; the caller must {@link Repository#close()} it.
+	 * @throws IOException
+	 *             the directory does not exist, or the repository could not
+	 *             be opened.
+	 */
+	public Repository open(final File gitDir) throws IOException {
+		final File key = gitDir.getCanonicalFile();
+		Repository db = lookup(key);
+		if (db != null) {
+			try {
+				db.reloadConfigIfModified();
+			} catch (IOException err) {
+				db.close();
+				throw err;
+			}
+			db.scanForPacksIfModified();
+			evictIdle();
+			return db;
+		}
+
+		if (!key.isDirectory())
+			throw new FileNotFoundException(gitDir.getPath());
+
+		// Open outside of the lock; reading the configuration and
+		// scanning packs must not stall clients of other repositories.
+		//
+		final Repository n = new Repository(key);
+		final List<Repository> evicted;
+		synchronized (this) {
+			final Entry e = cache.get(key);
+			if (e != null) {
+				db = e.use();
+				evicted = null;
+			} else {
+				db = n;
+				db.incrementOpen();
+				cache.put(key, new Entry(db));
+				evicted = evict();
+			}
+		}
+		if (db != n)
+			n.close();
+		close(evicted);
+		return db;
+	}
+
+	private synchronized Repository lookup(final File key) {
+		final Entry e = cache.get(key);
+		return e != null ? e.use() : null;
+	}
+
+	/** Close unused repositories which have been idle for too long. */
+	public void evictIdle() {
+		final List<Repository> evicted;
+		synchronized (this) {
+			evicted = evict();
+		}
+		close(evicted);
+	}
+
+	/**
+	 * Drop every repository from the cache.
+	 * <p>
+	 * Repositories still in use are closed by their last user.
+	 */
+	public void clear() {
+		final List<Repository> all = new ArrayList<Repository>();
+		synchronized (this) {
+			for (final Entry e : cache.values())
+				all.add(e.db);
+			cache.clear();
+		}
+		close(all);
+	}
+
+	private List<Repository> evict() {
+		final long now = System.currentTimeMillis();
+		List<Repository> r = null;
+		int over = cache.size() - maxRepositories;
+		final Iterator<Entry> i = cache.values().iterator();
+		while (i.hasNext()) {
+			final Entry e = i.next();
+
+			// Only the cache's own reference is left; no client can
+			// raise the count again without going through open().
+			//
+			if (e.db.getUseCount() > 1)
+				continue;
+			if (over > 0 || now - e.lastUsed >= idleMillis) {
+				i.remove();
+				over--;
+				if (r == null)
+					r = new ArrayList<Repository>();
+				r.add(e.db);
+			}
+		}
+		return r;
+	}
+
+	private static void close(final List<Repository> list) {
+		if (list != null) {
+			for (final Repository db : list)
+				db.close();
+		}
+	}
+
+	private static class Entry {
+		final Repository db;
+
+		long lastUsed;
+
+		Entry(final Repository db) {
+			this.db = db;
+			lastUsed = System.currentTimeMillis();
+		}
+
+		Repository use() {
+			db.incrementOpen();
+			lastUsed = System.currentTimeMillis();
+			return db;
+		}
+	}
+}
@@ -323,6 +323,26 @@ public Set<String> getSubsections(final String section) {
 		return result;
 	}
 
+	/**
+	 * @param section
+	 *            section to search for.
+	 * @return set of the names of all variables set directly in the section,
+	 *         not in one of its subsections, within this configuration and
+	 *         its base configuration; may be empty.
+	 */
+	public Set<String> getNames(final String section) {
+		final Set<String> result = new HashSet<String>();
+
+		for (final Entry e : entries) {
+			if (section.equalsIgnoreCase(e.base) && e.extendedBase == null
+					&& e.name != null)
+				result.add(e.name);
+		}
+		if (baseConfig != null)
+			result.addAll(baseConfig.getNames(section));
+		return result;
+	}
+
 	/**
 	 * @return the author name as defined in the git variables
 	 *         and configurations. If no name could be found, try
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Watches a repository and tells its listeners what changed.
+ * <p>
+ * Instead of re-reading every ref and the index to find out whether anything
+ * changed, as {@link Repository#scanForRepoChanges()} does, {@link #check()}
+ * asks a {@link FileWatcher} which files changed. The refs are re-read only if
+ * <code>HEAD</code>, <code>packed-refs</code> or a file below
+ * <code>refs/</code> (or <code>reftable/</code>) changed, and listeners are
+ * notified only if a ref value changed. An {@link IndexChangedEvent} is sent
+ * only if the index file changed.
+ * <p>
+ * If the working tree is watched as well, the paths modified in it are
+ * collected into {@link #getDirtyPaths()}, which can be handed to
+ * {@link IndexStatus#diff(IndexStatus, Set)} instead of comparing every file
+ * again.
+ */
+public class RepositoryWatcher {
+	private final Repository db;
+
+	private final FileWatcher watcher;
+
+	private final File gitDir;
+
+	private final File headFile;
+
+	private final File packedRefsFile;
+
+	private final File refsDir;
+
+	private final File reftableDir;
+
+	private final File indexFile;
+
+	private final File workDir;
+
+	/** Paths modified since {@link #resetDirtyPaths()}; null if unknown. */
+	private Set<String> dirty;
+
+	/**
+	 * Watch a repository by polling its files.
+	 *
+	 * @param repo
+	 *            the repository to watch.
+	 * @param workTree
+	 *            true to also collect the paths modified in the working tree.
+	 * @throws IOException
+	 *             the repository could not be watched.
+	 */
+	public RepositoryWatcher(final Repository repo, final boolean workTree)
+			throws IOException {
+		this(repo, new PollingFileWatcher(), workTree);
+	}
+
+	/**
+	 * Watch a repository.
+	 *
+	 * @param repo
+	 *            the repository to watch.
+	 * @param w
+	 *            the watcher reporting changed files. It is closed by
+	 *            {@link #close()}.
+	 * @param workTree
+	 *            true to also collect the paths modified in the working tree.
+	 * @throws IOException
+	 *             the repository could not be watched.
+	 */
+	public RepositoryWatcher(final Repository repo, final FileWatcher w,
+			final boolean workTree) throws IOException {
+		db = repo;
+		watcher = w;
+		gitDir = repo.getDirectory();
+		headFile = new File(gitDir, Constants.HEAD);
+		packedRefsFile = new File(gitDir, "packed-refs");
+		refsDir = new File(gitDir, "refs");
+		reftableDir = new File(gitDir, "reftable");
+		indexFile = new File(gitDir, "index");
+		workDir = workTree ? repo.getWorkDir() : null;
+
+		w.watch(headFile, false);
+		w.watch(packedRefsFile, false);
+		w.watch(refsDir, true);
+		w.watch(reftableDir, true);
+		w.watch(indexFile, false);
+		if (workDir != null)
+			w.watch(workDir, true);
+	}
+
+	/**
+	 * Collect the changes made since the last check and notify listeners.
+	 *
+	 * @return true if anything watched changed.
+	 * @throws IOException
+	 *             the changes could not be collected.
+	 */
+	public boolean check() throws IOException {
+		final Set<File> changed = watcher.poll();
+		boolean refs = false;
+		boolean index = false;
+		if (changed == null) {
+			refs = true;
+			index = true;
+		} else {
+			for (final File f : changed) {
+				if (f.equals(indexFile))
+					index = true;
+				else if (f.equals(headFile) || f.equals(packedRefsFile)
+						|| isWithin(refsDir, f) || isWithin(reftableDir, f))
+					refs = true;
+				else if (dirty != null && workDir != null
+						&& !isWithin(gitDir, f))
+					dirty.add(pathOf(f));
+			}
+		}
+
+		if (index) {
+			// Entries may have been staged or unstaged; the status of
+			// every path has to be computed again.
+			//
+			dirty = null;
+			db.indexFileChanged();
+		}
+		if (refs)
+			db.getAllRefs(); // notifies listeners if a ref was modified
+		return changed == null || !changed.isEmpty();
+	}
+
+	/**
+	 * Get the working tree paths modified since {@link #resetDirtyPaths()}.
+	 * <p>
+	 * A path may name a directory, in which case anything below it may have
+	 * been modified.
+	 *
+	 * @return repository relative paths, e.g. <code>src/Main.java</code>.
+	 *         Null if they are not known, e.g. because the working tree is not
+	 *         watched, the index changed, changes were lost, or
+	 *         {@link #resetDirtyPaths()} was never called.
+	 */
+	public Set<String> getDirtyPaths() {
+		return dirty != null ? Collections.unmodifiableSet(dirty) : null;
+	}
+
+	/**
+	 * Start collecting modified paths anew.
+	 * <p>
+	 * Call this right before computing a status that
+	 * {@link #getDirtyPaths()} will later be applied to. Changes not yet
+	 * collected by {@link #check()} are collected first.
+	 *
+	 * @throws IOException
+	 *             the pending changes could not be collected.
+	 */
+	public void resetDirtyPaths() throws IOException {
+		check();
+		dirty = workDir != null ? new HashSet<String>() : null;
+	}
+
+	/** Stop watching the repository. */
+	public void close() {
+		watcher.close();
+	}
+
+	private String pathOf(final File f) {
+		final String root = workDir.getPath();
+		final String p = f.getPath();
+		String r = p.length() > root.length() ? p.substring(root.length() + 1)
+				: "";
+		if (File.separatorChar != '/')
+			r = r.replace(File.separatorChar, '/');
+		return r;
+	}
+
+	private static boolean isWithin(final File dir, File f) {
+		for (; f != null; f = f.getParentFile()) {
+			if (f.equals(dir))
+				return true;
+		}
+		return false;
+	}
+}
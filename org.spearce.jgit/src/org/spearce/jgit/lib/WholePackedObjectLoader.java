@@ -57,7 +57,7 @@ class WholePackedObjectLoader extends PackedObjectLoader {
 	@Override
 	public byte[] getCachedBytes() throws IOException {
 		if (objectType != OBJ_COMMIT) {
-			final UnpackedObjectCache.Entry cache = pack.readCache(dataOffset);
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
 			if (cache != null) {
 				curs.release();
 				return cache.data;
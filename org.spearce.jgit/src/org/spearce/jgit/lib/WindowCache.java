@@ -40,16 +40,44 @@
 
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The WindowCache manages reusable <code>Windows</code> and inflaters used by
  * the other windowed file access classes.
+ * <p>
+ * The cache is a hash table of independently locked buckets, keyed by the
+ * (WindowedFile, window id) pair. Lookups and insertions only synchronize on
+ * the bucket the key hashes to, so threads reading different windows do not
+ * contend with each other. Eviction is an approximate LRU: the evicting
+ * thread samples a small run of buckets starting at a pseudo-random position
+ * and discards the least recently accessed window it saw, again holding only
+ * one bucket lock at a time.
+ * <p>
+ * Lock ordering: a thread may acquire a bucket lock while holding the monitor
+ * of a {@link WindowedFile} (opening a pack reads its header through the
+ * cache), but never the other way around. Windows removed from a bucket are
+ * therefore released only after that bucket's lock has been dropped.
+ * <p>
+ * A thread never takes the monitor of one file while holding another's.
+ * Reading the header during an open may evict windows of other files; those
+ * files are released only once the opening thread left its file's monitor,
+ * see {@link #beginOpen()}.
  */
 public class WindowCache {
 	private static final int KB = 1024;
 
 	private static final int MB = 1024 * KB;
 
+	/** Number of cached windows to consider when choosing a victim. */
+	private static final int EVICT_SAMPLE = 16;
+
+	/** Stride added to the eviction hand; spreads samples over the table. */
+	private static final int EVICT_STRIDE = 0x9e3779b9;
+
 	private static final int bits(int newSize) {
 		if (newSize < 4096)
 			throw new IllegalArgumentException("Invalid window size");
@@ -58,35 +86,29 @@ private static final int bits(int newSize) {
 		return Integer.numberOfTrailingZeros(newSize);
 	}
 
-	private static int maxByteCount;
-
-	private static int windowSize;
-
-	private static int windowSizeShift;
+	private static volatile int maxByteCount;
 
-	static boolean mmap;
+	private static volatile Table table;
 
 	static final ReferenceQueue<?> clearedWindowQueue;
 
-	private static ByteWindow[] cache;
+	private static final AtomicLong openByteCount;
 
-	private static ByteWindow lruHead;
+	private static final AtomicLong clock;
 
-	private static ByteWindow lruTail;
+	private static final AtomicInteger evictHand;
 
-	private static int openByteCount;
+	/** Files whose release waits for the current thread to finish an open. */
+	private static final ThreadLocal<List<WindowedFile>> deferredRelease;
 
 	static {
 		maxByteCount = 10 * MB;
-		windowSizeShift = bits(8 * KB);
-		windowSize = 1 << windowSizeShift;
-		mmap = false;
-		cache = new ByteWindow[cacheTableSize()];
+		table = new Table(maxByteCount, bits(8 * KB), false);
 		clearedWindowQueue = new ReferenceQueue<Object>();
-	}
-
-	private static int cacheTableSize() {
-		return 5 * (maxByteCount / windowSize) / 2;
+		openByteCount = new AtomicLong();
+		clock = new AtomicLong();
+		evictHand = new AtomicInteger();
+		deferredRelease = new ThreadLocal<List<WindowedFile>>();
 	}
 
 	/**
@@ -109,68 +131,35 @@ public static void reconfigure(final int packedGitLimit,
 			final int packedGitWindowSize, final boolean packedGitMMAP,
 			final int deltaBaseCacheLimit) {
 		reconfigureImpl(packedGitLimit, packedGitWindowSize, packedGitMMAP);
-		UnpackedObjectCache.reconfigure(deltaBaseCacheLimit);
+		DeltaBaseCache.reconfigure(deltaBaseCacheLimit);
 	}
 
 	private static synchronized void reconfigureImpl(final int packedGitLimit,
 			final int packedGitWindowSize, final boolean packedGitMMAP) {
-		boolean prune = false;
-		boolean evictAll = false;
-
-		if (maxByteCount < packedGitLimit) {
-			maxByteCount = packedGitLimit;
-		} else if (maxByteCount > packedGitLimit) {
-			maxByteCount = packedGitLimit;
-			prune = true;
-		}
-
-		if (bits(packedGitWindowSize) != windowSizeShift) {
-			windowSizeShift = bits(packedGitWindowSize);
-			windowSize = 1 << windowSizeShift;
-			evictAll = true;
-		}
-
-		if (mmap != packedGitMMAP) {
-			mmap = packedGitMMAP;
-			evictAll = true;
-		}
-
-		if (evictAll) {
-			// We have to throw away every window we have. None
-			// of them are suitable for the new configuration.
+		final int newShift = bits(packedGitWindowSize);
+		final Table old = table;
+
+		maxByteCount = packedGitLimit;
+		if (newShift != old.windowSizeShift || packedGitMMAP != old.mmap) {
+			// Windows of the old size (or the old mmap mode) are not
+			// suitable for the new configuration. Publish a fresh table
+			// first so new lookups go there, then drain the old.
 			//
-			for (ByteWindow<?> e : cache) {
-				for (; e != null; e = e.chainNext)
-					clear(e);
-			}
-			runClearedWindowQueue();
-			cache = new ByteWindow[cacheTableSize()];
-
-		} else {
-			if (prune) {
-				// We should decrease our memory usage.
-				//
-				releaseMemory();
-				runClearedWindowQueue();
-			}
-
-			if (cache.length != cacheTableSize()) {
-				// The cache table should be resized.
-				// Rehash every entry.
-				//
-				final ByteWindow[] priorTable = cache;
-
-				cache = new ByteWindow[cacheTableSize()];
-				for (ByteWindow<?> e : priorTable) {
-					for (ByteWindow<?> n; e != null; e = n) {
-						n = e.chainNext;
-						final int idx = hash(e.provider, e.id);
-						e.chainNext = cache[idx];
-						cache[idx] = e;
-					}
-				}
-			}
+			table = new Table(packedGitLimit, newShift, packedGitMMAP);
+			old.evictAll();
+		} else if (Table.size(packedGitLimit, newShift) != old.buckets.length) {
+			// Only the limit changed. The cached windows are still good,
+			// but hash elsewhere in a table sized for the new limit.
+			//
+			final Table t = new Table(packedGitLimit, newShift, packedGitMMAP);
+			table = t;
+			old.moveAll(t);
 		}
+
+		// If the limit shrank we should decrease our memory usage now.
+		//
+		runClearedWindowQueue();
+		releaseMemory();
 	}
 
 	/**
@@ -195,91 +184,122 @@ public static final void get(final WindowCursor curs,
 		curs.window.ensureLoaded(curs.handle);
 	}
 
-	private static synchronized final void getImpl(final WindowCursor curs,
+	private static final void getImpl(final WindowCursor curs,
 			final WindowedFile wp, final long position) throws IOException {
-		final int id = (int) (position >> windowSizeShift);
-		final int idx = hash(wp, id);
-		for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
-			if (e.provider == wp && e.id == id) {
-				if ((curs.handle = e.get()) != null) {
-					curs.window = e;
-					makeMostRecent(e);
+		for (;;) {
+			final Table t = table;
+			final int id = (int) (position >> t.windowSizeShift);
+			final Bucket b = t.bucket(wp, id);
+			final ByteWindow<?> dead;
+
+			synchronized (b) {
+				if (b.lookup(curs, wp, id))
 					return;
-				}
-
-				clear(e);
-				break;
+				dead = b.removeCleared(wp, id);
 			}
-		}
+			if (dead != null)
+				release(dead);
 
-		if (wp.openCount == 0) {
-			try {
-				wp.openCount = 1;
-				wp.cacheOpen();
-			} catch (IOException ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} catch (RuntimeException ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} catch (Error ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} finally {
-				wp.openCount--;
-			}
+			runClearedWindowQueue();
 
-			// The cacheOpen may have mapped the window we are trying to
-			// map ourselves. Retrying the search ensures that does not
-			// happen to us.
+			// Open (or keep open) the file before we size the window;
+			// the file length is not known until the first open.
 			//
-			for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
-				if (e.provider == wp && e.id == id) {
-					if ((curs.handle = e.get()) != null) {
-						curs.window = e;
-						makeMostRecent(e);
-						return;
-					}
+			wp.cacheAcquire();
+			final ByteWindow<?> e;
+			try {
+				final long start = ((long) id) << t.windowSizeShift;
+				wp.allocWindow(curs, id, start, t.windowSize(wp, id), t.mmap);
+				e = curs.window;
+			} catch (IOException err) {
+				wp.cacheRelease();
+				throw err;
+			} catch (RuntimeException err) {
+				wp.cacheRelease();
+				throw err;
+			} catch (Error err) {
+				wp.cacheRelease();
+				throw err;
+			}
 
-					clear(e);
-					break;
+			boolean inserted = false;
+			synchronized (b) {
+				if (!b.dead && !b.lookup(curs, wp, id)) {
+					b.insert(e);
+					inserted = true;
 				}
 			}
-		}
 
-		final int wsz = windowSize(wp, id);
-		wp.openCount++;
-		openByteCount += wsz;
-		releaseMemory();
-		runClearedWindowQueue();
+			if (inserted) {
+				openByteCount.addAndGet(e.size);
+				releaseMemory();
+				return;
+			}
 
-		wp.allocWindow(curs, id, (position >>> windowSizeShift) << windowSizeShift, wsz);
-		final ByteWindow<?> e = curs.window;
-		e.chainNext = cache[idx];
-		cache[idx] = e;
-		insertLRU(e);
+			// Another thread mapped the same window while we were loading,
+			// or the table was replaced by reconfigure. Throw ours away.
+			//
+			e.abandon();
+			e.clear();
+			wp.cacheRelease();
+			if (!b.dead)
+				return;
+			curs.window = null;
+			curs.handle = null;
+		}
 	}
 
-	static synchronized void markLoaded(final ByteWindow w) {
-		if (--w.provider.openCount == 0) {
-			w.provider.cacheClose();
-		}
+	static void markLoaded(final ByteWindow w) {
+		w.provider.cacheRelease();
 	}
 
-	private static void makeMostRecent(ByteWindow<?> e) {
-		if (lruHead != e) {
-			unlinkLRU(e);
-			insertLRU(e);
+	private static void releaseMemory() {
+		while (openByteCount.get() > maxByteCount) {
+			if (!evictOne())
+				break;
 		}
 	}
 
-	private static void releaseMemory() {
-		ByteWindow<?> e = lruTail;
-		while (openByteCount > maxByteCount && e != null) {
-			final ByteWindow<?> p = e.lruPrev;
-			clear(e);
-			e = p;
+	private static boolean evictOne() {
+		final Bucket[] buckets = table.buckets;
+		final int n = buckets.length;
+		int idx = (evictHand.getAndAdd(EVICT_STRIDE) >>> 1) % n;
+
+		Bucket victimBucket = null;
+		ByteWindow<?> victim = null;
+		long victimTime = Long.MAX_VALUE;
+		int seen = 0;
+
+		for (int scanned = 0; scanned < n && seen < EVICT_SAMPLE; scanned++) {
+			final Bucket b = buckets[idx];
+			synchronized (b) {
+				for (ByteWindow<?> e = b.head; e != null; e = e.chainNext) {
+					if (e.lastAccessed < victimTime) {
+						victimBucket = b;
+						victim = e;
+						victimTime = e.lastAccessed;
+					}
+					seen++;
+				}
+			}
+			if (++idx == n)
+				idx = 0;
 		}
+
+		if (victim == null)
+			return false;
+
+		final boolean removed;
+		synchronized (victimBucket) {
+			removed = victimBucket.remove(victim);
+		}
+		if (removed)
+			release(victim);
+
+		// If the victim vanished another thread released it, which
+		// also reduced the open byte count. Let the caller re-test.
+		//
+		return true;
 	}
 
 	/**
@@ -294,12 +314,13 @@ private static void releaseMemory() {
 	 *            the window provider whose windows should be removed from the
 	 *            cache.
 	 */
-	public static synchronized final void purge(final WindowedFile wp) {
-		for (ByteWindow e : cache) {
-			for (; e != null; e = e.chainNext) {
-				if (e.provider == wp)
-					clear(e);
+	public static final void purge(final WindowedFile wp) {
+		for (final Bucket b : table.buckets) {
+			ByteWindow<?> removed;
+			synchronized (b) {
+				removed = b.removeAll(wp);
 			}
+			releaseChain(removed);
 		}
 		runClearedWindowQueue();
 	}
@@ -307,83 +328,246 @@ public static synchronized final void purge(final WindowedFile wp) {
 	private static void runClearedWindowQueue() {
 		ByteWindow<?> e;
 		while ((e = (ByteWindow) clearedWindowQueue.poll()) != null) {
-			unlinkSize(e);
-			unlinkLRU(e);
-			unlinkCache(e);
+			// A window from a replaced table is not found here; it
+			// was (or will be) released, or dropped by the move into
+			// the new table, when that table was drained.
+			//
+			final Bucket b = table.bucket(e.provider, e.id);
+			final boolean removed;
+			synchronized (b) {
+				removed = b.remove(e);
+			}
+			if (removed)
+				release(e);
+		}
+	}
+
+	private static void releaseChain(ByteWindow<?> e) {
+		while (e != null) {
+			final ByteWindow<?> n = e.chainNext;
 			e.chainNext = null;
-			e.lruNext = null;
-			e.lruPrev = null;
+			release(e);
+			e = n;
 		}
 	}
 
-	private static void clear(final ByteWindow<?> e) {
-		unlinkSize(e);
+	private static void release(final ByteWindow<?> e) {
+		openByteCount.addAndGet(-e.size);
 		e.clear();
-		e.enqueue();
+
+		final List<WindowedFile> deferred = deferredRelease.get();
+		if (deferred != null)
+			deferred.add(e.provider);
+		else
+			e.provider.cacheRelease();
+	}
+
+	/**
+	 * Start holding back the release of evicted windows' files.
+	 * <p>
+	 * Called before a file takes its monitor to open itself. Any window this
+	 * thread evicts until {@link #endOpen(List)} keeps its file open, so the
+	 * thread does not need the monitor of another file while it still holds
+	 * its own.
+	 *
+	 * @return the files to release later; null if an outer call already
+	 *         collects them.
+	 */
+	static List<WindowedFile> beginOpen() {
+		if (deferredRelease.get() != null)
+			return null;
+		final List<WindowedFile> deferred = new ArrayList<WindowedFile>(2);
+		deferredRelease.set(deferred);
+		return deferred;
 	}
 
-	private static void unlinkSize(final ByteWindow<?> e) {
-		if (e.sizeActive) {
-			if (--e.provider.openCount == 0) {
-				e.provider.cacheClose();
+	/**
+	 * Release the files held back since {@link #beginOpen()}.
+	 * <p>
+	 * The caller must no longer hold the monitor of any file.
+	 *
+	 * @param deferred
+	 *            the list returned by the matching {@link #beginOpen()}.
+	 */
+	static void endOpen(final List<WindowedFile> deferred) {
+		if (deferred == null)
+			return;
+		deferredRelease.remove();
+		for (final WindowedFile wp : deferred)
+			wp.cacheRelease();
+	}
+
+	/** Immutable configuration plus the buckets built for it. */
+	private static final class Table {
+		static int size(final int limit, final int shift) {
+			return Math.max(1, 5 * (limit >> shift) / 2);
+		}
+
+		final Bucket[] buckets;
+
+		final int windowSizeShift;
+
+		final int windowSize;
+
+		final boolean mmap;
+
+		Table(final int limit, final int shift, final boolean useMMAP) {
+			windowSizeShift = shift;
+			windowSize = 1 << shift;
+			mmap = useMMAP;
+			buckets = new Bucket[size(limit, shift)];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new Bucket();
+		}
+
+		Bucket bucket(final WindowedFile wp, final int id) {
+			// wp.hash was already "stirred up" a bit by * 31 when
+			// it was created. Its reasonable to just add here.
+			//
+			return buckets[((wp.hash + id) >>> 1) % buckets.length];
+		}
+
+		int windowSize(final WindowedFile file, final int id) {
+			final long len = file.length();
+			final long pos = ((long) id) << windowSizeShift;
+			return len < pos + windowSize ? (int) (len - pos) : windowSize;
+		}
+
+		void moveAll(final Table dst) {
+			for (final Bucket b : buckets) {
+				ByteWindow<?> e;
+				synchronized (b) {
+					b.dead = true;
+					e = b.head;
+					b.head = null;
+				}
+				while (e != null) {
+					final ByteWindow<?> n = e.chainNext;
+					e.chainNext = null;
+					final Bucket to = dst.bucket(e.provider, e.id);
+					final boolean moved;
+					synchronized (to) {
+						moved = to.adopt(e);
+					}
+					if (!moved)
+						release(e);
+					e = n;
+				}
 			}
-			openByteCount -= e.size;
-			e.sizeActive = false;
 		}
-	}
 
-	private static void unlinkCache(final ByteWindow dead) {
-		final int idx = hash(dead.provider, dead.id);
-		ByteWindow<?> e = cache[idx], p = null, n;
-		for (; e != null; p = e, e = n) {
-			n = e.chainNext;
-			if (e == dead) {
-				if (p == null)
-					cache[idx] = n;
-				else
-					p.chainNext = n;
-				break;
+		void evictAll() {
+			for (final Bucket b : buckets) {
+				ByteWindow<?> removed;
+				synchronized (b) {
+					b.dead = true;
+					removed = b.head;
+					b.head = null;
+				}
+				releaseChain(removed);
 			}
 		}
 	}
 
-	private static void unlinkLRU(final ByteWindow e) {
-		final ByteWindow<?> prev = e.lruPrev;
-		final ByteWindow<?> next = e.lruNext;
+	/**
+	 * One hash chain of the cache, and the lock protecting it.
+	 * <p>
+	 * All fields, and the <code>chainNext</code> and
+	 * <code>lastAccessed</code> fields of every window linked here, are
+	 * guarded by the bucket's monitor.
+	 */
+	private static final class Bucket {
+		ByteWindow<?> head;
 
-		if (prev != null)
-			prev.lruNext = next;
-		else
-			lruHead = next;
+		/** True once the owning table was replaced and drained. */
+		boolean dead;
 
-		if (next != null)
-			next.lruPrev = prev;
-		else
-			lruTail = prev;
-	}
+		boolean lookup(final WindowCursor curs, final WindowedFile wp,
+				final int id) {
+			for (ByteWindow<?> e = head; e != null; e = e.chainNext) {
+				if (e.provider == wp && e.id == id) {
+					final Object h = e.get();
+					if (h == null)
+						return false;
+					curs.window = e;
+					curs.handle = h;
+					e.lastAccessed = clock.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		}
 
-	private static void insertLRU(final ByteWindow<?> e) {
-		final ByteWindow h = lruHead;
-		e.lruPrev = null;
-		e.lruNext = h;
-		if (h != null)
-			h.lruPrev = e;
-		else
-			lruTail = e;
-		lruHead = e;
-	}
+		void insert(final ByteWindow<?> e) {
+			e.lastAccessed = clock.incrementAndGet();
+			e.chainNext = head;
+			head = e;
+		}
 
-	private static int hash(final WindowedFile wp, final int id) {
-		// wp.hash was already "stirred up" a bit by * 31 when
-		// it was created. Its reasonable to just add here.
-		//
-		return ((wp.hash + id) >>> 1) % cache.length;
-	}
+		/**
+		 * Link a window moved from a replaced table.
+		 *
+		 * @param e
+		 *            the window.
+		 * @return false if the window was cleared, or another thread
+		 *         already loaded it into this bucket; the caller must
+		 *         release it.
+		 */
+		boolean adopt(final ByteWindow<?> e) {
+			if (e.get() == null)
+				return false;
+			for (ByteWindow<?> o = head; o != null; o = o.chainNext) {
+				if (o.provider == e.provider && o.id == e.id)
+					return false;
+			}
+			e.chainNext = head;
+			head = e;
+			return true;
+		}
+
+		ByteWindow<?> removeCleared(final WindowedFile wp, final int id) {
+			for (ByteWindow<?> e = head; e != null; e = e.chainNext) {
+				if (e.provider == wp && e.id == id && e.get() == null) {
+					remove(e);
+					return e;
+				}
+			}
+			return null;
+		}
 
-	private static int windowSize(final WindowedFile file, final int id) {
-		final long len = file.length();
-		final long pos = id << windowSizeShift;
-		return len < pos + windowSize ? (int) (len - pos) : windowSize;
+		boolean remove(final ByteWindow<?> dead) {
+			ByteWindow<?> e = head, p = null;
+			for (; e != null; p = e, e = e.chainNext) {
+				if (e == dead) {
+					if (p == null)
+						head = e.chainNext;
+					else
+						p.chainNext = e.chainNext;
+					e.chainNext = null;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		ByteWindow<?> removeAll(final WindowedFile wp) {
+			ByteWindow<?> removed = null;
+			ByteWindow<?> e = head, p = null, n;
+			for (; e != null; e = n) {
+				n = e.chainNext;
+				if (e.provider == wp) {
+					if (p == null)
+						head = n;
+					else
+						p.chainNext = n;
+					e.chainNext = removed;
+					removed = e;
+				} else {
+					p = e;
+				}
+			}
+			return removed;
+		}
 	}
 
 	private WindowCache() {
@@ -44,6 +44,7 @@
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
 import java.util.zip.DataFormatException;
 
 /**
@@ -75,10 +76,10 @@ public class WindowedFile {
 
 	RandomAccessFile fd;
 
-	private long length;
+	private volatile long length;
 
 	/** Total number of windows actively in the associated cache. */
-	int openCount;
+	private int openCount;
 
 	/**
 	 * Open a file for reading through window caching.
@@ -90,7 +91,7 @@ public WindowedFile(final File file) {
 		fPath = file;
 
 		// Multiply by 31 here so we can more directly combine with another
-		// value in WindowCache.hash(), without doing the multiply there.
+		// value in WindowCache's bucket hash, without doing the multiply there.
 		//
 		hash = System.identityHashCode(this) * 31;
 		length = Long.MAX_VALUE;
@@ -279,7 +280,49 @@ public void close() {
 		WindowCache.purge(this);
 	}
 
-	void cacheOpen() throws IOException {
+	/**
+	 * Note a new window of this file is entering the cache.
+	 * <p>
+	 * Opens the file if this is the first window. The caller must not be
+	 * holding any lock internal to {@link WindowCache}, as opening the file
+	 * may read through the cache.
+	 *
+	 * @throws IOException
+	 *             the file could not be opened.
+	 */
+	void cacheAcquire() throws IOException {
+		final List<WindowedFile> deferred = WindowCache.beginOpen();
+		try {
+			acquire();
+		} finally {
+			WindowCache.endOpen(deferred);
+		}
+	}
+
+	private synchronized void acquire() throws IOException {
+		if (openCount++ == 0) {
+			try {
+				cacheOpen();
+			} catch (IOException ioe) {
+				openCount--;
+				throw ioe;
+			} catch (RuntimeException re) {
+				openCount--;
+				throw re;
+			} catch (Error re) {
+				openCount--;
+				throw re;
+			}
+		}
+	}
+
+	/** Note a window left the cache; closes the file after the last one. */
+	synchronized void cacheRelease() {
+		if (--openCount == 0)
+			cacheClose();
+	}
+
+	private void cacheOpen() throws IOException {
 		fd = new RandomAccessFile(fPath, "r");
 		length = fd.length();
 		try {
@@ -296,7 +339,7 @@ void cacheOpen() throws IOException {
 		}
 	}
 
-	void cacheClose() {
+	private void cacheClose() {
 		try {
 			fd.close();
 		} catch (IOException err) {
@@ -308,8 +351,9 @@ void cacheClose() {
 	}
 
 	void allocWindow(final WindowCursor curs, final int windowId,
-			final long pos, final int size) {
-		if (WindowCache.mmap) {
+			final long pos, final int size, final boolean mmap)
+			throws IOException {
+		if (mmap) {
 			MappedByteBuffer map;
 			try {
 				map = fd.getChannel().map(MapMode.READ_ONLY, pos, size);
@@ -348,6 +392,6 @@ void allocWindow(final WindowCursor curs, final int windowId,
 		final byte[] b = new byte[size];
 		curs.window = new ByteArrayWindow(this, pos, windowId, b);
 		curs.handle = b;
-		openCount++; // Until the window loads, we must stay open.
+		cacheAcquire(); // Until the window loads, we must stay open.
 	}
 }
@@ -43,6 +43,7 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectInserter;
 import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.WindowCursor;
@@ -103,6 +104,19 @@ public ObjectWriter getObjectWriter() {
 		return writer;
 	}
 
+	/**
+	 * Write the objects created by the merge through an inserter.
+	 * <p>
+	 * By default they are written as loose files. The caller must flush the
+	 * inserter before the merge result is used.
+	 *
+	 * @param oi
+	 *            the inserter, e.g. from {@link Repository#newPackInserter()}.
+	 */
+	public void setObjectInserter(final ObjectInserter oi) {
+		writer = new ObjectWriter(oi);
+	}
+
 	/**
 	 * Merge together two or more tree-ish objects.
 	 * <p>
@@ -41,20 +41,40 @@
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
-
-/** A queue of commits sorted by commit time order. */
+import org.spearce.jgit.lib.CommitGraph;
+
+/**
+ * A queue of commits sorted by commit time order.
+ * <p>
+ * The queue is a binary heap, so adding and removing a commit costs
+ * O(log n) no matter how many commits are pending. Commits with the same
+ * commit time leave the queue in reverse order of their addition, except that
+ * a commit never displaces the current head of the queue if it is tied with
+ * it; this is the order the earlier sorted list implementation produced.
+ */
 public class DateRevQueue extends AbstractRevQueue {
-	private Entry head;
+	private static final int INITIAL_SIZE = 32;
+
+	/** Heap of pending commits; the newest is at index 0. */
+	private RevCommit[] heap;
 
-	private Entry free;
+	/** Insertion sequence of each commit in {@link #heap}, to break ties. */
+	private long[] order;
+
+	private int size;
+
+	private long sequence;
 
 	/** Create an empty date queue. */
 	public DateRevQueue() {
 		super();
+		heap = new RevCommit[INITIAL_SIZE];
+		order = new long[INITIAL_SIZE];
 	}
 
 	DateRevQueue(final Generator s) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		this();
 		for (;;) {
 			final RevCommit c = s.next();
 			if (c == null)
@@ -64,30 +84,61 @@ public DateRevQueue() {
 	}
 
 	public void add(final RevCommit c) {
-		Entry q = head;
-		final long when = c.commitTime;
-		final Entry n = newEntry(c);
-		if (q == null || when > q.commit.commitTime) {
-			n.next = q;
-			head = n;
-		} else {
-			Entry p = q.next;
-			while (p != null && p.commit.commitTime > when) {
-				q = p;
-				p = q.next;
-			}
-			n.next = q.next;
-			q.next = n;
+		if (size == heap.length)
+			grow();
+
+		long seq = sequence++;
+		if (size > 0 && heap[0].commitTime == c.commitTime) {
+			// Keep the tied head first by giving it the newer sequence,
+			// the new commit taking the head's place ahead of other ties.
+			//
+			final long headSeq = order[0];
+			order[0] = seq;
+			seq = headSeq;
 		}
+
+		int i = size++;
+		while (i > 0) {
+			final int parent = (i - 1) >>> 1;
+			if (!before(c, seq, heap[parent], order[parent]))
+				break;
+			heap[i] = heap[parent];
+			order[i] = order[parent];
+			i = parent;
+		}
+		heap[i] = c;
+		order[i] = seq;
 	}
 
 	public RevCommit next() {
-		final Entry q = head;
-		if (q == null)
+		if (size == 0)
 			return null;
-		head = q.next;
-		freeEntry(q);
-		return q.commit;
+		final RevCommit r = heap[0];
+		final int last = --size;
+		final RevCommit c = heap[last];
+		final long seq = order[last];
+		heap[last] = null;
+
+		if (last > 0) {
+			int i = 0;
+			for (;;) {
+				int child = 2 * i + 1;
+				if (child >= last)
+					break;
+				if (child + 1 < last
+						&& before(heap[child + 1], order[child + 1],
+								heap[child], order[child]))
+					child++;
+				if (!before(heap[child], order[child], c, seq))
+					break;
+				heap[i] = heap[child];
+				order[i] = order[child];
+				i = child;
+			}
+			heap[i] = c;
+			order[i] = seq;
+		}
+		return r;
 	}
 
 	/**
@@ -96,60 +147,79 @@ public RevCommit next() {
 	 * @return the next available commit; null if there are no commits left.
 	 */
 	public RevCommit peek() {
-		return head != null ? head.commit : null;
+		return size > 0 ? heap[0] : null;
 	}
 
 	public void clear() {
-		head = null;
-		free = null;
+		heap = new RevCommit[INITIAL_SIZE];
+		order = new long[INITIAL_SIZE];
+		size = 0;
 	}
 
 	boolean everbodyHasFlag(final int f) {
-		for (Entry q = head; q != null; q = q.next) {
-			if ((q.commit.flags & f) == 0)
+		for (int i = 0; i < size; i++) {
+			if ((heap[i].flags & f) == 0)
 				return false;
 		}
 		return true;
 	}
 
 	boolean anybodyHasFlag(final int f) {
-		for (Entry q = head; q != null; q = q.next) {
-			if ((q.commit.flags & f) != 0)
+		for (int i = 0; i < size; i++) {
+			if ((heap[i].flags & f) != 0)
 				return true;
 		}
 		return false;
 	}
 
+	/**
+	 * @return largest generation number of the queued commits; 0 if the queue
+	 *         is empty, {@link Integer#MAX_VALUE} if any generation is unknown.
+	 */
+	int maxGeneration() {
+		int max = 0;
+		for (int i = 0; i < size; i++) {
+			final int g = heap[i].generation;
+			if (g == CommitGraph.GENERATION_UNKNOWN)
+				return Integer.MAX_VALUE;
+			if (max < g)
+				max = g;
+		}
+		return max;
+	}
+
 	@Override
 	int outputType() {
 		return outputType | SORT_COMMIT_TIME_DESC;
 	}
 
 	public String toString() {
+		final DateRevQueue copy = new DateRevQueue();
+		copy.heap = heap.clone();
+		copy.order = order.clone();
+		copy.size = size;
+
 		final StringBuilder s = new StringBuilder();
-		for (Entry q = head; q != null; q = q.next)
-			describe(s, q.commit);
+		RevCommit c;
+		while ((c = copy.next()) != null)
+			describe(s, c);
 		return s.toString();
 	}
 
-	private Entry newEntry(final RevCommit c) {
-		Entry r = free;
-		if (r == null)
-			r = new Entry();
-		else
-			free = r.next;
-		r.commit = c;
-		return r;
-	}
+	private void grow() {
+		final RevCommit[] h = new RevCommit[heap.length * 2];
+		System.arraycopy(heap, 0, h, 0, size);
+		heap = h;
 
-	private void freeEntry(final Entry e) {
-		e.next = free;
-		free = e;
+		final long[] o = new long[order.length * 2];
+		System.arraycopy(order, 0, o, 0, size);
+		order = o;
 	}
 
-	static class Entry {
-		Entry next;
-
-		RevCommit commit;
+	private static boolean before(final RevCommit a, final long aSeq,
+			final RevCommit b, final long bSeq) {
+		if (a.commitTime != b.commitTime)
+			return a.commitTime > b.commitTime;
+		return aSeq > bSeq;
 	}
 }
@@ -41,6 +41,7 @@
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.CommitGraph;
 
 /**
  * Computes the merge base(s) of the starting commits.
@@ -73,9 +74,13 @@ class MergeBaseGenerator extends Generator {
 
 	private int branchMask;
 
+	/** Generation below which history need not be walked; 0 to walk it all. */
+	private final int minGeneration;
+
 	MergeBaseGenerator(final RevWalk w) {
 		walker = w;
 		pending = new DateRevQueue();
+		minGeneration = w.minGeneration;
 	}
 
 	void init(final AbstractRevQueue p) {
@@ -123,13 +128,19 @@ RevCommit next() throws MissingObjectException,
 				return null;
 			}
 
-			for (final RevCommit p : c.parents) {
-				if ((p.flags & IN_PENDING) != 0)
-					continue;
-				if ((p.flags & PARSED) == 0)
-					p.parse(walker);
-				p.flags |= IN_PENDING;
-				pending.add(p);
+			if (c.generation == CommitGraph.GENERATION_UNKNOWN
+					|| minGeneration < c.generation) {
+				// Commits no newer than the one we look for by generation
+				// cannot reach it, so their parents are not worth parsing.
+				//
+				for (final RevCommit p : c.parents) {
+					if ((p.flags & IN_PENDING) != 0)
+						continue;
+					if ((p.flags & PARSED) == 0)
+						p.parse(walker);
+					p.flags |= IN_PENDING;
+					pending.add(p);
+				}
 			}
 
 			int carry = c.flags & branchMask;
@@ -38,6 +38,8 @@
 package org.spearce.jgit.revwalk;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
@@ -45,6 +47,7 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.ObjectLoaderQueue;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.treewalk.CanonicalTreeParser;
 
@@ -335,12 +338,23 @@ public void checkConnectivity() throws MissingObjectException,
 			if (c == null)
 				break;
 		}
+		final List<RevBlob> blobs = new ArrayList<RevBlob>();
 		for (;;) {
 			final RevObject o = nextObject();
 			if (o == null)
 				break;
-			if (o instanceof RevBlob && !db.hasObject(o))
-				throw new MissingObjectException(o, Constants.TYPE_BLOB);
+			if (o instanceof RevBlob)
+				blobs.add((RevBlob) o);
+		}
+
+		// Blobs are never parsed by the walk. Look for them in one batch
+		// once the trees are done, instead of once per tree entry.
+		//
+		final ObjectLoaderQueue<RevBlob> q = db.openObjects(curs, blobs);
+		while (q.next()) {
+			if (!q.exists())
+				throw new MissingObjectException(q.getCurrent(),
+						Constants.TYPE_BLOB);
 		}
 	}
 
@@ -98,6 +98,17 @@ class PendingGenerator extends Generator {
 	 */
 	private int overScan = OVER_SCAN;
 
+	/**
+	 * Smallest generation number of the interesting commits popped so far.
+	 * <p>
+	 * A commit can only reach commits of a smaller generation. Once every
+	 * commit in {@link #pending} has a generation below this value no further
+	 * walking can carry {@link #UNINTERESTING} onto a commit already popped.
+	 * Zero if the generation of a popped commit is unknown, disabling this
+	 * test in favor of the {@link #OVER_SCAN} heuristic.
+	 */
+	private int minGeneration = Integer.MAX_VALUE;
+
 	boolean canDispose;
 
 	PendingGenerator(final RevWalk w, final DateRevQueue p,
@@ -128,8 +139,13 @@ RevCommit next() throws MissingObjectException,
 				final boolean produce;
 				if ((c.flags & UNINTERESTING) != 0)
 					produce = false;
-				else
+				else {
+					if (c.getRawBuffer() == null && filter.requiresCommitBody())
+						c.parseBody(walker);
 					produce = filter.include(walker, c);
+					if (c.generation < minGeneration)
+						minGeneration = c.generation;
+				}
 
 				for (final RevCommit p : c.parents) {
 					if ((p.flags & SEEN) != 0)
@@ -143,8 +159,21 @@ RevCommit next() throws MissingObjectException,
 
 				if ((c.flags & UNINTERESTING) != 0) {
 					if (pending.everbodyHasFlag(UNINTERESTING)) {
+						final int maxGen = pending.maxGeneration();
 						final RevCommit n = pending.peek();
-						if (n != null && n.commitTime >= last.commitTime) {
+						if (maxGen < minGeneration) {
+							// Nothing left in the queue can reach any commit
+							// we already popped, so every flag that needed
+							// carrying has been carried.
+							//
+							throw StopWalkException.INSTANCE;
+						} else if (minGeneration > 0
+								&& maxGen != Integer.MAX_VALUE) {
+							// Some queued commit may still reach one we
+							// popped, whatever their commit times claim.
+							//
+							overScan = OVER_SCAN;
+						} else if (n != null && n.commitTime >= last.commitTime) {
 							// This is too close to call. The next commit we
 							// would pop is dated after the last one produced.
 							// We have to keep going to ensure that we carry
@@ -44,6 +44,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectLoader;
@@ -64,6 +65,8 @@ public class RevCommit extends RevObject {
 
 	int inDegree;
 
+	int generation; // CommitGraph.GENERATION_UNKNOWN if not in the graph
+
 	private byte[] buffer;
 
 	/**
@@ -79,13 +82,64 @@ protected RevCommit(final AnyObjectId id) {
 	@Override
 	void parse(final RevWalk walk) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		final CommitGraph graph = walk.graph();
+		if (graph != null) {
+			final int pos = graph.findPosition(this);
+			if (pos >= 0) {
+				generation = graph.getGeneration(pos);
+				if (!walk.isRetainBody()) {
+					parseGraph(walk, graph, pos);
+					return;
+				}
+			}
+		}
+		parseCanonical(walk, load(walk));
+	}
+
+	void parseBody(final RevWalk walk) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (buffer == null) {
+			final byte[] raw = load(walk);
+			if ((flags & PARSED) == 0)
+				parseCanonical(walk, raw);
+			buffer = raw;
+		}
+	}
+
+	private byte[] load(final RevWalk walk) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
 		final ObjectLoader ldr = walk.db.openObject(walk.curs, this);
 		if (ldr == null)
 			throw new MissingObjectException(this, TYPE_COMMIT);
 		final byte[] data = ldr.getCachedBytes();
 		if (Constants.OBJ_COMMIT != ldr.getType())
 			throw new IncorrectObjectTypeException(this, TYPE_COMMIT);
-		parseCanonical(walk, data);
+		return data;
+	}
+
+	private void parseGraph(final RevWalk walk, final CommitGraph graph,
+			final int pos) throws IOException {
+		final MutableObjectId idBuffer = walk.idBuffer;
+		graph.getTree(pos, idBuffer);
+		tree = walk.lookupTree(idBuffer);
+
+		if (parents == null) {
+			final int nParents = graph.getParentCount(pos);
+			if (nParents == 0)
+				parents = NO_PARENTS;
+			else {
+				final RevCommit[] pList = new RevCommit[nParents];
+				for (int i = 0; i < nParents; i++) {
+					graph.getObjectId(graph.getParent(pos, i), idBuffer);
+					pList[i] = walk.lookupCommit(idBuffer);
+				}
+				parents = pList;
+			}
+		}
+
+		commitTime = (int) graph.getCommitTime(pos);
+		generation = graph.getGeneration(pos);
+		flags |= PARSED;
 	}
 
 	void parseCanonical(final RevWalk walk, final byte[] raw) {
@@ -134,7 +188,8 @@ else if (nParents == 1) {
 			commitTime = RawParseUtils.parseBase10(raw, ptr, null);
 		}
 
-		buffer = raw;
+		if (walk.isRetainBody())
+			buffer = raw;
 		flags |= PARSED;
 	}
 	
@@ -258,10 +313,15 @@ public final RevCommit[] getParents() {
 	 * this commit's message buffer within a RevFilter. Applications relying on
 	 * this buffer should be very careful to ensure they do not modify its
 	 * contents during their use of it.
+	 * <p>
+	 * If the walk that parsed this commit does not retain commit bodies the
+	 * buffer is only available after {@link RevWalk#parseBody(RevCommit)}.
 	 * 
 	 * @return the raw unparsed commit body. This is <b>NOT A COPY</b>.
 	 *         Altering the contents of this buffer may alter the walker's
-	 *         knowledge of this commit, and the results it produces.
+	 *         knowledge of this commit, and the results it produces. Null if
+	 *         the body was not retained.
+	 * @see RevWalk#setRetainBody(boolean)
 	 */
 	public final byte[] getRawBuffer() {
 		return buffer;
@@ -128,6 +128,7 @@ public void applyFlag(final RevFilter matching, final RevFlag flag,
 			int rangeBegin, int rangeEnd) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
 		final RevWalk w = flag.getRevWalk();
+		final boolean needBody = matching.requiresCommitBody();
 		rangeEnd = Math.min(rangeEnd, size());
 		while (rangeBegin < rangeEnd) {
 			int index = rangeBegin;
@@ -140,6 +141,8 @@ public void applyFlag(final RevFilter matching, final RevFlag flag,
 
 			while (rangeBegin++ < rangeEnd && index < BLOCK_SIZE) {
 				final RevCommit c = (RevCommit) s.contents[index++];
+				if (needBody && c.getRawBuffer() == null)
+					w.parseBody(c);
 				if (matching.include(w, c))
 					c.add(flag);
 				else
@@ -48,6 +48,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.RevWalkException;
 import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectId;
@@ -155,6 +156,11 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	final MutableObjectId idBuffer;
 
+	/** Commit-graph of {@link #db}; only valid if {@link #graphLoaded}. */
+	private CommitGraph graph;
+
+	private boolean graphLoaded;
+
 	private final ObjectIdSubclassMap<RevObject> objects;
 
 	private int freeFlags = APP_FLAGS;
@@ -175,6 +181,15 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	private TreeFilter treeFilter;
 
+	private boolean retainBody;
+
+	/**
+	 * Generation of the commit {@link #isMergedInto(RevCommit, RevCommit)}
+	 * looks for; 0 outside of it. Commits of this or a smaller generation
+	 * cannot reach it, so {@link MergeBaseGenerator} need not walk past them.
+	 */
+	int minGeneration;
+
 	/**
 	 * Create a new revision walker for a given repository.
 	 * 
@@ -192,6 +207,7 @@ public RevWalk(final Repository repo) {
 		sorting = EnumSet.of(RevSort.NONE);
 		filter = RevFilter.ALL;
 		treeFilter = TreeFilter.ALL;
+		retainBody = true;
 	}
 
 	/**
@@ -203,6 +219,22 @@ public Repository getRepository() {
 		return db;
 	}
 
+	/**
+	 * Get the commit-graph, reading it on first use.
+	 * <p>
+	 * Many walks never parse a commit, so they should not have to look for
+	 * the file.
+	 *
+	 * @return the commit-graph of the repository; null if it has none.
+	 */
+	CommitGraph graph() {
+		if (!graphLoaded) {
+			graph = db.getCommitGraph();
+			graphLoaded = true;
+		}
+		return graph;
+	}
+
 	/**
 	 * Mark a commit to start graph traversal from.
 	 * <p>
@@ -352,10 +384,17 @@ public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 			treeFilter = TreeFilter.ALL;
 			markStart(tip);
 			markStart(base);
+			if (base != tip && base.generation != CommitGraph.GENERATION_UNKNOWN
+					&& tip.generation != CommitGraph.GENERATION_UNKNOWN) {
+				if (base.generation >= tip.generation)
+					return false;
+				minGeneration = base.generation;
+			}
 			return next() == base;
 		} finally {
 			filter = oldRF;
 			treeFilter = oldTF;
+			minGeneration = 0;
 		}
 	}
 
@@ -509,6 +548,39 @@ public void setTreeFilter(final TreeFilter newFilter) {
 		treeFilter = newFilter != null ? newFilter : TreeFilter.ALL;
 	}
 
+	/**
+	 * Should the body of a commit be retained after parsing its headers?
+	 * <p>
+	 * Usually the body is always retained, but some application code might
+	 * not care and would prefer to discard the body of a commit as early as
+	 * possible, to reduce memory usage.
+	 * 
+	 * @return true if the body should be retained; false it is discarded.
+	 */
+	public boolean isRetainBody() {
+		return retainBody;
+	}
+
+	/**
+	 * Set whether or not the body of a commit should be retained.
+	 * <p>
+	 * If a body of a commit is not retained, the application must call
+	 * {@link #parseBody(RevCommit)} before the body can be safely accessed
+	 * through the type specific access methods, such as
+	 * {@link RevCommit#getFullMessage()}.
+	 * <p>
+	 * A walk that does not retain bodies reads parents, tree and commit time
+	 * of commits from the repository's commit-graph, if it has one, without
+	 * reading the commit objects at all. {@link RevFilter}s needing the body
+	 * still obtain it, see {@link RevFilter#requiresCommitBody()}.
+	 * 
+	 * @param retain
+	 *            true to retain bodies; false to discard them early.
+	 */
+	public void setRetainBody(final boolean retain) {
+		retainBody = retain;
+	}
+
 	/**
 	 * Locate a reference to a blob without loading it.
 	 * <p>
@@ -698,7 +770,15 @@ else if (!(c instanceof RevTree))
 	public RevObject parseAny(final AnyObjectId id)
 			throws MissingObjectException, IOException {
 		RevObject r = objects.get(id);
-		if (r == null) {
+		final CommitGraph graph = r == null ? graph() : null;
+		if (graph != null && graph.findPosition(id) >= 0) {
+			// The graph only holds commits, and can parse them faster
+			// than the object database.
+			//
+			r = createCommit(id);
+			r.parse(this);
+			objects.add(r);
+		} else if (r == null) {
 			final ObjectLoader ldr = db.openObject(curs, id);
 			if (ldr == null)
 				throw new MissingObjectException(id.toObjectId(), "unknown");
@@ -756,6 +836,25 @@ public void parse(final RevObject obj) throws MissingObjectException,
 		obj.parse(this);
 	}
 
+	/**
+	 * Ensure the commit's body has been loaded.
+	 * <p>
+	 * Only needed if the walk does not retain bodies, see
+	 * {@link #setRetainBody(boolean)}. The body is kept until the commit is
+	 * disposed of.
+	 * 
+	 * @param c
+	 *            the commit the caller needs the body of.
+	 * @throws MissingObjectException
+	 *             the supplied does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void parseBody(final RevCommit c) throws MissingObjectException,
+			IOException {
+		c.parseBody(this);
+	}
+
 	/**
 	 * Create a new flag for application use during walking.
 	 * <p>
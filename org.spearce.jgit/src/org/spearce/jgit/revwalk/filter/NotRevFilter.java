@@ -75,6 +75,11 @@ public boolean include(final RevWalk walker, final RevCommit c)
 		return !a.include(walker, c);
 	}
 
+	@Override
+	public boolean requiresCommitBody() {
+		return a.requiresCommitBody();
+	}
+
 	@Override
 	public RevFilter clone() {
 		return new NotRevFilter(a.clone());
@@ -123,6 +123,11 @@ public boolean include(final RevWalk walker, final RevCommit c)
 			return a.include(walker, c) || b.include(walker, c);
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return a.requiresCommitBody() || b.requiresCommitBody();
+		}
+
 		@Override
 		public RevFilter clone() {
 			return new Binary(a.clone(), b.clone());
@@ -152,6 +157,15 @@ public boolean include(final RevWalk walker, final RevCommit c)
 			return false;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			for (final RevFilter f : subfilters) {
+				if (f.requiresCommitBody())
+					return true;
+			}
+			return false;
+		}
+
 		@Override
 		public RevFilter clone() {
 			final RevFilter[] s = new RevFilter[subfilters.length];
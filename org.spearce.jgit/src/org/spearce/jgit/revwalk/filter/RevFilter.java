@@ -98,6 +98,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "ALL";
@@ -116,6 +121,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "NONE";
@@ -134,6 +144,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "NO_MERGES";
@@ -159,6 +174,11 @@ public RevFilter clone() {
 			return this;
 		}
 
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "MERGE_BASE";
@@ -174,6 +194,15 @@ public RevFilter negate() {
 		return NotRevFilter.create(this);
 	}
 
+	/**
+	 * @return true if the filter needs the commit body to be parsed; false if
+	 *         the headers parsed from the commit-graph are enough.
+	 * @see RevWalk#setRetainBody(boolean)
+	 */
+	public boolean requiresCommitBody() {
+		return true;
+	}
+
 	/**
 	 * Determine if the supplied commit should be included in results.
 	 *
@@ -117,6 +117,11 @@ public static RevFilter hasAny(final RevFlagSet a) {
 		flags = m;
 	}
 
+	@Override
+	public boolean requiresCommitBody() {
+		return false;
+	}
+
 	@Override
 	public RevFilter clone() {
 		return this;
@@ -132,6 +132,7 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 		thinPack = packTransport.isFetchThin();
 
 		walk = new RevWalk(local);
+		walk.setRetainBody(false);
 		reachableCommits = new RevCommitList<RevCommit>();
 		REACHABLE = walk.newFlag("REACHABLE");
 		COMMON = walk.newFlag("COMMON");
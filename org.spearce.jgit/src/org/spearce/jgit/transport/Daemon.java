@@ -37,12 +37,9 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -52,15 +49,45 @@
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.Repository;
-
-/** Basic daemon for the anonymous <code>git://</code> transport protocol. */
+import org.spearce.jgit.lib.RepositoryCache;
+
+/**
+ * Basic daemon for the anonymous <code>git://</code> transport protocol.
+ * <p>
+ * Accepted connections are served by a fixed size pool of worker threads.
+ * Connections arriving while all workers are busy wait in a bounded queue;
+ * once that is full too they are closed right away, so a burst of clients
+ * cannot exhaust the memory of the daemon. Each {@link DaemonService} may
+ * further limit how many clients it serves at once.
+ * <p>
+ * A single thread accepts connections, blocking in
+ * {@link ServerSocket#accept()}. It does nothing but hand each socket to the
+ * pool, which never makes it wait, so one blocking thread keeps up with the
+ * clients as well as a selector would. {@link #stop()} closes the listening
+ * socket to end the wait.
+ */
 public class Daemon {
 	/** 9418: IANA assigned port number for Git. */
 	public static final int DEFAULT_PORT = 9418;
 
+	/** Default number of clients served at the same time. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+	/** Default number of accepted clients which may wait for a worker. */
+	public static final int DEFAULT_MAX_QUEUED_CONNECTIONS = 64;
+
 	private static final int BACKLOG = 5;
 
 	private InetSocketAddress myAddress;
@@ -79,6 +106,24 @@ public class Daemon {
 
 	private Thread acceptThread;
 
+	private ServerSocket listenSock;
+
+	private ThreadPoolExecutor workers;
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	private int maxQueuedConnections = DEFAULT_MAX_QUEUED_CONNECTIONS;
+
+	private int initTimeout;
+
+	private int timeout;
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	private final AtomicLong rejectedConnections = new AtomicLong();
+
+	private final AtomicLong failedConnections = new AtomicLong();
+
 	/** Configure a daemon to listen on any available network port. */
 	public Daemon() {
 		this(null);
@@ -213,6 +258,110 @@ public void exportDirectory(final File dir) {
 		}
 	}
 
+	/** @return number of clients served at the same time. */
+	public synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the number of worker threads serving clients.
+	 * <p>
+	 * The new value is used the next time the daemon is started.
+	 *
+	 * @param max
+	 *            number of clients served at the same time; at least 1.
+	 */
+	public synchronized void setMaxConnections(final int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Invalid connection limit "
+					+ max);
+		maxConnections = max;
+	}
+
+	/** @return number of accepted clients which may wait for a worker. */
+	public synchronized int getMaxQueuedConnections() {
+		return maxQueuedConnections;
+	}
+
+	/**
+	 * Set the number of accepted clients which may wait for a worker.
+	 * <p>
+	 * A connection arriving while all workers are busy and this many clients
+	 * are already waiting is closed immediately. The new value is used the
+	 * next time the daemon is started.
+	 *
+	 * @param max
+	 *            length of the queue; 0 to close connections whenever no
+	 *            worker is free.
+	 */
+	public synchronized void setMaxQueuedConnections(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid queue limit " + max);
+		maxQueuedConnections = max;
+	}
+
+	/**
+	 * @return seconds a client has to send its request after it was given a
+	 *         worker; 0 if it may take forever.
+	 */
+	public synchronized int getInitTimeout() {
+		return initTimeout;
+	}
+
+	/**
+	 * @param seconds
+	 *            seconds a client has to send its request after it was given
+	 *            a worker; 0 to wait forever.
+	 */
+	public synchronized void setInitTimeout(final int seconds) {
+		initTimeout = seconds;
+	}
+
+	/**
+	 * @return seconds a service may wait for the client to send more data;
+	 *         0 if it may wait forever.
+	 */
+	public synchronized int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param seconds
+	 *            seconds a service may wait for the client to send more data
+	 *            before the connection is dropped; 0 to wait forever.
+	 */
+	public synchronized void setTimeout(final int seconds) {
+		timeout = seconds;
+	}
+
+	/** @return number of clients currently being served. */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/** @return number of accepted clients waiting for a worker. */
+	public synchronized int getQueuedConnections() {
+		return workers != null ? workers.getQueue().size() : 0;
+	}
+
+	/**
+	 * @return number of connections closed without service because all
+	 *         workers were busy and the queue was full, or the daemon was
+	 *         stopping. Connections refused by a service's own limit are
+	 *         counted by {@link DaemonService#getRejectedConnections()}.
+	 */
+	public long getRejectedConnections() {
+		return rejectedConnections.get();
+	}
+
+	/**
+	 * @return number of connections which ended with an IO error, such as a
+	 *         client which timed out or went away in the middle of a request.
+	 */
+	public long getFailedConnections() {
+		return failedConnections.get();
+	}
+
 	/**
 	 * Start this daemon on a background thread.
 	 *
@@ -225,26 +374,45 @@ public synchronized void start() throws IOException {
 		if (acceptThread != null)
 			throw new IllegalStateException("Daemon already running");
 
-		final ServerSocket listenSock = new ServerSocket(
+		final ServerSocket sock = new ServerSocket(
 				myAddress != null ? myAddress.getPort() : 0, BACKLOG,
 				myAddress != null ? myAddress.getAddress() : null);
-		myAddress = (InetSocketAddress) listenSock.getLocalSocketAddress();
+		myAddress = (InetSocketAddress) sock.getLocalSocketAddress();
+		listenSock = sock;
+
+		final BlockingQueue<Runnable> queue;
+		if (maxQueuedConnections > 0)
+			queue = new ArrayBlockingQueue<Runnable>(maxQueuedConnections);
+		else
+			queue = new SynchronousQueue<Runnable>();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				maxConnections, maxConnections, 60, TimeUnit.SECONDS, queue,
+				new ThreadFactory() {
+					private final AtomicInteger cnt = new AtomicInteger();
+
+					public Thread newThread(final Runnable r) {
+						return new Thread(processors, r, "Git-Daemon-Client-"
+								+ cnt.incrementAndGet());
+					}
+				});
+		workers = pool;
 
 		run = true;
 		acceptThread = new Thread(processors, "Git-Daemon-Accept") {
 			public void run() {
 				while (isRunning()) {
+					final Socket s;
 					try {
-						startClient(listenSock.accept());
-					} catch (InterruptedIOException e) {
-						// Test again to see if we should keep accepting.
+						s = sock.accept();
 					} catch (IOException e) {
+						// stop() closes the socket to end the loop.
 						break;
 					}
+					startClient(pool, s);
 				}
 
 				try {
-					listenSock.close();
+					sock.close();
 				} catch (IOException err) {
 					//
 				} finally {
@@ -262,43 +430,82 @@ public synchronized boolean isRunning() {
 		return run;
 	}
 
-	/** Stop this daemon. */
+	/**
+	 * Stop this daemon.
+	 * <p>
+	 * No further connections are accepted. Clients already accepted, whether
+	 * active or still waiting for a worker, are served to completion by the
+	 * worker threads, which then exit.
+	 *
+	 * @see #awaitTermination(long)
+	 */
 	public synchronized void stop() {
 		if (acceptThread != null) {
 			run = false;
-			acceptThread.interrupt();
+			try {
+				listenSock.close();
+			} catch (IOException err) {
+				// The accept thread stops either way.
+			}
+			workers.shutdown();
 		}
 	}
 
-	private void startClient(final Socket s) {
+	/**
+	 * Wait for the clients of a stopped daemon to be served.
+	 *
+	 * @param millis
+	 *            maximum time to wait, in milliseconds.
+	 * @return true if all worker threads finished; false if the time elapsed
+	 *         first, or the daemon was never started.
+	 * @throws InterruptedException
+	 *             the calling thread was interrupted while waiting.
+	 */
+	public boolean awaitTermination(final long millis)
+			throws InterruptedException {
+		final ThreadPoolExecutor pool;
+		synchronized (this) {
+			pool = workers;
+		}
+		return pool != null
+				&& pool.awaitTermination(millis, TimeUnit.MILLISECONDS);
+	}
+
+	private void startClient(final ThreadPoolExecutor pool, final Socket s) {
 		final DaemonClient dc = new DaemonClient(this);
 
 		final SocketAddress peer = s.getRemoteSocketAddress();
 		if (peer instanceof InetSocketAddress)
 			dc.setRemoteAddress(((InetSocketAddress) peer).getAddress());
 
-		new Thread(processors, "Git-Daemon-Client " + peer.toString()) {
-			public void run() {
-				try {
-					dc.execute(new BufferedInputStream(s.getInputStream()),
-							new BufferedOutputStream(s.getOutputStream()));
-				} catch (IOException e) {
-					// Ignore unexpected IO exceptions from clients
-					e.printStackTrace();
-				} finally {
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					activeConnections.incrementAndGet();
 					try {
-						s.getInputStream().close();
+						dc.execute(s);
 					} catch (IOException e) {
-						// Ignore close exceptions
-					}
-					try {
-						s.getOutputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
+						// Clients may time out or hang up at any time.
+						// Count it, and move on to the next one.
+						failedConnections.incrementAndGet();
+					} finally {
+						activeConnections.decrementAndGet();
+						close(s);
 					}
 				}
-			}
-		}.start();
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedConnections.incrementAndGet();
+			close(s);
+		}
+	}
+
+	private static void close(final Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
 	}
 
 	synchronized DaemonService matchService(final String cmd) {
@@ -309,6 +516,14 @@ synchronized DaemonService matchService(final String cmd) {
 		return null;
 	}
 
+	/**
+	 * Locate an exported repository.
+	 *
+	 * @param name
+	 *            path requested by the client.
+	 * @return the repository, which the caller must close; null if there is
+	 *         no such repository or it is not exported.
+	 */
 	Repository openRepository(String name) {
 		// Assume any attempt to use \ was by a Windows client
 		// and correct to the more typical / used in Git URIs.
@@ -335,12 +550,12 @@ Repository openRepository(String name) {
 		Repository db;
 		synchronized (exports) {
 			db = exports.get(name);
-			if (db != null)
-				return db;
-
-			db = exports.get(name + ".git");
-			if (db != null)
+			if (db == null)
+				db = exports.get(name + ".git");
+			if (db != null) {
+				db.incrementOpen();
 				return db;
+			}
 		}
 
 		final File[] search;
@@ -366,7 +581,7 @@ Repository openRepository(String name) {
 	private Repository openRepository(final File d) {
 		if (d.isDirectory() && canExport(d)) {
 			try {
-				return new Repository(d);
+				return RepositoryCache.getInstance().open(d);
 			} catch (IOException err) {
 				// Ignore
 			}
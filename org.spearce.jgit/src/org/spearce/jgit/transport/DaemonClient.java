@@ -37,10 +37,14 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /** Active network client of {@link Daemon}. */
 public class DaemonClient {
@@ -80,12 +84,22 @@ public OutputStream getOutputStream() {
 		return rawOut;
 	}
 
-	void execute(final InputStream in, final OutputStream out)
-			throws IOException {
-		rawIn = in;
-		rawOut = out;
-
-		String cmd = new PacketLineIn(rawIn).readStringNoLF();
+	void execute(final Socket sock) throws IOException {
+		rawIn = new BufferedInputStream(sock.getInputStream());
+		rawOut = new BufferedOutputStream(sock.getOutputStream());
+
+		// A client which does not name its service promptly only
+		// ties up a worker, so it gets a shorter deadline than one
+		// in the middle of a transfer.
+		//
+		sock.setSoTimeout(daemon.getInitTimeout() * 1000);
+		String cmd;
+		try {
+			cmd = new PacketLineIn(rawIn).readStringNoLF();
+		} catch (SocketTimeoutException e) {
+			return;
+		}
+		sock.setSoTimeout(daemon.getTimeout() * 1000);
 		if (cmd == null || cmd.length() == 0)
 			return;
 
@@ -102,5 +116,6 @@ void execute(final InputStream in, final OutputStream out)
 		if (srv == null)
 			return;
 		srv.execute(this, cmd);
+		rawOut.flush();
 	}
 }
@@ -38,6 +38,8 @@
 package org.spearce.jgit.transport;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.spearce.jgit.lib.Repository;
 
@@ -51,6 +53,12 @@ public abstract class DaemonService {
 
 	private boolean overridable;
 
+	private volatile int maxConnections;
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicLong rejected = new AtomicLong();
+
 	DaemonService(final String cmdName, final String cfgName) {
 		command = cmdName.startsWith("git-") ? cmdName : "git-" + cmdName;
 		config = cfgName;
@@ -84,6 +92,37 @@ public void setOverridable(final boolean on) {
 		overridable = on;
 	}
 
+	/** @return number of clients served at once; 0 if unlimited. */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Limit the number of clients this service handles at the same time.
+	 * <p>
+	 * Clients arriving over the limit are sent an error message asking them
+	 * to try again later, freeing the daemon's worker for other services.
+	 *
+	 * @param max
+	 *            number of clients served at once; 0 for no limit.
+	 */
+	public void setMaxConnections(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid connection limit "
+					+ max);
+		maxConnections = max;
+	}
+
+	/** @return number of clients this service is currently serving. */
+	public int getActiveConnections() {
+		return active.get();
+	}
+
+	/** @return number of clients refused because the service was busy. */
+	public long getRejectedConnections() {
+		return rejected.get();
+	}
+
 	/** @return name of the command requested by clients. */
 	public String getCommandName() {
 		return command;
@@ -108,11 +147,46 @@ void execute(final DaemonClient client, final String commandLine)
 		final Repository db = client.getDaemon().openRepository(name);
 		if (db == null)
 			return;
+		try {
+			serve(client, db);
+		} finally {
+			db.close();
+		}
+	}
+
+	private void serve(final DaemonClient client, final Repository db)
+			throws IOException {
 		boolean on = isEnabled();
 		if (isOverridable())
 			on = db.getConfig().getBoolean("daemon", config, on);
-		if (on)
+		if (!on)
+			return;
+
+		if (!acquire()) {
+			rejected.incrementAndGet();
+			final PacketLineOut pckOut = new PacketLineOut(client
+					.getOutputStream());
+			pckOut.writeString("ERR " + command
+					+ ": too many connections, try again later\n");
+			pckOut.flush();
+			return;
+		}
+		try {
 			execute(client, db);
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private boolean acquire() {
+		for (;;) {
+			final int max = maxConnections;
+			final int cur = active.get();
+			if (max > 0 && cur >= max)
+				return false;
+			if (active.compareAndSet(cur, cur + 1))
+				return true;
+		}
 	}
 
 	abstract void execute(DaemonClient client, Repository db)
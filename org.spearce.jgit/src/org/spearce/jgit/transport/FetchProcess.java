@@ -48,12 +48,14 @@
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.NotSupportedException;
 import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.BatchRefUpdate;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.LockFile;
 import org.spearce.jgit.lib.ObjectId;
@@ -153,17 +155,27 @@ else if (tagopt == TagOpt.FETCH_TAGS)
 		}
 
 		final RevWalk walk = new RevWalk(transport.local);
+		final BatchRefUpdate batch = transport.local.newBatchUpdate();
+		final List<TrackingRefUpdate> deletes = new ArrayList<TrackingRefUpdate>();
 		if (transport.isRemoveDeletedRefs())
-			deleteStaleTrackingRefs(result, walk);
+			deleteStaleTrackingRefs(result, batch, deletes);
 		for (TrackingRefUpdate u : localUpdates) {
 			try {
-				u.update(walk);
-				result.add(u);
-			} catch (IOException err) {
+				batch.addCommand(u.asRefUpdate());
+			} catch (IllegalArgumentException err) {
 				throw new TransportException("Failure updating tracking ref "
 						+ u.getLocalName() + ": " + err.getMessage(), err);
 			}
+			result.add(u);
+		}
+		try {
+			batch.execute(walk);
+		} catch (IOException err) {
+			throw new TransportException("Failure updating tracking refs: "
+					+ err.getMessage(), err);
 		}
+		for (final TrackingRefUpdate u : deletes)
+			checkDeleted(u);
 
 		if (!fetchHeadUpdates.isEmpty()) {
 			try {
@@ -370,15 +382,18 @@ private TrackingRefUpdate createUpdate(final RefSpec spec,
 	}
 
 	private void deleteStaleTrackingRefs(final FetchResult result,
-			final RevWalk walk) throws TransportException {
+			final BatchRefUpdate batch, final List<TrackingRefUpdate> deletes)
+			throws TransportException {
 		final Repository db = transport.local;
+		final Set<String> scheduled = new HashSet<String>();
 		for (final Ref ref : db.getAllRefs().values()) {
 			final String refname = ref.getName();
 			for (final RefSpec spec : toFetch) {
 				if (spec.matchDestination(refname)) {
 					final RefSpec s = spec.expandFromDestination(refname);
-					if (result.getAdvertisedRef(s.getSource()) == null) {
-						deleteTrackingRef(result, db, walk, s, ref);
+					if (result.getAdvertisedRef(s.getSource()) == null
+							&& scheduled.add(refname)) {
+						deleteTrackingRef(result, db, batch, deletes, s, ref);
 					}
 				}
 			}
@@ -386,7 +401,8 @@ private void deleteStaleTrackingRefs(final FetchResult result,
 	}
 
 	private void deleteTrackingRef(final FetchResult result,
-			final Repository db, final RevWalk walk, final RefSpec spec,
+			final Repository db, final BatchRefUpdate batch,
+			final List<TrackingRefUpdate> deletes, final RefSpec spec,
 			final Ref localRef) throws TransportException {
 		final String name = localRef.getName();
 		try {
@@ -396,24 +412,29 @@ private void deleteTrackingRef(final FetchResult result,
 			if (transport.isDryRun()){
 				return;
 			}
-			u.delete(walk);
-			switch (u.getResult()) {
-			case NEW:
-			case NO_CHANGE:
-			case FAST_FORWARD:
-			case FORCED:
-				break;
-			default:
-				throw new TransportException(transport.getURI(),
-						"Cannot delete stale tracking ref " + name + ": "
-								+ u.getResult().name());
-			}
+			batch.addCommand(u.asRefUpdate());
+			deletes.add(u);
 		} catch (IOException e) {
 			throw new TransportException(transport.getURI(),
 					"Cannot delete stale tracking ref " + name, e);
 		}
 	}
 
+	private void checkDeleted(final TrackingRefUpdate u)
+			throws TransportException {
+		switch (u.getResult()) {
+		case NEW:
+		case NO_CHANGE:
+		case FAST_FORWARD:
+		case FORCED:
+			break;
+		default:
+			throw new TransportException(transport.getURI(),
+					"Cannot delete stale tracking ref " + u.getLocalName()
+							+ ": " + u.getResult().name());
+		}
+	}
+
 	private static boolean isTag(final Ref r) {
 		return isTag(r.getName());
 	}
@@ -43,12 +43,18 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -90,6 +96,12 @@ public class IndexPack {
 	 */
 	public static final int BUFFER_SIZE = 8192;
 
+	/** Default bytes of delta bases kept while resolving deltas: 32 MiB. */
+	public static final int DEFAULT_DELTA_BASE_CACHE_LIMIT = 32 * 1024 * 1024;
+
+	/** Fewer delta trees than this per thread are resolved in one thread. */
+	private static final int MIN_TREES_PER_THREAD = 16;
+
 	/**
 	 * Create an index pack instance to load a new pack into a repository.
 	 * <p>
@@ -118,6 +130,9 @@ public static IndexPack create(final Repository db, final InputStream is)
 		base = new File(objdir, n.substring(0, n.length() - suffix.length()));
 		final IndexPack ip = new IndexPack(db, is, base);
 		ip.setIndexVersion(db.getConfig().getCore().getPackIndexVersion());
+		ip.setThreads(db.getConfig().getCore().getPackThreads());
+		ip.setDeltaBaseCacheLimit(db.getConfig().getCore()
+				.getDeltaBaseCacheLimit());
 		return ip;
 	}
 
@@ -141,6 +156,12 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private ObjectChecker objCheck;
 
+	private int threads;
+
+	private long deltaBaseCacheLimit = DEFAULT_DELTA_BASE_CACHE_LIMIT;
+
+	private BaseCache baseCache;
+
 	private boolean fixThin;
 
 	private boolean keepEmpty;
@@ -226,6 +247,52 @@ public void setIndexVersion(final int version) {
 		outputVersion = version;
 	}
 
+	/**
+	 * Set the number of threads resolving deltas.
+	 * <p>
+	 * Each whole object and the deltas based on it form an independent tree,
+	 * so trees are resolved in parallel. The resulting index is the same for
+	 * any number of threads. Packs with only a few trees are always resolved
+	 * in the calling thread.
+	 *
+	 * @param threads
+	 *            number of threads; 0 for one per available processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Set the memory available to delta bases while resolving deltas.
+	 * <p>
+	 * A base with several deltas is kept in memory until its last delta has
+	 * been resolved, unless the limit is reached. Bases evicted to stay
+	 * under the limit are inflated again from the pack when needed. The
+	 * limit is shared by all threads.
+	 *
+	 * @param limit
+	 *            maximum number of bytes of cached bases.
+	 */
+	public void setDeltaBaseCacheLimit(final long limit) {
+		deltaBaseCacheLimit = limit;
+	}
+
+	/**
+	 * @return number of times a delta base was found in the cache during the
+	 *         last {@link #index(ProgressMonitor)}.
+	 */
+	public long getDeltaBaseCacheHits() {
+		return baseCache != null ? baseCache.hits : 0;
+	}
+
+	/**
+	 * @return number of times a delta base had to be inflated again during
+	 *         the last {@link #index(ProgressMonitor)}.
+	 */
+	public long getDeltaBaseCacheMisses() {
+		return baseCache != null ? baseCache.misses : 0;
+	}
+
 	/**
 	 * Configure this index pack instance to make a thin pack complete.
 	 * <p>
@@ -318,7 +385,9 @@ public void index(final ProgressMonitor progress) throws IOException {
 				if (deltaCount > 0) {
 					if (packOut == null)
 						throw new IOException("need packOut");
-					resolveDeltas(progress);
+					progress.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
+					baseCache = new BaseCache(deltaBaseCacheLimit);
+					resolveDeltas(0, entryCount, progress);
 					if (entryCount < objectCount) {
 						if (!fixThin) {
 							throw new IOException("pack has "
@@ -327,6 +396,7 @@ public void index(final ProgressMonitor progress) throws IOException {
 						}
 						fixThinPack(progress);
 					}
+					progress.endTask();
 				}
 				if (packOut != null && (keepEmpty || entryCount > 0))
 					packOut.getChannel().force(true);
@@ -366,113 +436,133 @@ public void index(final ProgressMonitor progress) throws IOException {
 		}
 	}
 
-	private void resolveDeltas(final ProgressMonitor progress)
-			throws IOException {
-		progress.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
-		final int last = entryCount;
-		for (int i = 0; i < last; i++) {
-			final int before = entryCount;
-			resolveDeltas(entries[i]);
-			progress.update(entryCount - before);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+	/**
+	 * Resolve the deltas based on a range of whole objects.
+	 * <p>
+	 * Every whole object is the root of an independent tree of deltas, so
+	 * the trees are handed out one at a time to as many threads as are
+	 * configured. Each thread reads the pack through its own buffer and
+	 * positional reads, and uses its own inflater, digest and CRC. Only the
+	 * lookup of children, the entry table and the object checker are
+	 * shared.
+	 *
+	 * @param first
+	 *            index of the first whole object in {@link #entries}.
+	 * @param last
+	 *            index one past the last whole object.
+	 * @param progress
+	 *            monitor updated as each tree completes.
+	 * @throws IOException
+	 *             a delta could not be resolved, or resolution was cancelled.
+	 */
+	private void resolveDeltas(final int first, final int last,
+			final ProgressMonitor progress) throws IOException {
+		final ResolveState state = new ResolveState(first, last, progress);
+		int n = threads;
+		if (n <= 0)
+			n = Runtime.getRuntime().availableProcessors();
+		n = Math.min(n, (last - first) / MIN_TREES_PER_THREAD);
+		if (n <= 1) {
+			final DeltaResolver r = new DeltaResolver();
+			try {
+				r.resolveAll(state);
+			} finally {
+				r.release();
+			}
+			return;
 		}
-		progress.endTask();
-	}
 
-	private void resolveDeltas(final PackedObjectInfo oe) throws IOException {
-		final int oldCRC = oe.getCRC();
-		if (baseById.containsKey(oe)
-				|| baseByPos.containsKey(new Long(oe.getOffset())))
-			resolveDeltas(oe.getOffset(), oldCRC, Constants.OBJ_BAD, null, oe);
-	}
-
-	private void resolveDeltas(final long pos, final int oldCRC, int type,
-			byte[] data, PackedObjectInfo oe) throws IOException {
-		crc.reset();
-		position(pos);
-		int c = readFromFile();
-		final int typeCode = (c >> 4) & 7;
-		long sz = c & 15;
-		int shift = 4;
-		while ((c & 0x80) != 0) {
-			c = readFromFile();
-			sz += (c & 0x7f) << shift;
-			shift += 7;
+		final Thread[] workers = new Thread[n];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread("IndexPack-ResolveDeltas-" + i) {
+				public void run() {
+					final DeltaResolver r = new DeltaResolver();
+					try {
+						r.resolveAll(state);
+					} catch (Throwable err) {
+						state.fail(err);
+					} finally {
+						r.release();
+					}
+				}
+			};
+			workers[i].setDaemon(true);
 		}
+		for (final Thread w : workers)
+			w.start();
 
-		switch (typeCode) {
-		case Constants.OBJ_COMMIT:
-		case Constants.OBJ_TREE:
-		case Constants.OBJ_BLOB:
-		case Constants.OBJ_TAG:
-			type = typeCode;
-			data = inflateFromFile((int) sz);
-			break;
-		case Constants.OBJ_OFS_DELTA: {
-			c = readFromFile() & 0xff;
-			while ((c & 128) != 0)
-				c = readFromFile() & 0xff;
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
+		boolean interrupted = false;
+		for (final Thread w : workers) {
+			for (;;) {
+				try {
+					w.join();
+					break;
+				} catch (InterruptedException ie) {
+					interrupted = true;
+					state.stopped = true;
+				}
+			}
 		}
-		case Constants.OBJ_REF_DELTA: {
-			crc.update(buf, fillFromFile(20), 20);
-			use(20);
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Delta resolution interrupted");
 		}
-		default:
-			throw new IOException("Unknown object type " + typeCode + ".");
+		final Throwable failure = state.failure;
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null) {
+			final IOException e = new IOException("Delta resolution failed");
+			e.initCause(failure);
+			throw e;
 		}
+	}
 
-		final int crc32 = (int) crc.getValue();
-		if (oldCRC != crc32)
-			throw new IOException("Corruption detected re-reading at " + pos);
-		if (oe == null) {
-			objectDigest.update(Constants.encodedTypeString(type));
-			objectDigest.update((byte) ' ');
-			objectDigest.update(Constants.encodeASCII(data.length));
-			objectDigest.update((byte) 0);
-			objectDigest.update(data);
-			tempObjectId.fromRaw(objectDigest.digest(), 0);
+	private synchronized void addEntry(final PackedObjectInfo oe) {
+		entries[entryCount++] = oe;
+	}
 
-			verifySafeObject(tempObjectId, type, data);
-			oe = new PackedObjectInfo(pos, crc32, tempObjectId);
-			entries[entryCount++] = oe;
+	/**
+	 * Remove the deltas waiting on a base.
+	 *
+	 * @param oe
+	 *            the base object.
+	 * @return deltas referencing the base by id or by offset, in pack order;
+	 *         null if there are none.
+	 */
+	private List<UnresolvedDelta> takeChildren(final PackedObjectInfo oe) {
+		final ArrayList<UnresolvedDelta> a;
+		final ArrayList<UnresolvedDelta> b;
+		synchronized (this) {
+			a = baseById.remove(oe);
+			b = baseByPos.remove(new Long(oe.getOffset()));
 		}
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
 
-		resolveChildDeltas(pos, type, data, oe);
-	}
-
-	private void resolveChildDeltas(final long pos, int type, byte[] data,
-			PackedObjectInfo oe) throws IOException {
-		final ArrayList<UnresolvedDelta> a = baseById.remove(oe);
-		final ArrayList<UnresolvedDelta> b = baseByPos.remove(new Long(pos));
+		final ArrayList<UnresolvedDelta> r;
+		r = new ArrayList<UnresolvedDelta>(a.size() + b.size());
 		int ai = 0, bi = 0;
-		if (a != null && b != null) {
-			while (ai < a.size() && bi < b.size()) {
-				final UnresolvedDelta ad = a.get(ai);
-				final UnresolvedDelta bd = b.get(bi);
-				if (ad.position < bd.position) {
-					resolveDeltas(ad.position, ad.crc, type, data, null);
-					ai++;
-				} else {
-					resolveDeltas(bd.position, bd.crc, type, data, null);
-					bi++;
-				}
+		while (ai < a.size() && bi < b.size()) {
+			final UnresolvedDelta ad = a.get(ai);
+			final UnresolvedDelta bd = b.get(bi);
+			if (ad.position < bd.position) {
+				r.add(ad);
+				ai++;
+			} else {
+				r.add(bd);
+				bi++;
 			}
 		}
-		if (a != null)
-			while (ai < a.size()) {
-				final UnresolvedDelta ad = a.get(ai++);
-				resolveDeltas(ad.position, ad.crc, type, data, null);
-			}
-		if (b != null)
-			while (bi < b.size()) {
-				final UnresolvedDelta bd = b.get(bi++);
-				resolveDeltas(bd.position, bd.crc, type, data, null);
-			}
+		r.addAll(a.subList(ai, a.size()));
+		r.addAll(b.subList(bi, b.size()));
+		return r;
 	}
 
 	private void fixThinPack(final ProgressMonitor progress) throws IOException {
@@ -482,27 +572,27 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 		originalEOF = packOut.length() - 20;
 		final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
 		long end = originalEOF;
+		final int first = entryCount;
 		for (final ObjectId baseId : new ArrayList<ObjectId>(baseById.keySet())) {
 			final ObjectLoader ldr = repo.openObject(readCurs, baseId);
 			if (ldr == null)
 				continue;
 			final byte[] data = ldr.getBytes();
 			final int typeCode = ldr.getType();
-			final PackedObjectInfo oe;
 
 			crc.reset();
 			packOut.seek(end);
 			writeWhole(def, typeCode, data);
-			oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
-			entries[entryCount++] = oe;
+			addEntry(new PackedObjectInfo(end, (int) crc.getValue(), baseId));
 			end = packOut.getFilePointer();
-
-			resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
 		}
 		def.end();
 
+		// The appended bases are whole objects in the pack now, so their
+		// deltas resolve exactly like those of any other whole object.
+		//
+		resolveDeltas(first, entryCount, progress);
+
 		if (!baseById.isEmpty()) {
 			final ObjectId need = baseById.keySet().iterator().next();
 			throw new MissingObjectException(need, "delta base");
@@ -720,16 +810,22 @@ private void whole(final int type, final long pos, final long sz)
 		objectDigest.update(data);
 		tempObjectId.fromRaw(objectDigest.digest(), 0);
 
-		verifySafeObject(tempObjectId, type, data);
+		verifySafeObject(readCurs, tempObjectId, type, data);
 		final int crc32 = (int) crc.getValue();
 		entries[entryCount++] = new PackedObjectInfo(pos, crc32, tempObjectId);
 	}
 
-	private void verifySafeObject(final AnyObjectId id, final int type,
-			final byte[] data) throws IOException {
+	private void verifySafeObject(final WindowCursor curs,
+			final AnyObjectId id, final int type, final byte[] data)
+			throws IOException {
 		if (objCheck != null) {
 			try {
-				objCheck.check(type, data);
+				// Checkers keep scratch state, so resolving threads
+				// must take turns.
+				//
+				synchronized (objCheck) {
+					objCheck.check(type, data);
+				}
 			} catch (CorruptObjectException e) {
 				throw new IOException("Invalid "
 						+ Constants.encodedTypeString(type) + " " + id.name()
@@ -737,7 +833,7 @@ private void verifySafeObject(final AnyObjectId id, final int type,
 			}
 		}
 
-		final ObjectLoader ldr = repo.openObject(readCurs, id);
+		final ObjectLoader ldr = repo.openObject(curs, id);
 		if (ldr != null) {
 			final byte[] existingData = ldr.getCachedBytes();
 			if (ldr.getType() != type || !Arrays.equals(data, existingData)) {
@@ -751,13 +847,6 @@ private long position() {
 		return bBase + bOffset;
 	}
 
-	private void position(final long pos) throws IOException {
-		packOut.seek(pos);
-		bBase = pos;
-		bOffset = 0;
-		bAvail = 0;
-	}
-
 	// Consume exactly one byte from the buffer and return it.
 	private int readFromInput() throws IOException {
 		if (bAvail == 0)
@@ -768,16 +857,6 @@ private int readFromInput() throws IOException {
 		return b;
 	}
 
-	// Consume exactly one byte from the buffer and return it.
-	private int readFromFile() throws IOException {
-		if (bAvail == 0)
-			fillFromFile(1);
-		bAvail--;
-		final int b = buf[bOffset++] & 0xff;
-		crc.update(b);
-		return b;
-	}
-
 	// Consume cnt bytes from the buffer.
 	private void use(final int cnt) {
 		bOffset += cnt;
@@ -904,33 +983,398 @@ private byte[] inflateFromInput(final long sz) throws IOException {
 		}
 	}
 
-	private byte[] inflateFromFile(final int sz) throws IOException {
-		final Inflater inf = inflater;
-		try {
-			final byte[] dst = new byte[sz];
-			int n = 0;
-			int p = -1;
-			while (!inf.finished()) {
-				if (inf.needsInput()) {
-					if (p >= 0) {
-						crc.update(buf, p, bAvail);
-						use(bAvail);
+	/** Progress of one {@link #resolveDeltas(int, int, ProgressMonitor)}. */
+	private static class ResolveState {
+		final AtomicInteger next;
+
+		final int last;
+
+		private final ProgressMonitor progress;
+
+		volatile boolean stopped;
+
+		Throwable failure;
+
+		ResolveState(final int first, final int last,
+				final ProgressMonitor progress) {
+			this.next = new AtomicInteger(first);
+			this.last = last;
+			this.progress = progress;
+		}
+
+		void update(final int resolved) throws IOException {
+			synchronized (progress) {
+				progress.update(resolved);
+				if (progress.isCancelled()) {
+					stopped = true;
+					throw new IOException("Download cancelled during indexing");
+				}
+			}
+		}
+
+		synchronized void fail(final Throwable err) {
+			if (failure == null)
+				failure = err;
+			stopped = true;
+		}
+	}
+
+	/** A resolved object whose own deltas are still being resolved. */
+	private static class DeltaBase {
+		final DeltaBase parent;
+
+		final long position;
+
+		final List<UnresolvedDelta> children;
+
+		int next;
+
+		/** All children were taken; the base is no longer cached. */
+		boolean done;
+
+		DeltaBase(final DeltaBase parent, final long position,
+				final List<UnresolvedDelta> children) {
+			this.parent = parent;
+			this.position = position;
+			this.children = children;
+		}
+	}
+
+	/** Delta bases waiting for more children, bounded by total size. */
+	private static class BaseCache {
+		private final LinkedHashMap<Long, byte[]> map;
+
+		private final long limit;
+
+		private long used;
+
+		long hits;
+
+		long misses;
+
+		BaseCache(final long limit) {
+			this.map = new LinkedHashMap<Long, byte[]>(64, 0.75f, true);
+			this.limit = limit;
+		}
+
+		synchronized byte[] get(final long pos) {
+			final byte[] data = map.get(new Long(pos));
+			if (data != null)
+				hits++;
+			else
+				misses++;
+			return data;
+		}
+
+		synchronized byte[] peek(final long pos) {
+			return map.get(new Long(pos));
+		}
+
+		synchronized void put(final long pos, final byte[] data) {
+			if (data.length > limit)
+				return;
+			final byte[] old = map.put(new Long(pos), data);
+			if (old != null)
+				used -= old.length;
+			used += data.length;
+
+			final Iterator<byte[]> i = map.values().iterator();
+			while (used > limit) {
+				used -= i.next().length;
+				i.remove();
+			}
+		}
+
+		synchronized void remove(final long pos) {
+			final byte[] old = map.remove(new Long(pos));
+			if (old != null)
+				used -= old.length;
+		}
+	}
+
+	/** Resolves trees of deltas; each instance is used by a single thread. */
+	private class DeltaResolver {
+		private final FileChannel pack = packOut.getChannel();
+
+		private final byte[] rbuf = new byte[BUFFER_SIZE];
+
+		private final ByteBuffer rbb = ByteBuffer.wrap(rbuf);
+
+		private long rPos;
+
+		private int rOffset;
+
+		private int rAvail;
+
+		private final CRC32 rcrc = new CRC32();
+
+		private final MessageDigest digest = Constants.newMessageDigest();
+
+		private final MutableObjectId tempId = new MutableObjectId();
+
+		private Inflater inf = InflaterCache.get();
+
+		private WindowCursor curs = new WindowCursor();
+
+		private int rType;
+
+		private int resolved;
+
+		void release() {
+			try {
+				InflaterCache.release(inf);
+			} finally {
+				inf = null;
+			}
+			curs = WindowCursor.release(curs);
+		}
+
+		void resolveAll(final ResolveState state) throws IOException {
+			while (!state.stopped) {
+				final int i = state.next.getAndIncrement();
+				if (i >= state.last)
+					break;
+				resolved = 0;
+				resolveTree(entries[i]);
+				state.update(resolved);
+			}
+		}
+
+		/**
+		 * Resolve all deltas based on one whole object.
+		 * <p>
+		 * The tree is walked depth first with an explicit stack, so even a
+		 * very long chain cannot overflow the thread's stack. A base waiting
+		 * for more children is only held by {@link #baseCache}; if it was
+		 * evicted it is rebuilt from the nearest cached ancestor.
+		 *
+		 * @param root
+		 *            the whole object at the root of the tree.
+		 * @throws IOException
+		 *             the pack could not be read or an object is invalid.
+		 */
+		private void resolveTree(final PackedObjectInfo root)
+				throws IOException {
+			rcrc.reset();
+			byte[] data = readObject(root.getOffset());
+			checkCRC(root.getOffset(), root.getCRC());
+			final int type = rType;
+
+			List<UnresolvedDelta> children = takeChildren(root);
+			if (children == null)
+				return;
+
+			final ArrayList<DeltaBase> stack = new ArrayList<DeltaBase>();
+			stack.add(new DeltaBase(null, root.getOffset(), children));
+			while (!stack.isEmpty()) {
+				final DeltaBase b = stack.get(stack.size() - 1);
+				final UnresolvedDelta d = b.children.get(b.next++);
+				final boolean last = b.next == b.children.size();
+
+				// data is only non-null right after b was resolved, when
+				// its first child is taken. Later children find the base
+				// in the cache, or rebuild it.
+				//
+				byte[] base = data;
+				if (base == null) {
+					base = baseCache.get(b.position);
+					if (base == null) {
+						base = rebuild(b);
+						if (!last)
+							baseCache.put(b.position, base);
 					}
-					p = fillFromFile(1);
-					inf.setInput(buf, p, bAvail);
+				} else if (!last)
+					baseCache.put(b.position, base);
+				if (last) {
+					b.done = true;
+					stack.remove(stack.size() - 1);
+					baseCache.remove(b.position);
 				}
-				n += inf.inflate(dst, n, sz - n);
+
+				rcrc.reset();
+				data = BinaryDelta.apply(base, readObject(d.position));
+				checkCRC(d.position, d.crc);
+
+				digest.update(Constants.encodedTypeString(type));
+				digest.update((byte) ' ');
+				digest.update(Constants.encodeASCII(data.length));
+				digest.update((byte) 0);
+				digest.update(data);
+				tempId.fromRaw(digest.digest(), 0);
+
+				verifySafeObject(curs, tempId, type, data);
+				final PackedObjectInfo oe;
+				oe = new PackedObjectInfo(d.position, d.crc, tempId);
+				addEntry(oe);
+				resolved++;
+
+				children = takeChildren(oe);
+				if (children != null)
+					stack.add(new DeltaBase(b, d.position, children));
+				else
+					data = null;
 			}
-			n = bAvail - inf.getRemaining();
-			if (n > 0) {
-				crc.update(buf, p, n);
-				use(n);
+		}
+
+		/**
+		 * Recreate a base which was evicted from the cache.
+		 *
+		 * @param b
+		 *            the base to recreate.
+		 * @return content of the base.
+		 * @throws IOException
+		 *             the pack could not be read.
+		 */
+		private byte[] rebuild(final DeltaBase b) throws IOException {
+			final ArrayList<DeltaBase> path = new ArrayList<DeltaBase>();
+			DeltaBase p = b;
+			byte[] data;
+			for (;;) {
+				if (p.parent == null) {
+					data = readObject(p.position);
+					break;
+				}
+				path.add(p);
+				p = p.parent;
+				data = baseCache.peek(p.position);
+				if (data != null)
+					break;
+			}
+
+			for (int i = path.size() - 1; i >= 0; i--) {
+				final DeltaBase q = path.get(i);
+				data = BinaryDelta.apply(data, readObject(q.position));
+				if (q != b && !q.done)
+					baseCache.put(q.position, data);
+			}
+			return data;
+		}
+
+		private void checkCRC(final long pos, final int oldCRC)
+				throws IOException {
+			if (oldCRC != (int) rcrc.getValue())
+				throw new IOException("Corruption detected re-reading at "
+						+ pos);
+		}
+
+		/**
+		 * Read one object from the pack, setting {@link #rType}.
+		 *
+		 * @param pos
+		 *            offset of the object's header.
+		 * @return the inflated object, or the delta instructions if the
+		 *         object is a delta.
+		 * @throws IOException
+		 *             the pack could not be read.
+		 */
+		private byte[] readObject(final long pos) throws IOException {
+			position(pos);
+			int c = readFromFile();
+			final int typeCode = (c >> 4) & 7;
+			long sz = c & 15;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				c = readFromFile();
+				sz += (c & 0x7f) << shift;
+				shift += 7;
+			}
+
+			switch (typeCode) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				break;
+			case Constants.OBJ_OFS_DELTA: {
+				c = readFromFile() & 0xff;
+				while ((c & 128) != 0)
+					c = readFromFile() & 0xff;
+				break;
+			}
+			case Constants.OBJ_REF_DELTA: {
+				rcrc.update(rbuf, fillFromFile(20), 20);
+				use(20);
+				break;
+			}
+			default:
+				throw new IOException("Unknown object type " + typeCode + ".");
+			}
+			rType = typeCode;
+			return inflateFromFile((int) sz);
+		}
+
+		private void position(final long pos) {
+			rPos = pos;
+			rOffset = 0;
+			rAvail = 0;
+		}
+
+		// Consume exactly one byte from the buffer and return it.
+		private int readFromFile() throws IOException {
+			if (rAvail == 0)
+				fillFromFile(1);
+			rAvail--;
+			final int b = rbuf[rOffset++] & 0xff;
+			rcrc.update(b);
+			return b;
+		}
+
+		// Consume cnt bytes from the buffer.
+		private void use(final int cnt) {
+			rOffset += cnt;
+			rAvail -= cnt;
+		}
+
+		// Ensure at least need bytes are available in {@link #rbuf}.
+		private int fillFromFile(final int need) throws IOException {
+			if (rAvail < need) {
+				int next = rOffset + rAvail;
+				int free = rbuf.length - next;
+				if (free + rAvail < need) {
+					if (rAvail > 0)
+						System.arraycopy(rbuf, rOffset, rbuf, 0, rAvail);
+					rOffset = 0;
+					next = rAvail;
+					free = rbuf.length - next;
+				}
+				rbb.limit(next + free);
+				rbb.position(next);
+				next = pack.read(rbb, rPos);
+				if (next <= 0)
+					throw new EOFException("Packfile is truncated.");
+				rPos += next;
+				rAvail += next;
+			}
+			return rOffset;
+		}
+
+		private byte[] inflateFromFile(final int sz) throws IOException {
+			try {
+				final byte[] dst = new byte[sz];
+				int n = 0;
+				int p = -1;
+				while (!inf.finished()) {
+					if (inf.needsInput()) {
+						if (p >= 0) {
+							rcrc.update(rbuf, p, rAvail);
+							use(rAvail);
+						}
+						p = fillFromFile(1);
+						inf.setInput(rbuf, p, rAvail);
+					}
+					n += inf.inflate(dst, n, sz - n);
+				}
+				n = rAvail - inf.getRemaining();
+				if (n > 0) {
+					rcrc.update(rbuf, p, n);
+					use(n);
+				}
+				return dst;
+			} catch (DataFormatException dfe) {
+				throw corrupt(dfe);
+			} finally {
+				inf.reset();
 			}
-			return dst;
-		} catch (DataFormatException dfe) {
-			throw corrupt(dfe);
-		} finally {
-			inf.reset();
 		}
 	}
 
@@ -54,6 +54,7 @@
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.PackProtocolException;
+import org.spearce.jgit.lib.BatchRefUpdate;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
@@ -663,41 +664,67 @@ private void validateCommands() {
 
 	private void executeCommands() {
 		preReceive.onPreReceive(this, filterCommands(Result.NOT_ATTEMPTED));
-		for (final ReceiveCommand cmd : filterCommands(Result.NOT_ATTEMPTED))
-			execute(cmd);
-	}
 
-	private void execute(final ReceiveCommand cmd) {
+		final List<ReceiveCommand> toApply = filterCommands(Result.NOT_ATTEMPTED);
+		final List<ReceiveCommand> batched = new ArrayList<ReceiveCommand>(
+				toApply.size());
+		final List<RefUpdate> updates = new ArrayList<RefUpdate>(toApply.size());
+		final BatchRefUpdate batch = db.newBatchUpdate();
+		for (final ReceiveCommand cmd : toApply) {
+			try {
+				final RefUpdate ru = newUpdate(cmd);
+				batch.addCommand(ru);
+				batched.add(cmd);
+				updates.add(ru);
+			} catch (IllegalArgumentException err) {
+				cmd.setResult(Result.REJECTED_OTHER_REASON, err.getMessage());
+			} catch (IOException err) {
+				cmd.setResult(Result.REJECTED_OTHER_REASON, "lock error: "
+						+ err.getMessage());
+			}
+		}
+
+		String error = null;
 		try {
-			final RefUpdate ru = db.updateRef(cmd.getRefName());
-			ru.setRefLogIdent(getRefLogIdent());
-			switch (cmd.getType()) {
-			case DELETE:
-				if (!ObjectId.zeroId().equals(cmd.getOldId())) {
-					// We can only do a CAS style delete if the client
-					// didn't bork its delete request by sending the
-					// wrong zero id rather than the advertised one.
-					//
-					ru.setExpectedOldObjectId(cmd.getOldId());
-				}
-				ru.setForceUpdate(true);
-				status(cmd, ru.delete(walk));
-				break;
+			batch.execute(walk);
+		} catch (IOException err) {
+			error = "lock error: " + err.getMessage();
+		}
+		for (int i = 0; i < batched.size(); i++) {
+			final RefUpdate.Result r = updates.get(i).getResult();
+			if (error != null && (r == RefUpdate.Result.IO_FAILURE
+					|| r == RefUpdate.Result.NOT_ATTEMPTED))
+				batched.get(i).setResult(Result.REJECTED_OTHER_REASON, error);
+			else
+				status(batched.get(i), r);
+		}
+	}
 
-			case CREATE:
-			case UPDATE:
-			case UPDATE_NONFASTFORWARD:
-				ru.setForceUpdate(isAllowNonFastForwards());
+	private RefUpdate newUpdate(final ReceiveCommand cmd) throws IOException {
+		final RefUpdate ru = db.updateRef(cmd.getRefName());
+		ru.setRefLogIdent(getRefLogIdent());
+		switch (cmd.getType()) {
+		case DELETE:
+			if (!ObjectId.zeroId().equals(cmd.getOldId())) {
+				// We can only do a CAS style delete if the client
+				// didn't bork its delete request by sending the
+				// wrong zero id rather than the advertised one.
+				//
 				ru.setExpectedOldObjectId(cmd.getOldId());
-				ru.setNewObjectId(cmd.getNewId());
-				ru.setRefLogMessage("push", true);
-				status(cmd, ru.update(walk));
-				break;
 			}
-		} catch (IOException err) {
-			cmd.setResult(Result.REJECTED_OTHER_REASON, "lock error: "
-					+ err.getMessage());
+			ru.setForceUpdate(true);
+			break;
+
+		case CREATE:
+		case UPDATE:
+		case UPDATE_NONFASTFORWARD:
+			ru.setForceUpdate(isAllowNonFastForwards());
+			ru.setExpectedOldObjectId(cmd.getOldId());
+			ru.setNewObjectId(cmd.getNewId());
+			ru.setRefLogMessage("push", true);
+			break;
 		}
+		return ru;
 	}
 
 	private void status(final ReceiveCommand cmd, final RefUpdate.Result result) {
@@ -726,6 +753,10 @@ private void status(final ReceiveCommand cmd, final RefUpdate.Result result) {
 			cmd.setResult(Result.REJECTED_CURRENT_BRANCH);
 			break;
 
+		case ABORTED:
+			cmd.setResult(Result.REJECTED_OTHER_REASON, "transaction aborted");
+			break;
+
 		default:
 			cmd.setResult(Result.REJECTED_OTHER_REASON, result.name());
 			break;
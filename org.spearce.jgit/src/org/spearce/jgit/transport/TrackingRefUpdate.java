@@ -124,6 +124,11 @@ public Result getResult() {
 		return update.getResult();
 	}
 
+	/** @return the command, to be executed as part of a batch. */
+	RefUpdate asRefUpdate() {
+		return update;
+	}
+
 	void update(final RevWalk walk) throws IOException {
 		update.update(walk);
 	}
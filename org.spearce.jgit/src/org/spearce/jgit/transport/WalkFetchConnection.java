@@ -54,6 +54,7 @@
 
 import org.spearce.jgit.errors.CompoundException;
 import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.ObjectWritingException;
 import org.spearce.jgit.errors.TransportException;
@@ -63,11 +64,14 @@
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.ObjectLoaderQueue;
 import org.spearce.jgit.lib.PackIndex;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.UnpackedObjectLoader;
+import org.spearce.jgit.lib.WindowCursor;
 import org.spearce.jgit.revwalk.DateRevQueue;
 import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevFlag;
@@ -75,6 +79,7 @@
 import org.spearce.jgit.revwalk.RevTag;
 import org.spearce.jgit.revwalk.RevTree;
 import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.CanonicalTreeParser;
 import org.spearce.jgit.treewalk.TreeWalk;
 
 /**
@@ -121,6 +126,8 @@ class WalkFetchConnection extends BaseFetchConnection {
 
 	private final TreeWalk treeWalk;
 
+	private final CanonicalTreeParser treeParser;
+
 	/** Objects whose direct dependents we know we have (or will have). */
 	private final RevFlag COMPLETE;
 
@@ -187,6 +194,7 @@ class WalkFetchConnection extends BaseFetchConnection {
 
 		revWalk = new RevWalk(local);
 		treeWalk = new TreeWalk(local);
+		treeParser = new CanonicalTreeParser();
 		COMPLETE = revWalk.newFlag("COMPLETE");
 		IN_WORK_QUEUE = revWalk.newFlag("IN_WORK_QUEUE");
 		LOCALLY_SEEN = revWalk.newFlag("LOCALLY_SEEN");
@@ -731,33 +739,68 @@ private void markTreeComplete(final RevTree tree) throws IOException {
 		if (tree.has(COMPLETE))
 			return;
 		tree.add(COMPLETE);
-		treeWalk.reset(tree);
-		while (treeWalk.next()) {
-			final FileMode mode = treeWalk.getFileMode(0);
+
+		// Read the trees one level at a time. Each level is opened as a
+		// batch, in the order the trees are stored in the local packs.
+		//
+		final WindowCursor curs = new WindowCursor();
+		try {
+			List<RevTree> level = new ArrayList<RevTree>();
+			level.add(tree);
+			while (!level.isEmpty()) {
+				final List<RevTree> next = new ArrayList<RevTree>();
+				final ObjectLoaderQueue<RevTree> q;
+				q = local.openObjects(curs, level);
+				while (q.next())
+					markTreeEntriesComplete(q, next);
+				level = next;
+			}
+		} finally {
+			curs.release();
+		}
+	}
+
+	private void markTreeEntriesComplete(final ObjectLoaderQueue<RevTree> q,
+			final List<RevTree> subtrees) throws IOException {
+		final RevTree tree = q.getCurrent();
+		final ObjectLoader ldr = q.open();
+		if (ldr == null)
+			throw new MissingObjectException(tree, Constants.TYPE_TREE);
+		final byte[] raw = ldr.getCachedBytes();
+		if (ldr.getType() != Constants.OBJ_TREE)
+			throw new IncorrectObjectTypeException(tree, Constants.TYPE_TREE);
+
+		treeParser.reset(raw);
+		for (; !treeParser.eof(); treeParser.next(1)) {
+			final FileMode mode = treeParser.getEntryFileMode();
 			final int sType = mode.getObjectType();
 
 			switch (sType) {
 			case Constants.OBJ_BLOB:
-				treeWalk.getObjectId(idBuffer, 0);
+				treeParser.getEntryObjectId(idBuffer);
 				revWalk.lookupAny(idBuffer, sType).add(COMPLETE);
 				continue;
 
 			case Constants.OBJ_TREE: {
-				treeWalk.getObjectId(idBuffer, 0);
+				treeParser.getEntryObjectId(idBuffer);
 				final RevObject o = revWalk.lookupAny(idBuffer, sType);
+				if (!(o instanceof RevTree))
+					throw new IncorrectObjectTypeException(o,
+							Constants.TYPE_TREE);
 				if (!o.has(COMPLETE)) {
 					o.add(COMPLETE);
-					treeWalk.enterSubtree();
+					subtrees.add((RevTree) o);
 				}
 				continue;
 			}
 			default:
 				if (FileMode.GITLINK.equals(mode))
 					continue;
-				treeWalk.getObjectId(idBuffer, 0);
+				treeParser.getEntryObjectId(idBuffer);
 				throw new CorruptObjectException("Invalid mode " + mode
 						+ " for " + idBuffer.name() + " "
-						+ treeWalk.getPathString() + " in " + tree.name() + ".");
+						+ treeParser.getEntryPathString() + " in "
+						+ tree.name() + ".");
 			}
 		}
 	}
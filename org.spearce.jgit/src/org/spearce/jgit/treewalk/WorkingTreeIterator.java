@@ -44,12 +44,21 @@
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetEncoder;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.spearce.jgit.dircache.DirCacheEntry;
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.util.FS;
 
 /**
  * Walks a working directory tree as part of a {@link TreeWalk}.
@@ -69,6 +78,9 @@ public abstract class WorkingTreeIterator extends AbstractTreeIterator {
 	/** Size we perform file IO in if we have to read and hash a file. */
 	private static final int BUFFER_SIZE = 2048;
 
+	/** Size of the buffer each thread of a {@link #hashPool} reads with. */
+	private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
 	/** The {@link #idBuffer()} for the current entry. */
 	private byte[] contentId;
 
@@ -81,6 +93,18 @@ public abstract class WorkingTreeIterator extends AbstractTreeIterator {
 	/** Digest computer for {@link #contentId} computations. */
 	private MessageDigest contentDigest;
 
+	/** Threads hashing files ahead of the walk; null to hash inline. */
+	private ExecutorService hashPool;
+
+	/** Number of entries, from the current one, hashed ahead of the walk. */
+	private int readAhead;
+
+	/** Pending hashes of {@link #entries}, by index; null if not submitted. */
+	private List<Future<byte[]>> hashed;
+
+	/** Entries below this index have been submitted to {@link #hashPool}. */
+	private int hashedEnd;
+
 	/** File name character encoder. */
 	private final CharsetEncoder nameEncoder;
 
@@ -128,6 +152,30 @@ protected WorkingTreeIterator(final String prefix) {
 	protected WorkingTreeIterator(final WorkingTreeIterator p) {
 		super(p);
 		nameEncoder = p.nameEncoder;
+		hashPool = p.hashPool;
+		readAhead = p.readAhead;
+	}
+
+	/**
+	 * Hash file content on a pool of threads, ahead of the walk.
+	 * <p>
+	 * Once the id of a file is needed, the next <code>depth</code> files of
+	 * the same directory are handed to the pool as well, so their content is
+	 * read and hashed while the walk is still busy with the current one. Ids
+	 * are still returned in the order of the walk.
+	 * <p>
+	 * This pays off when most files have to be hashed, e.g. when the index
+	 * has no stat data that can be trusted. Subtree iterators created after
+	 * this call use the same pool.
+	 *
+	 * @param pool
+	 *            threads to hash on; null to hash on the walking thread.
+	 * @param depth
+	 *            number of files, including the current one, to hash ahead.
+	 */
+	public void setHashPool(final ExecutorService pool, final int depth) {
+		hashPool = depth > 1 ? pool : null;
+		readAhead = depth;
 	}
 
 	@Override
@@ -137,6 +185,8 @@ public byte[] idBuffer() {
 		switch (mode & 0170000) {
 		case 0100000: /* normal files */
 			contentIdFromPtr = ptr;
+			if (hashPool != null)
+				return contentId = idBufferAhead();
 			return contentId = idBufferBlob(entries[ptr]);
 		case 0120000: /* symbolic links */
 			// Java does not support symbolic links, so we should not
@@ -173,42 +223,95 @@ private void initializeDigest() {
 			.encodedTypeString(Constants.OBJ_BLOB);
 
 	private byte[] idBufferBlob(final Entry e) {
+		initializeDigest();
+		return hash(e, contentDigest, contentReadBuffer);
+	}
+
+	private byte[] idBufferAhead() {
+		if (hashed == null)
+			hashed = new ArrayList<Future<byte[]>>(Collections
+					.<Future<byte[]>> nCopies(entryCnt, null));
+		final int end = Math.min(entryCnt, ptr + readAhead);
+		for (int i = Math.max(hashedEnd, ptr); i < end; i++) {
+			final Entry e = entries[i];
+			if ((e.getMode().getBits() & 0170000) == 0100000)
+				hashed.set(i, hashPool.submit(new HashTask(e)));
+		}
+		if (hashedEnd < end)
+			hashedEnd = end;
+
+		final Future<byte[]> f = hashed.get(ptr);
+		if (f != null) {
+			hashed.set(ptr, null);
+			try {
+				return f.get();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ee) {
+				// Hash the file ourselves below, as though it
+				// had never been handed to the pool.
+			}
+		}
+		return idBufferBlob(entries[ptr]);
+	}
+
+	/**
+	 * Cancel the pending hashes of the entries in a range.
+	 * <p>
+	 * A hash already running is left to finish, as interrupting the read
+	 * gains little; one still queued will never be read from the disk.
+	 *
+	 * @param from
+	 *            first entry to cancel the hash of.
+	 * @param to
+	 *            entry after the last one to cancel the hash of.
+	 */
+	private void cancelHashes(final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			final Future<byte[]> f = hashed.get(i);
+			if (f != null) {
+				f.cancel(false);
+				hashed.set(i, null);
+			}
+		}
+	}
+
+	private static byte[] hash(final Entry e, final MessageDigest md,
+			final byte[] buf) {
 		try {
 			final InputStream is = e.openInputStream();
 			if (is == null)
 				return zeroid;
 			try {
-				initializeDigest();
-
-				contentDigest.reset();
-				contentDigest.update(hblob);
-				contentDigest.update((byte) ' ');
+				md.reset();
+				md.update(hblob);
+				md.update((byte) ' ');
 
 				final long blobLength = e.getLength();
 				long sz = blobLength;
 				if (sz == 0) {
-					contentDigest.update((byte) '0');
+					md.update((byte) '0');
 				} else {
-					final int bufn = contentReadBuffer.length;
+					final int bufn = buf.length;
 					int p = bufn;
 					do {
-						contentReadBuffer[--p] = digits[(int) (sz % 10)];
+						buf[--p] = digits[(int) (sz % 10)];
 						sz /= 10;
 					} while (sz > 0);
-					contentDigest.update(contentReadBuffer, p, bufn - p);
+					md.update(buf, p, bufn - p);
 				}
-				contentDigest.update((byte) 0);
+				md.update((byte) 0);
 
 				for (;;) {
-					final int r = is.read(contentReadBuffer);
+					final int r = is.read(buf);
 					if (r <= 0)
 						break;
-					contentDigest.update(contentReadBuffer, 0, r);
+					md.update(buf, 0, r);
 					sz += r;
 				}
 				if (sz != blobLength)
 					return zeroid;
-				return contentDigest.digest();
+				return md.digest();
 			} finally {
 				try {
 					is.close();
@@ -225,6 +328,31 @@ private byte[] idBufferBlob(final Entry e) {
 		}
 	}
 
+	/** Hashes one file on a thread of the {@link #hashPool}. */
+	private static class HashTask implements Callable<byte[]> {
+		private static final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+			protected MessageDigest initialValue() {
+				return Constants.newMessageDigest();
+			}
+		};
+
+		private static final ThreadLocal<byte[]> buf = new ThreadLocal<byte[]>() {
+			protected byte[] initialValue() {
+				return new byte[HASH_BUFFER_SIZE];
+			}
+		};
+
+		private final Entry entry;
+
+		HashTask(final Entry e) {
+			entry = e;
+		}
+
+		public byte[] call() {
+			return hash(entry, md.get(), buf.get());
+		}
+	}
+
 	@Override
 	public int idOffset() {
 		return 0;
@@ -242,7 +370,10 @@ public boolean eof() {
 
 	@Override
 	public void next(final int delta) throws CorruptObjectException {
+		final int old = ptr;
 		ptr += delta;
+		if (hashed != null)
+			cancelHashes(old, Math.min(ptr, hashedEnd));
 		if (!eof())
 			parseEntry();
 	}
@@ -253,6 +384,14 @@ public void back(final int delta) throws CorruptObjectException {
 		parseEntry();
 	}
 
+	@Override
+	public void stopWalk() {
+		if (hashed != null)
+			cancelHashes(ptr, hashedEnd);
+		if (parent != null)
+			parent.stopWalk();
+	}
+
 	private void parseEntry() {
 		final Entry e = entries[ptr];
 		mode = e.getMode().getBits();
@@ -283,6 +422,56 @@ public long getEntryLastModified() {
 		return current().getLastModified();
 	}
 
+	/**
+	 * Is the current entry different from its cached index entry?
+	 * <p>
+	 * The cached mode, size and modification time are compared first. A file
+	 * whose stat data all match is assumed to be unmodified and is not read.
+	 * Only when the modification time differs, or when the caller cannot
+	 * trust it, is the file hashed and compared to the cached object id.
+	 *
+	 * @param entry
+	 *            the index entry for the same path.
+	 * @param forceContentCheck
+	 *            true if matching stat data is not proof enough, e.g. because
+	 *            the entry is racily clean. The content is then hashed.
+	 * @return true if the file is modified relative to the index entry.
+	 */
+	public boolean isModified(final DirCacheEntry entry,
+			final boolean forceContentCheck) {
+		if (entry.isAssumeValid())
+			return false;
+
+		if (!isModeEqual(entry.getRawMode()))
+			return true;
+		if (FileMode.GITLINK.equals(mode))
+			return false;
+		if ((int) getEntryLength() != entry.getLength())
+			return true;
+
+		if (!forceContentCheck) {
+			// Git under Windows only stores seconds, so we round the
+			// time Java gives us if the cached time looks like that.
+			//
+			final long cached = entry.getLastModified();
+			long actual = getEntryLastModified();
+			if (cached % 1000 == 0)
+				actual -= actual % 1000;
+			if (cached == actual)
+				return false;
+		}
+		return !getEntryObjectId().equals(entry.getObjectId());
+	}
+
+	private boolean isModeEqual(final int cachedMode) {
+		if (mode == cachedMode)
+			return true;
+		if (!FS.INSTANCE.supportsExecute()
+				&& FileMode.EXECUTABLE_FILE.equals(cachedMode))
+			return FileMode.REGULAR_FILE.equals(mode);
+		return false;
+	}
+
 	private static final Comparator<Entry> ENTRY_CMP = new Comparator<Entry>() {
 		public int compare(final Entry o1, final Entry o2) {
 			final byte[] a = o1.encodedName;
@@ -342,6 +531,8 @@ protected void init(final Entry[] list) {
 		Arrays.sort(entries, 0, entryCnt, ENTRY_CMP);
 
 		contentIdFromPtr = -1;
+		hashed = null;
+		hashedEnd = 0;
 		ptr = 0;
 		if (!eof())
 			parseEntry();